@@ -56,6 +56,7 @@ import org.mpisws.p2p.transport.ClosedChannelException;
 import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.processing.KeyedWorkRequest;
 import rice.environment.processing.Processor;
 import rice.environment.processing.WorkRequest;
 import rice.p2p.commonapi.appsocket.AppSocket;
@@ -730,7 +731,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         
         };
         
-        processor.processBlockingIO(new WorkRequest<Object>(c, environment.getSelectorManager()) {
+        processor.processBlockingIO(new KeyedWorkRequest<Object>(c, environment.getSelectorManager(), FileTransferImpl.this, file) {
           
           @Override
           public Object doWork() throws Exception {
@@ -780,7 +781,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         }
       
       };
-      processor.processBlockingIO(new WorkRequest<Object>(c2, environment.getSelectorManager()) {
+      processor.processBlockingIO(new KeyedWorkRequest<Object>(c2, environment.getSelectorManager(), FileTransferImpl.this, file) {
         @Override
         public Object doWork() throws Exception {
           file.close();
@@ -901,7 +902,8 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         }      
       };
       
-      processor.processBlockingIO(new WorkRequest<Object>(c,environment.getSelectorManager()) {
+      // exclusive, so it waits for the transfers' outstanding requests
+      processor.processBlockingIO(new KeyedWorkRequest<Object>(c,environment.getSelectorManager(), FileTransferImpl.this, null) {
 
         @Override
         public Object doWork() throws Exception {
@@ -1493,7 +1495,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       // schedule them to be written, then notified on the blockingIOThread
       
       // note, that it is required that these are in order
-      WorkRequest<Long> wr = new WorkRequest<Long>(new Continuation<Long, Exception>() {
+      WorkRequest<Long> wr = new KeyedWorkRequest<Long>(new Continuation<Long, Exception>() {
       
         public void receiveResult(Long myPtrL) {
           decrementFileChunksInMemory();
@@ -1510,7 +1512,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
           FileDataReader.this.cancel();
           decrementFileChunksInMemory();
         }      
-      },environment.getSelectorManager()) {
+      },environment.getSelectorManager(), FileTransferImpl.this, file) {
       
         @Override
         public Long doWork() throws Exception {
@@ -1584,7 +1586,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       cancelled = true;
       
       // Don't close the file on the wrong thread.
-      WorkRequest<RandomAccessFile> wr = new WorkRequest<RandomAccessFile>(new Continuation<RandomAccessFile, Exception>() {
+      WorkRequest<RandomAccessFile> wr = new KeyedWorkRequest<RandomAccessFile>(new Continuation<RandomAccessFile, Exception>() {
       
         public void receiveResult(RandomAccessFile result) {
           if (logger.level <= Logger.INFO) logger.log("File Cancelled<"+uid+"> "+f+","+offset+","+(ptr-offset)+","+length);
@@ -1595,7 +1597,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         public void receiveException(Exception exception) {
           if (logger.level <= Logger.WARNING) logger.logException("Error closing file "+file, exception);
         }      
-      },environment.getSelectorManager()) {
+      },environment.getSelectorManager(), FileTransferImpl.this, file) {
       
         @Override
         public RandomAccessFile doWork() throws Exception {
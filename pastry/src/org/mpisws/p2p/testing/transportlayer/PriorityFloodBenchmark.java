@@ -0,0 +1,205 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.testing.transportlayer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mpisws.p2p.transport.MessageCallback;
+import org.mpisws.p2p.transport.MessageRequestHandle;
+import org.mpisws.p2p.transport.P2PSocket;
+import org.mpisws.p2p.transport.TransportLayerCallback;
+import org.mpisws.p2p.transport.liveness.LivenessTransportLayerImpl;
+import org.mpisws.p2p.transport.multiaddress.MultiInetAddressTransportLayerImpl;
+import org.mpisws.p2p.transport.multiaddress.MultiInetSocketAddress;
+import org.mpisws.p2p.transport.priority.PriorityTransportLayerImpl;
+import org.mpisws.p2p.transport.proximity.MinRTTProximityProvider;
+import org.mpisws.p2p.transport.wire.WireTransportLayerImpl;
+
+import rice.environment.Environment;
+
+/**
+ * Floods small messages from alice to bob over the PriorityTransportLayer 
+ * on localhost, with and without batched writes (pastry_socket_writer_batch_size).
+ * 
+ * Reports messages per second and write syscalls per message.  The syscalls 
+ * are counted for the whole process from /proc/self/io (Linux only).  The 
+ * messages are sent on the selector thread, with up to WINDOW outstanding, so 
+ * there are no selector wakeups to count.
+ * 
+ * Usage: PriorityFloodBenchmark [numMessages] [msgSize] [batchSize...]  
+ *   (default 200000 64 0 16384)
+ * 
+ * @version $Id$
+ */
+public class PriorityFloodBenchmark {
+  public static final int START_PORT = 5309;
+  /**
+   * The maximum number of messages alice has outstanding.
+   */
+  public static final int WINDOW = 1000;
+  
+  static int port = START_PORT;
+  
+  public static void main(String[] args) throws Exception {
+    int numMessages = 200000;
+    int msgSize = 64;
+    int[] batchSizes = {0, 16384};
+    if (args.length > 0) numMessages = Integer.parseInt(args[0]);
+    if (args.length > 1) msgSize = Integer.parseInt(args[1]);
+    if (args.length > 2) {
+      batchSizes = new int[args.length-2];
+      for (int i = 2; i < args.length; i++) batchSizes[i-2] = Integer.parseInt(args[i]);
+    }
+    
+    // warm up
+    for (int i = 0; i < batchSizes.length; i++) {
+      run(numMessages/10, msgSize, batchSizes[i], false);
+    }
+    for (int i = 0; i < batchSizes.length; i++) {
+      run(numMessages, msgSize, batchSizes[i], true);
+    }
+  }
+  
+  static PriorityTransportLayerImpl<MultiInetSocketAddress> buildTL(InetAddress addr, int port, Environment env) throws IOException {
+    InetSocketAddress addr_a = new InetSocketAddress(addr,port);
+    LivenessTransportLayerImpl<MultiInetSocketAddress> ltli = new LivenessTransportLayerImpl<MultiInetSocketAddress>(
+        new MultiInetAddressTransportLayerImpl(new MultiInetSocketAddress(addr_a),
+          new WireTransportLayerImpl(addr_a,env, null), 
+        env, null, null),
+      env, null, 5000);
+    
+    return new PriorityTransportLayerImpl<MultiInetSocketAddress>(ltli, ltli, 
+        new MinRTTProximityProvider<MultiInetSocketAddress>(ltli, env), 
+        env, 1024, WINDOW*2, null);
+  }
+  
+  static void run(final int numMessages, int msgSize, int batchSize, boolean print) throws Exception {
+    Environment env = new Environment();
+    env.getParameters().setInt("pastry_socket_writer_batch_size", batchSize);
+    InetAddress addr = InetAddress.getByName("127.0.0.1");
+    PriorityTransportLayerImpl<MultiInetSocketAddress> alice = buildTL(addr, port++, env);
+    PriorityTransportLayerImpl<MultiInetSocketAddress> bob = buildTL(addr, port++, env);
+    
+    final int[] received = new int[1];
+    bob.setCallback(new TransportLayerCallback<MultiInetSocketAddress, ByteBuffer>() {
+      public void messageReceived(MultiInetSocketAddress i, ByteBuffer m, Map<String, Object> options) throws IOException {
+        synchronized(received) {
+          received[0]++;
+          if (received[0] == numMessages) received.notifyAll();
+        }
+      }
+      public void incomingSocket(P2PSocket<MultiInetSocketAddress> s) throws IOException {
+      }
+    });
+    
+    final Map<String, Object> options = new HashMap<String, Object>();
+    final MultiInetSocketAddress dest = bob.getLocalIdentifier();
+    final byte[] payload = new byte[msgSize];
+    final PriorityTransportLayerImpl<MultiInetSocketAddress> sender = alice;
+    
+    // everything is sent on the selector, each ack sends the next message
+    final MessageCallback<MultiInetSocketAddress, ByteBuffer> ack = new MessageCallback<MultiInetSocketAddress, ByteBuffer>() {
+      int sent = 0;
+      
+      public void ack(MessageRequestHandle<MultiInetSocketAddress, ByteBuffer> msg) {
+        send(1);
+      }
+      
+      public void sendFailed(MessageRequestHandle<MultiInetSocketAddress, ByteBuffer> msg, Exception reason) {
+        System.out.println("sendFailed "+reason);
+        send(1);
+      }
+      
+      void send(int num) {
+        for (int i = 0; i < num && sent < numMessages; i++) {
+          sent++;
+          sender.sendMessage(dest, ByteBuffer.wrap(payload), this, options);
+        }
+      }
+    };
+    
+    long startSyscalls = writeSyscalls();
+    long start = System.nanoTime();
+    env.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        for (int i = 0; i < WINDOW; i++) {
+          ack.ack(null);
+        }
+      }
+    });
+    synchronized(received) {
+      long end = System.currentTimeMillis()+60000;
+      while (received[0] < numMessages && System.currentTimeMillis() < end) received.wait(1000);
+    }
+    long time = System.nanoTime()-start;
+    long syscalls = writeSyscalls()-startSyscalls;
+    
+    if (print) {
+      System.out.println("batch:"+batchSize+" msgSize:"+msgSize+" received:"+received[0]+"/"+numMessages+" "+
+          (received[0]*1000000000L/time)+" msgs/s "+
+          (syscalls < 0 ? "?" : String.format("%.3f", (double)syscalls/numMessages))+" write syscalls/msg");
+    }
+    env.destroy();
+  }
+  
+  /**
+   * @return the number of write syscalls made by this process, -1 if unknown
+   */
+  static long writeSyscalls() {
+    try {
+      BufferedReader r = new BufferedReader(new FileReader("/proc/self/io"));
+      try {
+        String line;
+        while ((line = r.readLine()) != null) {
+          if (line.startsWith("syscw:")) return Long.parseLong(line.substring(6).trim());
+        }
+      } finally {
+        r.close();
+      }
+    } catch (IOException ioe) {
+      // not linux
+    }
+    return -1;
+  }
+}
@@ -57,9 +57,12 @@ import org.mpisws.p2p.transport.util.OptionsFactory;
 
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.rawserialization.RawMessage;
-import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.ByteBufferInputBuffer;
+import rice.p2p.util.rawserialization.OutputBufferPool;
+import rice.p2p.util.rawserialization.PooledOutputBuffer;
 import rice.p2p.util.rawserialization.SimpleOutputBuffer;
 
 public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implements 
@@ -87,6 +90,17 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
 
   protected OptionsAdder optionsAdder;
   
+  /**
+   * Room for the PriorityTransportLayer's size header in front of the message.
+   */
+  public static final int POOLED_BUFFER_HEADROOM = 4;
+  
+  /**
+   * Messages are serialized into buffers from this pool, null if 
+   * transport_output_buffer_pool_size is 0.  See PooledOutputBuffer.
+   */
+  protected OutputBufferPool bufferPool;
+  
   public CommonAPITransportLayerImpl(
       TransportLayer<Identifier, ByteBuffer> tl, 
       IdFactory idFactory,
@@ -125,6 +139,13 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
     this.idFactory = idFactory;
     this.errorHandler = errorHandler;
     
+    Parameters p = env.getParameters();
+    if (p.contains("transport_output_buffer_pool_size") && p.getInt("transport_output_buffer_pool_size") > 0) {
+      this.bufferPool = new OutputBufferPool(
+          p.getInt("transport_output_buffer_pool_size"), 
+          p.getInt("transport_output_buffer_pool_max_buffer_size"));
+    }
+    
     if (this.callback == null) {
       this.callback = new DefaultCallback<Identifier, RawMessage>(env);
     }
@@ -170,7 +191,13 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
     
     // we only serialize the Id, we assume the underlieing layer got the address of the NodeHandle correct
 //    SimpleOutputBuffer sob = new SimpleOutputBuffer(4+localAddress.getId().getByteArrayLength());
-    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    SimpleOutputBuffer sob = null;
+    PooledOutputBuffer pob = null;
+    if (bufferPool == null) {
+      sob = new SimpleOutputBuffer();
+    } else {
+      pob = bufferPool.getBuffer(POOLED_BUFFER_HEADROOM);
+    }
     try {
       // TODO: maybe we should write my entire address to be compatible with the lower levels, why do we need to do this at all?  
       // Is the contract that the lower level's identifier is proper?  
@@ -186,9 +213,14 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
 //          logger.log(m.toString());
 ////       }
 //      }
-      deserializer.serialize(m, sob);
+      if (pob == null) {
+        deserializer.serialize(m, sob);
+      } else {
+        deserializer.serialize(m, pob);
+      }
 //      m.serialize(sob);
     } catch (IOException ioe) {
+      if (pob != null) pob.release();
       if (ioe instanceof NodeIsFaultyException) {
         ioe = new NodeIsFaultyException(i,m, ioe); 
       }
@@ -200,7 +232,14 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
       return handle;
     }
     
-    buf = ByteBuffer.wrap(sob.getBytes());
+    Map<String, Object> sendOptions = optionsAdder.addOptions(options,m);
+    if (pob == null) {
+      buf = ByteBuffer.wrap(sob.getBytes());
+    } else {
+      // no copy, the layer that acks or fails the message will release it
+      buf = pob.getByteBuffer();
+      sendOptions = OptionsFactory.addOption(sendOptions, PooledOutputBuffer.OPTION_POOLED_BUFFER, pob);
+    }
     if (logger.level <= Logger.FINEST) logger.log("sendMessage("+i+","+m+") serizlized:"+buf);
 
     handle.setSubCancellable(tl.sendMessage(
@@ -232,13 +271,14 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
         }, 
 //        OptionsFactory.addOption(options, MSG_STRING, m.toString(), DESTINATION_IDENTITY, i)));
 //        OptionsFactory.addOption(options, MSG_STRING, m.toString(), MSG_TYPE, m.getType(), MSG_CLASS, m.getClass().getName())));
-        optionsAdder.addOptions(options,m)));
+        sendOptions));
     return handle;
   }
 
   public void messageReceived(Identifier i, ByteBuffer m, Map<String, Object> options) throws IOException {
 //    if (logger.level <= Logger.FINE) logger.log("messageReceived("+i+","+m+")");
-    SimpleInputBuffer buf = new SimpleInputBuffer(m.array(), m.position());
+    // reads m in place, RouteMessage may hold on to it until it is unwrapped
+    ByteBufferInputBuffer buf = new ByteBufferInputBuffer(m);
 //    long epoch = buf.readLong();
 //    Id id = idFactory.build(buf);
 //    TransportLayerNodeHandle<Identifier> handle = nodeHandleFactory.getNodeHandle(i, epoch, id); 
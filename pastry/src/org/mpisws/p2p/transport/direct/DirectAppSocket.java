@@ -193,11 +193,21 @@ public class DirectAppSocket<Identifier, MessageType> {
         }   
       } // synchronized(this)
 
-      bytesInFlight-=lengthRead;
-      if (logger.level <= Logger.FINER) logger.log(this+".write("+dsts+") len:"+lengthRead+" inFlight:"+bytesInFlight);
+      // with parallel nodes, bytesInFlight is only used by the writer, so it's 
+      // updated on the writer's node, otherwise the credit is returned right away
+      final int freed = (simulator.isParallel() ? lengthRead : 0);
+      synchronized(this) {
+        bytesInFlight-=(lengthRead-freed);
+      }
+      if (logger.level <= Logger.FINER) logger.log(this+".read("+dsts+") len:"+lengthRead+" inFlight:"+bytesInFlight);
 
       simulator.enqueueDelivery(new Delivery() {              
         public void deliver() {
+          if (freed > 0) {
+            synchronized(DirectAppSocketEndpoint.this) {
+              bytesInFlight-=freed;
+            }
+          }
           counterpart.notifyCanWrite();            
         }            
         public int getSeq() {
@@ -206,7 +216,7 @@ public class DirectAppSocket<Identifier, MessageType> {
         public String toString() {
           return DirectAppSocketEndpoint.this.toString()+" counterpart notifyCanWrite()";
         }
-      }, 0);            
+      }, 0, localNodeHandle, counterpart.localNodeHandle);            
       return lengthRead;
     }
 
@@ -258,7 +268,8 @@ public class DirectAppSocket<Identifier, MessageType> {
         public String toString() {
           return DirectAppSocketEndpoint.this.toString()+" deliver msg "+msg;
         }
-      }, (int)Math.round(simulator.networkDelay(localNodeHandle, counterpart.localNodeHandle)));      
+      }, (int)Math.round(simulator.networkDelay(localNodeHandle, counterpart.localNodeHandle)), 
+      localNodeHandle, counterpart.localNodeHandle);      
       return lengthToWrite;
     }
   
@@ -335,7 +346,7 @@ public class DirectAppSocket<Identifier, MessageType> {
             return DirectAppSocketEndpoint.this.toString()+" notifyCanWrite()";
           }
 
-        }, 0); // I dont think this needs a delay, but I could be wrong            
+        }, 0, localNodeHandle, localNodeHandle); // I dont think this needs a delay, but I could be wrong            
       }
       
       if (wantToRead) {
@@ -353,7 +364,7 @@ public class DirectAppSocket<Identifier, MessageType> {
           public String toString() {
             return DirectAppSocketEndpoint.this.toString()+" notifyCanRead()";
           }
-        }, 0); // I dont think this needs a delay, but I could be wrong            
+        }, 0, localNodeHandle, localNodeHandle); // I dont think this needs a delay, but I could be wrong            
       }        
     }
   
@@ -372,7 +383,8 @@ public class DirectAppSocket<Identifier, MessageType> {
         public String toString() {
           return DirectAppSocketEndpoint.this.toString()+" counterpart shutDownOutput()";
         }
-      }, (int)Math.round(simulator.networkDelay(localNodeHandle, counterpart.localNodeHandle))); // I dont think this needs a delay, but I could be wrong            
+      }, (int)Math.round(simulator.networkDelay(localNodeHandle, counterpart.localNodeHandle)), 
+      localNodeHandle, counterpart.localNodeHandle); // I dont think this needs a delay, but I could be wrong            
     }
   
     public void shutdownInput() {
@@ -412,13 +424,14 @@ public class DirectAppSocket<Identifier, MessageType> {
         if (acceptorTL.canReceiveSocket()) {
           acceptorTL.finishReceiveSocket(acceptorEndpoint);
           simulator.enqueueDelivery(new ConnectorDelivery(),
-              (int)Math.round(simulator.networkDelay(acceptor, connector))); 
+              (int)Math.round(simulator.networkDelay(acceptor, connector)), acceptor, connector); 
         } else {
           simulator.enqueueDelivery(new ConnectorExceptionDelivery<Identifier>(connectorReceiver,connectorHandle,new SocketTimeoutException()),
-              (int)Math.round(simulator.networkDelay(acceptor, connector))); 
+              (int)Math.round(simulator.networkDelay(acceptor, connector)), acceptor, connector); 
         }
       } else {
-        simulator.enqueueDelivery(new ConnectorExceptionDelivery<Identifier>(connectorReceiver,connectorHandle,new NodeIsFaultyException(acceptor)),0);
+        simulator.enqueueDelivery(new ConnectorExceptionDelivery<Identifier>(connectorReceiver,connectorHandle,new NodeIsFaultyException(acceptor)),0, 
+            acceptor, connector);
         // TODO: this should probably take into account a real delay, however, acceptor has already been removed from the simulator
 //            (int)Math.round(simulator.networkDelay(acceptor, connector))+
 //            (int)Math.round(simulator.networkDelay(connector, acceptor))); 
@@ -123,13 +123,14 @@ public class DirectTransportLayer<Identifier, MessageType> implements TransportL
       int delay = (int)Math.round(simulator.networkDelay(localIdentifier, i));
       DirectAppSocket<Identifier, MessageType> socket = new DirectAppSocket<Identifier, MessageType>(i, localIdentifier, deliverSocketToMe, simulator, handle, options);
       CancelAndClose<Identifier, MessageType> cancelAndClose = new CancelAndClose<Identifier, MessageType>(socket, simulator.enqueueDelivery(socket.getAcceptorDelivery(),
-          delay));
+          delay, localIdentifier, i));
       handle.setSubCancellable(cancelAndClose);
     } else {
       int delay = 5000;  // TODO: Make this configurable
       handle.setSubCancellable(
           simulator.enqueueDelivery(
-              new ConnectorExceptionDelivery<Identifier>(deliverSocketToMe, handle, new SocketTimeoutException()),delay));
+              new ConnectorExceptionDelivery<Identifier>(deliverSocketToMe, handle, new SocketTimeoutException()),delay,
+              localIdentifier, localIdentifier));
     }
     
     return handle;
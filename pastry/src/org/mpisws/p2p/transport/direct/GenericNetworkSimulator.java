@@ -83,6 +83,23 @@ public interface GenericNetworkSimulator<Identifier, MessageType> extends Livene
    */
 //  public CancellableTask enqueueDelivery(Delivery del);  
   public CancellableTask enqueueDelivery(Delivery del, int delay);
+
+  /**
+   * Schedules a delivery which runs on the destination node.  A parallel simulator 
+   * needs to know the nodes to run the delivery on the right thread.
+   * 
+   * @param del the delivery
+   * @param delay how long to delay the delivery
+   * @param source the node scheduling the delivery
+   * @param destination the node the delivery runs on
+   */
+  public CancellableTask enqueueDelivery(Delivery del, int delay, Identifier source, Identifier destination);
+  
+  /**
+   * @return true if the nodes run on several threads, so that a node's state 
+   * may only be changed by a delivery to that node
+   */
+  public boolean isParallel();
    
   public DirectTransportLayer<Identifier, MessageType> getTL(Identifier i);
 
@@ -79,7 +79,7 @@ import rice.environment.Environment;
 import rice.environment.logging.Logger;
 import rice.p2p.commonapi.Cancellable;
 import rice.p2p.util.TimerWeakHashMap;
-import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.ByteBufferInputBuffer;
 import rice.p2p.util.rawserialization.SimpleOutputBuffer;
 import rice.pastry.NodeHandleFactoryListener;
 import rice.pastry.socket.SocketNodeHandle;
@@ -829,9 +829,9 @@ public class IdentityImpl<UpperIdentifier, MiddleIdentifier, UpperMsgType, Lower
           }          
           
         case NO_ID:
-          SimpleInputBuffer sib = new SimpleInputBuffer(m.array(),m.position());
+          ByteBufferInputBuffer sib = new ByteBufferInputBuffer(m);
           UpperIdentifier from = serializer.deserialize(sib, i);
-          m.position(m.array().length - sib.bytesRemaining());
+          m.position(sib.position());
 
           if (addBinding(from, i, options)) {
 //            from = serializer.coalesce(from);
@@ -864,7 +864,7 @@ public class IdentityImpl<UpperIdentifier, MiddleIdentifier, UpperMsgType, Lower
           // it's an error, read it in
           UpperIdentifier oldDest = bindings.get(serializer.translateUp(i));
           
-          UpperIdentifier newDest = serializer.deserialize(new SimpleInputBuffer(m.array(),m.position()), i);
+          UpperIdentifier newDest = serializer.deserialize(new ByteBufferInputBuffer(m), i);
           if (logger.level <= Logger.INFO) logger.log(
               "received INCORRECT_IDENTITY:"+i+
               " old:"+oldDest+
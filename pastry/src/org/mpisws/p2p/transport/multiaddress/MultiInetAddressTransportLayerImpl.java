@@ -65,7 +65,7 @@ import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
 import rice.p2p.commonapi.Cancellable;
-import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.ByteBufferInputBuffer;
 import rice.p2p.util.rawserialization.SimpleOutputBuffer;
 
 /**
@@ -297,7 +297,7 @@ public class MultiInetAddressTransportLayerImpl implements MultiInetAddressTrans
     // read numAddresses
     if (sendIdentifier) {      
       int pos = m.position();
-      SimpleInputBuffer sib = new SimpleInputBuffer(m.array(),pos);
+      ByteBufferInputBuffer sib = new ByteBufferInputBuffer(m);
       
       MultiInetSocketAddress eisa;
       try {
@@ -308,7 +308,7 @@ public class MultiInetAddressTransportLayerImpl implements MultiInetAddressTrans
       }
 
       // make sure to leave m at the proper position
-      m.position(m.array().length - sib.bytesRemaining());
+      m.position(sib.position());
       
 //      if (!m.hasRemaining()) {
 //        errorHandler.receivedUnexpectedData(new EpochInetSocketAddress(i), m.array());
@@ -53,6 +53,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.TreeMap;
 
 import org.mpisws.p2p.transport.ErrorHandler;
 import org.mpisws.p2p.transport.MessageCallback;
@@ -77,10 +78,12 @@ import org.mpisws.p2p.transport.wire.WireTransportLayer;
 import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.Cancellable;
 import rice.p2p.commonapi.exception.NodeIsDeadException;
 import rice.p2p.util.MathUtils;
-import rice.p2p.util.SortedLinkedList;
+import rice.p2p.util.PriorityRingQueue;
+import rice.p2p.util.rawserialization.PooledOutputBuffer;
 import rice.p2p.util.tuples.Tuple;
 import rice.selector.SelectorManager;
 import rice.selector.TimerTask;
@@ -106,6 +109,33 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
   public int MAX_MSG_SIZE = 10000;
   public int MAX_QUEUE_SIZE = 30;
   
+  /**
+   * The most bytes to queue for one node, 0 for no limit.  The queue always 
+   * keeps at least one message, so a single message bigger than this is still 
+   * sent.  Set from pastry_socket_writer_max_queue_bytes.
+   */
+  public int MAX_QUEUE_BYTES = 0;
+  
+  public static final String DROP_LOWEST_PRIORITY = "lowest_priority";
+  public static final String DROP_NEWEST = "newest";
+  
+  /**
+   * What to drop when the queue is over MAX_QUEUE_SIZE or MAX_QUEUE_BYTES.
+   * 
+   * DROP_LOWEST_PRIORITY drops the newest message of the lowest priority.
+   * DROP_NEWEST drops the message that was just enqueued, regardless of priority.
+   * 
+   * Set from pastry_socket_writer_drop_policy.
+   */
+  public String DROP_POLICY = DROP_LOWEST_PRIORITY;
+  
+  /**
+   * Messages queued for the same node are copied into one buffer of up to this 
+   * many bytes and written to the socket with a single write().  0 writes them 
+   * one at a time.  Set from pastry_socket_writer_batch_size.
+   */
+  public int MAX_BATCH_SIZE = 0;
+  
   /**
    * BIG messages open a socket especially for big messages.  This is the bigest message size allowed.
    */
@@ -143,8 +173,25 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     this.environment = env;
     this.MAX_MSG_SIZE = maxMsgSize;
     this.MAX_QUEUE_SIZE = maxQueueSize;
+    Parameters p = env.getParameters();
+    if (p.contains("pastry_socket_writer_batch_size")) {
+      this.MAX_BATCH_SIZE = p.getInt("pastry_socket_writer_batch_size");
+    }
+    if (p.contains("pastry_socket_writer_max_queue_bytes")) {
+      this.MAX_QUEUE_BYTES = p.getInt("pastry_socket_writer_max_queue_bytes");
+    }
+    if (p.contains("pastry_socket_writer_drop_policy")) {
+      String policy = p.getString("pastry_socket_writer_drop_policy");
+      if (policy.equals(DROP_NEWEST)) {
+        this.DROP_POLICY = DROP_NEWEST;
+      } else if (policy.equals(DROP_LOWEST_PRIORITY)) {
+        this.DROP_POLICY = DROP_LOWEST_PRIORITY;
+      } else {
+        throw new IllegalArgumentException("Unknown pastry_socket_writer_drop_policy:"+policy);
+      }
+    }
     this.tl = tl;    
-    if (logger.level <= Logger.INFO) logger.log("MAX_QUEUE_SIZE:"+MAX_QUEUE_SIZE+" MAX_MSG_SIZE:"+MAX_MSG_SIZE);
+    if (logger.level <= Logger.INFO) logger.log("MAX_QUEUE_SIZE:"+MAX_QUEUE_SIZE+" MAX_QUEUE_BYTES:"+MAX_QUEUE_BYTES+" MAX_MSG_SIZE:"+MAX_MSG_SIZE);
     this.livenessProvider = livenessProvider;
     this.proximityProvider = proximityProvider;
     tl.setCallback(this);
@@ -430,9 +477,28 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     if (logLevel <= Logger.FINE) {
       synchronized(entityManagers) {
         int queueSum = 0;
+        long bytesSum = 0;
+        // depthHistogram[0] counts empty queues, depthHistogram[i] counts queues of depth 2^(i-1) to 2^i-1
+        int[] depthHistogram = new int[2];
+        TreeMap<Integer, Integer> priorityDepth = new TreeMap<Integer, Integer>();
         for(EntityManager em : entityManagers.values()) {
-          int queueSize = em.queue.size();
+          int queueSize;
+          synchronized(em.queue) {
+            queueSize = em.queue.size();
+            bytesSum+=em.queue.bytes();
+            for (int priority : em.queue.getPriorities()) {
+              Integer depth = priorityDepth.get(priority);
+              priorityDepth.put(priority, (depth == null ? 0 : depth.intValue())+em.queue.size(priority));
+            }
+          }
           queueSum+=queueSize;          
+          int bucket = 32-Integer.numberOfLeadingZeros(queueSize);
+          if (bucket >= depthHistogram.length) {
+            int[] temp = new int[bucket+1];
+            System.arraycopy(depthHistogram, 0, temp, 0, depthHistogram.length);
+            depthHistogram = temp;
+          }
+          depthHistogram[bucket]++;
           if (logLevel <= Logger.FINEST ||   // finest prints empty queues 
              (queueSize > 0 && logLevel <= Logger.FINER)) {  // only prints non-empty queues
             Identifier temp = em.identifier.get();
@@ -448,7 +514,24 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
             logger.log("EM{"+temp+","+s+","+em.writingSocket+","+em.pendingSocket+"} queue:"+queueSize+" reg:"+em.registered+" lChecker:"+em.livenessChecker);
           }
         }        
-        logger.log("NumEMs:"+entityManagers.size()+" numPendingMsgs:"+queueSum);
+        logger.log("NumEMs:"+entityManagers.size()+" numPendingMsgs:"+queueSum+" numPendingBytes:"+bytesSum);
+        
+        StringBuffer sb = new StringBuffer("Queue depth histogram (depth:numEMs)");
+        for (int bucket = 0; bucket < depthHistogram.length; bucket++) {
+          if (depthHistogram[bucket] == 0) continue;
+          if (bucket <= 1) {
+            sb.append(" "+bucket+":"+depthHistogram[bucket]);
+          } else {
+            sb.append(" "+(1 << (bucket-1))+"-"+((1 << bucket)-1)+":"+depthHistogram[bucket]);
+          }
+        }
+        logger.log(sb.toString());
+        
+        sb = new StringBuffer("Queue depth by priority (priority:numMsgs)");
+        for (Map.Entry<Integer, Integer> e : priorityDepth.entrySet()) {
+          sb.append(" "+e.getKey()+":"+e.getValue());
+        }
+        logger.log(sb.toString());
       } // synchronized
     }
   }
@@ -471,7 +554,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
   public class EntityManager implements P2PSocketReceiver<Identifier> {
     // TODO: think about the behavior of this when it wraps around...
     int seq = Integer.MIN_VALUE;
-    SortedLinkedList<MessageWrapper> queue; // messages we want to send
+    PriorityRingQueue<MessageWrapper> queue; // messages we want to send
     Collection<P2PSocket<Identifier>> sockets;
     
     WeakReference<Identifier> identifier;
@@ -483,9 +566,16 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     // Invariant: if (messageThatIsBeingWritten != null) then (writingSocket != null)
     private boolean registered = false;  // true if registed for writing
     
+    // batched writing, see MAX_BATCH_SIZE
+    // Invariant: batch is empty unless messageThatIsBeingWritten == null
+    ArrayList<MessageWrapper> batch = new ArrayList<MessageWrapper>(); // the messages in batchBuffer, they are no longer in the queue
+    int batchHead = 0; // index in batch of the first message that isn't completely written
+    int batchHeadEnd; // the position in batchBuffer where batch.get(batchHead) ends
+    ByteBuffer batchBuffer;
+    
     public EntityManager(Identifier identifier) {
       this.identifier = new WeakReference<Identifier>(identifier);
-      queue = new SortedLinkedList<MessageWrapper>();
+      queue = new PriorityRingQueue<MessageWrapper>();
       sockets = new HashSet<P2PSocket<Identifier>>();
     }
 
@@ -513,6 +603,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       synchronized(queue) {
         queue.clear();
         messageThatIsBeingWritten = null;
+        batch.clear();
       }
       synchronized(EntityManager.this) {  
         if (logger.level <= logger.INFO) logger.log(EntityManager.this+".clearState() setting pendingSocket to null "+pendingSocket);
@@ -536,7 +627,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     public boolean closeMe(P2PSocket<Identifier> socket) {
       if (logger.level <= Logger.FINER) logger.logException("closeMe("+socket+"):"+(socket == writingSocket)+","+messageThatIsBeingWritten, new Exception("Stack Trace"));
       if (socket == writingSocket) {
-        if (messageThatIsBeingWritten == null) {
+        if (messageThatIsBeingWritten == null && batch.isEmpty()) {
           sockets.remove(socket);
           socket.close();
           setWritingSocket(null);
@@ -795,7 +886,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
      * @return
      */
     private boolean haveMessageToSend() {
-      if (messageThatIsBeingWritten == null && queue.isEmpty()) return false; 
+      if (messageThatIsBeingWritten == null && queue.isEmpty() && batch.isEmpty()) return false; 
       return true;
     }
 
@@ -842,13 +933,168 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       
 //      logger.log("receivedSelectResult("+socket+","+canRead+","+canWrite);
       if (logger.level <= Logger.FINEST) logger.log("receivedSelectResult("+socket+","+canRead+","+canWrite);
-      MessageWrapper current = poll();
-      while (current != null && current.receiveSelectResult(writingSocket)) {
-        current = poll();
+      while (true) {
+        if (!batch.isEmpty()) {
+          if (!writeBatch()) break;
+          continue;
+        }
+        if (MAX_BATCH_SIZE > 0 && fillBatch()) continue;
+        
+        MessageWrapper current = poll();
+        if (current == null || !current.receiveSelectResult(writingSocket)) break;
       }
       scheduleToWriteIfNeeded();
     }
     
+    /**
+     * If at least 2 messages at the front of the queue fit in MAX_BATCH_SIZE, 
+     * copy as many as fit into the batchBuffer and take them out of the queue.
+     * 
+     * The queue is sorted, so this takes the highest priority messages.
+     * 
+     * @return true if we started a batch
+     */
+    private boolean fillBatch() {
+      synchronized(queue) {
+        if (messageThatIsBeingWritten != null || queue.size() < 2) return false;
+        int bytes = 0;
+        int count = 0;
+        for (MessageWrapper w : queue) {
+          int size = w.message.remaining();
+          if (bytes+size > MAX_BATCH_SIZE) break;
+          bytes+=size;
+          count++;
+        }
+        if (count < 2) return false;
+        
+        if (batchBuffer == null) batchBuffer = ByteBuffer.allocate(MAX_BATCH_SIZE);
+        batchBuffer.clear();
+        for (int ctr = 0; ctr < count; ctr++) {
+          MessageWrapper w = queue.poll();
+          ByteBuffer m = w.message;
+          batchBuffer.put(m.array(), m.arrayOffset()+m.position(), m.remaining());
+          batch.add(w);
+        }
+        batchBuffer.flip();
+        batchHead = 0;
+        batchHeadEnd = batch.get(0).message.remaining();
+        if (logger.level <= Logger.FINER) logger.log(this+" batching "+count+" messages, "+bytes+" bytes");
+      }
+      return true;
+    }
+    
+    /**
+     * Write more of the batch.  Each message is completed (acked) as soon as all 
+     * of its bytes have been written, as if it was written on its own.
+     * 
+     * The queue lock is held while writing so that cancel() can take unwritten 
+     * messages out of the batchBuffer.
+     * 
+     * @return true if the whole batch was written, and we should keep writing
+     */
+    private boolean writeBatch() throws IOException {
+      ArrayList<MessageWrapper> written = null;
+      synchronized(queue) {
+        if (batchBuffer.hasRemaining()) {
+          if (writingSocket.write(batchBuffer) == -1) {
+            // socket was closed, need to register new socket
+            if (logger.level <= Logger.FINEST) logger.log(this+".writeBatch() socket was closed"); 
+            clearAndEnqueue(null);
+            return false;
+          }
+          if (logger.level <= Logger.FINER) logger.log(this+" wrote batch "+batchBuffer);
+        }
+        
+        while (batchHead < batch.size() && batchBuffer.position() >= batchHeadEnd) {
+          if (written == null) written = new ArrayList<MessageWrapper>();
+          written.add(batch.get(batchHead));
+          batchHead++;
+          if (batchHead < batch.size()) batchHeadEnd += batch.get(batchHead).message.remaining();
+        }
+      }
+      
+      // notify deliverAckToMe outside of the lock, this may call back into us
+      if (written != null) {
+        for (MessageWrapper w : written) {
+          w.complete();
+        }
+      }
+      
+      synchronized(queue) {
+        if (batchHead < batch.size()) return false;
+        
+        batch.clear();
+        batchHead = 0;
+      }
+      
+      // close the socket if we need to 
+      if (writingSocket != null && closeWritingSocket == writingSocket) {
+        writingSocket.close();
+        setWritingSocket(null/*, "writeBatch()"*/);
+        closeWritingSocket = null;          
+        return false;
+      }
+      return true;
+    }
+    
+    /**
+     * Take a message out of the batch if none of its bytes have been written, 
+     * by moving the rest of the batchBuffer over it.  Must be called while 
+     * holding the queue lock.
+     * 
+     * @return true if the message was removed
+     */
+    private boolean removeFromBatch(MessageWrapper w) {
+      int index = batch.indexOf(w);
+      if (index < batchHead) return false; // not in the batch, or already written
+      
+      // find where the message starts in the batchBuffer
+      int start = batchHeadEnd-batch.get(batchHead).message.remaining();
+      for (int ctr = batchHead; ctr < index; ctr++) {
+        start += batch.get(ctr).message.remaining();
+      }
+      if (batchBuffer.position() > start) return false; // already started writing it
+      
+      int size = w.message.remaining();
+      byte[] bytes = batchBuffer.array();
+      System.arraycopy(bytes, start+size, bytes, start, batchBuffer.limit()-start-size);
+      batchBuffer.limit(batchBuffer.limit()-size);
+      batch.remove(index);
+      if (index == batchHead) {
+        batchHeadEnd = start;
+        if (batchHead < batch.size()) batchHeadEnd += batch.get(batchHead).message.remaining();
+      }
+      return true;
+    }
+    
+    /**
+     * The number of messages in the batch that haven't been completely written.
+     */
+    private int batchedMessages() {
+      return batch.size()-batchHead;
+    }
+    
+    /**
+     * Put the messages of the batch that weren't completely written back in the 
+     * queue, ahead of the messages that were enqueued after them.  Must be 
+     * called while holding the queue lock.
+     */
+    private void requeueBatch() {
+      if (batchHead == batch.size()) {
+        batch.clear();
+        batchHead = 0;
+        return;
+      }
+      for (int ctr = batch.size()-1; ctr >= batchHead; ctr--) {
+        MessageWrapper w = batch.get(ctr);
+        w.reset();
+        queue.addFirst(w, w.priority, w.originalSize+4);
+      }
+      batch.clear();
+      batchHead = 0;
+      dropOverflow(null);
+    }
+    
     /**
      * TODO: The synchronization here may need work.
      * 
@@ -884,14 +1130,46 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     private void enqueue(MessageWrapper ret) {
 //      logger.log("enqueue("+ret+")");
       synchronized(queue) {
-        queue.add(ret);       
-        
-        // drop the lowest priority message if the queue is overflowing        
-        while (queue.size() > MAX_QUEUE_SIZE) {
-          MessageWrapper w = queue.removeLast();
-          if (logger.level <= Logger.INFO+50) logger.log("Dropping "+w+" because queue is full. MAX_QUEUE_SIZE:"+MAX_QUEUE_SIZE);
-          w.drop();
+        queue.add(ret, ret.priority, ret.originalSize+4);       
+        dropOverflow(ret);
+      }
+    }
+    
+    /**
+     * Put the message that was being written back at the head of its priority.
+     * Must be called while holding the queue lock.
+     */
+    private void requeue(MessageWrapper ret) {
+      ret.reset();
+      queue.addFirst(ret, ret.priority, ret.originalSize+4);
+      dropOverflow(null);
+    }
+    
+    /**
+     * Drop according to the DROP_POLICY while the queue is overflowing.  Must be
+     * called while holding the queue lock.  Messages in the batch count toward
+     * MAX_QUEUE_SIZE and MAX_QUEUE_BYTES.
+     * 
+     * @param ret the message that was just enqueued, it is the newest of its 
+     * priority.  null if messages were requeued, they were already accepted so
+     * the newest message of the lowest priority is dropped.
+     */
+    private void dropOverflow(MessageWrapper ret) {
+      // messages in the batch count against the limit, but only queued messages are dropped
+      int batched = batchedMessages();
+      int batchedBytes = batched == 0 ? 0 : batchBuffer.remaining();
+      while (queue.size() > 0 && (queue.size()+batched > MAX_QUEUE_SIZE || 
+          (MAX_QUEUE_BYTES > 0 && queue.bytes()+batchedBytes > MAX_QUEUE_BYTES && queue.size()+batched > 1))) {
+        MessageWrapper w = null;
+        if (DROP_POLICY == DROP_NEWEST && ret != null) {
+          w = queue.removeLast(ret.priority);
+          ret = null;
         }
+        if (w == null) {
+          w = queue.removeLast();
+        }
+        if (logger.level <= Logger.INFO+50) logger.log("Dropping "+w+" because queue is full. MAX_QUEUE_SIZE:"+MAX_QUEUE_SIZE+" MAX_QUEUE_BYTES:"+MAX_QUEUE_BYTES+" "+queue);
+        w.drop();
       }
     }
 
@@ -917,6 +1195,14 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
           }
           messageThatIsBeingWritten = null;
         }
+        for (int ctr = batchHead; ctr < batch.size(); ctr++) {
+          MessageWrapper msg = batch.get(ctr);
+          if (msg.deliverAckToMe != null) {
+            callSendFailed.add(new Tuple(msg.deliverAckToMe, msg));
+          }
+        }
+        batch.clear();
+        batchHead = 0;
         for (MessageWrapper msg : queue) {
           if (msg.deliverAckToMe != null) {
             callSendFailed.add(new Tuple(msg.deliverAckToMe, msg));
@@ -928,6 +1214,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       
       for (Tuple<MessageCallback<Identifier, ByteBuffer>, MessageWrapper> t : callSendFailed) {
         t.a().sendFailed(t.b(), ioe);
+        t.b().releaseBuffer();
       }
       
       synchronized(sockets) {
@@ -1242,7 +1529,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
           if (deliverAckToMe != null) 
             deliverAckToMe.sendFailed(ret, 
               new SocketException("Message too large. msg:"+message+" size:"+remaining+" max:"+Math.max(MAX_MSG_SIZE, MAX_BIG_MSG_SIZE)));
-  
+          ret.releaseBuffer();
           return ret;           
         }
         
@@ -1272,7 +1559,8 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       if (livenessProvider.getLiveness(temp, options) >= LIVENESS_DEAD) {
         ret = new MessageWrapper(temp, message, deliverAckToMe, options, priority, 0);
         if (deliverAckToMe != null) 
-          deliverAckToMe.sendFailed(ret, new NodeIsFaultyException(temp, message));
+          deliverAckToMe.sendFailed(ret, new NodeIsFaultyException(temp, ret.copyMessage()));
+        ret.releaseBuffer();
         return ret;
       }
       
@@ -1315,14 +1603,14 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       synchronized(queue) {
         if (messageThatIsBeingWritten != null) messageThatIsBeingWritten.reset();
         messageThatIsBeingWritten = null;
+        requeueBatch();
         if (writingSocket != null) {
   //        writingSocket.close();
           sockets.remove(writingSocket);
           setWritingSocket(null/*, "CaE("+wrapper+")"*/);
         }
         if (wrapper != null) {
-          wrapper.reset();
-          enqueue(wrapper);      
+          requeue(wrapper);      
         }
       }
     }
@@ -1336,6 +1624,10 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       
       P2PSocket socket; // null if we aren't registered, aka, we aren't pending/writing
       
+      /**
+       * If this is a view of a pooled buffer, it is set to null when the buffer 
+       * is released, see getMessage().
+       */
       ByteBuffer originalMessage;
       ByteBuffer message;
       MessageCallback<Identifier, ByteBuffer> deliverAckToMe;
@@ -1343,6 +1635,11 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       int originalSize;
       boolean cancelled = false; // true when cancel is called
       boolean completed = false; // true when completed is called
+      /**
+       * Non-null if message is a view of this buffer, we release it once the 
+       * message has been acked or failed.
+       */
+      PooledOutputBuffer pooled;
       
       MessageWrapper(
           Identifier temp,
@@ -1357,13 +1654,27 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
 
         // head the message with the size
         int size = message.remaining();
-        this.message = ByteBuffer.allocate(message.remaining()+4);
-        this.message.put((byte)((size >>> 24) & 0xFF));
-        this.message.put((byte)((size >>> 16) & 0xFF));
-        this.message.put((byte)((size >>>  8) & 0xFF));
-        this.message.put((byte)((size >>>  0) & 0xFF));
-        this.message.put(message);
-        this.message.clear();
+        PooledOutputBuffer pob = null;
+        if (options != null) pob = (PooledOutputBuffer)options.get(PooledOutputBuffer.OPTION_POOLED_BUFFER);
+        if (pob != null && pob.getHeadroom() >= 4 && pob.isView(message)) {
+          // write the size into the headroom, and send the pooled array as is
+          this.pooled = pob;
+          byte[] bytes = message.array();
+          int off = message.position()-4;
+          bytes[off]   = (byte)((size >>> 24) & 0xFF);
+          bytes[off+1] = (byte)((size >>> 16) & 0xFF);
+          bytes[off+2] = (byte)((size >>>  8) & 0xFF);
+          bytes[off+3] = (byte)((size >>>  0) & 0xFF);
+          this.message = ByteBuffer.wrap(bytes, off, size+4).slice();
+        } else {
+          this.message = ByteBuffer.allocate(message.remaining()+4);
+          this.message.put((byte)((size >>> 24) & 0xFF));
+          this.message.put((byte)((size >>> 16) & 0xFF));
+          this.message.put((byte)((size >>>  8) & 0xFF));
+          this.message.put((byte)((size >>>  0) & 0xFF));
+          this.message.put(message);
+          this.message.clear();
+        }
         
         this.deliverAckToMe = deliverAckToMe;
         this.options = options;
@@ -1371,14 +1682,43 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         this.seq = seq;      
       }
       
+      /**
+       * The MessageInfo has a copy of the message if it is a view of a pooled 
+       * buffer.  Only call this while the message is in the queue.
+       */
       public MessageInfo getMessageInfo() {
-        return new MessageInfoImpl(originalMessage,options,priority);
+        return new MessageInfoImpl(copyMessage(),options,priority);
+      }
+      
+      /**
+       * @return originalMessage, or a copy of it if it is a view of a pooled 
+       * buffer, so that it can be held on to after the buffer is released
+       */
+      ByteBuffer copyMessage() {
+        if (pooled == null) return originalMessage;
+        ByteBuffer ret = ByteBuffer.allocate(originalMessage.remaining());
+        ret.put(originalMessage.duplicate());
+        ret.flip();
+        return ret;
       }
       
       public void complete() {
         completed = true;
         if (deliverAckToMe != null) deliverAckToMe.ack(this);
         notifyListenersWrote(originalSize, myIdentifier, options);        
+        releaseBuffer();
+      }
+      
+      /**
+       * Return the pooled buffer, if any.  Only call this when the message will 
+       * never be written again.
+       */
+      void releaseBuffer() {
+        if (pooled == null) return;
+        // the pool will reuse the bytes, don't hand out a view of them anymore
+        originalMessage = null;
+        pooled.release();
+        pooled = null;
       }
 
       /**
@@ -1433,8 +1773,9 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       
       public void drop() {
         // TODO: make sure we've done evrything necessary here to clean this up        
-        if (deliverAckToMe != null) deliverAckToMe.sendFailed(this, new QueueOverflowException(identifier.get(), originalMessage));
+        if (deliverAckToMe != null) deliverAckToMe.sendFailed(this, new QueueOverflowException(identifier.get(), copyMessage()));
         notifyListenersDropped(originalSize, myIdentifier, options);
+        releaseBuffer();
       }
             
       /**
@@ -1451,6 +1792,11 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         return myIdentifier;
       }
 
+      /**
+       * If the message was serialized into a pooled buffer (see 
+       * PooledOutputBuffer.OPTION_POOLED_BUFFER), it is only valid until the 
+       * ack()/sendFailed() callback returns, and this returns null after that.
+       */
       public ByteBuffer getMessage() {
         return originalMessage;
       }
@@ -1476,7 +1822,9 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
               return false;
             }
           }
-          return queue.remove(this);
+          if (queue.remove(this)) return true;
+          // it may have been moved into the batch
+          return removeFromBatch(this);
         }
       }
       public String toString() {
@@ -1595,6 +1943,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     public int queueLength() {
       int ret = queue.size();
       if (messageThatIsBeingWritten != null) ret++;
+      ret+=batch.size()-batchHead;
       return ret;
     }
     
@@ -1604,6 +1953,9 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         if (messageThatIsBeingWritten != null) {
           ret+=messageThatIsBeingWritten.message.remaining();        
         }
+        if (!batch.isEmpty()) {
+          ret+=batchBuffer.remaining();
+        }
         for (MessageWrapper foo : queue) {
           ret+=foo.message.remaining();
         }
@@ -69,7 +69,7 @@ import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
 import rice.p2p.commonapi.Cancellable;
-import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.ByteBufferInputBuffer;
 import rice.p2p.util.rawserialization.SimpleOutputBuffer;
 
 /**
@@ -391,7 +391,7 @@ public class SourceRouteTransportLayerImpl<Identifier> implements
     }
     
     int pos = m.position(); // need to reset to this spot if we forward the message
-    SimpleInputBuffer sib = new SimpleInputBuffer(m.array(), pos);
+    ByteBufferInputBuffer sib = new ByteBufferInputBuffer(m);
 
     SourceRoute<Identifier> tempSr;
     try {
@@ -405,7 +405,7 @@ public class SourceRouteTransportLayerImpl<Identifier> implements
     final SourceRoute<Identifier> sr = tempSr;
     
     // advance m properly
-    m.position(m.array().length - sib.bytesRemaining());
+    m.position(sib.position());
         
     if (sr.getLastHop().equals(etl.getLocalIdentifier())) {    
       // last hop
@@ -254,6 +254,9 @@ public class UDPLayerImpl extends SelectionKeyHandler implements UDPLayer {
 //    }
     if (logger.level <= Logger.FINE) 
       logger.log("readHeader("+address+","+readBuffer.remaining()+")");
+    // This copy stays: readBuffer is reused for the next datagram, but the layers 
+    // above may keep the message (RouteMessage reads its InputBuffer lazily).
+    // It is the only copy, the layers above read it in place with a ByteBufferInputBuffer.
     byte[] remaining = new byte[readBuffer.remaining()];      
     readBuffer.get(remaining);
     wire.messageReceived(address, ByteBuffer.wrap(remaining), OPTIONS);    
@@ -51,6 +51,8 @@ import rice.environment.logging.simple.SimpleLogManager;
 import rice.environment.params.Parameters;
 import rice.environment.params.simple.SimpleParameters;
 import rice.environment.processing.Processor;
+import rice.environment.processing.pool.ConcurrentIOProcessor;
+import rice.environment.processing.pool.PoolProcessor;
 import rice.environment.processing.sim.SimProcessor;
 import rice.environment.processing.simple.SimpleProcessor;
 import rice.environment.random.RandomSource;
@@ -191,6 +193,12 @@ public class Environment implements Destructable {
       if (params.contains("environment_use_sim_processor") &&
           params.getBoolean("environment_use_sim_processor")) {
         processor = new SimProcessor(selectorManager);
+      } else if (params.contains("environment_processor") && 
+          params.getString("environment_processor").equalsIgnoreCase("pool")) {
+        processor = new PoolProcessor("Default", params);
+      } else if (params.contains("environment_processor") && 
+          params.getString("environment_processor").equalsIgnoreCase("concurrent_io")) {
+        processor = new ConcurrentIOProcessor("Default", params);
       } else {
         processor = generateDefaultProcessor(); 
       }
@@ -282,7 +290,12 @@ public class Environment implements Destructable {
       Destructable d = (Destructable)i.next();
       d.destroy();
     }
-    selectorManager.destroy();
+    if (selectorManager.getPool() == null) {
+      selectorManager.destroy();
+    } else {
+      // the loop is shared with other nodes, the pool's owner will destroy it
+      selectorManager.getPool().release(selectorManager);
+    }
     processor.destroy();    
   }
 
@@ -0,0 +1,76 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing;
+
+import rice.Continuation;
+import rice.selector.SelectorManager;
+
+/**
+ * A WorkRequest which tells the Processor what it may run concurrently with.
+ * 
+ * Requests of the same group (typically the Storage instance) with the same key 
+ * (typically the Id) are run in the order they were submitted.  A request with
+ * a null key is exclusive within its group: it runs after everything submitted 
+ * before it, and before everything submitted after it.  
+ * 
+ * A Processor with a single blocking IO thread simply runs these in order.
+ * 
+ * @version $Id$
+ */
+public abstract class KeyedWorkRequest<R> extends WorkRequest<R> {
+  protected Object group;
+  protected Object key;
+  
+  /**
+   * @param group the group, such as the Storage, may not be null
+   * @param key the key within the group, null for exclusive access to the group
+   */
+  public KeyedWorkRequest(Continuation<R, Exception> c, SelectorManager sm, Object group, Object key) {
+    super(c, sm);
+    if (group == null) throw new IllegalArgumentException("group is null");
+    this.group = group;
+    this.key = key;
+  }
+  
+  public Object getGroup() {
+    return group;
+  }
+  
+  public Object getKey() {
+    return key;
+  }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing.pool;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rice.environment.params.Parameters;
+import rice.environment.processing.*;
+import rice.environment.processing.simple.SimpleProcessor;
+import rice.p2p.commonapi.Cancellable;
+
+/**
+ * A SimpleProcessor which runs each KeyedWorkRequest on its own thread, so a 
+ * slow read or fsync only holds up the requests it must be ordered with.  
+ * 
+ * Threads come from an unbounded cached pool, the number of requests in 
+ * flight is bounded by the per-group concurrency (see KeyedIOScheduler).  
+ * Plain WorkRequests still go through the single BlockingIOThread, in order.
+ * 
+ * @version $Id$
+ */
+public class ConcurrentIOProcessor extends SimpleProcessor {
+  
+  protected ExecutorService ioExecutor;
+  protected KeyedIOScheduler scheduler;
+  
+  /**
+   * @param name the name prefix of the threads
+   * @param groupConcurrency the maximum number of concurrent requests per group (i.e. Storage)
+   */
+  public ConcurrentIOProcessor(final String name, int groupConcurrency) {
+    super(name);
+    ioExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      AtomicInteger ctr = new AtomicInteger();
+      
+      public Thread newThread(Runnable r) {
+        return new Thread(r, name+".Persistence Worker Thread-"+ctr.getAndIncrement());
+      }
+    });
+    scheduler = new KeyedIOScheduler(ioExecutor, groupConcurrency);
+  }
+  
+  /**
+   * Reads processor_io_group_concurrency.
+   */
+  public ConcurrentIOProcessor(String name, Parameters params) {
+    this(name, params.getInt("processor_io_group_concurrency"));
+  }
+  
+  public Cancellable processBlockingIO(WorkRequest workRequest) {
+    if (workRequest instanceof KeyedWorkRequest) {
+      scheduler.submit((KeyedWorkRequest<?>)workRequest);
+      return workRequest;
+    }
+    return super.processBlockingIO(workRequest);
+  }
+  
+  public KeyedIOScheduler getScheduler() {
+    return scheduler;
+  }
+  
+  public void destroy() {
+    super.destroy();
+    ioExecutor.shutdown();
+  }
+}
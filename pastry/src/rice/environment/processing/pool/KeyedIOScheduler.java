@@ -0,0 +1,234 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing.pool;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import rice.environment.processing.KeyedWorkRequest;
+
+/**
+ * Runs KeyedWorkRequests on an Executor, with at most a fixed number running 
+ * per group, in submission order per key, and with null-keyed requests 
+ * running alone in their group.
+ * 
+ * @version $Id$
+ */
+public class KeyedIOScheduler {
+  
+  protected Executor executor;
+  
+  protected int groupConcurrency;
+  
+  /**
+   * group -> Group, weak so that a Storage that goes away doesn't leak
+   */
+  protected Map<Object, Group> groups = new WeakHashMap<Object, Group>();
+  
+  /**
+   * @param executor runs the requests, should not queue them itself
+   * @param groupConcurrency the maximum number of requests running per group
+   */
+  public KeyedIOScheduler(Executor executor, int groupConcurrency) {
+    if (groupConcurrency <= 0) throw new IllegalArgumentException("groupConcurrency must be positive, was "+groupConcurrency);
+    this.executor = executor;
+    this.groupConcurrency = groupConcurrency;
+  }
+  
+  public void submit(KeyedWorkRequest<?> request) {
+    Group g;
+    synchronized(groups) {
+      g = groups.get(request.getGroup());
+      if (g == null) {
+        g = new Group();
+        groups.put(request.getGroup(), g);
+      }
+    }
+    g.submit(request);
+  }
+  
+  /**
+   * @return the number of requests submitted to the group that haven't completed
+   */
+  public int getOutstanding(Object group) {
+    Group g;
+    synchronized(groups) {
+      g = groups.get(group);
+    }
+    if (g == null) return 0;
+    synchronized(g) {
+      return g.outstanding + g.held.size() + (g.exclusiveRunning ? 1 : 0);
+    }
+  }
+  
+  /**
+   * The state of one group.  All fields are protected by the Group's lock.
+   */
+  protected class Group {
+    /**
+     * The number of requests running, or waiting on an earlier one with the same key.
+     */
+    int outstanding = 0;
+    
+    int running = 0;
+    
+    /**
+     * key -> the requests with that key in order, the first is ready or running
+     */
+    HashMap<Object, LinkedList<KeyedWorkRequest<?>>> keys = new HashMap<Object, LinkedList<KeyedWorkRequest<?>>>();
+    
+    /**
+     * Requests which may run as soon as there is a free slot.
+     */
+    LinkedList<KeyedWorkRequest<?>> ready = new LinkedList<KeyedWorkRequest<?>>();
+    
+    /**
+     * An exclusive request and everything after it, waiting for outstanding to reach 0.
+     */
+    LinkedList<KeyedWorkRequest<?>> held = new LinkedList<KeyedWorkRequest<?>>();
+    
+    boolean exclusiveRunning = false;
+    
+    void submit(KeyedWorkRequest<?> r) {
+      ArrayList<KeyedWorkRequest<?>> toRun;
+      synchronized(this) {
+        if (r.getKey() == null || !held.isEmpty() || exclusiveRunning) {
+          held.add(r);
+          releaseHeld();
+        } else {
+          admit(r);
+        }
+        toRun = dispatch();
+      }
+      run(toRun);
+    }
+    
+    /**
+     * Adds a non-exclusive request to outstanding.
+     */
+    void admit(KeyedWorkRequest<?> r) {
+      outstanding++;
+      LinkedList<KeyedWorkRequest<?>> l = keys.get(r.getKey());
+      if (l == null) {
+        l = new LinkedList<KeyedWorkRequest<?>>();
+        keys.put(r.getKey(), l);
+        ready.add(r);
+      }
+      l.add(r);
+    }
+    
+    /**
+     * Moves requests from held to outstanding, once nothing is outstanding.
+     */
+    void releaseHeld() {
+      while (outstanding == 0 && !exclusiveRunning && !held.isEmpty()) {
+        KeyedWorkRequest<?> r = held.getFirst();
+        if (r.getKey() == null) {
+          // it gets the group to itself
+          held.removeFirst();
+          exclusiveRunning = true;
+          ready.add(r);
+          return;
+        }
+        // admit everything up to the next exclusive request
+        while (!held.isEmpty() && held.getFirst().getKey() != null) {
+          admit(held.removeFirst());
+        }
+      }
+    }
+    
+    /**
+     * @return the requests to start, may be run outside of the lock
+     */
+    ArrayList<KeyedWorkRequest<?>> dispatch() {
+      ArrayList<KeyedWorkRequest<?>> ret = null;
+      while (running < groupConcurrency && !ready.isEmpty()) {
+        if (ret == null) ret = new ArrayList<KeyedWorkRequest<?>>(); 
+        ret.add(ready.removeFirst());
+        running++;
+      }
+      return ret;
+    }
+    
+    void complete(KeyedWorkRequest<?> r) {
+      ArrayList<KeyedWorkRequest<?>> toRun;
+      synchronized(this) {
+        running--;
+        if (r.getKey() == null) {
+          exclusiveRunning = false;
+        } else {
+          outstanding--;
+          LinkedList<KeyedWorkRequest<?>> l = keys.get(r.getKey());
+          l.removeFirst();
+          if (l.isEmpty()) {
+            keys.remove(r.getKey());
+          } else {
+            ready.add(l.getFirst());
+          }
+        }
+        releaseHeld();
+        toRun = dispatch();
+      }
+      run(toRun);
+    }
+    
+    void run(ArrayList<KeyedWorkRequest<?>> toRun) {
+      if (toRun == null) return;
+      for (final KeyedWorkRequest<?> r : toRun) {
+        try {
+          executor.execute(new Runnable() {
+            public void run() {
+              try {
+                r.run();
+              } finally {
+                complete(r);
+              }
+            }
+            
+            public String toString() {
+              return "KeyedIOScheduler "+r;
+            }
+          });
+        } catch (RejectedExecutionException ree) {
+          // the processor was destroyed
+          return;
+        }
+      }
+    }
+  }
+}
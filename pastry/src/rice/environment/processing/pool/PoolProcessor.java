@@ -0,0 +1,255 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing.pool;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rice.*;
+import rice.environment.logging.LogManager;
+import rice.environment.params.Parameters;
+import rice.environment.processing.*;
+import rice.environment.processing.simple.*;
+import rice.environment.time.TimeSource;
+import rice.p2p.commonapi.Cancellable;
+import rice.selector.SelectorManager;
+
+/**
+ * A Processor that runs CPU tasks on a pool of work-stealing PoolWorkers and 
+ * blocking IO on a bounded pool of BlockingIOThreads.
+ * 
+ * Requests are handed to the workers round robin.  A worker always runs the 
+ * best (lowest priority number, then oldest) of the requests at the heads of 
+ * all of the workers' queues, so lower priority work doesn't run while higher 
+ * priority work waits.  Requests of the same priority may complete out of 
+ * order if there is more than one worker.  As with the SimpleProcessor, the 
+ * continuations are called on the selector thread.
+ * 
+ * Blocking IO is run in order only if there is a single IO thread.
+ * 
+ * @version $Id$
+ */
+public class PoolProcessor implements Processor {
+  
+  protected PoolWorker[] workers;
+  
+  /**
+   * The next worker to hand a request to.
+   */
+  protected AtomicInteger nextWorker = new AtomicInteger();
+  
+  /**
+   * The number of requests in all of the workers' queues.
+   */
+  protected AtomicInteger pending = new AtomicInteger();
+
+  /**
+   * Idle workers wait on this.
+   */
+  protected Object idleLock = new Object();
+  protected volatile int sleeping = 0;
+  
+  protected volatile boolean running = true;
+  
+  // for blocking IO WorkRequests
+  protected WorkQueue workQueue;
+  protected BlockingIOThread[] ioThreads;
+  
+  protected AtomicLong seq = new AtomicLong(Long.MIN_VALUE);
+  
+  /**
+   * priority -> PriorityStats
+   */
+  protected Map<Integer, PriorityStats> stats = new HashMap<Integer, PriorityStats>();
+  
+  /**
+   * @param name the name prefix of the threads
+   * @param numThreads the number of CPU workers, 0 for one per available processor
+   * @param numIOThreads the number of threads for blocking IO
+   * @param ioQueueCapacity the maximum number of waiting blocking IO requests, negative for unbounded
+   */
+  public PoolProcessor(String name, int numThreads, int numIOThreads, int ioQueueCapacity) {
+    if (numThreads <= 0) numThreads = Runtime.getRuntime().availableProcessors();
+    if (numIOThreads <= 0) throw new IllegalArgumentException("numIOThreads must be positive, was "+numIOThreads);
+    workers = new PoolWorker[numThreads];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new PoolWorker(name + ".ProcessingThread-"+i, this, i);
+    }
+    for (int i = 0; i < workers.length; i++) {
+      workers[i].setPriority(Thread.MIN_PRIORITY);
+      workers[i].start();
+    }
+    workQueue = new WorkQueue(ioQueueCapacity);
+    ioThreads = new BlockingIOThread[numIOThreads];
+    for (int i = 0; i < ioThreads.length; i++) {
+      ioThreads[i] = new BlockingIOThread(workQueue);
+      ioThreads[i].start();
+    }
+  }
+  
+  /**
+   * Reads processor_pool_threads, processor_pool_io_threads and processor_pool_io_queue_capacity.
+   */
+  public PoolProcessor(String name, Parameters params) {
+    this(name, params.getInt("processor_pool_threads"),
+        params.getInt("processor_pool_io_threads"),
+        params.getInt("processor_pool_io_queue_capacity"));
+  }
+  
+  public <R, E extends Exception> Cancellable process(Executable<R,E> task, Continuation<R, E> command,
+      SelectorManager selector, TimeSource ts, LogManager log) {
+    return process(task, command, 0, selector, ts, log);
+  }
+
+  public <R, E extends Exception> Cancellable process(Executable<R,E> task, Continuation<R, E> command, int priority,
+      SelectorManager selector, TimeSource ts, LogManager log) {
+    ProcessingRequest ret = new PoolProcessingRequest(task, command, priority, seq.getAndIncrement(), log, ts, selector, getStats(priority));
+    int index = (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+    workers[index].queue.offer(ret);
+    pending.incrementAndGet();
+    if (sleeping > 0) {
+      synchronized(idleLock) {
+        idleLock.notify();
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Removes the best request at the heads of the queues, preferring the worker's own.
+   * 
+   * @param worker the worker asking for work
+   * @return the request, null if there is none
+   */
+  protected ProcessingRequest next(PoolWorker worker) {
+    while (pending.get() > 0) {
+      PoolWorker best = worker;
+      ProcessingRequest bestHead = worker.queue.peek();
+      for (int i = 1; i < workers.length; i++) {
+        PoolWorker victim = workers[(worker.index+i) % workers.length];
+        ProcessingRequest head = victim.queue.peek();
+        if (head != null && (bestHead == null || head.compareTo(bestHead) < 0)) {
+          best = victim;
+          bestHead = head;
+        }
+      }
+      if (bestHead == null) return null;
+      // the head may have changed since we peeked, any head of that queue will do
+      ProcessingRequest ret = best.queue.poll();
+      if (ret != null) {
+        pending.decrementAndGet();
+        return ret;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Called by a worker when there is nothing to do.
+   */
+  protected void waitForWork() {
+    synchronized(idleLock) {
+      sleeping++;
+      try {
+        while (pending.get() == 0 && running) {
+          idleLock.wait();
+        }
+      } catch (InterruptedException ie) {
+        // destroyed
+      } finally {
+        sleeping--;
+      }
+    }
+  }
+
+  public Cancellable processBlockingIO(WorkRequest workRequest) {
+    workQueue.enqueue(workRequest);
+    return workRequest;
+  }
+  
+  protected PriorityStats getStats(int priority) {
+    Integer key = new Integer(priority);
+    synchronized(stats) {
+      PriorityStats ret = stats.get(key);
+      if (ret == null) {
+        ret = new PriorityStats(priority);
+        stats.put(key, ret);
+      }
+      return ret;
+    }
+  }
+  
+  /**
+   * @return the queue depth and latency of each priority, sorted by priority
+   */
+  public List<PriorityStats> getStats() {
+    List<PriorityStats> ret;
+    synchronized(stats) {
+      ret = new ArrayList<PriorityStats>(stats.values());
+    }
+    Collections.sort(ret, new Comparator<PriorityStats>() {
+      public int compare(PriorityStats a, PriorityStats b) {
+        return a.getPriority() < b.getPriority() ? -1 : (a.getPriority() == b.getPriority() ? 0 : 1);
+      }
+    });
+    return ret;
+  }
+  
+  public int getNumThreads() {
+    return workers.length;
+  }
+  
+  public WorkQueue getIOQueue() {
+    return workQueue;
+  }
+
+  public void destroy() {
+    running = false;
+    for (int i = 0; i < workers.length; i++) {
+      workers[i].destroy();
+      workers[i].queue.clear();
+    }
+    synchronized(idleLock) {
+      idleLock.notifyAll();
+    }
+    for (int i = 0; i < ioThreads.length; i++) {
+      ioThreads[i].destroy();
+    }
+    workQueue.destroy();
+  }
+}
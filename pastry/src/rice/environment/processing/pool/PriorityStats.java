@@ -0,0 +1,119 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing.pool;
+
+/**
+ * Queue depth and latency for the ProcessingRequests of one priority.
+ * 
+ * @version $Id$
+ */
+public class PriorityStats {
+  protected int priority;
+  
+  protected int queued = 0;
+  protected long completed = 0;
+  
+  protected long totalWaitNanos = 0;
+  protected long maxWaitNanos = 0;
+  protected long totalRunNanos = 0;
+  protected long maxRunNanos = 0;
+  
+  public PriorityStats(int priority) {
+    this.priority = priority;
+  }
+  
+  synchronized void enqueued() {
+    queued++;
+  }
+  
+  synchronized void dequeued(long waitNanos) {
+    queued--;
+    totalWaitNanos += waitNanos;
+    if (waitNanos > maxWaitNanos) maxWaitNanos = waitNanos;
+  }
+  
+  synchronized void completed(long runNanos) {
+    completed++;
+    totalRunNanos += runNanos;
+    if (runNanos > maxRunNanos) maxRunNanos = runNanos;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+  
+  /**
+   * @return the number of requests of this priority waiting to run
+   */
+  public synchronized int getQueueDepth() {
+    return queued;
+  }
+  
+  public synchronized long getCompleted() {
+    return completed;
+  }
+  
+  /**
+   * @return the mean time spent in the queue, in millis
+   */
+  public synchronized double getMeanWaitMillis() {
+    if (completed == 0) return 0;
+    return totalWaitNanos/1000000.0/completed;
+  }
+  
+  public synchronized double getMaxWaitMillis() {
+    return maxWaitNanos/1000000.0;
+  }
+  
+  /**
+   * @return the mean time spent executing, in millis
+   */
+  public synchronized double getMeanRunMillis() {
+    if (completed == 0) return 0;
+    return totalRunNanos/1000000.0/completed;
+  }
+  
+  public synchronized double getMaxRunMillis() {
+    return maxRunNanos/1000000.0;
+  }
+  
+  public synchronized String toString() {
+    return "priority:"+priority+" queued:"+queued+" completed:"+completed+
+      " wait(mean/max):"+getMeanWaitMillis()+"/"+getMaxWaitMillis()+
+      " run(mean/max):"+getMeanRunMillis()+"/"+getMaxRunMillis();
+  }
+}
@@ -60,6 +60,16 @@ public class DirectTimeSource implements TimeSource {
    */
   protected HashSet<BlockingTimerTask> pendingTimers = new HashSet<BlockingTimerTask>();
   
+  /**
+   * The number of sleep() calls that are done, but haven't returned yet.
+   */
+  protected int wakeups = 0;
+  
+  /**
+   * The threads that are blocked in sleep().
+   */
+  protected HashSet<Thread> sleepers = new HashSet<Thread>();
+  
   public DirectTimeSource(long time) {
     this(time, null);
   }
@@ -118,6 +128,7 @@ public class DirectTimeSource implements TimeSource {
     public void run() {
       synchronized(selectorManager) {
         done = true;
+        wakeups++;
         selectorManager.notifyAll();
         // selector already yields enough
 //        Thread.yield();
@@ -139,13 +150,42 @@ public class DirectTimeSource implements TimeSource {
       
       selectorManager.getTimer().schedule(btt,delay);
       
-      while(!btt.done) {
-        selectorManager.wait(); 
-        if (btt.interrupted) throw new InterruptedException("TimeSource destroyed.");
+      // tell a simulator waiting for this thread to block that it has
+      sleepers.add(Thread.currentThread());
+      selectorManager.notifyAll();
+      try {
+        while(!btt.done) {
+          selectorManager.wait(); 
+          if (btt.interrupted) throw new InterruptedException("TimeSource destroyed.");
+        }
+      } finally {
+        sleepers.remove(Thread.currentThread());
       }
+      wakeups--;
       pendingTimers.remove(btt);
     }
   }
+  
+  /**
+   * Whether the thread is blocked in sleep(), including when it has been 
+   * woken up but has not yet returned, see getPendingWakeups().
+   * 
+   * Should be synchronized on the selectorManager
+   */
+  public boolean isSleeping(Thread t) {
+    return sleepers.contains(t);
+  }
+  
+  /**
+   * The number of threads that were woken up by the simulated clock, but have 
+   * not yet returned from sleep().  The simulator shouldn't advance the clock
+   * while such a thread is about to run.
+   * 
+   * Should be synchronized on the selectorManager
+   */
+  public int getPendingWakeups() {
+    return wakeups;
+  }
 
 //  public void wait(Object lock, int timeToWait) throws InterruptedException {
 //    if (selector.isSelectorThread()) throw new IllegalStateException("You can't call this on the selector thread.");
@@ -266,7 +266,41 @@ public class ErasureCodec {
   }
 
   public PastContent decode(Fragment frag[], Endpoint endpoint, PastContentDeserializer pcd) {
+    byte[] bytes = decodeBytes(frag);
+    if (bytes == null)
+      return null;
 
+    try {
+      return deserialize(bytes, endpoint, pcd);
+//      SimpleInputBuffer sib = new SimpleInputBuffer(bytes);
+//      short type = sib.readShort();
+//      return pcd.deserializePastContent(sib, endpoint, type);
+      
+//      ByteArrayInputStream byteinput = new ByteArrayInputStream(bytes);
+//      ObjectInputStream objectInput = new ObjectInputStream(byteinput);
+//      // System.out.println(Systemm.currentTimeMillis()+" XXX after decode("+firstFrag.getPayload().length+" bytes per fragment) free="+Runtime.getRuntime().freeMemory()+" total="+Runtime.getRuntime().totalMemory());
+//      return (Serializable) objectInput.readObject();
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "", ioe);
+    } catch (ClassNotFoundException cnfe) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "", cnfe);
+    } catch (IllegalStateException ise) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "", ise);
+    }
+    return null;
+  }
+  
+  /**
+   * Restores the encoded bytes from at least numSurvivors fragments.  The 
+   * result is padded with zeroes to a multiple of numSurvivors*Lfield words.
+   * 
+   * @param frag numFragments entries, null for the missing fragments
+   * @return the bytes, or null if there are not enough fragments
+   */
+  public byte[] decodeBytes(Fragment frag[]) {
     Fragment firstFrag = null;
     for (int i=0; i<frag.length; i++)
       if (frag[i] != null)
@@ -313,6 +347,44 @@ public class ErasureCodec {
       nExtra = nMissing;
 
 
+    long InvMat[][] = invertMatrix(nExtra, RowInd, ColInd);
+
+    // *** Second last step ***
+
+    byte[] bytes = new byte[numSurvivors * wordsPerFragment * 4];
+    int[] buffer = new int[numFragments * Lfield];
+    for (int g=0; g<numGroups; g++) {
+      Arrays.fill(buffer, 0);
+      for (int i=0; i<numFragments; i++) {
+        if (haveFragment[i]) {
+          for (int j=0; j < Lfield; j++) {
+            buffer[i*Lfield + j] = 
+              ((frag[i].payload[4*(g*Lfield + j) + 0]      ) & 0x0000FF) +
+              ((frag[i].payload[4*(g*Lfield + j) + 1] <<  8) & 0x00FF00) +
+              ((frag[i].payload[4*(g*Lfield + j) + 2] << 16) & 0xFF0000) +
+               (frag[i].payload[4*(g*Lfield + j) + 3] << 24);
+          }
+        }
+      }
+      
+      decodeChunk(buffer, nExtra, RowInd, haveFragment, InvMat, ColInd);
+      
+      for (int i=0; i<(numSurvivors*Lfield); i++) {
+        bytes[4*(g*(numSurvivors*Lfield) + i) + 0] = (byte)  (buffer[i] >> 24);
+        bytes[4*(g*(numSurvivors*Lfield) + i) + 1] = (byte) ((buffer[i] >> 16) & 0xFF);
+        bytes[4*(g*(numSurvivors*Lfield) + i) + 2] = (byte) ((buffer[i] >>  8) & 0xFF);
+        bytes[4*(g*(numSurvivors*Lfield) + i) + 3] = (byte) ((buffer[i]      ) & 0xFF);
+      }
+    }
+
+    return bytes;
+  }
+
+  /**
+   * The inverse of the Cauchy submatrix of the rows RowInd and the columns 
+   * ColInd, as exponents of the field elements.
+   */
+  protected long[][] invertMatrix(int nExtra, int[] RowInd, int[] ColInd) {
     int[] C, D, E, F;
     C = new int[numFragments - numSurvivors];
     Arrays.fill(C, 0);
@@ -349,58 +421,9 @@ public class ErasureCodec {
       }
     }
 
-    // *** Second last step ***
-
-    byte[] bytes = new byte[numSurvivors * wordsPerFragment * 4];
-    int[] buffer = new int[numFragments * Lfield];
-    for (int g=0; g<numGroups; g++) {
-      Arrays.fill(buffer, 0);
-      for (int i=0; i<numFragments; i++) {
-        if (haveFragment[i]) {
-          for (int j=0; j < Lfield; j++) {
-            buffer[i*Lfield + j] = 
-              ((frag[i].payload[4*(g*Lfield + j) + 0]      ) & 0x0000FF) +
-              ((frag[i].payload[4*(g*Lfield + j) + 1] <<  8) & 0x00FF00) +
-              ((frag[i].payload[4*(g*Lfield + j) + 2] << 16) & 0xFF0000) +
-               (frag[i].payload[4*(g*Lfield + j) + 3] << 24);
-          }
-        }
-      }
-      
-      decodeChunk(buffer, nExtra, RowInd, haveFragment, InvMat, ColInd);
-      
-      for (int i=0; i<(numSurvivors*Lfield); i++) {
-        bytes[4*(g*(numSurvivors*Lfield) + i) + 0] = (byte)  (buffer[i] >> 24);
-        bytes[4*(g*(numSurvivors*Lfield) + i) + 1] = (byte) ((buffer[i] >> 16) & 0xFF);
-        bytes[4*(g*(numSurvivors*Lfield) + i) + 2] = (byte) ((buffer[i] >>  8) & 0xFF);
-        bytes[4*(g*(numSurvivors*Lfield) + i) + 3] = (byte) ((buffer[i]      ) & 0xFF);
-      }
-    }
-
-    try {
-      return deserialize(bytes, endpoint, pcd);
-//      SimpleInputBuffer sib = new SimpleInputBuffer(bytes);
-//      short type = sib.readShort();
-//      return pcd.deserializePastContent(sib, endpoint, type);
-      
-//      ByteArrayInputStream byteinput = new ByteArrayInputStream(bytes);
-//      ObjectInputStream objectInput = new ObjectInputStream(byteinput);
-//      // System.out.println(Systemm.currentTimeMillis()+" XXX after decode("+firstFrag.getPayload().length+" bytes per fragment) free="+Runtime.getRuntime().freeMemory()+" total="+Runtime.getRuntime().totalMemory());
-//      return (Serializable) objectInput.readObject();
-    } catch (IOException ioe) {
-      if (logger.level <= Logger.WARNING) logger.logException(
-          "", ioe);
-    } catch (ClassNotFoundException cnfe) {
-      if (logger.level <= Logger.WARNING) logger.logException(
-          "", cnfe);
-    } catch (IllegalStateException ise) {
-      if (logger.level <= Logger.WARNING) logger.logException(
-          "", ise);
-    }
-
-    return null;
+    return InvMat;
   }
-  
+
   protected PastContent deserialize(byte[] bytes, Endpoint endpoint, PastContentDeserializer pcd) throws IOException, ClassNotFoundException {
 //  ByteArrayInputStream byteinput = new ByteArrayInputStream(bytes);
 //  ObjectInputStream objectInput = new ObjectInputStream(byteinput);
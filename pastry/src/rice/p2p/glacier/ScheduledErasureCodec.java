@@ -0,0 +1,654 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.glacier;
+
+import java.util.*;
+
+import rice.Continuation;
+import rice.Executable;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+
+/**
+ * An ErasureCodec that produces the same fragments as its superclass, and 
+ * decodes them to the same bytes, but does less work per byte.
+ * 
+ * The Cauchy bit matrix only depends on (numFragments, numSurvivors), so the 
+ * words that are XORed into each parity word (the XOR schedule) are computed 
+ * once and shared by all codecs with the same parameters.  A decode computes 
+ * its schedule once from the fragments it has, rather than for every chunk.
+ * 
+ * The schedule is then applied to a stripe of chunks at a time.  Word w of 
+ * each chunk in the stripe is gathered into a plane of longs (two chunks per 
+ * long), and every parity (or missing) plane is the XOR of its scheduled 
+ * planes, in tight loops over longs.  The stripe is sized so that its planes 
+ * stay in the cache.
+ * 
+ * Large objects are split into slices of stripes which are handed to the 
+ * Processor, at most parallelism at a time.  The calling thread works on the 
+ * slices as well, and doesn't wait for a slice that wasn't started, so this 
+ * is safe to call on the processing thread with a single threaded Processor.
+ * 
+ * @version $Id$
+ */
+public class ScheduledErasureCodec extends ErasureCodec {
+  
+  /**
+   * The number of longs in a stripe's planes together.
+   */
+  public static final int STRIPE_LONGS = 16*1024;
+  
+  /**
+   * The least number of stripes in a slice that is processed in parallel.
+   */
+  public static final int MIN_STRIPES_PER_SLICE = 4;
+  
+  /**
+   * (numFragments << 32 | numSurvivors) -> int[][], the encoding schedules
+   */
+  protected static Map<Long, int[][]> schedules = new HashMap<Long, int[][]>();
+  
+  /**
+   * For parity word p = row*Lfield+row_bit, the data words col*Lfield+col_bit 
+   * that are XORed into it.
+   */
+  protected int[][] encodeSchedule;
+  
+  /**
+   * The maximum number of slices processed at the same time.
+   */
+  protected int parallelism;
+  
+  /**
+   * Uses p2p_glacier_codec_parallelism, 0 for the number of processors.
+   */
+  public ScheduledErasureCodec(int _numFragments, int _numSurvivors, Environment env) {
+    this(_numFragments, _numSurvivors, env.getParameters().getInt("p2p_glacier_codec_parallelism"), env);
+  }
+  
+  /**
+   * @param parallelism the maximum number of threads to work on one object, 0 for the number of processors
+   */
+  public ScheduledErasureCodec(int _numFragments, int _numSurvivors, int parallelism, Environment env) {
+    super(_numFragments, _numSurvivors, env);
+    if (parallelism <= 0) parallelism = Runtime.getRuntime().availableProcessors();
+    this.parallelism = parallelism;
+    this.encodeSchedule = getEncodeSchedule(_numFragments, _numSurvivors);
+  }
+  
+  /**
+   * The Cauchy bit matrix as in encodeChunk(), computed once per (numFragments, numSurvivors).
+   */
+  protected static int[][] getEncodeSchedule(int numFragments, int numSurvivors) {
+    Long key = new Long(((long)numFragments << 32) | numSurvivors);
+    synchronized(schedules) {
+      int[][] ret = schedules.get(key);
+      if (ret == null) {
+        ret = new int[(numFragments - numSurvivors) * Lfield][];
+        int[] temp = new int[numSurvivors * Lfield];
+        for (int row = 0; row < (numFragments - numSurvivors); row++) {
+          for (int row_bit = 0; row_bit < Lfield; row_bit++) {
+            int n = 0;
+            for (int col = 0; col < numSurvivors; col++) {
+              int exponent = cauchyExponent(row, col);
+              for (int col_bit = 0; col_bit < Lfield; col_bit++) 
+                if ((ExpToFieldElt[exponent + row_bit] & (1 << col_bit)) != 0) 
+                  temp[n++] = col * Lfield + col_bit;
+            }
+            ret[row * Lfield + row_bit] = new int[n];
+            System.arraycopy(temp, 0, ret[row * Lfield + row_bit], 0, n);
+          }
+        }
+        schedules.put(key, ret);
+      }
+      return ret;
+    }
+  }
+  
+  protected static int cauchyExponent(int row, int col) {
+    return (MultField - FieldEltToExp[(row ^ col) ^ (1 << (Lfield - 1))]) % MultField;
+  }
+  
+  /**
+   * The number of groups (chunks of Lfield words per fragment) in a stripe 
+   * with the given number of planes, always even.
+   */
+  protected static int groupsPerStripe(int numPlanes) {
+    return 2 * Math.max(64, STRIPE_LONGS / Math.max(1, numPlanes));
+  }
+  
+  public Fragment[] encode(final byte[] bytes, final int length, final boolean[] generateFragment) {
+    int numWords = (length + 3) / 4;
+    int wordsPerGroup = (numSurvivors * Lfield);
+    final int numGroups = (numWords + (wordsPerGroup - 1)) / wordsPerGroup;
+    int wordsPerFragment = numGroups * Lfield;
+    final Fragment frag[] = new Fragment[numFragments];
+
+    boolean parity = false;
+    for (int i = 0; i < numFragments; i++) {
+      if (generateFragment[i]) {
+        frag[i] = new Fragment(wordsPerFragment * 4);
+        if (i >= numSurvivors)
+          parity = true;
+      } else {
+        frag[i] = null;
+      }
+    }
+    
+    run(numGroups, parity ? numSurvivors * Lfield : 0, new StripeTask() {
+      public void run(int gStart, int gEnd, long[][] planes, long[] out) {
+        encodeStripe(bytes, length, generateFragment, frag, gStart, gEnd, planes, out);
+      }
+    });
+
+    return frag;
+  }
+  
+  protected void encodeStripe(byte[] bytes, int length, boolean[] generateFragment, Fragment[] frag, 
+      int gStart, int gEnd, long[][] planes, long[] out) {
+    int wordsPerGroup = numSurvivors * Lfield;
+    int numLongs = (gEnd - gStart + 1) / 2;
+    
+    // the data fragments are the words of the object, in little endian
+    for (int i = 0; i < numSurvivors; i++) {
+      if (!generateFragment[i]) continue;
+      byte[] payload = frag[i].payload;
+      for (int g = gStart; g < gEnd; g++) {
+        int src = 4 * (g * wordsPerGroup + i * Lfield);
+        int dst = 4 * (g * Lfield);
+        if (src + 4 * Lfield <= length) {
+          for (int j = 0; j < 4 * Lfield; j += 4) {
+            payload[dst + j + 0] = bytes[src + j + 3];
+            payload[dst + j + 1] = bytes[src + j + 2];
+            payload[dst + j + 2] = bytes[src + j + 1];
+            payload[dst + j + 3] = bytes[src + j + 0];
+          }
+        } else {
+          for (int j = 0; j < Lfield; j++) {
+            int word = readWord(bytes, length, src + 4 * j);
+            writeWordLE(payload, dst + 4 * j, word);
+          }
+        }
+      }
+    }
+    
+    if (planes.length == 0)
+      return;
+    
+    // gather the words into planes, group g in the low half of long (g-gStart)/2, g+1 in the high half
+    for (int g = gStart; g < gEnd; g++) {
+      int q = (g - gStart) >> 1;
+      int shift = ((g - gStart) & 1) << 5;
+      int src = 4 * (g * wordsPerGroup);
+      if (src + 4 * wordsPerGroup <= length) {
+        for (int w = 0; w < wordsPerGroup; w++, src += 4) {
+          long word = (((bytes[src] & 0xFF) << 24) | ((bytes[src + 1] & 0xFF) << 16) | 
+                      ((bytes[src + 2] & 0xFF) << 8) | (bytes[src + 3] & 0xFF)) & 0xFFFFFFFFL;
+          if (shift == 0) planes[w][q] = word;
+          else planes[w][q] |= word << 32;
+        }
+      } else {
+        for (int w = 0; w < wordsPerGroup; w++, src += 4) {
+          long word = readWord(bytes, length, src) & 0xFFFFFFFFL;
+          if (shift == 0) planes[w][q] = word;
+          else planes[w][q] |= word << 32;
+        }
+      }
+    }
+    
+    // the parity words
+    for (int i = numSurvivors; i < numFragments; i++) {
+      if (!generateFragment[i]) continue;
+      byte[] payload = frag[i].payload;
+      for (int row_bit = 0; row_bit < Lfield; row_bit++) {
+        int[] schedule = encodeSchedule[(i - numSurvivors) * Lfield + row_bit];
+        xor(planes, schedule, out, numLongs);
+        scatter(out, payload, row_bit, gStart, gEnd);
+      }
+    }
+  }
+  
+  /**
+   * out = the XOR of the planes in schedule
+   */
+  protected static void xor(long[][] planes, int[] schedule, long[] out, int numLongs) {
+    if (schedule.length == 0) {
+      Arrays.fill(out, 0, numLongs, 0L);
+      return;
+    }
+    System.arraycopy(planes[schedule[0]], 0, out, 0, numLongs);
+    int s = 1;
+    for (; s + 1 < schedule.length; s += 2) {
+      long[] a = planes[schedule[s]];
+      long[] b = planes[schedule[s + 1]];
+      for (int q = 0; q < numLongs; q++) 
+        out[q] ^= a[q] ^ b[q];
+    }
+    if (s < schedule.length) {
+      long[] a = planes[schedule[s]];
+      for (int q = 0; q < numLongs; q++) 
+        out[q] ^= a[q];
+    }
+  }
+  
+  /**
+   * Write the plane as word j of the groups gStart to gEnd of a fragment.
+   */
+  protected static void scatter(long[] plane, byte[] payload, int j, int gStart, int gEnd) {
+    for (int g = gStart; g < gEnd; g++) {
+      int q = (g - gStart) >> 1;
+      int word = (int) (plane[q] >>> (((g - gStart) & 1) << 5));
+      writeWordLE(payload, 4 * (g * Lfield + j), word);
+    }
+  }
+  
+  /**
+   * Read word j of the groups gStart to gEnd of a fragment into a plane.
+   */
+  protected static void gather(byte[] payload, int j, int gStart, int gEnd, long[] plane) {
+    for (int g = gStart; g < gEnd; g++) {
+      int q = (g - gStart) >> 1;
+      int src = 4 * (g * Lfield + j);
+      long word = (((payload[src + 3] & 0xFF) << 24) | ((payload[src + 2] & 0xFF) << 16) | 
+                  ((payload[src + 1] & 0xFF) << 8) | (payload[src] & 0xFF)) & 0xFFFFFFFFL;
+      if (((g - gStart) & 1) == 0) plane[q] = word;
+      else plane[q] |= word << 32;
+    }
+  }
+  
+  /**
+   * A big endian word of the object, zero padded past length.
+   */
+  protected static int readWord(byte[] bytes, int length, int off) {
+    int b0 = (off + 0 < length) ? bytes[off + 0] & 0xFF : 0;
+    int b1 = (off + 1 < length) ? bytes[off + 1] & 0xFF : 0;
+    int b2 = (off + 2 < length) ? bytes[off + 2] & 0xFF : 0;
+    int b3 = (off + 3 < length) ? bytes[off + 3] & 0xFF : 0;
+    return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+  }
+  
+  protected static void writeWordLE(byte[] payload, int off, int word) {
+    payload[off + 0] = (byte) word;
+    payload[off + 1] = (byte) (word >> 8);
+    payload[off + 2] = (byte) (word >> 16);
+    payload[off + 3] = (byte) (word >> 24);
+  }
+  
+  public byte[] decodeBytes(final Fragment frag[]) {
+    final DecodePlan plan = getDecodePlan(frag);
+    if (plan == null)
+      return null;
+    
+    int firstFragment = -1;
+    for (int i=0; (i<numFragments) && (firstFragment == -1); i++)
+      if (frag[i] != null)
+        firstFragment = i;
+  
+    int wordsPerFragment = (frag[firstFragment].payload.length + 3) / 4;
+    int numGroups = wordsPerFragment / Lfield;
+    final byte[] bytes = new byte[numSurvivors * wordsPerFragment * 4];
+    
+    run(numGroups, plan.planePayload.length, new StripeTask() {
+      public void run(int gStart, int gEnd, long[][] planes, long[] out) {
+        decodeStripe(frag, bytes, plan, gStart, gEnd, planes, out);
+      }
+    });
+    
+    return bytes;
+  }
+  
+  /**
+   * What decodeStripe() does with a set of fragments.
+   */
+  protected static class DecodePlan {
+    /**
+     * The data fragments to restore
+     */
+    int[] missing;
+    
+    /**
+     * For word row_bit of the i-th missing fragment, the planes XORed into it
+     */
+    int[][] schedule;
+    
+    /**
+     * The fragment payload and word that each plane is gathered from
+     */
+    byte[][] planePayload;
+    int[] planeWord;
+  }
+  
+  /**
+   * Computes how to restore the missing data fragments from the fragments in 
+   * frag.  The payload arrays of frag are referenced by the plan, so a 
+   * stream can reuse the same Fragments for every stripe.
+   * 
+   * @param frag numFragments entries, null for the missing fragments
+   * @return null if there are too few fragments
+   */
+  protected DecodePlan getDecodePlan(Fragment frag[]) {
+    if (frag.length != numFragments)
+      return null;
+  
+    int ColInd[] = new int[numSurvivors];
+    int RowInd[] = new int[numFragments - numSurvivors];
+
+    int nMissing = 0;
+    int nExtra = 0;
+    for (int i = 0; i < numSurvivors; i++) 
+      if (frag[i] == null) 
+        ColInd[nMissing++] = i;
+
+    for (int i = 0; i < (numFragments - numSurvivors); i++) 
+      if (frag[numSurvivors + i] != null)
+        RowInd[nExtra++] = i;
+
+    if (nMissing > nExtra)
+      return null;
+
+    if (nMissing < nExtra)
+      nExtra = nMissing;
+    
+    // the sources are the words of the data fragments (col*Lfield+col_bit), 
+    // followed by the words of the parity fragments used (numSurvivors*Lfield+row*Lfield+row_bit)
+    int numSources = (numSurvivors + nExtra) * Lfield;
+    int[][] schedule = decodeSchedule(nExtra, RowInd, ColInd, frag);
+    
+    // the fragment and word for each source
+    byte[][] sourcePayload = new byte[numSources][];
+    int[] sourceWord = new int[numSources];
+    for (int col = 0; col < numSurvivors; col++) {
+      if (frag[col] == null) continue;
+      for (int col_bit = 0; col_bit < Lfield; col_bit++) {
+        sourcePayload[col * Lfield + col_bit] = frag[col].payload;
+        sourceWord[col * Lfield + col_bit] = col_bit;
+      }
+    }
+    for (int row = 0; row < nExtra; row++) {
+      for (int row_bit = 0; row_bit < Lfield; row_bit++) {
+        sourcePayload[(numSurvivors + row) * Lfield + row_bit] = frag[numSurvivors + RowInd[row]].payload;
+        sourceWord[(numSurvivors + row) * Lfield + row_bit] = row_bit;
+      }
+    }
+    
+    // only the sources that a missing word depends on are gathered
+    int[] planeOf = new int[numSources];
+    Arrays.fill(planeOf, -1);
+    int numPlanes = 0;
+    for (int i = 0; i < schedule.length; i++) 
+      for (int s = 0; s < schedule[i].length; s++) 
+        if (planeOf[schedule[i][s]] == -1) 
+          planeOf[schedule[i][s]] = numPlanes++;
+    
+    DecodePlan plan = new DecodePlan();
+    plan.schedule = new int[schedule.length][];
+    for (int i = 0; i < schedule.length; i++) {
+      plan.schedule[i] = new int[schedule[i].length];
+      for (int s = 0; s < schedule[i].length; s++)
+        plan.schedule[i][s] = planeOf[schedule[i][s]];
+    }
+    plan.planePayload = new byte[numPlanes][];
+    plan.planeWord = new int[numPlanes];
+    for (int s = 0; s < numSources; s++) {
+      if (planeOf[s] != -1) {
+        plan.planePayload[planeOf[s]] = sourcePayload[s];
+        plan.planeWord[planeOf[s]] = sourceWord[s];
+      }
+    }
+    
+    plan.missing = new int[nMissing];
+    System.arraycopy(ColInd, 0, plan.missing, 0, nMissing);
+    return plan;
+  }
+  
+  protected void decodeStripe(Fragment[] frag, byte[] bytes, DecodePlan plan, 
+      int gStart, int gEnd, long[][] planes, long[] out) {
+    int wordsPerGroup = numSurvivors * Lfield;
+    int numLongs = (gEnd - gStart + 1) / 2;
+    
+    // the data fragments we have are the words of the object, in little endian
+    for (int i = 0; i < numSurvivors; i++) {
+      if (frag[i] == null) continue;
+      byte[] payload = frag[i].payload;
+      for (int g = gStart; g < gEnd; g++) {
+        int src = 4 * (g * Lfield);
+        int dst = 4 * (g * wordsPerGroup + i * Lfield);
+        for (int j = 0; j < 4 * Lfield; j += 4) {
+          bytes[dst + j + 0] = payload[src + j + 3];
+          bytes[dst + j + 1] = payload[src + j + 2];
+          bytes[dst + j + 2] = payload[src + j + 1];
+          bytes[dst + j + 3] = payload[src + j + 0];
+        }
+      }
+    }
+    
+    for (int p = 0; p < planes.length; p++) 
+      gather(plan.planePayload[p], plan.planeWord[p], gStart, gEnd, planes[p]);
+    
+    // the missing words
+    for (int m = 0; m < plan.missing.length; m++) {
+      for (int row_bit = 0; row_bit < Lfield; row_bit++) {
+        xor(planes, plan.schedule[m * Lfield + row_bit], out, numLongs);
+        int dst = 4 * (plan.missing[m] * Lfield + row_bit);
+        for (int g = gStart; g < gEnd; g++) {
+          int word = (int) (out[(g - gStart) >> 1] >>> (((g - gStart) & 1) << 5));
+          int off = dst + 4 * (g * wordsPerGroup);
+          bytes[off + 0] = (byte) (word >> 24);
+          bytes[off + 1] = (byte) (word >> 16);
+          bytes[off + 2] = (byte) (word >> 8);
+          bytes[off + 3] = (byte) word;
+        }
+      }
+    }
+  }
+  
+  /**
+   * For each missing word (the i-th missing data fragment's row_bit is 
+   * i*Lfield+row_bit), the sources that are XORed into it.  This is 
+   * decodeChunk() multiplied out: the missing words are InvMat times the 
+   * parity words, with the contribution of the data words we have removed.
+   */
+  protected int[][] decodeSchedule(int nExtra, int[] RowInd, int[] ColInd, Fragment[] frag) {
+    long InvMat[][] = invertMatrix(nExtra, RowInd, ColInd);
+    int numSources = (numSurvivors + nExtra) * Lfield;
+    int numLongs = (numSources + 63) / 64;
+    
+    // M[row*Lfield+row_bit]: the parity word plus the data words we have, as a set of sources
+    long[][] M = new long[nExtra * Lfield][numLongs];
+    for (int row = 0; row < nExtra; row++) {
+      for (int row_bit = 0; row_bit < Lfield; row_bit++) {
+        long[] m = M[row * Lfield + row_bit];
+        setBit(m, (numSurvivors + row) * Lfield + row_bit);
+        for (int col = 0; col < numSurvivors; col++) {
+          if (frag[col] == null) continue;
+          int exponent = cauchyExponent(RowInd[row], col);
+          for (int col_bit = 0; col_bit < Lfield; col_bit++) 
+            if ((ExpToFieldElt[exponent + row_bit] & (1 << col_bit)) != 0)
+              flipBit(m, col * Lfield + col_bit);
+        }
+      }
+    }
+    
+    int[][] ret = new int[nExtra * Lfield][];
+    long[] sum = new long[numLongs];
+    int[] temp = new int[numSources];
+    for (int row = 0; row < nExtra; row++) {
+      for (int row_bit = 0; row_bit < Lfield; row_bit++) {
+        Arrays.fill(sum, 0L);
+        for (int col = 0; col < nExtra; col++) {
+          int exponent = (int) InvMat[row][col];
+          for (int col_bit = 0; col_bit < Lfield; col_bit++) 
+            if ((ExpToFieldElt[exponent + row_bit] & (1 << col_bit)) != 0) {
+              long[] m = M[col * Lfield + col_bit];
+              for (int i = 0; i < numLongs; i++)
+                sum[i] ^= m[i];
+            }
+        }
+        int n = 0;
+        for (int s = 0; s < numSources; s++)
+          if ((sum[s >> 6] & (1L << (s & 63))) != 0)
+            temp[n++] = s;
+        ret[row * Lfield + row_bit] = new int[n];
+        System.arraycopy(temp, 0, ret[row * Lfield + row_bit], 0, n);
+      }
+    }
+    return ret;
+  }
+  
+  private static void setBit(long[] set, int i) {
+    set[i >> 6] |= 1L << (i & 63);
+  }
+
+  private static void flipBit(long[] set, int i) {
+    set[i >> 6] ^= 1L << (i & 63);
+  }
+  
+  /**
+   * Work on the groups gStart to gEnd, with the planes and output plane of 
+   * the calling thread.
+   */
+  protected interface StripeTask {
+    public void run(int gStart, int gEnd, long[][] planes, long[] out);
+  }
+  
+  /**
+   * Runs task over all groups, in stripes of groupsPerStripe(numPlanes), and 
+   * in parallel slices if there are enough stripes.
+   */
+  protected void run(final int numGroups, final int numPlanes, final StripeTask task) {
+    final int stripeGroups = groupsPerStripe(numPlanes);
+    int numStripes = (numGroups + stripeGroups - 1) / stripeGroups;
+    int numSlices = Math.min(parallelism, numStripes / MIN_STRIPES_PER_SLICE);
+    if (numSlices <= 1 || environment.getProcessor() == null) {
+      long[][] planes = new long[numPlanes][stripeGroups / 2];
+      long[] out = new long[stripeGroups / 2];
+      for (int g = 0; g < numGroups; g += stripeGroups) 
+        task.run(g, Math.min(numGroups, g + stripeGroups), planes, out);
+      return;
+    }
+    
+    final int stripesPerSlice = (numStripes + numSlices - 1) / numSlices;
+    final Slices slices = new Slices((numStripes + stripesPerSlice - 1) / stripesPerSlice);
+    
+    // the helpers claim slices like the caller does, a helper that runs late finds nothing to do
+    for (int i = 1; i < slices.numSlices; i++) {
+      environment.getProcessor().process(new Executable() {
+        public Object execute() {
+          slices.work(task, numGroups, numPlanes, stripeGroups, stripesPerSlice);
+          return null;
+        }
+      }, new Continuation() {
+        public void receiveResult(Object result) {
+        }
+        
+        public void receiveException(Exception result) {
+          if (logger.level <= Logger.WARNING) logger.logException("Error in codec slice", result);
+        }
+      }, environment.getSelectorManager(), environment.getTimeSource(), environment.getLogManager());
+    }
+    
+    slices.work(task, numGroups, numPlanes, stripeGroups, stripesPerSlice);
+    slices.waitForAll();
+  }
+  
+  /**
+   * The slices of one encode or decode, claimed in order by whoever gets to 
+   * them first.
+   */
+  protected static class Slices {
+    int numSlices;
+    int next = 0;
+    int done = 0;
+    Throwable error;
+    
+    public Slices(int numSlices) {
+      this.numSlices = numSlices;
+    }
+    
+    synchronized int claim() {
+      if (next >= numSlices) return -1;
+      return next++;
+    }
+    
+    synchronized void finished(Throwable e) {
+      done++;
+      if (e != null) error = e;
+      notifyAll();
+    }
+    
+    void work(StripeTask task, int numGroups, int numPlanes, int stripeGroups, int stripesPerSlice) {
+      long[][] planes = null;
+      long[] out = null;
+      int slice;
+      while ((slice = claim()) != -1) {
+        // the slice must be finished even if the task throws an Error, or waitForAll() never returns
+        Throwable e = null;
+        try {
+          if (planes == null) {
+            planes = new long[numPlanes][stripeGroups / 2];
+            out = new long[stripeGroups / 2];
+          }
+          int start = slice * stripesPerSlice * stripeGroups;
+          int end = Math.min(numGroups, start + stripesPerSlice * stripeGroups);
+          for (int g = start; g < end; g += stripeGroups) 
+            task.run(g, Math.min(end, g + stripeGroups), planes, out);
+        } catch (Throwable t) {
+          e = t;
+        } finally {
+          finished(e);
+        }
+      }
+    }
+    
+    /**
+     * Only waits for slices that were claimed by a running thread.  Rethrows 
+     * what a slice threw, in the caller's thread.
+     */
+    synchronized void waitForAll() {
+      while (done < numSlices) {
+        try {
+          wait();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+      }
+      if (error instanceof RuntimeException) throw (RuntimeException)error;
+      if (error instanceof Error) throw (Error)error;
+      if (error != null) throw new RuntimeException(error);
+    }
+  }
+}
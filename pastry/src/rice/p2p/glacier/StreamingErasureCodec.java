@@ -0,0 +1,490 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.glacier;
+
+import java.io.*;
+import java.security.*;
+
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.past.PastContent;
+import rice.p2p.past.rawserialization.*;
+
+/**
+ * A ScheduledErasureCodec that can encode an object into fragments, and 
+ * decode it again, one stripe at a time, so its memory use depends on the 
+ * stripe size (p2p_glacier_codec_stripe_size bytes of the object, plus the 
+ * matching part of each fragment) rather than on the size of the object.
+ * 
+ * The fragments are written to (and read from) one OutputBuffer (InputBuffer) 
+ * per fragment, such as a file or a socket, in the format of 
+ * Fragment.serialize(), so they can be read back with new Fragment(buf) and 
+ * are the same as the ones the in-memory methods produce.
+ * 
+ * As the fragment size is written first, encodeObject() serializes the object 
+ * twice: once to count its bytes, and once to encode them.  The object must 
+ * serialize to the same bytes both times.
+ * 
+ * @version $Id$
+ */
+public class StreamingErasureCodec extends ScheduledErasureCodec {
+  
+  /**
+   * The number of groups (Lfield words of each fragment) in a stripe, always even.
+   */
+  protected int stripeGroups;
+  
+  /**
+   * The hashes of an object and of its fragments, as used in the Manifest.
+   */
+  public static class EncodeResult {
+    /**
+     * The number of bytes of the serialized object
+     */
+    public int length;
+    
+    /**
+     * The SHA-1 of the serialized object
+     */
+    public byte[] objectHash;
+    
+    /**
+     * The SHA-1 of each fragment's payload, null for fragments not generated
+     */
+    public byte[][] fragmentHash;
+  }
+  
+  /**
+   * Uses p2p_glacier_codec_parallelism and p2p_glacier_codec_stripe_size.
+   */
+  public StreamingErasureCodec(int _numFragments, int _numSurvivors, Environment env) {
+    this(_numFragments, _numSurvivors, env.getParameters().getInt("p2p_glacier_codec_parallelism"), 
+        env.getParameters().getInt("p2p_glacier_codec_stripe_size"), env);
+  }
+  
+  /**
+   * @param stripeSize the number of bytes of the object that are encoded at a time
+   */
+  public StreamingErasureCodec(int _numFragments, int _numSurvivors, int parallelism, int stripeSize, Environment env) {
+    super(_numFragments, _numSurvivors, parallelism, env);
+    stripeGroups = Math.max(2, stripeSize / (4 * Lfield * _numSurvivors));
+    stripeGroups += (stripeGroups & 1);
+  }
+  
+  /**
+   * @return the size of each fragment's payload for an object of length bytes
+   */
+  public int getFragmentSize(int length) {
+    int bytesPerGroup = 4 * Lfield * numSurvivors;
+    return ((length + bytesPerGroup - 1) / bytesPerGroup) * 4 * Lfield;
+  }
+  
+  public EncodeResult encodeObject(PastContent obj, boolean[] generateFragment, OutputBuffer[] out) throws IOException {
+    return encodeObject(obj instanceof RawPastContent ? (RawPastContent)obj : new JavaSerializedPastContent(obj), generateFragment, out);
+  }
+  
+  /**
+   * Serializes the object into the fragments, one stripe at a time.
+   * 
+   * @param out numFragments entries, the generated fragments are written to
+   */
+  public EncodeResult encodeObject(RawPastContent obj, boolean[] generateFragment, OutputBuffer[] out) throws IOException {
+    if (logger.level <= Logger.FINER) logger.log( 
+        "Stream object: " + obj);
+
+    CountingOutputStream counter = new CountingOutputStream();
+    StreamOutputBuffer buf = new StreamOutputBuffer(counter);
+    buf.writeShort(obj.getType());
+    obj.serialize(buf);
+    buf.flush();
+    
+    if (counter.count > Integer.MAX_VALUE - 4 * Lfield * numSurvivors)
+      throw new IOException("Object is too large to encode: "+counter.count+" bytes");
+    
+    StripeEncoder encoder = new StripeEncoder((int) counter.count, generateFragment, out);
+    buf = new StreamOutputBuffer(encoder);
+    buf.writeShort(obj.getType());
+    obj.serialize(buf);
+    buf.flush();
+    return encoder.finish();
+  }
+  
+  /**
+   * Encodes length bytes read from in, one stripe at a time.
+   * 
+   * @param out numFragments entries, the generated fragments are written to
+   */
+  public EncodeResult encode(InputBuffer in, int length, boolean[] generateFragment, OutputBuffer[] out) throws IOException {
+    StripeEncoder encoder = new StripeEncoder(length, generateFragment, out);
+    encoder.read(in, length);
+    return encoder.finish();
+  }
+  
+  /**
+   * Decodes and deserializes the object one stripe at a time.
+   * 
+   * @param frag numFragments entries, null for the missing fragments
+   * @return null if there are too few fragments, or they cannot be decoded
+   */
+  public PastContent decode(InputBuffer frag[], Endpoint endpoint, PastContentDeserializer pcd) {
+    try {
+      InputBuffer buf = decodeStream(frag);
+      if (buf == null)
+        return null;
+      
+      short type = buf.readShort();
+      return pcd.deserializePastContent(buf, endpoint, type);
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "", ioe);
+    } catch (IllegalStateException ise) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "", ise);
+    }
+    return null;
+  }
+  
+  /**
+   * The bytes decodeBytes() would return, decoded when they are read.  Each 
+   * fragment is read once, in order, and only numSurvivors of them are read.
+   * 
+   * @param frag numFragments entries, null for the missing fragments
+   * @return null if there are too few fragments
+   */
+  public InputBuffer decodeStream(InputBuffer frag[]) throws IOException {
+    if (frag.length != numFragments)
+      return null;
+    
+    // the data fragments we have, and as many parity fragments as data fragments are missing
+    InputBuffer[] used = new InputBuffer[numFragments];
+    int nMissing = 0;
+    for (int i = 0; i < numSurvivors; i++) {
+      used[i] = frag[i];
+      if (frag[i] == null)
+        nMissing++;
+    }
+    for (int i = numSurvivors; (i < numFragments) && (nMissing > 0); i++) {
+      if (frag[i] != null) {
+        used[i] = frag[i];
+        nMissing--;
+      }
+    }
+    
+    if (nMissing > 0)
+      return null;
+    
+    StripeDecoder decoder = new StripeDecoder(used);
+    return new StreamInputBuffer(decoder);
+  }
+  
+  /**
+   * Reads len bytes, the InputBuffer may return fewer at a time.
+   */
+  protected static void readFully(InputBuffer in, byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = in.read(b, off, len);
+      if (n <= 0)
+        throw new EOFException("Fragment ended "+len+" bytes early");
+      off += n;
+      len -= n;
+    }
+  }
+  
+  protected static MessageDigest getDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("No SHA support!");
+    }
+  }
+  
+  /**
+   * Collects the serialized object into a stripe, and writes the fragments 
+   * of the stripe when it is full.
+   */
+  protected class StripeEncoder extends OutputStream {
+    int length;
+    int written = 0;
+    byte[] stripe;
+    int filled = 0;
+    boolean[] generateFragment;
+    OutputBuffer[] out;
+    Fragment[] frag;
+    boolean parity = false;
+    MessageDigest objectDigest;
+    MessageDigest[] fragmentDigest;
+    
+    public StripeEncoder(int length, boolean[] generateFragment, OutputBuffer[] out) throws IOException {
+      this.length = length;
+      this.generateFragment = generateFragment;
+      this.out = out;
+      
+      int bytesPerGroup = 4 * Lfield * numSurvivors;
+      int numGroups = (length + bytesPerGroup - 1) / bytesPerGroup;
+      stripe = new byte[Math.min(numGroups, stripeGroups) * bytesPerGroup];
+      objectDigest = getDigest();
+      fragmentDigest = new MessageDigest[numFragments];
+      frag = new Fragment[numFragments];
+      for (int i = 0; i < numFragments; i++) {
+        if (generateFragment[i]) {
+          frag[i] = new Fragment(Math.min(numGroups, stripeGroups) * 4 * Lfield);
+          fragmentDigest[i] = getDigest();
+          out[i].writeInt(numGroups * 4 * Lfield);
+          if (i >= numSurvivors)
+            parity = true;
+        }
+      }
+    }
+    
+    public void write(int b) throws IOException {
+      if (written >= length)
+        throw new IOException("Object is longer than "+length+" bytes");
+      stripe[filled++] = (byte) b;
+      written++;
+      if (filled == stripe.length)
+        encodeStripe();
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > length - written)
+        throw new IOException("Object is longer than "+length+" bytes");
+      while (len > 0) {
+        int n = Math.min(len, stripe.length - filled);
+        System.arraycopy(b, off, stripe, filled, n);
+        filled += n;
+        written += n;
+        off += n;
+        len -= n;
+        if (filled == stripe.length)
+          encodeStripe();
+      }
+    }
+    
+    /**
+     * Reads len bytes straight into the stripe.
+     */
+    public void read(InputBuffer in, int len) throws IOException {
+      if (len > length - written)
+        throw new IOException("Object is longer than "+length+" bytes");
+      while (len > 0) {
+        int n = Math.min(len, stripe.length - filled);
+        readFully(in, stripe, filled, n);
+        filled += n;
+        written += n;
+        len -= n;
+        if (filled == stripe.length)
+          encodeStripe();
+      }
+    }
+    
+    protected void encodeStripe() throws IOException {
+      if (filled == 0)
+        return;
+      
+      int bytesPerGroup = 4 * Lfield * numSurvivors;
+      final int numGroups = (filled + bytesPerGroup - 1) / bytesPerGroup;
+      final int stripeLength = filled;
+      objectDigest.update(stripe, 0, filled);
+      
+      run(numGroups, parity ? numSurvivors * Lfield : 0, new StripeTask() {
+        public void run(int gStart, int gEnd, long[][] planes, long[] plane) {
+          StreamingErasureCodec.this.encodeStripe(stripe, stripeLength, generateFragment, frag, gStart, gEnd, planes, plane);
+        }
+      });
+      
+      for (int i = 0; i < numFragments; i++) {
+        if (generateFragment[i]) {
+          out[i].write(frag[i].payload, 0, numGroups * 4 * Lfield);
+          fragmentDigest[i].update(frag[i].payload, 0, numGroups * 4 * Lfield);
+        }
+      }
+      filled = 0;
+    }
+    
+    public EncodeResult finish() throws IOException {
+      if (written != length)
+        throw new IOException("Object is "+written+" bytes, expected "+length);
+      encodeStripe();
+      
+      EncodeResult result = new EncodeResult();
+      result.length = length;
+      result.objectHash = objectDigest.digest();
+      result.fragmentHash = new byte[numFragments][];
+      for (int i = 0; i < numFragments; i++) 
+        if (generateFragment[i])
+          result.fragmentHash[i] = fragmentDigest[i].digest();
+      return result;
+    }
+  }
+  
+  /**
+   * Reads a stripe of each fragment, and decodes it when the previous stripe 
+   * has been read.
+   */
+  protected class StripeDecoder extends InputStream {
+    InputBuffer[] in;
+    Fragment[] frag;
+    DecodePlan plan;
+    int groupsLeft;
+    byte[] stripe;
+    int pos = 0;
+    int limit = 0;
+    long remaining;
+    
+    public StripeDecoder(InputBuffer[] in) throws IOException {
+      this.in = in;
+      
+      int fragmentSize = -1;
+      for (int i = 0; i < numFragments; i++) {
+        if (in[i] != null) {
+          int size = in[i].readInt();
+          if ((fragmentSize != -1) && (size != fragmentSize))
+            throw new IOException("Fragment "+i+" is "+size+" bytes, expected "+fragmentSize);
+          fragmentSize = size;
+        }
+      }
+      if ((fragmentSize < 0) || (fragmentSize % (4 * Lfield) != 0))
+        throw new IOException("Invalid fragment size "+fragmentSize);
+      
+      groupsLeft = fragmentSize / (4 * Lfield);
+      int groups = Math.min(groupsLeft, stripeGroups);
+      remaining = ((long) groupsLeft) * 4 * Lfield * numSurvivors;
+      stripe = new byte[groups * 4 * Lfield * numSurvivors];
+      frag = new Fragment[numFragments];
+      for (int i = 0; i < numFragments; i++) 
+        if (in[i] != null)
+          frag[i] = new Fragment(groups * 4 * Lfield);
+      plan = getDecodePlan(frag);
+    }
+    
+    protected boolean decodeStripe() throws IOException {
+      if (groupsLeft == 0)
+        return false;
+      
+      final int numGroups = Math.min(groupsLeft, stripeGroups);
+      for (int i = 0; i < numFragments; i++) 
+        if (in[i] != null)
+          readFully(in[i], frag[i].payload, 0, numGroups * 4 * Lfield);
+      
+      run(numGroups, plan.planePayload.length, new StripeTask() {
+        public void run(int gStart, int gEnd, long[][] planes, long[] plane) {
+          StreamingErasureCodec.this.decodeStripe(frag, stripe, plan, gStart, gEnd, planes, plane);
+        }
+      });
+      
+      groupsLeft -= numGroups;
+      pos = 0;
+      limit = numGroups * 4 * Lfield * numSurvivors;
+      return true;
+    }
+    
+    public int read() throws IOException {
+      if ((pos == limit) && !decodeStripe())
+        return -1;
+      remaining--;
+      return stripe[pos++] & 0xFF;
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if ((pos == limit) && !decodeStripe())
+        return -1;
+      int n = Math.min(len, limit - pos);
+      System.arraycopy(stripe, pos, b, off, n);
+      pos += n;
+      remaining -= n;
+      return n;
+    }
+    
+    public int available() {
+      return limit - pos;
+    }
+  }
+  
+  /**
+   * Counts the bytes of an object, without keeping them.
+   */
+  protected static class CountingOutputStream extends OutputStream {
+    long count = 0;
+    
+    public void write(int b) {
+      count++;
+    }
+    
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+  
+  protected static class StreamOutputBuffer extends DataOutputStream implements OutputBuffer {
+    public StreamOutputBuffer(OutputStream out) {
+      super(out);
+    }
+    
+    public int bytesRemaining() {
+      return Integer.MAX_VALUE;
+    }
+
+    public void writeByte(byte v) throws IOException {
+      this.write(v);
+    }
+
+    public void writeChar(char v) throws IOException {
+      writeChar((int) v);
+    }
+
+    public void writeShort(short v) throws IOException {
+      writeShort((int) v);
+    }  
+  }
+  
+  protected static class StreamInputBuffer extends DataInputStream implements InputBuffer {
+    StripeDecoder decoder;
+    
+    public StreamInputBuffer(StripeDecoder decoder) {
+      super(decoder);
+      this.decoder = decoder;
+    }
+    
+    public int bytesRemaining() {
+      return (int) Math.min(Integer.MAX_VALUE, decoder.remaining);
+    }
+  }
+}
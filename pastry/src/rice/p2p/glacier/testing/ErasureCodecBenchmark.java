@@ -0,0 +1,174 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.glacier.testing;
+
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.environment.params.simple.SimpleParameters;
+import rice.p2p.glacier.*;
+
+/**
+ * Checks that the ScheduledErasureCodec produces the same fragments as the 
+ * ErasureCodec, and decodes any numSurvivors of them to the same bytes, then 
+ * measures the encode and decode throughput of both at several 
+ * (numFragments, numSurvivors).
+ * 
+ * Usage: ErasureCodecBenchmark [objectSize] [rounds] [processor] [parallelism]  (default 1048576 20 simple 0)
+ * 
+ * @version $Id$
+ */
+public class ErasureCodecBenchmark {
+  
+  public static final int[][] CODES = new int[][] {{48, 5}, {16, 8}, {30, 10}};
+  
+  public static void main(String[] args) {
+    int objectSize = (args.length > 0 ? Integer.parseInt(args[0]) : 1024*1024);
+    int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+    
+    Environment env;
+    if (args.length > 2) {
+      Parameters p = new SimpleParameters(Environment.defaultParamFileArray, null);
+      p.setString("environment_processor", args[2]);
+      if (args.length > 3)
+        p.setInt("p2p_glacier_codec_parallelism", Integer.parseInt(args[3]));
+      env = new Environment(null, null, null, null, null, p, null);
+    } else {
+      env = new Environment();
+    }
+    
+    try {
+      Random rng = new Random(42);
+      for (int c=0; c<CODES.length; c++) {
+        int n = CODES[c][0];
+        int k = CODES[c][1];
+        ErasureCodec legacy = new ErasureCodec(n, k, env);
+        ErasureCodec scheduled = new ScheduledErasureCodec(n, k, env);
+        
+        // odd sizes exercise the padding
+        int[] sizes = new int[] {0, 1, 3, 4*10*k - 1, 4*10*k, 4*10*k + 5, 12345, 100003, objectSize};
+        for (int s=0; s<sizes.length; s++) {
+          byte[] bytes = new byte[sizes[s]];
+          rng.nextBytes(bytes);
+          check(legacy, scheduled, bytes, n, k, rng);
+        }
+        
+        byte[] bytes = new byte[objectSize];
+        rng.nextBytes(bytes);
+        boolean[] all = new boolean[n];
+        Arrays.fill(all, true);
+        Fragment[] frags = legacy.encode(bytes, bytes.length, all);
+        
+        // decode from the worst case, all of the data fragments are missing
+        Fragment[] parity = new Fragment[n];
+        for (int i=0; i<k; i++)
+          parity[n - 1 - i] = frags[n - 1 - i];
+        
+        for (int round=0; round<2; round++) {
+          ErasureCodec[] codecs = new ErasureCodec[] {legacy, scheduled};
+          for (int i=0; i<codecs.length; i++) {
+            long start = System.nanoTime();
+            for (int r=0; r<rounds; r++) 
+              codecs[i].encode(bytes, bytes.length, all);
+            long encode = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            for (int r=0; r<rounds; r++) 
+              codecs[i].decodeBytes(parity);
+            long decode = System.nanoTime() - start;
+            
+            System.out.println("("+n+","+k+") "+codecs[i].getClass().getName()+
+                " encode: "+mbps(objectSize, rounds, encode)+"MB/s decode: "+mbps(objectSize, rounds, decode)+"MB/s");
+          }
+        }
+      }
+    } finally {
+      env.destroy();
+    }
+  }
+  
+  protected static void check(ErasureCodec legacy, ErasureCodec scheduled, byte[] bytes, int n, int k, Random rng) {
+    boolean[] all = new boolean[n];
+    Arrays.fill(all, true);
+    Fragment[] expected = legacy.encode(bytes, bytes.length, all);
+    Fragment[] actual = scheduled.encode(bytes, bytes.length, all);
+    for (int i=0; i<n; i++) 
+      if (!Arrays.equals(expected[i].payload, actual[i].payload))
+        throw new RuntimeException("FAILURE: fragment "+i+" of "+bytes.length+" bytes differs at ("+n+","+k+")");
+    
+    // only some of the fragments
+    boolean[] some = new boolean[n];
+    for (int i=0; i<n; i++)
+      some[i] = rng.nextBoolean();
+    actual = scheduled.encode(bytes, bytes.length, some);
+    for (int i=0; i<n; i++) 
+      if (some[i] ? !Arrays.equals(expected[i].payload, actual[i].payload) : (actual[i] != null))
+        throw new RuntimeException("FAILURE: selected fragment "+i+" of "+bytes.length+" bytes differs at ("+n+","+k+")");
+    
+    for (int trial=0; trial<20; trial++) {
+      // k random fragments, sometimes more
+      Fragment[] have = new Fragment[n];
+      int count = k + (trial % 4 == 0 ? rng.nextInt(n - k + 1) : 0);
+      List<Integer> order = new ArrayList<Integer>();
+      for (int i=0; i<n; i++)
+        order.add(new Integer(i));
+      Collections.shuffle(order, rng);
+      for (int i=0; i<count; i++)
+        have[order.get(i).intValue()] = expected[order.get(i).intValue()];
+      
+      byte[] a = legacy.decodeBytes(have);
+      byte[] b = scheduled.decodeBytes(have);
+      if (!Arrays.equals(a, b))
+        throw new RuntimeException("FAILURE: decoded "+bytes.length+" bytes differ at ("+n+","+k+") from "+order.subList(0, count));
+      for (int i=0; i<bytes.length; i++)
+        if (a[i] != bytes[i])
+          throw new RuntimeException("FAILURE: decoded "+bytes.length+" bytes are not the original at ("+n+","+k+")");
+    }
+    
+    // one too few
+    Fragment[] few = new Fragment[n];
+    for (int i=0; i<k-1; i++)
+      few[n - 1 - i] = expected[n - 1 - i];
+    if (k > 1 && scheduled.decodeBytes(few) != null)
+      throw new RuntimeException("FAILURE: decoded from "+(k-1)+" fragments at ("+n+","+k+")");
+  }
+  
+  protected static long mbps(int size, int rounds, long nanos) {
+    return ((long) size) * rounds * 1000L / Math.max(1, nanos);
+  }
+}
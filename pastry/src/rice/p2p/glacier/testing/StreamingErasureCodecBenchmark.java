@@ -0,0 +1,307 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.glacier.testing;
+
+import java.io.*;
+import java.lang.management.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+import org.mpisws.p2p.transport.util.*;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.glacier.*;
+import rice.p2p.past.*;
+import rice.p2p.past.rawserialization.*;
+import rice.p2p.util.rawserialization.*;
+import rice.pastry.Id;
+
+/**
+ * Checks that the StreamingErasureCodec writes the same fragments as the 
+ * ErasureCodec, with the right hashes, and that any numSurvivors of them 
+ * decode to the same bytes.  Then encodes a large object into fragment files 
+ * and decodes it from them, and reports the time and the peak heap of that, 
+ * and of doing the same in memory.
+ * 
+ * Usage: StreamingErasureCodecBenchmark [objectSize] [numFragments] [numSurvivors] [inMemory]  (default 134217728 48 5 true)
+ * 
+ * @version $Id$
+ */
+public class StreamingErasureCodecBenchmark {
+  
+  public static final short TYPE = 1;
+  
+  /**
+   * An object of any size, whose bytes are generated when it is serialized, 
+   * and checked when it is deserialized.
+   */
+  static class BenchmarkContent extends ContentHashPastContent implements RawPastContent {
+    int size;
+    long seed;
+    
+    public BenchmarkContent(Id id, int size, long seed) {
+      super(id);
+      this.size = size;
+      this.seed = seed;
+    }
+    
+    public BenchmarkContent(InputBuffer buf) throws IOException {
+      super(Id.build(buf));
+      size = buf.readInt();
+      seed = buf.readLong();
+      Random rng = new Random(seed);
+      byte[] expected = new byte[65536];
+      byte[] actual = new byte[65536];
+      for (int done = 0; done < size; done += expected.length) {
+        int len = Math.min(expected.length, size - done);
+        rng.nextBytes(expected);
+        int read = 0;
+        while (read < len) {
+          int n = buf.read(actual, read, len - read);
+          if (n <= 0) throw new EOFException();
+          read += n;
+        }
+        for (int i = 0; i < len; i++)
+          if (expected[i] != actual[i])
+            throw new IOException("Byte "+(done + i)+" differs");
+      }
+    }
+    
+    public short getType() {
+      return TYPE;
+    }
+    
+    public void serialize(OutputBuffer buf) throws IOException {
+      ((Id) myId).serialize(buf);
+      buf.writeInt(size);
+      buf.writeLong(seed);
+      Random rng = new Random(seed);
+      byte[] chunk = new byte[65536];
+      for (int done = 0; done < size; done += chunk.length) {
+        rng.nextBytes(chunk);
+        buf.write(chunk, 0, Math.min(chunk.length, size - done));
+      }
+    }
+  }
+  
+  static class BenchmarkDeserializer implements PastContentDeserializer {
+    public PastContent deserializePastContent(InputBuffer buf, Endpoint endpoint, short contentType) throws IOException {
+      if (contentType != TYPE)
+        throw new IOException("Unknown type "+contentType);
+      return new BenchmarkContent(buf);
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int objectSize = (args.length > 0 ? Integer.parseInt(args[0]) : 128*1024*1024);
+    int n = (args.length > 1 ? Integer.parseInt(args[1]) : 48);
+    int k = (args.length > 2 ? Integer.parseInt(args[2]) : 5);
+    boolean inMemory = (args.length > 3 ? Boolean.valueOf(args[3]).booleanValue() : true);
+    
+    Environment env = new Environment();
+    try {
+      Random rng = new Random(42);
+      
+      // small stripes, so most objects span several
+      int[][] codes = new int[][] {{48, 5}, {16, 8}, {30, 10}};
+      for (int c=0; c<codes.length; c++) {
+        ErasureCodec legacy = new ErasureCodec(codes[c][0], codes[c][1], env);
+        StreamingErasureCodec streaming = new StreamingErasureCodec(codes[c][0], codes[c][1], 0, 4096, env);
+        int[] sizes = new int[] {0, 1, 4*10*codes[c][1], 4095, 4096, 12345, 100003};
+        for (int s=0; s<sizes.length; s++) {
+          byte[] bytes = new byte[sizes[s]];
+          rng.nextBytes(bytes);
+          check(legacy, streaming, bytes, codes[c][0], codes[c][1], rng);
+        }
+      }
+      System.out.println("Streamed fragments match");
+      
+      BenchmarkContent content = new BenchmarkContent(Id.makeRandomId(rng), objectSize, 42);
+      PastContentDeserializer pcd = new BenchmarkDeserializer();
+      
+      // only the fragments that are decoded are written
+      boolean[] generateFragment = new boolean[n];
+      for (int i=0; i<k; i++)
+        generateFragment[n - 1 - i] = true;
+      
+      if (inMemory) {
+        ErasureCodec codec = new ScheduledErasureCodec(n, k, env);
+        resetPeakHeap();
+        long start = System.nanoTime();
+        Fragment[] frags = codec.encodeObject(content, generateFragment);
+        long encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        if (codec.decode(frags, null, pcd) == null)
+          throw new RuntimeException("FAILURE: could not decode in memory");
+        long decode = System.nanoTime() - start;
+        frags = null;
+        report("in memory", objectSize, encode, decode);
+      }
+      
+      StreamingErasureCodec codec = new StreamingErasureCodec(n, k, env);
+      File dir = File.createTempFile("fragments", "");
+      dir.delete();
+      dir.mkdir();
+      File[] files = new File[n];
+      try {
+        resetPeakHeap();
+        long start = System.nanoTime();
+        OutputBuffer[] out = new OutputBuffer[n];
+        for (int i=0; i<n; i++) {
+          if (generateFragment[i]) {
+            files[i] = new File(dir, "fragment"+i);
+            out[i] = new FileOutputBuffer(files[i]);
+          }
+        }
+        codec.encodeObject(content, generateFragment, out);
+        for (int i=0; i<n; i++) 
+          if (out[i] != null)
+            ((FileOutputBuffer) out[i]).close();
+        long encode = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        InputBuffer[] in = new InputBuffer[n];
+        for (int i=0; i<n; i++) 
+          if (files[i] != null)
+            in[i] = new FileInputBuffer(files[i], null);
+        PastContent result = codec.decode(in, null, pcd);
+        for (int i=0; i<n; i++) 
+          if (in[i] != null)
+            ((FileInputBuffer) in[i]).close();
+        if (result == null)
+          throw new RuntimeException("FAILURE: could not decode from the fragment files");
+        long decode = System.nanoTime() - start;
+        report("streaming", objectSize, encode, decode);
+      } finally {
+        for (int i=0; i<n; i++)
+          if (files[i] != null)
+            files[i].delete();
+        dir.delete();
+      }
+    } finally {
+      env.destroy();
+    }
+  }
+  
+  protected static void check(ErasureCodec legacy, StreamingErasureCodec streaming, byte[] bytes, int n, int k, Random rng) throws Exception {
+    boolean[] all = new boolean[n];
+    Arrays.fill(all, true);
+    Fragment[] expected = legacy.encode(bytes, bytes.length, all);
+    
+    SimpleOutputBuffer[] out = new SimpleOutputBuffer[n];
+    for (int i=0; i<n; i++)
+      out[i] = new SimpleOutputBuffer();
+    StreamingErasureCodec.EncodeResult result = streaming.encode(new SimpleInputBuffer(bytes), bytes.length, all, out);
+    
+    MessageDigest md = MessageDigest.getInstance("SHA");
+    if (!Arrays.equals(result.objectHash, md.digest(bytes)))
+      throw new RuntimeException("FAILURE: object hash of "+bytes.length+" bytes differs at ("+n+","+k+")");
+    
+    byte[][] serialized = new byte[n][];
+    for (int i=0; i<n; i++) {
+      SimpleOutputBuffer sob = new SimpleOutputBuffer();
+      expected[i].serialize(sob);
+      serialized[i] = new byte[out[i].getWritten()];
+      System.arraycopy(out[i].getBytes(), 0, serialized[i], 0, serialized[i].length);
+      if ((sob.getWritten() != serialized[i].length) || 
+          !Arrays.equals(Arrays.copyOf(sob.getBytes(), sob.getWritten()), serialized[i]))
+        throw new RuntimeException("FAILURE: fragment "+i+" of "+bytes.length+" bytes differs at ("+n+","+k+")");
+      if (!Arrays.equals(result.fragmentHash[i], md.digest(expected[i].getPayload())))
+        throw new RuntimeException("FAILURE: hash of fragment "+i+" of "+bytes.length+" bytes differs at ("+n+","+k+")");
+    }
+    
+    for (int trial=0; trial<10; trial++) {
+      List<Integer> order = new ArrayList<Integer>();
+      for (int i=0; i<n; i++)
+        order.add(new Integer(i));
+      Collections.shuffle(order, rng);
+      Fragment[] have = new Fragment[n];
+      InputBuffer[] in = new InputBuffer[n];
+      for (int i=0; i<k; i++) {
+        int f = order.get(i).intValue();
+        have[f] = expected[f];
+        in[f] = new SimpleInputBuffer(serialized[f]);
+      }
+      
+      byte[] a = legacy.decodeBytes(have);
+      InputBuffer decoded = streaming.decodeStream(in);
+      if (decoded.bytesRemaining() != a.length)
+        throw new RuntimeException("FAILURE: decoding "+decoded.bytesRemaining()+" bytes, expected "+a.length);
+      byte[] b = new byte[a.length];
+      for (int off = 0; off < b.length; ) {
+        int read = decoded.read(b, off, b.length - off);
+        if (read <= 0)
+          throw new RuntimeException("FAILURE: decoded stream ended at "+off+" of "+b.length);
+        off += read;
+      }
+      if (!Arrays.equals(a, b))
+        throw new RuntimeException("FAILURE: decoded "+bytes.length+" bytes differ at ("+n+","+k+") from "+order.subList(0, k));
+    }
+    
+    InputBuffer[] few = new InputBuffer[n];
+    for (int i=0; i<k-1; i++)
+      few[n - 1 - i] = new SimpleInputBuffer(serialized[n - 1 - i]);
+    if (k > 1 && streaming.decodeStream(few) != null)
+      throw new RuntimeException("FAILURE: decoded from "+(k-1)+" fragments at ("+n+","+k+")");
+  }
+  
+  protected static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if (pool.getType() == MemoryType.HEAP)
+        pool.resetPeakUsage();
+  }
+  
+  /**
+   * The sum of the peaks of the heap pools since resetPeakHeap(), which 
+   * includes garbage that was not yet collected.
+   */
+  protected static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if (pool.getType() == MemoryType.HEAP)
+        peak += pool.getPeakUsage().getUsed();
+    return peak;
+  }
+  
+  protected static void report(String name, int size, long encode, long decode) {
+    System.out.println(name+": "+size+" bytes encode: "+(((long) size) * 1000L / Math.max(1, encode))+"MB/s decode: "+
+        (((long) size) * 1000L / Math.max(1, decode))+"MB/s peak heap: "+(peakHeap() / (1024*1024))+"MB");
+  }
+}
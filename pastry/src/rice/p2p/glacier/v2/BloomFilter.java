@@ -43,6 +43,7 @@ import rice.environment.logging.Logger;
 import rice.environment.random.RandomSource;
 import rice.environment.random.simple.SimpleRandomSource;
 import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.util.DoubleHashBloomFilter;
 
 public class BloomFilter implements Serializable {
   
@@ -51,12 +52,22 @@ public class BloomFilter implements Serializable {
   private byte bitfield[];
   private int hashParams[];
   
+  /**
+   * If non-null, the filter which this one delegates to instead of using 
+   * the bitfield and hashParams
+   */
+  private DoubleHashBloomFilter filter;
+  
   public BloomFilter(int length, int[] hashParams) {
     bitfield = new byte[(length+7)/8];
     Arrays.fill(bitfield, (byte)0);
     this.hashParams = hashParams;
   }  
   
+  public BloomFilter(DoubleHashBloomFilter filter) {
+    this.filter = filter;
+  }
+  
   public BloomFilter(int length, int numHashes, RandomSource rand) {
     bitfield = new byte[(length+7)/8];
     Arrays.fill(bitfield, (byte)0);
@@ -124,6 +135,11 @@ public class BloomFilter implements Serializable {
   }
   
   public void add(byte[] data) {
+    if (filter != null) {
+      filter.add(data);
+      return;
+    }
+    
     int[] hash = getHashes(data);
 
 /*System.outt.print("Adding ");
@@ -140,6 +156,9 @@ System.outt.println(); */
   }
   
   public boolean contains(byte[] data) {
+    if (filter != null)
+      return filter.check(data);
+    
     int[] hash = getHashes(data);
 
 /* System.outt.print("Checking ");
@@ -159,6 +178,9 @@ System.outt.println(); */
   }
   
   public String toString() {
+    if (filter != null)
+      return filter.toString();
+    
     String result = "[BV "+(bitfield.length*8)+"bit = { ";
     for (int i=0; i<hashParams.length; i++)
       result = result + ((i==0) ? "" : ", ") + hashParams[i];
@@ -167,7 +189,18 @@ System.outt.println(); */
   }
   
   public BloomFilter(InputBuffer buf) throws IOException {
-    hashParams = new int[buf.readInt()];
+    int numHashes = buf.readInt();
+    
+    // a negative count is the version of a DoubleHashBloomFilter
+    if (numHashes < 0) {
+      if (-numHashes != DoubleHashBloomFilter.VERSION)
+        throw new IOException("Unknown Version: "+(-numHashes));
+      
+      filter = new DoubleHashBloomFilter(buf);
+      return;
+    }
+    
+    hashParams = new int[numHashes];
     for (int i = 0; i < hashParams.length; i++) {
       hashParams[i] = buf.readInt();
     }
@@ -176,6 +209,11 @@ System.outt.println(); */
   }
   
   public void serialize(OutputBuffer buf) throws IOException {
+    if (filter != null) {
+      filter.serialize(buf);
+      return;
+    }
+    
     buf.writeInt(hashParams.length); 
     for (int i = 0; i < hashParams.length; i++) {
       buf.writeInt(hashParams[i]);
@@ -56,6 +56,8 @@ import rice.p2p.past.gc.GCPast;
 import rice.p2p.past.gc.GCPastContent;
 import rice.p2p.past.rawserialization.*;
 import rice.p2p.util.DebugCommandHandler;
+import rice.p2p.util.DoubleHashBloomFilter;
+import rice.p2p.util.MathUtils;
 import rice.persistence.Storage;
 import rice.persistence.StorageManager;
 import rice.persistence.PersistentStorage;
@@ -110,6 +112,7 @@ public class GlacierImpl implements Glacier, GCPast, VersioningPast, Application
   private final long syncMinQuietTime;
   private final int syncBloomFilterNumHashes;
   private final int syncBloomFilterBitsPerKey;
+  private final boolean syncBloomFilterDoubleHashing;
   private final int syncPartnersPerTrial;
   private long syncInterval;
   private final long syncRetryInterval;
@@ -207,6 +210,7 @@ public class GlacierImpl implements Glacier, GCPast, VersioningPast, Application
     syncMinQuietTime = p.getLong("p2p_glacier_syncMinQuietTime");
     syncBloomFilterNumHashes = p.getInt("p2p_glacier_syncBloomFilterNumHashes");
     syncBloomFilterBitsPerKey = p.getInt("p2p_glacier_syncBloomFilterBitsPerKey");
+    syncBloomFilterDoubleHashing = p.getBoolean("p2p_glacier_syncBloomFilterDoubleHashing");
     syncPartnersPerTrial = p.getInt("p2p_glacier_syncPartnersPerTrial");
     syncInterval = p.getLong("p2p_glacier_syncInterval");
     syncRetryInterval = p.getLong("p2p_glacier_syncRetryInterval");
@@ -463,8 +467,14 @@ public class GlacierImpl implements Glacier, GCPast, VersioningPast, Application
           final IdSet keySet = fragmentStorage.scan();
           endpoint.process(new Executable() {
             public Object execute() {
-              BloomFilter bv = new BloomFilter((2*keySet.numElements()+5)*syncBloomFilterBitsPerKey, syncBloomFilterNumHashes, environment.getRandomSource());
+              int length = (2*keySet.numElements()+5)*syncBloomFilterBitsPerKey;
+              BloomFilter bv;
+              if (syncBloomFilterDoubleHashing)
+                bv = new BloomFilter(new DoubleHashBloomFilter(syncBloomFilterNumHashes, length));
+              else
+                bv = new BloomFilter(length, syncBloomFilterNumHashes, environment.getRandomSource());
               Iterator iter = keySet.getIterator();
+              byte[] input = null;
 
               while (iter.hasNext()) {
                 FragmentKey fkey = (FragmentKey)iter.next();
@@ -475,8 +485,8 @@ public class GlacierImpl implements Glacier, GCPast, VersioningPast, Application
                     long currentExp = metadata.getCurrentExpiration();
                     long prevExp = metadata.getPreviousExpiration();
                     if (logger.level <= Logger.FINER) logger.log( " - Adding "+fkey+" as "+fkey.getVersionKey().getId()+", ecur="+currentExp+", eprev="+prevExp);
-                    bv.add(getHashInput(fkey.getVersionKey(), currentExp));
-                    bv.add(getHashInput(fkey.getVersionKey(), prevExp));
+                    bv.add(input = getHashInput(fkey.getVersionKey(), currentExp, input));
+                    bv.add(input = getHashInput(fkey.getVersionKey(), prevExp, input));
                   } else {
                     if (logger.level <= Logger.WARNING) logger.log("SYNC Cannot read metadata of object "+fkey.toStringFull()+", storage returned null");
                   }
@@ -1097,22 +1107,19 @@ public class GlacierImpl implements Glacier, GCPast, VersioningPast, Application
     this.trashStorage = trashStorage;
   }
 
-  private byte[] getHashInput(VersionKey vkey, long expiration) {
-    byte[] a = vkey.toByteArray();
-    byte[] b = new byte[a.length + 8];
-    for (int i=0; i<a.length; i++)
-      b[i] = a[i];
-      
-    b[a.length + 0] = (byte)(0xFF & (expiration>>56));
-    b[a.length + 1] = (byte)(0xFF & (expiration>>48));
-    b[a.length + 2] = (byte)(0xFF & (expiration>>40));
-    b[a.length + 3] = (byte)(0xFF & (expiration>>32));
-    b[a.length + 4] = (byte)(0xFF & (expiration>>24));
-    b[a.length + 5] = (byte)(0xFF & (expiration>>16));
-    b[a.length + 6] = (byte)(0xFF & (expiration>>8));
-    b[a.length + 7] = (byte)(0xFF & (expiration));
-
-    return b;
+  /**
+   * Builds the input to the sync bloom filters for the given key and expiration,
+   * reusing the provided buffer if it has the right size.
+   */
+  private byte[] getHashInput(VersionKey vkey, long expiration, byte[] buffer) {
+    int length = vkey.getByteArrayLength();
+    if ((buffer == null) || (buffer.length != length + 8))
+      buffer = new byte[length + 8];
+    
+    vkey.toByteArray(buffer, 0);
+    MathUtils.longToByteArray(expiration, buffer, length);
+
+    return buffer;
   }
 
   private static String dump(byte[] data, boolean linebreak) {
@@ -3269,6 +3276,7 @@ public class GlacierImpl implements Glacier, GCPast, VersioningPast, Application
       final long latestAcceptableStoredSince = environment.getTimeSource().currentTimeMillis() - syncMinQuietTime;
       
       final Vector missing = new Vector();
+      byte[] input = null;
       
       while (iter.hasNext()) {
         FragmentKey fkey = (FragmentKey)iter.next();
@@ -3276,7 +3284,7 @@ public class GlacierImpl implements Glacier, GCPast, VersioningPast, Application
         if (range.containsId(thisPos)) {
           FragmentMetadata metadata = (FragmentMetadata) fragmentStorage.getMetadata(fkey);
           if (metadata != null) {
-            if (!bv.contains(getHashInput(fkey.getVersionKey(), metadata.getCurrentExpiration()))) {
+            if (!bv.contains(input = getHashInput(fkey.getVersionKey(), metadata.getCurrentExpiration(), input))) {
               if (metadata.getCurrentExpiration() >= earliestAcceptableExpiration) {
                 if (metadata.getStoredSince() <= latestAcceptableStoredSince) {
                   if (logger.level <= Logger.FINER) logger.log( fkey+" @"+thisPos+" - MISSING");
@@ -55,6 +55,8 @@ import rice.p2p.past.messaging.*;
 import rice.p2p.past.rawserialization.*;
 import rice.p2p.replication.*;
 import rice.p2p.replication.manager.*;
+import rice.p2p.util.IdMerkleTree;
+import rice.p2p.util.IdMerkleTreeSource;
 import rice.p2p.util.MathUtils;
 import rice.p2p.util.rawserialization.*;
 import rice.persistence.*;
@@ -70,7 +72,7 @@ import rice.persistence.*;
  * @author Peter Druschel
  */
 @SuppressWarnings("unchecked")
-public class PastImpl implements Past, Application, ReplicationManagerClient {
+public class PastImpl implements Past, Application, ReplicationManagerClient, IdMerkleTreeSource, Destructable {
   
   
   // ----- STATIC FIELDS -----
@@ -135,6 +137,11 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   
   public SocketStrategy socketStrategy;
   
+  /**
+   * Sends the messages the socketStrategy sends along a socket.
+   */
+  protected PastSocketPool socketPool;
+  
   /**
    * Constructor for Past, using the default policy
    *
@@ -160,6 +167,20 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   }
   
   
+  /**
+   * Lets a PersistentStorage write RawPastContent in its raw form, which is 
+   * read back by the contentDeserializer.
+   */
+  protected class PastRawObjectSerializer implements RawObjectSerializer {
+    public short getType(Serializable obj) {
+      return (obj instanceof RawPastContent ? ((RawPastContent) obj).getType() : -1);
+    }
+    
+    public Serializable deserialize(InputBuffer buf, short type) throws IOException {
+      return contentDeserializer.deserializePastContent(buf, endpoint, type);
+    }
+  }
+  
   protected class PastDeserializer implements MessageDeserializer {
     public Message deserialize(InputBuffer buf, short type, int priority,
         NodeHandle sender) throws IOException {
@@ -214,6 +235,7 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
    */
   public PastImpl(Node node, StorageManager manager, Cache backup, int replicas, String instance, PastPolicy policy, StorageManager trash, SocketStrategy strategy) {
     this.environment = node.getEnvironment();
+    environment.addDestructable(this);
     logger = environment.getLogManager().getLogger(getClass(), instance);
     Parameters p = environment.getParameters();
     MESSAGE_TIMEOUT = p.getInt("p2p_past_messageTimeout");// = 30000;
@@ -225,6 +247,10 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     this.contentHandleDeserializer = new JavaPastContentHandleDeserializer();
     this.endpoint = node.buildEndpoint(this, instance);
     this.endpoint.setDeserializer(new PastDeserializer());
+    setRawObjectSerializer(manager.getStorage(), instance, new PastRawObjectSerializer());
+    this.socketPool = new PastSocketPool(endpoint, 
+        p.getInt("p2p_past_socket_pool_max_sockets_per_peer"), 
+        p.getInt("p2p_past_socket_pool_idle_timeout"));
     this.factory = node.getIdFactory();
     this.policy = policy;
     this.instance = instance;
@@ -255,60 +281,62 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
           boolean canWrite) {        
         if (logger.level <= Logger.FINER) logger.log("Reading from "+socket);
         try {
+          // [size, message], the message is null until the size was read completely
           ByteBuffer[] bb = (ByteBuffer[])pendingSocketTransactions.get(socket);
           if (bb == null) {
             // this is a new message
-            
-            // read the size
-            bb = new ByteBuffer[1];
+            bb = new ByteBuffer[2];
             bb[0] = ByteBuffer.allocate(4);
-            if (socket.read(bb,0,1) == -1) {
+            pendingSocketTransactions.put(socket,bb);
+          }
+          
+          if (bb[1] == null) {
+            // read the size
+            if (socket.read(bb[0]) == -1) {
               close(socket);
               return;
             }
+            if (bb[0].hasRemaining()) {
+              socket.register(true, false, 10000, this);
+              return;
+            }
             
-            // TODO: need to handle the condition where we don't read the whole size...          
-            byte[] sizeArr = bb[0].array();            
-            int size = MathUtils.byteArrayToInt(sizeArr);
+            int size = MathUtils.byteArrayToInt(bb[0].array());
                         
             if (logger.level <= Logger.FINER) logger.log("Found object of size "+size+" from "+socket);
             
-            // allocate a buffer to store the object, save it in the pst
-            bb[0] = ByteBuffer.allocate(size);
-            pendingSocketTransactions.put(socket,bb);
+            // allocate a buffer to store the object
+            bb[1] = ByteBuffer.allocate(size);
           }
           
-          // now we have a bb
-          
           // read some bytes
-          if (socket.read(bb,0,1) == -1) {
+          if (socket.read(bb[1]) == -1) {
             close(socket);
+            return;
           }
           
           // deserialize or reregister
-          if (bb[0].remaining() == 0) {
+          if (bb[1].remaining() == 0) {
             // make sure to clear things up so we can keep receiving          
             pendingSocketTransactions.remove(socket);
             
-            if (logger.level <= Logger.FINEST) logger.log("bb[0].limit() "+bb[0].limit()+" bb[0].remaining() "+bb[0].remaining()+" from "+socket);
+            if (logger.level <= Logger.FINEST) logger.log("bb[1].limit() "+bb[1].limit()+" bb[1].remaining() "+bb[1].remaining()+" from "+socket);
             
             // deserialize the object
-            SimpleInputBuffer sib = new SimpleInputBuffer(bb[0].array());
+            SimpleInputBuffer sib = new SimpleInputBuffer(bb[1].array());
             
             short type = sib.readShort();
             
             PastMessage result = (PastMessage)endpoint.getDeserializer().deserialize(sib,type,(byte)0,null);
             deliver(null,result);
-            
           } 
             
-          // there will be more data on the socket if we haven't received everything yet
-          // need to register either way to be able to read from the sockets when they are closed remotely, could alternatively close early
-          // cause we are currently only sending 1 message per socket, but it's better to just keep reading in case we one day reuse sockets
-            socket.register(true, false, 10000, this);
+          // the PastSocketPool sends more messages on the same socket, and 
+          // we need to be registered to see the remote close
+          socket.register(true, false, 10000, this);
 
-            // recursive call to handle next object
-            // cant do this becasue calling read when not ready throws an exception
+          // recursive call to handle next object
+          // cant do this becasue calling read when not ready throws an exception
 //          receiveSelectResult(socket, canRead, canWrite);        
         } catch (IOException ioe) {
           receiveException(socket, ioe);
@@ -449,6 +477,7 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
       m.serialize(sob);
     } catch (IOException ioe) {
       if (c != null) c.receiveException(ioe); 
+      return;
     }
     
     // add the size back to the beginning...
@@ -457,52 +486,40 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     byte[] bytes = sob.getBytes();
     MathUtils.intToByteArray(size,bytes,0);
     
-    // prepare the bytes for writing
-    final ByteBuffer[] bb = new ByteBuffer[1];
-    bb[0] = ByteBuffer.wrap(bytes, 0, sob.getWritten()); // the whole thing
-    
-
-    if (logger.level <= Logger.FINE) logger.log("Opening socket to "+handle+" to send "+m);
-    endpoint.connect(handle, new AppSocketReceiver() {
-    
-      public void receiveSocket(AppSocket socket) {
-        if (logger.level <= Logger.FINER) logger.log("Opened socket to "+handle+":"+socket+" to send "+m);
-        socket.register(false, true, 10000, this);
-      }
-      
-      public void receiveSelectResult(AppSocket socket, boolean canRead,
-          boolean canWrite) {
-        if (logger.level <= Logger.FINEST) logger.log("Writing to "+handle+":"+socket+" to send "+m);
-        
-        
-        try {
-//          ByteBuffer[] outs = new ByteBuffer[1];    
-//          ByteBuffer out = ByteBuffer.wrap(endpoint.getLocalNodeHandle().getId().toByteArray());
-//          outs[0] = out;
-//          socket.write(outs, 0, 1);
-          
-          socket.write(bb,0,1);
-        } catch (IOException ioe) {
-          if (c != null) 
-            c.receiveException(ioe);
-          else
-            if (logger.level <= Logger.WARNING) logger.logException("Error sending "+m,ioe);
-          return; // don't continue to try to send
-        }
-        if (bb[0].remaining() > 0) {
-          socket.register(false, true, 10000, this);        
-        } else {
-          socket.close(); 
-        }
-      }
-      
-      public void receiveException(AppSocket socket, Exception e) {
-        if (c != null) c.receiveException(e);
-      }        
-    },
-    10000);    
+    socketPool.send(handle, ByteBuffer.wrap(bytes, 0, sob.getWritten()), c, m);
+  }
+  
+  /**
+   * Closes the pooled sockets and stops their idle timer, the queued 
+   * messages fail.
+   */
+  public void destroy() {
+    socketPool.destroy();
+    setRawObjectSerializer(storage.getStorage(), instance, null);
   }
   
+  /**
+   * Sets the serializer for our RawPastContent on the storage, if it can
+   * store objects in their raw form.  It is set under our instance name, so 
+   * that Pasts sharing a storage read back their own content.
+   *
+   * @param storage The storage
+   * @param instance Our instance name
+   * @param serializer The serializer, or null to remove it
+   */
+  private static void setRawObjectSerializer(Storage storage, String instance, RawObjectSerializer serializer) {
+    if (storage instanceof PersistentStorage) 
+      ((PersistentStorage) storage).setRawObjectSerializer(instance, serializer);
+    else if (storage instanceof OffHeapMemoryStorage) 
+      ((OffHeapMemoryStorage) storage).setRawObjectSerializer(instance, serializer);
+  }
+  
+  /**
+   * The pool of sockets that large messages are sent on - ONLY FOR TESTING - DO NOT USE
+   */
+  public PastSocketPool getSocketPool() {
+    return socketPool;
+  }
   
   /**
    * Sends a request message across the wire, and stores the appropriate
@@ -1197,6 +1214,19 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     return storage.getStorage().scan();
   }
   
+  /**
+   * Returns the IdMerkleTree of the keys the storage holds, if it keeps one, 
+   * which lets the replication compare replicas by their fingerprints
+   *
+   * @return The storage's tree, or null
+   */
+  public IdMerkleTree getMerkleTree() {
+    if (storage.getStorage() instanceof IdMerkleTreeSource)
+      return ((IdMerkleTreeSource) storage.getStorage()).getMerkleTree();
+    
+    return null;
+  }
+  
   /**
     * This upcall should return whether or not the given id is currently stored
    * by the client.
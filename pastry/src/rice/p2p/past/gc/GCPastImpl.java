@@ -50,6 +50,7 @@ import rice.p2p.past.*;
 import rice.p2p.past.messaging.*;
 import rice.p2p.past.rawserialization.SocketStrategy;
 import rice.p2p.past.gc.messaging.*;
+import rice.p2p.util.IdMerkleTree;
 import rice.persistence.*;
 
 /**
@@ -631,6 +632,16 @@ public class GCPastImpl extends PastImpl implements GCPast {
     return new GCIdSet(storage.getStorage().scan(), storage.getStorage().scanMetadata());
   }
   
+  /**
+   * Returns null, as the replication compares GCIds, which include the 
+   * expiration time the storage's tree does not know about
+   *
+   * @return null
+   */
+  public IdMerkleTree getMerkleTree() {
+    return null;
+  }
+  
   /**
    * This upcall should return whether or not the given id is currently stored
    * by the client.
@@ -0,0 +1,456 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.past.rawserialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.appsocket.*;
+import rice.selector.TimerTask;
+
+/**
+ * Keeps long lived application sockets to other Past nodes, and writes the 
+ * framed messages that the SocketStrategy sends along a socket over them, one 
+ * after the other.  A frame is the int size followed by the message, the same 
+ * as when every message had its own socket, so the receiver doesn't care 
+ * which kind of sender it talks to.  The responses are matched to the 
+ * requests by the PastMessage's UID, as before.
+ * 
+ * There are at most maxChannelsPerPeer sockets to a peer.  A frame goes to an 
+ * idle socket if there is one, otherwise to a new socket while under the cap, 
+ * otherwise it is queued behind the socket with the shortest queue.  Sockets 
+ * that have been idle for idleTimeout millis are closed.  With a cap of 0 
+ * every frame gets its own socket, which is closed once it is written.
+ * 
+ * If a reused socket turns out to be dead (the peer closed it) the frames 
+ * that weren't started yet are resent on a new socket.  Other frames which 
+ * weren't completely written fail their continuation, frames which were 
+ * written are covered by Past's message timeout.
+ * 
+ * @version $Id$
+ */
+public class PastSocketPool {
+  /**
+   * Timeout for establishing a socket.
+   */
+  public static final int CONNECT_TIMEOUT = 10000;
+  
+  protected Endpoint endpoint;
+  protected Environment environment;
+  protected Logger logger;
+  
+  protected int maxChannelsPerPeer;
+  protected int idleTimeout;
+  
+  /**
+   * NodeHandle -> List<Channel>
+   */
+  protected Map<NodeHandle, List<Channel>> channels = new HashMap<NodeHandle, List<Channel>>();
+  
+  /**
+   * Closes idle channels, only scheduled while there are channels.
+   */
+  protected TimerTask sweeper;
+  
+  protected boolean destroyed = false;
+  
+  // statistics
+  protected int socketsOpened = 0;
+  protected int socketsClosed = 0;
+  protected int framesSent = 0;
+  
+  /**
+   * @param maxChannelsPerPeer 0 to use a new socket for every frame
+   * @param idleTimeout millis before an unused socket is closed
+   */
+  public PastSocketPool(Endpoint endpoint, int maxChannelsPerPeer, int idleTimeout) {
+    this.endpoint = endpoint;
+    this.environment = endpoint.getEnvironment();
+    this.logger = environment.getLogManager().getLogger(PastSocketPool.class, endpoint.getInstance());
+    this.maxChannelsPerPeer = maxChannelsPerPeer;
+    this.idleTimeout = idleTimeout;
+  }
+  
+  /**
+   * A frame waiting to be written.
+   */
+  protected static class Frame {
+    ByteBuffer buf;
+    Continuation c;
+    Object msg;
+    
+    public Frame(ByteBuffer buf, Continuation c, Object msg) {
+      this.buf = buf;
+      this.c = c;
+      this.msg = msg;
+    }
+  }
+  
+  /**
+   * Send a frame to handle.
+   * 
+   * @param frame the size prefixed message
+   * @param c notified if the frame couldn't be written, may be null
+   * @param msg for logging
+   */
+  public void send(NodeHandle handle, ByteBuffer frame, Continuation c, Object msg) {
+    send(handle, new Frame(frame, c, msg));
+  }
+  
+  protected void send(NodeHandle handle, Frame frame) {
+    Channel channel;
+    boolean connect = false;
+    boolean write = false;
+    synchronized(this) {
+      if (destroyed) {
+        channel = null;
+      } else if (maxChannelsPerPeer <= 0) {
+        channel = new Channel(handle, false);
+        connect = true;
+      } else {
+        List<Channel> list = channels.get(handle);
+        if (list == null) {
+          list = new ArrayList<Channel>(maxChannelsPerPeer);
+          channels.put(handle, list);
+        }
+        channel = null;
+        for (int i = 0; i < list.size(); i++) {
+          Channel ch = list.get(i);
+          if (channel == null || ch.queue.size() < channel.queue.size()) channel = ch;
+        }
+        if (channel == null || (!channel.queue.isEmpty() && list.size() < maxChannelsPerPeer)) {
+          channel = new Channel(handle, true);
+          list.add(channel);
+          connect = true;
+          if (sweeper == null) {
+            sweeper = environment.getSelectorManager().schedule(new TimerTask() {
+              public void run() {
+                sweep();
+              }
+            }, idleTimeout, Math.max(1, idleTimeout/2));
+          }
+        }
+      }
+      if (channel != null) {
+        write = channel.enqueue(frame);
+        if (connect) socketsOpened++;
+      }
+    }
+    if (channel == null) {
+      if (frame.c != null) frame.c.receiveException(new IOException("PastSocketPool was destroyed, can't send "+frame.msg));
+      return;
+    }
+    if (connect) {
+      if (logger.level <= Logger.FINE) logger.log("Opening socket to "+handle+" to send "+frame.msg);
+      endpoint.connect(handle, channel, CONNECT_TIMEOUT);
+    } else if (write) {
+      channel.requestWrite();
+    }
+  }
+  
+  /**
+   * Close the channels that have been idle for idleTimeout.
+   */
+  protected void sweep() {
+    long now = environment.getTimeSource().currentTimeMillis();
+    ArrayList<Channel> idle = new ArrayList<Channel>();
+    synchronized(this) {
+      Iterator<List<Channel>> i = channels.values().iterator();
+      while (i.hasNext()) {
+        List<Channel> list = i.next();
+        for (int j = 0; j < list.size(); j++) {
+          Channel ch = list.get(j);
+          if (ch.socket != null && ch.queue.isEmpty() && now-ch.lastUsed >= idleTimeout) idle.add(ch);
+        }
+      }
+    }
+    for (int i = 0; i < idle.size(); i++) {
+      Channel ch = idle.get(i);
+      if (logger.level <= Logger.FINER) logger.log("Closing idle "+ch);
+      ch.close();
+    }
+  }
+  
+  /**
+   * Called holding the pool's lock, in the same critical section which 
+   * closes the channel, so that send() never picks a closed channel.
+   */
+  protected synchronized void remove(Channel channel) {
+    socketsClosed++;
+    if (!channel.pooled) return;
+    List<Channel> list = channels.get(channel.handle);
+    if (list == null) return;
+    list.remove(channel);
+    if (list.isEmpty()) {
+      channels.remove(channel.handle);
+      if (channels.isEmpty() && sweeper != null) {
+        sweeper.cancel();
+        sweeper = null;
+      }
+    }
+  }
+  
+  /**
+   * Close all the sockets, queued frames fail.
+   */
+  public void destroy() {
+    ArrayList<Channel> all = new ArrayList<Channel>();
+    synchronized(this) {
+      destroyed = true;
+      Iterator<List<Channel>> i = channels.values().iterator();
+      while (i.hasNext()) all.addAll(i.next());
+      if (sweeper != null) {
+        sweeper.cancel();
+        sweeper = null;
+      }
+    }
+    for (int i = 0; i < all.size(); i++) {
+      all.get(i).fail(new IOException("PastSocketPool was destroyed"));
+    }
+  }
+  
+  public synchronized int getSocketsOpened() {
+    return socketsOpened;
+  }
+  
+  public synchronized int getSocketsClosed() {
+    return socketsClosed;
+  }
+  
+  public synchronized int getFramesSent() {
+    return framesSent;
+  }
+  
+  /**
+   * @return the number of sockets currently pooled
+   */
+  public synchronized int getNumChannels() {
+    int ret = 0;
+    Iterator<List<Channel>> i = channels.values().iterator();
+    while (i.hasNext()) ret+=i.next().size();
+    return ret;
+  }
+  
+  /**
+   * One socket, and the frames waiting to be written to it.  Access to the 
+   * state is synchronized on the pool.
+   */
+  protected class Channel implements AppSocketReceiver {
+    NodeHandle handle;
+    boolean pooled;
+    /**
+     * null until connected
+     */
+    AppSocket socket;
+    /**
+     * The first frame is being written.
+     */
+    LinkedList<Frame> queue = new LinkedList<Frame>();
+    /**
+     * Registered for writing, and not yet called back.
+     */
+    boolean writing = false;
+    boolean closed = false;
+    long lastUsed;
+    int sent = 0;
+    
+    /**
+     * Used for reading the (unexpected) bytes, and the remote close.
+     */
+    ByteBuffer discard;
+    
+    public Channel(NodeHandle handle, boolean pooled) {
+      this.handle = handle;
+      this.pooled = pooled;
+    }
+    
+    /**
+     * Called holding the pool's lock.
+     * 
+     * @return true if the caller needs to call requestWrite()
+     */
+    boolean enqueue(Frame frame) {
+      queue.addLast(frame);
+      if (socket == null || writing) return false;
+      writing = true;
+      return true;
+    }
+    
+    void requestWrite() {
+      AppSocket s;
+      synchronized(PastSocketPool.this) {
+        s = socket;
+      }
+      s.register(false, true, CONNECT_TIMEOUT, this);
+    }
+    
+    public void receiveSocket(AppSocket socket) {
+      if (logger.level <= Logger.FINER) logger.log("Opened socket to "+handle+":"+socket);
+      boolean write;
+      boolean wasClosed;
+      synchronized(PastSocketPool.this) {
+        this.socket = socket;
+        this.lastUsed = environment.getTimeSource().currentTimeMillis();
+        wasClosed = closed;
+        write = !closed && !queue.isEmpty();
+        writing = write;
+      }
+      if (wasClosed) {
+        socket.close();
+        return;
+      }
+      if (pooled) socket.register(true, false, CONNECT_TIMEOUT, this);
+      if (write) socket.register(false, true, CONNECT_TIMEOUT, this);
+    }
+
+    public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
+      try {
+        if (canRead) {
+          // Past never answers on this socket, so this is usually the peer closing it
+          if (discard == null) discard = ByteBuffer.allocate(64);
+          discard.clear();
+          if (socket.read(discard) == -1) {
+            fail(new IOException("Socket to "+handle+" was closed by the remote node."));
+            return;
+          }
+          socket.register(true, false, CONNECT_TIMEOUT, this);
+        }
+        if (canWrite) {
+          write(socket);
+        }
+      } catch (IOException ioe) {
+        fail(ioe);
+      }
+    }
+    
+    void write(AppSocket socket) throws IOException {
+      boolean more;
+      boolean done = false;
+      synchronized(PastSocketPool.this) {
+        writing = false;
+        if (closed) return;
+        while (!queue.isEmpty()) {
+          Frame frame = queue.getFirst();
+          if (logger.level <= Logger.FINEST) logger.log("Writing to "+handle+":"+socket+" to send "+frame.msg);
+          socket.write(frame.buf);
+          if (frame.buf.hasRemaining()) break;
+          queue.removeFirst();
+          sent++;
+          framesSent++;
+        }
+        lastUsed = environment.getTimeSource().currentTimeMillis();
+        more = !queue.isEmpty();
+        if (more) {
+          writing = true;
+        } else if (!pooled) {
+          closed = true;
+          done = true;
+          remove(this);
+        }
+      }
+      if (more) {
+        socket.register(false, true, CONNECT_TIMEOUT, this);
+      } else if (done) {
+        socket.close();
+      }
+    }
+    
+    public void receiveException(AppSocket socket, Exception e) {
+      fail(e);
+    }
+    
+    /**
+     * Close the socket and fail the remaining frames.  The frames that weren't 
+     * started on a socket that already sent something are resent on a new 
+     * socket, the peer may have just closed an old one.
+     */
+    void fail(Exception e) {
+      List<Frame> failed;
+      AppSocket s;
+      boolean resend;
+      synchronized(PastSocketPool.this) {
+        if (closed) return;
+        closed = true;
+        failed = queue;
+        queue = new LinkedList<Frame>();
+        s = socket;
+        resend = sent > 0 && !destroyed;
+        remove(this);
+      }
+      if (s != null) s.close();
+      
+      Iterator<Frame> i = failed.iterator();
+      while (i.hasNext()) {
+        Frame frame = i.next();
+        if (resend && frame.buf.position() == 0) {
+          if (logger.level <= Logger.FINE) logger.log("Resending "+frame.msg+" to "+handle+" after "+e);
+          send(handle, frame);
+        } else {
+          if (frame.c != null) {
+            frame.c.receiveException(e);
+          } else {
+            if (logger.level <= Logger.WARNING) logger.logException("Error sending "+frame.msg+" to "+handle, e);
+          }
+        }
+      }
+      if (failed.isEmpty() && logger.level <= Logger.FINE) logger.logException("Closed "+this, e);
+    }
+    
+    /**
+     * Close an idle channel.
+     */
+    void close() {
+      AppSocket s;
+      synchronized(PastSocketPool.this) {
+        if (closed || !queue.isEmpty()) return;
+        closed = true;
+        s = socket;
+        remove(this);
+      }
+      if (s != null) s.close();
+    }
+    
+    public String toString() {
+      return "Channel{"+handle+" "+socket+" queued:"+queue.size()+" sent:"+sent+"}";
+    }
+  }
+}
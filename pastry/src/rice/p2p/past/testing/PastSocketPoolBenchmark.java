@@ -0,0 +1,227 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.past.testing;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Id;
+import rice.p2p.past.*;
+import rice.p2p.past.rawserialization.*;
+import rice.pastry.*;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.pastry.socket.SocketPastryNodeFactory;
+import rice.pastry.standard.RandomNodeIdFactory;
+import rice.persistence.*;
+
+/**
+ * Measures the insert and fetch throughput of Past over real sockets on the 
+ * loopback interface when every insert and fetch response is sent along an 
+ * application socket, and the number of sockets this opens.  Runs once with 
+ * a new socket per message (p2p_past_socket_pool_max_sockets_per_peer = 0) 
+ * and once for each given pool size.
+ * 
+ * Usage: PastSocketPoolBenchmark [numNodes] [numObjects] [objectSize] [concurrency] [pool sizes...]  
+ *   (default 8 400 65536 16 2)
+ * 
+ * @version $Id$
+ */
+public class PastSocketPoolBenchmark {
+  
+  public static final int START_PORT = 9700;
+  public static final int REPLICAS = 3;
+  
+  static class BenchmarkContent extends ContentHashPastContent {
+    byte[] data;
+    
+    public BenchmarkContent(Id id, byte[] data) {
+      super(id);
+      this.data = data;
+    }
+  }
+  
+  /**
+   * Limits the number of outstanding operations, and counts the failures.
+   */
+  static class Window {
+    int outstanding = 0;
+    int failed = 0;
+    int max;
+    
+    public Window(int max) {
+      this.max = max;
+    }
+    
+    public synchronized void take() throws InterruptedException {
+      while (outstanding >= max) wait();
+      outstanding++;
+    }
+    
+    public synchronized void done(boolean success) {
+      outstanding--;
+      if (!success) failed++;
+      notifyAll();
+    }
+    
+    public synchronized void drain() throws InterruptedException {
+      while (outstanding > 0) wait();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int numObjects = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+    int objectSize = args.length > 2 ? Integer.parseInt(args[2]) : 65536;
+    int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+    int[] pools = {2};
+    if (args.length > 4) {
+      pools = new int[args.length-4];
+      for (int i = 4; i < args.length; i++) pools[i-4] = Integer.parseInt(args[i]);
+    }
+    
+    run(numNodes, numObjects, objectSize, concurrency, 0, START_PORT);
+    for (int i = 0; i < pools.length; i++) {
+      run(numNodes, numObjects, objectSize, concurrency, pools[i], START_PORT+(i+1)*(numNodes+10));
+    }
+  }
+  
+  static void run(int numNodes, int numObjects, int objectSize, int concurrency, int pool, int port) throws Exception {
+    Environment env = new Environment();
+    Parameters params = env.getParameters();
+    params.setString("nat_search_policy", "never");
+    params.setInt("p2p_past_socket_pool_max_sockets_per_peer", pool);
+    
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    InetSocketAddress bootaddress = new InetSocketAddress(localhost, port);
+    PastryNodeFactory factory = new SocketPastryNodeFactory(new RandomNodeIdFactory(env), localhost, port, env);
+    PastryIdFactory idf = new PastryIdFactory(env);
+    
+    PastImpl[] pasts = new PastImpl[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      PastryNode node = factory.newNode();
+      // the MemoryStorage and LRUCache measure every object as gzipped XML, which would dominate
+      StorageManager storage = new StorageManagerImpl(idf, new OffHeapMemoryStorage(idf, env), new EmptyCache(idf));
+      pasts[i] = new PastImpl(node, storage, null, REPLICAS, "", new PastPolicy.DefaultPastPolicy(), 
+          null, new DefaultSocketStrategy(true));
+      node.boot(bootaddress);
+      synchronized(node) {
+        while(!node.isReady() && !node.joinFailed()) {
+          node.wait(500);
+        }
+      }
+      if (node.joinFailed()) throw new IOException("Could not join the ring: "+node.joinFailedReason());
+    }
+    // let the leafsets settle
+    env.getTimeSource().sleep(5000);
+    
+    Random rng = new Random(1);
+    final Window window = new Window(concurrency);
+    
+    // insert
+    final Id[] ids = new Id[numObjects];
+    long start = System.nanoTime();
+    for (int i = 0; i < numObjects; i++) {
+      byte[] data = new byte[objectSize];
+      rng.nextBytes(data);
+      ids[i] = idf.buildRandomId(env.getRandomSource());
+      window.take();
+      pasts[rng.nextInt(numNodes)].insert(new BenchmarkContent(ids[i], data), new Continuation() {
+        public void receiveResult(Object result) {
+          window.done(true);
+        }
+        
+        public void receiveException(Exception result) {
+          window.done(false);
+        }
+      });
+    }
+    window.drain();
+    long insertTime = System.nanoTime()-start;
+    int insertFailed = window.failed;
+    window.failed = 0;
+    int insertSockets = opened(pasts);
+    
+    // fetch: find a replica, and fetch the object from it
+    start = System.nanoTime();
+    for (int i = 0; i < numObjects; i++) {
+      window.take();
+      final PastImpl past = pasts[rng.nextInt(numNodes)];
+      past.lookupHandles(ids[i], 1, new Continuation() {
+        public void receiveResult(Object result) {
+          PastContentHandle[] handles = (PastContentHandle[])result;
+          if (handles.length == 0 || handles[0] == null) {
+            window.done(false);
+            return;
+          }
+          past.fetch(handles[0], new Continuation() {
+            public void receiveResult(Object result) {
+              window.done(result != null);
+            }
+            
+            public void receiveException(Exception result) {
+              window.done(false);
+            }
+          });
+        }
+        
+        public void receiveException(Exception result) {
+          window.done(false);
+        }
+      });
+    }
+    window.drain();
+    long fetchTime = System.nanoTime()-start;
+    int fetchSockets = opened(pasts)-insertSockets;
+    
+    System.out.println("sockets per peer:"+pool+" nodes:"+numNodes+" objects:"+numObjects+" size:"+objectSize+" concurrency:"+concurrency);
+    System.out.println("  insert: "+(numObjects*1000000000L/insertTime)+" objects/s "+
+        insertFailed+" failed "+insertSockets+" sockets opened");
+    System.out.println("  fetch:  "+(numObjects*1000000000L/fetchTime)+" objects/s "+
+        window.failed+" failed "+fetchSockets+" sockets opened");
+    env.destroy();
+  }
+  
+  static int opened(PastImpl[] pasts) {
+    int ret = 0;
+    for (int i = 0; i < pasts.length; i++) ret+=pasts[i].getSocketPool().getSocketsOpened();
+    return ret;
+  }
+}
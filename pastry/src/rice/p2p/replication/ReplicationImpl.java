@@ -73,6 +73,24 @@ public class ReplicationImpl implements Replication, Application, Destructable {
    */
   public final int MAX_KEYS_IN_MESSAGE;
   
+  /**
+   * Whether or not to compare IdMerkleTrees instead of bloom filters, if the 
+   * client keeps one
+   */
+  public final boolean MERKLE_SYNC;
+  
+  /**
+   * Whether or not to send bloom filters in the double hashing format, which 
+   * nodes that predate it can't read
+   */
+  public final boolean BLOOM_FILTER_DOUBLE_HASHING;
+  
+  /**
+   * The number of keys up to which a differing range is answered with its keys, 
+   * rather than with the fingerprints of its parts
+   */
+  public final int MERKLE_LEAF_KEYS;
+  
   /**
    * this application's endpoint
    */
@@ -141,6 +159,9 @@ public class ReplicationImpl implements Replication, Application, Destructable {
 
     MAINTENANCE_INTERVAL = p.getInt("p2p_replication_maintenance_interval");
     MAX_KEYS_IN_MESSAGE = p.getInt("p2p_replication_max_keys_in_message");
+    MERKLE_SYNC = p.getBoolean("p2p_replication_merkle_sync");
+    BLOOM_FILTER_DOUBLE_HASHING = p.getBoolean("p2p_replication_bloom_filter_double_hashing");
+    MERKLE_LEAF_KEYS = p.getInt("p2p_replication_merkle_leaf_keys");
 
     
     this.client = client;
@@ -159,6 +180,10 @@ public class ReplicationImpl implements Replication, Application, Destructable {
             return RequestMessage.build(buf, endpoint);
           case ResponseMessage.TYPE:
             return ResponseMessage.build(buf, endpoint);
+          case SyncRequestMessage.TYPE:
+            return SyncRequestMessage.build(buf, endpoint);
+          case SyncResponseMessage.TYPE:
+            return SyncResponseMessage.build(buf, endpoint);
         }
         throw new IllegalArgumentException("Unknown type:"+type);
       }
@@ -235,6 +260,19 @@ public class ReplicationImpl implements Replication, Application, Destructable {
       client.setRange(getTotalRange());
   }
   
+  /**
+   * Returns the IdMerkleTree kept by the client, or null if it does not keep 
+   * one or MERKLE_SYNC is turned off
+   *
+   * @return The client's tree
+   */
+  protected IdMerkleTree getMerkleTree() {
+    if (MERKLE_SYNC && (client instanceof IdMerkleTreeSource))
+      return ((IdMerkleTreeSource) client).getMerkleTree();
+    
+    return null;
+  }
+  
   /**
    * This internal method sends out the request messages to all of the nodes
    * which hold keys this node may be interested in
@@ -243,6 +281,12 @@ public class ReplicationImpl implements Replication, Application, Destructable {
     final NodeHandleSet handles = endpoint.neighborSet(Integer.MAX_VALUE);
     final IdRange ourRange = endpoint.range(handle, 0, handle.getId());  
     
+    IdMerkleTree tree = getMerkleTree();
+    if (tree != null) {
+      replicate(handles, ourRange, tree);
+      return;
+    }
+    
     endpoint.process(new BloomFilterExecutable(ourRange), new ListenerContinuation("Creation of our bloom filter", environment) {
       int total = 0;
 
@@ -278,6 +322,84 @@ public class ReplicationImpl implements Replication, Application, Destructable {
     });
   }
 
+  /**
+   * Sends the fingerprints of the same ranges as the bloom filters of replicate()
+   * to each neighbor.  A neighbor with the same keys in the ranges confirms this by
+   * not answering, and otherwise answers with the keys or the fingerprints of the
+   * parts of the ranges which differ, so that the exchange only descends into those.
+   *
+   * @param handles The neighbors
+   * @param ourRange The range of the local node
+   * @param tree The tree of the client's keys
+   */
+  protected void replicate(NodeHandleSet handles, IdRange ourRange, IdMerkleTree tree) {
+    byte[] ourHash = tree.getHash(ourRange);
+    
+    for (int i=0; i<handles.size(); i++) {
+      NodeHandle handle = handles.getHandle(i);
+      try {
+        IdRange handleRange = endpoint.range(handle, 0, handle.getId());
+        IdRange range = handleRange.intersectRange(getTotalRange());
+        
+        if ((range != null) && (! range.intersectRange(getTotalRange()).isEmpty())) {
+          if (logger.level <= Logger.FINE) logger.log( "COUNT: Sending sync request to " + handle + " for range " + range + ", " + ourRange + " in instance " + instance);
+          
+          SyncRequestMessage request = new SyncRequestMessage(this.handle, new IdRange[] {range, ourRange}, new byte[][] {tree.getHash(range), ourHash});
+          endpoint.route(null, request, handle);
+        }
+      } catch (RangeCannotBeDeterminedException re) {
+        // not an error 99.99% of the time, since we're probably just at one end of the range
+      }
+    }
+  }
+  
+  /**
+   * Compares the fingerprints of the given ranges with those of the client's keys,
+   * and returns the ranges which differ, either with the client's keys in them, 
+   * or split into parts with the fingerprints of the client's keys in the parts.
+   * If the client keeps no tree, one is built from its keys in each range.
+   *
+   * @param ranges The ranges to compare
+   * @param hashes The fingerprints of the ranges
+   * @return The ranges and keys, and the parts and their fingerprints
+   */
+  protected Object[] compare(IdRange[] ranges, byte[][] hashes) {
+    ArrayList keyRanges = new ArrayList();
+    ArrayList keys = new ArrayList();
+    ArrayList parts = new ArrayList();
+    ArrayList partHashes = new ArrayList();
+    IdMerkleTree tree = getMerkleTree();
+    int total = 0;
+    
+    for (int i=0; i<ranges.length; i++) {
+      IdMerkleTree t = (tree == null ? new IdMerkleTree(client.scan(ranges[i])) : tree);
+      
+      if (Arrays.equals(t.getHash(ranges[i]), hashes[i]))
+        continue;
+      
+      int size = t.getSize(ranges[i]);
+      
+      if (size <= MERKLE_LEAF_KEYS) {
+        if (total + size <= MAX_KEYS_IN_MESSAGE) {
+          keyRanges.add(ranges[i]);
+          keys.add(t.getIds(ranges[i], factory.buildIdSet()));
+          total += size;
+        }
+      } else {
+        IdRange[] split = IdMerkleTree.split(ranges[i], factory);
+        
+        for (int j=0; j<split.length; j++) {
+          if (t.getSize(split[j]) > 0) {
+            parts.add(split[j]);
+            partHashes.add(t.getHash(split[j]));
+          }
+        }
+      }
+    }
+    
+    return new Object[] {(IdRange[]) keyRanges.toArray(new IdRange[0]), (IdSet[]) keys.toArray(new IdSet[0]),
+                         (IdRange[]) parts.toArray(new IdRange[0]), (byte[][]) partHashes.toArray(new byte[0][])};
+  }
   
   // ----- COMMON API METHODS -----
   
@@ -343,6 +465,51 @@ public class ReplicationImpl implements Replication, Application, Destructable {
           }
         }, continuation.getSubContinuation(i));
       }
+    } else if (message instanceof SyncRequestMessage) {
+      final SyncRequestMessage srm = (SyncRequestMessage) message;
+      
+      endpoint.process(new Executable() {
+        public String toString() { return "sync " + srm.getRanges().length + " namespace " + instance; }
+        public Object execute() {
+          return compare(srm.getRanges(), srm.getHashes());
+        }
+      }, new ListenerContinuation("Processing of SyncRequestMessage", environment) {
+        public void receiveResult(Object o) {
+          Object[] result = (Object[]) o;
+          IdRange[] keyRanges = (IdRange[]) result[0];
+          IdRange[] parts = (IdRange[]) result[2];
+          
+          if (logger.level <= Logger.FINE) logger.log( "COUNT: Sync with " + srm.getSource() + " differs in " + keyRanges.length + " ranges with keys and " + parts.length + " parts");
+          
+          if (keyRanges.length > 0) 
+            endpoint.route(null, new ResponseMessage(handle, keyRanges, (IdSet[]) result[1]), srm.getSource());
+          
+          if (parts.length > 0) 
+            endpoint.route(null, new SyncResponseMessage(handle, parts, (byte[][]) result[3]), srm.getSource());
+        }
+      });
+    } else if (message instanceof SyncResponseMessage) {
+      SyncResponseMessage srm = (SyncResponseMessage) message;
+      IdMerkleTree tree = getMerkleTree();
+      
+      if (tree != null) {
+        ArrayList ranges = new ArrayList();
+        ArrayList hashes = new ArrayList();
+        
+        for (int i=0; i<srm.getRanges().length; i++) {
+          byte[] hash = tree.getHash(srm.getRanges()[i]);
+          
+          if (! Arrays.equals(hash, srm.getHashes()[i])) {
+            ranges.add(srm.getRanges()[i]);
+            hashes.add(hash);
+          }
+        }
+        
+        if (logger.level <= Logger.FINE) logger.log( "COUNT: Sync with " + srm.getSource() + " descends into " + ranges.size() + " of " + srm.getRanges().length + " parts");
+
+        if (ranges.size() > 0) 
+          endpoint.route(null, new SyncRequestMessage(handle, (IdRange[]) ranges.toArray(new IdRange[0]), (byte[][]) hashes.toArray(new byte[0][])), srm.getSource());
+      }
     } else if (message instanceof ResponseMessage) {
       ResponseMessage rm = (ResponseMessage) message;
       
@@ -400,7 +567,7 @@ public class ReplicationImpl implements Replication, Application, Destructable {
     }
     
     public Object execute() {
-      return new IdBloomFilter(client.scan(range));
+      return new IdBloomFilter(client.scan(range), BLOOM_FILTER_DOUBLE_HASHING);
     }
   }  
 }
@@ -49,6 +49,7 @@ import rice.environment.params.Parameters;
 import rice.p2p.commonapi.*;
 import rice.p2p.replication.*;
 import rice.p2p.replication.manager.messaging.*;
+import rice.p2p.util.*;
 
 /**
  * @(#) ReplicationManagerImpl.java
@@ -61,7 +62,7 @@ import rice.p2p.replication.manager.messaging.*;
  * @author Alan Mislove
  */
 @SuppressWarnings("unchecked")
-public class ReplicationManagerImpl implements ReplicationManager, ReplicationClient, Application {
+public class ReplicationManagerImpl implements ReplicationManager, ReplicationClient, Application, IdMerkleTreeSource {
   
   /**
    * The amount of time to wait between fetch calls to the client
@@ -266,6 +267,19 @@ public class ReplicationManagerImpl implements ReplicationManager, ReplicationCl
     return client.scan(range);
   }
   
+  /**
+   * Returns the IdMerkleTree of the keys the client has, if the client
+   * keeps one
+   *
+   * @return The client's tree, or null
+   */
+  public IdMerkleTree getMerkleTree() {
+    if (client instanceof IdMerkleTreeSource)
+      return ((IdMerkleTreeSource) client).getMerkleTree();
+    
+    return null;
+  }
+  
   
   // ----- COMMONAPI METHODS -----
   
@@ -0,0 +1,135 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.replication.messaging;
+
+import java.io.IOException;
+
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.util.*;
+
+/**
+ * @(#) SyncRequestMessage.java
+ *
+ * This class represents a request to compare the fingerprints of a set of
+ * ranges in the replication system.  The hashes are the fingerprints of
+ * the sender's keys in the ranges, as given by an IdMerkleTree.
+ *
+ * @version $Id$
+ */
+public class SyncRequestMessage extends ReplicationMessage {
+  public static final short TYPE = 4;
+
+  // the list of ranges for this message
+  protected IdRange[] ranges;
+  
+  // the fingerprints of the ranges
+  protected byte[][] hashes;
+  
+  /**
+   * Constructor 
+   *
+   * @param source The source address
+   * @param ranges The ranges to compare
+   * @param hashes The sender's fingerprints of the ranges
+   */
+  public SyncRequestMessage(NodeHandle source, IdRange[] ranges, byte[][] hashes) {
+    super(source);
+    
+    this.ranges = ranges;
+    this.hashes = hashes;
+  }
+  
+  /**
+   * Method which returns this messages' ranges
+   *
+   * @return The ranges of this message
+   */
+  public IdRange[] getRanges() {
+    return ranges;
+  }
+  
+  /**
+   * Method which returns the fingerprints of this messages' ranges
+   *
+   * @return The fingerprints of this message
+   */
+  public byte[][] getHashes() {
+    return hashes;
+  }
+
+  public String toString() {
+    return "SyncRequestMessage("+getSource()+"):"+(ranges == null?null:ranges.length); 
+  }
+
+  /***************** Raw Serialization ***************************************/
+  public short getType() {
+    return TYPE; 
+  }
+  
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeByte((byte)0); // version
+    super.serialize(buf);
+
+    buf.writeInt(ranges.length);
+    for (int i = 0; i < ranges.length; i++) {
+      ranges[i].serialize(buf); 
+      buf.write(hashes[i], 0, IdMerkleTree.HASH_LENGTH);
+    }
+  }
+  
+  public static SyncRequestMessage build(InputBuffer buf, Endpoint endpoint) throws IOException {
+    byte version = buf.readByte();
+    switch(version) {
+      case 0:
+        return new SyncRequestMessage(buf, endpoint);
+      default:
+        throw new IOException("Unknown Version: "+version);
+    }
+  }
+    
+  private SyncRequestMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);
+    
+    ranges = new IdRange[buf.readInt()];
+    hashes = new byte[ranges.length][IdMerkleTree.HASH_LENGTH];
+    for (int i = 0; i < ranges.length; i++) {
+      ranges[i] = endpoint.readIdRange(buf);
+      buf.read(hashes[i]);
+    }    
+  }
+}
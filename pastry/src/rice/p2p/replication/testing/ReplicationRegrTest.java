@@ -44,6 +44,7 @@ import rice.environment.Environment;
 import rice.p2p.commonapi.*;
 import rice.p2p.commonapi.testing.CommonAPITest;
 import rice.p2p.replication.*;
+import rice.p2p.util.*;
 import rice.persistence.MemoryStorage;
 
 /**
@@ -94,6 +95,8 @@ public class ReplicationRegrTest extends CommonAPITest {
    */
   public static void main(String args[]) throws IOException {
     Environment env = parseArgs(args);
+    // the clients keep hash trees, it is off by default for rings with older nodes
+    env.getParameters().setBoolean("p2p_replication_merkle_sync", true);
     ReplicationRegrTest test = new ReplicationRegrTest(env);
     test.start();
     env.destroy();
@@ -251,7 +254,7 @@ public class ReplicationRegrTest extends CommonAPITest {
    * @version $Id$
    * @author amislove
    */
-  protected class TestReplicationClient implements ReplicationClient {
+  protected class TestReplicationClient implements ReplicationClient, IdMerkleTreeSource {
     
     public MemoryStorage storage;
     
@@ -311,6 +314,10 @@ public class ReplicationRegrTest extends CommonAPITest {
       return storage.scan(range);
     }
     
+    public IdMerkleTree getMerkleTree() {
+      return storage.getMerkleTree();
+    }
+    
     public void insert(Id id) {
       storage.store(id, null, id, new ListenerContinuation("Insertion of id " + id, environment));
     }
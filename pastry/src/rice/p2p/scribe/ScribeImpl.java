@@ -52,6 +52,7 @@ import rice.p2p.scribe.maintenance.MaintainableScribe;
 import rice.p2p.scribe.maintenance.ScribeMaintenancePolicy;
 import rice.p2p.scribe.messaging.*;
 import rice.p2p.scribe.rawserialization.*;
+import rice.p2p.util.rawserialization.OutputBufferPool;
 
 /**
  * @(#) ScribeImpl.java Thie provided implementation of Scribe.
@@ -141,6 +142,12 @@ public class ScribeImpl implements Scribe, MaintainableScribe, Application, Obse
   
   ScribeContentDeserializer contentDeserializer;
 
+  /**
+   * The content of a publish forwarded to several children is serialized once 
+   * into a buffer from here, null to leave the buffers to the GC.
+   */
+  protected OutputBufferPool publishBufferPool;
+
   /**
    * Constructor for Scribe, using the default policy.
    *
@@ -177,6 +184,11 @@ public class ScribeImpl implements Scribe, MaintainableScribe, Application, Obse
     Parameters p = environment.getParameters();
     MAINTENANCE_INTERVAL = p.getInt("p2p_scribe_maintenance_interval");
     MESSAGE_TIMEOUT = p.getInt("p2p_scribe_message_timeout");
+    if (p.contains("p2p_scribe_publish_buffer_pool_size") && p.getInt("p2p_scribe_publish_buffer_pool_size") > 0) {
+      publishBufferPool = new OutputBufferPool(
+          p.getInt("p2p_scribe_publish_buffer_pool_size"), 
+          p.getInt("p2p_scribe_publish_buffer_pool_max_buffer_size"));
+    }
     this.allChildren = new HashMap<NodeHandle, Collection<Topic>>();
     this.allParents = new HashMap<NodeHandle, Collection<Topic>>();
     this.instance = instance;
@@ -235,6 +247,39 @@ public class ScribeImpl implements Scribe, MaintainableScribe, Application, Obse
     return environment; 
   }
   
+  /**
+   * Sends a copy of the publish message to each child.  If there is more than 
+   * one, the copies share a SharedScribeContent, so the content is serialized 
+   * once rather than once per child, and the shared bytes are released when 
+   * all of the sends are done.
+   * 
+   * @param pMessage the message to forward
+   * @param children the children to forward it to
+   */
+  protected void forwardPublish(PublishMessage pMessage, Collection<NodeHandle> children) {
+    RawScribeContent content = pMessage.getRawContent();
+    DeliveryNotification release = null;
+    if (children.size() > 1) {
+      final SharedScribeContent shared = new SharedScribeContent(content, publishBufferPool, children.size());
+      content = shared;
+      release = new DeliveryNotification() {
+        public void sent(MessageReceipt msg) {
+          shared.release();
+        }
+      
+        public void sendFailed(MessageReceipt msg, Exception reason) {
+          shared.release();
+        }
+      };
+    }
+    
+    for (NodeHandle handle : children) {
+      if (logger.level <= Logger.FINER) logger.log("Forwarding publish message with data " + pMessage.getContent() + " for topic " +
+        pMessage.getTopic() + " to child " + handle);
+      endpoint.route(null, new PublishMessage(endpoint.getLocalNodeHandle(), pMessage.getTopic(), content), handle, release);
+    }
+  }
+  
   /**
    * Returns the current policy for this scribe object
    *
@@ -1944,11 +1989,7 @@ public class ScribeImpl implements Scribe, MaintainableScribe, Application, Obse
 
         Collection<NodeHandle> handles = new ArrayList<NodeHandle>(manager.getChildren());
 
-        for (NodeHandle handle : handles) {
-          if (logger.level <= Logger.FINER) logger.log("Forwarding publish message with data " + pMessage.getContent() + " for topic " +
-            pMessage.getTopic() + " to child " + handle);
-          endpoint.route(null, new PublishMessage(endpoint.getLocalNodeHandle(), pMessage.getTopic(), pMessage.getContent()), handle);
-        }
+        forwardPublish(pMessage, handles);
       } else {
         if (logger.level <= Logger.WARNING) logger.log("Received unexpected publish message from " +
           pMessage.getSource() + " for unknown topic " + pMessage.getTopic());
@@ -84,15 +84,24 @@ public class PublishMessage extends ScribeMessage {
    */
   public ScribeContent getContent() {
 //  if (content == null) 
-    if (content.getType() == 0) return ((JavaSerializedScribeContent)content).getContent();
+    RawScribeContent ret = getRawContent();
+    if (ret.getType() == 0) return ((JavaSerializedScribeContent)ret).getContent();
+    return ret;
+  }
+  
+  /**
+   * @return the content as it is serialized, never a SharedScribeContent
+   */
+  public RawScribeContent getRawContent() {
+    if (content instanceof SharedScribeContent) return ((SharedScribeContent)content).getContent();
     return content;
   }
   
   public void setContent(ScribeContent content) {
     if (content instanceof RawScribeContent) {
-      setContent(content); 
+      this.content = (RawScribeContent)content; 
     } else {
-      setContent(new JavaSerializedScribeContent(content));
+      this.content = new JavaSerializedScribeContent(content);
     }
   }
   
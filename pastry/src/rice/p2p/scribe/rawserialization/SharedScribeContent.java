@@ -0,0 +1,152 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.scribe.rawserialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.util.rawserialization.OutputBufferPool;
+import rice.p2p.util.rawserialization.PooledOutputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+
+/**
+ * Wraps the content of a message that is sent to many nodes, such as a 
+ * PublishMessage forwarded to all children.  The content is serialized the 
+ * first time one of the messages is, after that each message only copies 
+ * the bytes behind its own header.  Nothing is serialized if the messages 
+ * never are (for example in the direct simulator).
+ * 
+ * The bytes are reference counted: each of the messages calls release() once 
+ * its send has succeeded or failed, and the last one returns the buffer to the 
+ * pool.  A message that is serialized after that (it shouldn't be) 
+ * serializes the content again rather than reading a recycled buffer.
+ * 
+ * @version $Id$
+ */
+public class SharedScribeContent implements RawScribeContent {
+  
+  protected RawScribeContent content;
+  
+  /**
+   * May be null, then the bytes are left to the garbage collector.
+   */
+  protected OutputBufferPool pool;
+  
+  /**
+   * The buffer the bytes were borrowed from, if any.
+   */
+  protected PooledOutputBuffer pooled;
+  
+  /**
+   * The serialized content, null until the first serialize(), or after the 
+   * last release().
+   */
+  protected byte[] bytes;
+  protected int offset;
+  protected int length;
+  
+  protected int refs;
+  
+  /**
+   * @param content the content to share
+   * @param pool to borrow the serialized bytes from, may be null
+   * @param refs the number of times release() will be called
+   */
+  public SharedScribeContent(RawScribeContent content, OutputBufferPool pool, int refs) {
+    if (content instanceof SharedScribeContent) content = ((SharedScribeContent)content).getContent();
+    this.content = content;
+    this.pool = pool;
+    this.refs = refs;
+  }
+  
+  public RawScribeContent getContent() {
+    return content;
+  }
+  
+  public short getType() {
+    return content.getType();
+  }
+
+  public synchronized void serialize(OutputBuffer buf) throws IOException {
+    if (refs <= 0) {
+      content.serialize(buf);
+      return;
+    }
+    if (bytes == null) {
+      if (pool == null) {
+        SimpleOutputBuffer sob = new SimpleOutputBuffer();
+        content.serialize(sob);
+        bytes = sob.getBytes();
+        offset = 0;
+        length = bytes.length;
+      } else {
+        PooledOutputBuffer temp = pool.getBuffer(0);
+        try {
+          content.serialize(temp);
+        } catch (IOException ioe) {
+          temp.release();
+          throw ioe;
+        }
+        ByteBuffer view = temp.getByteBuffer();
+        pooled = temp;
+        bytes = view.array();
+        offset = view.arrayOffset()+view.position();
+        length = view.remaining();
+      }
+    }
+    buf.write(bytes, offset, length);
+  }
+  
+  /**
+   * Called once by each message when it is done with the content.
+   */
+  public synchronized void release() {
+    if (refs <= 0) return;
+    refs--;
+    if (refs > 0) return;
+    bytes = null;
+    if (pooled != null) {
+      pooled.release();
+      pooled = null;
+    }
+  }
+  
+  public String toString() {
+    return content.toString();
+  }
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.scribe.testing;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.scribe.ScribeContent;
+import rice.p2p.scribe.Topic;
+import rice.p2p.scribe.messaging.PublishMessage;
+import rice.p2p.scribe.rawserialization.*;
+import rice.p2p.util.rawserialization.OutputBufferPool;
+import rice.p2p.util.rawserialization.PooledOutputBuffer;
+import rice.p2p.util.testing.OutputBufferBenchmark;
+import rice.pastry.Id;
+import rice.pastry.NodeHandle;
+import rice.pastry.commonapi.PastryEndpointMessage;
+import rice.pastry.routing.RouteMessage;
+import rice.pastry.testing.LeafSetTest;
+
+/**
+ * Measures the serialization work of forwarding one publish to all children, 
+ * the way the transport layer sees it: each child's PublishMessage wrapped in 
+ * a RouteMessage and serialized into a pooled buffer.
+ * 
+ *   per child: every copy serializes the content (the old path)
+ *   shared: the copies share a SharedScribeContent, serialized once
+ * 
+ * Both are run with a Java serialized content and with a RawScribeContent.  
+ * First checks that both paths produce identical bytes.  Allocation is 
+ * measured with the HotSpot per-thread allocation counter.
+ * 
+ * Usage: ScribeFanoutBenchmark [children...]  (default 16 64, with 10KB and 100KB payloads)
+ * 
+ * @version $Id$
+ */
+public class ScribeFanoutBenchmark {
+  
+  public static final int[] PAYLOADS = {10*1024, 100*1024};
+  
+  /**
+   * The bytes of child messages to serialize per measurement.
+   */
+  public static final long VOLUME = 2L*1024*1024*1024;
+  
+  /**
+   * A handle that serializes like a real one, as its Id.
+   */
+  static class BenchmarkNodeHandle extends LeafSetTest.TestNodeHandle {
+    public BenchmarkNodeHandle(Id id) {
+      super(id);
+    }
+    
+    public void serialize(OutputBuffer buf) throws IOException {
+      getNodeId().serialize(buf);
+    }
+  }
+  
+  static class JavaContent implements ScribeContent, Serializable {
+    byte[] data;
+    
+    public JavaContent(byte[] data) {
+      this.data = data;
+    }
+  }
+  
+  static class RawContent implements RawScribeContent {
+    byte[] data;
+    
+    public RawContent(byte[] data) {
+      this.data = data;
+    }
+    
+    public short getType() {
+      return 1;
+    }
+
+    public void serialize(OutputBuffer buf) throws IOException {
+      buf.writeInt(data.length);
+      buf.write(data, 0, data.length);
+    }
+  }
+  
+  public static void main(String[] args) throws IOException {
+    int[] children = {16, 64};
+    if (args.length > 0) {
+      children = new int[args.length];
+      for (int i = 0; i < args.length; i++) children[i] = Integer.parseInt(args[i]);
+    }
+    
+    Random rng = new Random(1);
+    NodeHandle local = new BenchmarkNodeHandle(Id.makeRandomId(rng));
+    Topic topic = new Topic(Id.makeRandomId(rng));
+    OutputBufferPool transportPool = new OutputBufferPool(32, 256*1024);
+    OutputBufferPool contentPool = new OutputBufferPool(8, 256*1024);
+    
+    for (int p = 0; p < PAYLOADS.length; p++) {
+      byte[] data = new byte[PAYLOADS[p]];
+      rng.nextBytes(data);
+      RawScribeContent[] contents = {new JavaSerializedScribeContent(new JavaContent(data)), new RawContent(data)};
+      String[] names = {"java", "raw"};
+      
+      for (int c = 0; c < contents.length; c++) {
+        for (int i = 0; i < children.length; i++) {
+          NodeHandle[] kids = new NodeHandle[children[i]];
+          for (int k = 0; k < kids.length; k++) kids[k] = new BenchmarkNodeHandle(Id.makeRandomId(rng));
+          
+          byte[] expected = serialize(kids[0], local, topic, contents[c], transportPool);
+          byte[] actual = serialize(kids[0], local, topic, new SharedScribeContent(contents[c], contentPool, 1), transportPool);
+          if (!Arrays.equals(expected, actual)) {
+            System.out.println("FAILURE: shared serialization differs for "+names[c]+" "+PAYLOADS[p]);
+            System.exit(1);
+          }
+          
+          int publishes = (int)Math.max(4, VOLUME/((long)expected.length*kids.length));
+          String label = names[c]+" payload:"+(PAYLOADS[p]/1024)+"KB children:"+kids.length;
+          
+          // warm up
+          run(label+" per child", kids, local, topic, contents[c], null, transportPool, publishes/10, false);
+          run(label+" shared", kids, local, topic, contents[c], contentPool, transportPool, publishes/10, false);
+          
+          run(label+" per child", kids, local, topic, contents[c], null, transportPool, publishes, true);
+          run(label+" shared", kids, local, topic, contents[c], contentPool, transportPool, publishes, true);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Serializes one child's copy like the CommonAPI transport layer.
+   */
+  static PooledOutputBuffer serializeChild(NodeHandle child, NodeHandle local, Topic topic, RawScribeContent content, OutputBufferPool transportPool) throws IOException {
+    RouteMessage rm = new RouteMessage(child.getNodeId(), 
+        new PastryEndpointMessage(7, new PublishMessage(local, topic, content), local), (byte)0);
+    PooledOutputBuffer pob = transportPool.getBuffer(4);
+    rm.serialize(pob);
+    return pob;
+  }
+  
+  static byte[] serialize(NodeHandle child, NodeHandle local, Topic topic, RawScribeContent content, OutputBufferPool transportPool) throws IOException {
+    PooledOutputBuffer pob = serializeChild(child, local, topic, content, transportPool);
+    ByteBuffer view = pob.getByteBuffer();
+    byte[] ret = new byte[view.remaining()];
+    view.get(ret);
+    pob.release();
+    return ret;
+  }
+  
+  /**
+   * @param contentPool null for the per child path
+   */
+  static void run(String name, NodeHandle[] kids, NodeHandle local, Topic topic, RawScribeContent content, 
+      OutputBufferPool contentPool, OutputBufferPool transportPool, int n, boolean print) throws IOException {
+    long bytes = 0;
+    long startAlloc = OutputBufferBenchmark.allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      SharedScribeContent shared = null;
+      RawScribeContent c = content;
+      if (contentPool != null) {
+        shared = new SharedScribeContent(content, contentPool, kids.length);
+        c = shared;
+      }
+      for (int k = 0; k < kids.length; k++) {
+        PooledOutputBuffer pob = serializeChild(kids[k], local, topic, c, transportPool);
+        bytes += pob.getWritten();
+        // the transport releases the buffer once the message is sent
+        pob.release();
+        if (shared != null) shared.release();
+      }
+    }
+    long time = System.nanoTime()-start;
+    long alloc = OutputBufferBenchmark.allocatedBytes()-startAlloc;
+    if (print) {
+      long msgs = (long)n*kids.length;
+      System.out.println(name+": "+(time/n/1000)+" us/publish "+
+          (alloc/n)+" bytes allocated/publish "+
+          (msgs*1000000000L/Math.max(time, 1))+" child msgs/s "+
+          (bytes*1000L/Math.max(time, 1))+" MB/s");
+    }
+  }
+}
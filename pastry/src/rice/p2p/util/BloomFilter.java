@@ -70,6 +70,9 @@ import rice.p2p.commonapi.rawserialization.*;
  */
 public class BloomFilter implements Serializable {
   
+  // serialver for backwards compatibility
+  private static final long serialVersionUID = 5808832443026259707L;
+  
   // cant parameterize, because object is serializable
   /**
    * The length of the random byte arrays which are generated
@@ -107,6 +110,12 @@ public class BloomFilter implements Serializable {
     for (int i=0; i<parameters.length; i++)
       this.parameters[i] = MathUtils.randomInt(rand);
   }
+  
+  /**
+   * Constructor for subclasses which provide their own hashing and bit set
+   */
+  protected BloomFilter() {
+  }
 
   /**
    * Method which adds an element to this bloom filter. This is done by computing
@@ -151,16 +160,31 @@ public class BloomFilter implements Serializable {
   
   /**
    * Method which performs a dumb hash of the provided array and the seed value.  
+   * This is MathUtils.simpleHash() of the seed's bytes followed by the array, 
+   * computed without building the concatenated array.
    *
    * @param array The input array
    * @return The result, which is guaranteed to be 0..length
    */
   protected int doHash(byte[] array, int seed) {
-    byte[] tmp = new byte[array.length+4];
-    MathUtils.intToByteArray(seed,tmp,0);
-    System.arraycopy(array, 0, tmp, 4, array.length);
+    int hash = 0;
     
-    return MathUtils.simpleHash(tmp);
+    for (int i = 24; i >= 0; i -= 8) {
+      hash += (byte) (seed >> i);
+      hash += (hash << 10);
+      hash ^= (hash >> 6);
+    }
+    
+    for (int i = 0; i < array.length; i++) {
+      hash += array[i];
+      hash += (hash << 10);
+      hash ^= (hash >> 6);
+    }
+    
+    hash += (hash << 3);
+    hash ^= (hash >> 11);
+    hash += (hash << 15);
+    return hash;
   }
   
   /**
@@ -204,8 +228,34 @@ public class BloomFilter implements Serializable {
     buf.writeByte(curByte);
   }
   
+  /**
+   * Method which reads a bloom filter of any version off the wire.  The original
+   * format starts with the (non-negative) length of the set, while later
+   * versions start with the negated version number.
+   *
+   * @param buf The buffer to read from
+   * @return The bloom filter
+   */
+  public static BloomFilter build(InputBuffer buf) throws IOException {
+    int length = buf.readInt();
+    
+    if (length >= 0)
+      return new BloomFilter(length, buf);
+    
+    switch (-length) {
+      case DoubleHashBloomFilter.VERSION:
+        return new DoubleHashBloomFilter(buf);
+      default:
+        throw new IOException("Unknown Version: "+(-length));
+    }
+  }
+  
   public BloomFilter(InputBuffer buf) throws IOException {
-    length = buf.readInt();
+    this(buf.readInt(), buf);
+  }
+  
+  protected BloomFilter(int length, InputBuffer buf) throws IOException {
+    this.length = length;
     
     parameters = new int[buf.readInt()];
     for(int i = 0; i < parameters.length; i++) {
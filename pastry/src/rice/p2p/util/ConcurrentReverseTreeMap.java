@@ -0,0 +1,583 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A version of the ReverseTreeMap which can be read while it is being 
+ * written.  The key map and the reverse map are concurrent skip lists, so 
+ * lookups and scans never take a lock.  The reverse map is keyed by the 
+ * (value, key) pairs, so that a put adds one node to it rather than a skip 
+ * list per value.  Writers are serialized on the map itself, so that the 
+ * maps stay in step.
+ * 
+ * The key maps returned are read-only views, whose iterators never throw a 
+ * ConcurrentModificationException, and reflect some or all of the writes made 
+ * while iterating.  As in the RedBlackMap, a sub map whose start is after its 
+ * end wraps around the end of the key space.  The value maps are copies, as 
+ * they are in the ReverseTreeMap.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("unchecked")
+public class ConcurrentReverseTreeMap {
+  
+  /**
+   * Stands in for null values, which the skip lists can't hold
+   */
+  protected static final Object NULL = new Object();
+  
+  /**
+   * The internal normal map
+   */
+  protected ConcurrentSkipListMap normal = new ConcurrentSkipListMap();
+  
+  /**
+   * The internal (value, key) -> value map, in the order of the values
+   */
+  protected ConcurrentSkipListMap reverse = new ConcurrentSkipListMap(new PairComparator());
+  
+  /**
+   * The internal list of keys with null as a mapping
+   */
+  protected ConcurrentSkipListMap nulls = new ConcurrentSkipListMap();
+  
+  /**
+   * The number of keys, as the skip list has to count them
+   */
+  protected volatile int size;
+  
+  /**
+   * The number of writes, so that the views can keep their size until the 
+   * next one
+   */
+  protected volatile int modCount;
+  
+  /**
+   * returns the size
+   *
+   * @return the size
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Returns whether or not we contain the key
+   *
+   * @param key THe key
+   * @return Whether or not we have it
+   */
+  public boolean containsKey(Object key) {
+    return normal.containsKey(key);
+  }
+  
+  /**
+   * Returns the value associated with the given key
+   *
+   * @param key The key
+   * @return The value
+   */
+  public Object get(Object key) {
+    return unmask(normal.get(key));
+  }
+  
+  /**
+   * Return the set of keys
+   *
+   * @return The set of keys
+   */
+  public Set keySet() {
+    return Collections.unmodifiableSet(normal.keySet());
+  }
+  
+  /**
+   * Removes any and all mappings with the given key
+   *
+   * @param key The key
+   */
+  public synchronized void remove(Object key) {
+    Object value = normal.remove(key);
+    
+    if (value != null) {
+      size--;
+      modCount++;
+      removeReverse(key, value);
+    }
+  }
+  
+  /**
+   * Method which caputures the insert and adds it to the
+   * reverse map
+   *
+   * @param key The key 
+   * @param value The value
+   */
+  public synchronized void put(Object key, Object value) {
+    Object old = normal.put(key, mask(value));
+    
+    // remove any old reverse mapping
+    if (old != null) 
+      removeReverse(key, old);
+    else
+      size++;
+    
+    modCount++;
+    
+    // and add the new reverse mapping
+    if (value != null) 
+      reverse.put(new Pair(value, key), value);
+    else 
+      nulls.put(key, NULL);
+  }
+  
+  /**
+   * Removes the reverse mapping of the key to its old value
+   *
+   * @param key The key
+   * @param old The old value, masked
+   */
+  protected void removeReverse(Object key, Object old) {
+    if (old == NULL) 
+      nulls.remove(key);
+    else 
+      reverse.remove(new Pair(old, key));
+  }
+  
+  /**
+   * Method which returns the key map
+   *
+   * @retun The key Map
+   */
+  public SortedMap keyMap() {
+    return new View(this, normal, null, null);
+  }
+  
+  /**
+   * Method which returns a head map, or all of the keys
+   * up to the specified key
+   *
+   * @param value The end key
+   * @return a head map
+   */
+  public SortedMap keyHeadMap(Object value) {
+    return new View(this, normal, null, value);
+  }
+  
+  /**
+   * Method which returns a tail map, or all of the keys
+   * after a the specified key
+   *
+   * @param value The start key
+   * @return a tail map
+   */
+  public SortedMap keyTailMap(Object value) {
+    return new View(this, normal, value, null);
+  }
+  
+  /**
+   * Method which returns a sub map, or all of the keys
+   * between the specified keys, wrapping around if start is after end
+   *
+   * @param start The start key
+   * @param end The end key
+   * @return a sub map
+   */
+  public SortedMap keySubMap(Object start, Object end) {
+    return new View(this, normal, start, end);
+  }
+  
+  /**
+   * Method which returns a headset of the values, or all the
+   * keys with values up to the specified value
+   *
+   * @param value The maximal value
+   */
+  public SortedMap valueHeadMap(Object value) {
+    return convert(reverse.headMap(new Pair(value, LOWEST)));
+  }
+  
+  /**
+   * Method which returns a tailset of the values, or all the
+   * keys with values after to the specified value
+   *
+   * @param value The minimal value
+   */
+  public SortedMap valueTailMap(Object value) {
+    return convert(reverse.tailMap(new Pair(value, LOWEST)));
+  }
+  
+  /**
+   * Method which returns a subset of the values, or all the
+   * keys with values between the specified values
+   *
+   * @param start The minimal value
+   * @param end The maximal value
+   */
+  public SortedMap valueSubMap(Object start, Object end) {
+    return convert(reverse.subMap(new Pair(start, LOWEST), new Pair(end, LOWEST)));
+  }   
+  
+  /**
+   * Method which returns all of the keys which have null values
+   *
+   */
+  public SortedMap valueNullMap() {
+    return new View(this, nulls, null, null);
+  }   
+  
+  /**
+   * Internal method which copies the keys of a part of the reverse map into 
+   * one map
+   *
+   * @param map THe map to convert
+   * @return The converted map
+   */
+  protected SortedMap convert(SortedMap map) {
+    SortedMap result = new RedBlackMap();
+    Iterator i = map.entrySet().iterator();
+    
+    while (i.hasNext()) {
+      Map.Entry entry = (Map.Entry) i.next();
+      result.put(((Pair) entry.getKey()).key, entry.getValue());
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Stands in for a key before all others, to bound the pairs of a value
+   */
+  protected static final Object LOWEST = new Object();
+  
+  /**
+   * A key of the reverse map
+   */
+  protected static class Pair {
+    protected Object value;
+    protected Object key;
+    
+    public Pair(Object value, Object key) {
+      this.value = value;
+      this.key = key;
+    }
+  }
+  
+  /**
+   * Orders the pairs by their value, and then by their key
+   */
+  protected static class PairComparator implements Comparator {
+    public int compare(Object a, Object b) {
+      Pair x = (Pair) a;
+      Pair y = (Pair) b;
+      int result = ((Comparable) x.value).compareTo(y.value);
+      
+      if (result != 0)
+        return result;
+      else if (x.key == y.key)
+        return 0;
+      else if (x.key == LOWEST)
+        return -1;
+      else if (y.key == LOWEST)
+        return 1;
+      else
+        return ((Comparable) x.key).compareTo(y.key);
+    }
+  }
+  
+  protected static Object mask(Object value) {
+    return (value == null ? NULL : value);
+  }
+  
+  protected static Object unmask(Object value) {
+    return (value == NULL ? null : value);
+  }
+  
+  /**
+   * A read-only view of the keys of a skip list from start (inclusive) to 
+   * end (exclusive), either of which may be null for no bound.  If start is 
+   * after end, the view holds the keys before end and those from start on.
+   * 
+   * It is serialized as a copy.
+   */
+  protected static class View extends AbstractMap implements SortedMap, Serializable {
+    
+    protected transient ConcurrentReverseTreeMap owner;
+    
+    protected ConcurrentNavigableMap map;
+    
+    protected Object start;
+    
+    protected Object end;
+    
+    protected transient Set entrySet;
+    
+    // the size, counted when the owner's modCount was sizeModCount
+    protected transient int size = -1;
+    
+    protected transient int sizeModCount;
+    
+    public View(ConcurrentReverseTreeMap owner, ConcurrentNavigableMap map, Object start, Object end) {
+      this.owner = owner;
+      this.map = map;
+      this.start = start;
+      this.end = end;
+    }
+    
+    protected int compare(Object a, Object b) {
+      if (map.comparator() == null)
+        return ((Comparable) a).compareTo(b);
+      else
+        return map.comparator().compare(a, b);
+    }
+    
+    protected boolean isWrapped() {
+      return (start != null) && (end != null) && (compare(start, end) > 0);
+    }
+    
+    protected boolean inRange(Object key) {
+      if (isWrapped())
+        return (compare(key, start) >= 0) || (compare(key, end) < 0);
+      
+      return ((start == null) || (compare(key, start) >= 0)) && ((end == null) || (compare(key, end) < 0));
+    }
+    
+    /**
+     * Returns the parts of the skip list which make up this view, in order
+     */
+    protected ConcurrentNavigableMap[] parts() {
+      if (isWrapped())
+        return new ConcurrentNavigableMap[] {map.headMap(end, false), map.tailMap(start, true)};
+      else if ((start == null) && (end == null))
+        return new ConcurrentNavigableMap[] {map};
+      else if (start == null)
+        return new ConcurrentNavigableMap[] {map.headMap(end, false)};
+      else if (end == null)
+        return new ConcurrentNavigableMap[] {map.tailMap(start, true)};
+      else if (compare(start, end) == 0)
+        return new ConcurrentNavigableMap[0];
+      else
+        return new ConcurrentNavigableMap[] {map.subMap(start, true, end, false)};
+    }
+    
+    /**
+     * Returns a view of the keys between the given bounds, which are within 
+     * this view.  Ranges which cut across a wrapped view are copied.
+     */
+    protected SortedMap view(Object from, Object to) {
+      if ((start == null) && (end == null))
+        return new View(owner, map, from, to);
+      
+      if ((! isWrapped()) && ((from == null) || (to == null) || (compare(from, to) <= 0))) {
+        if ((from == null) || ((start != null) && (compare(start, from) > 0)))
+          from = start;
+        if ((to == null) || ((end != null) && (compare(end, to) < 0)))
+          to = end;
+        if ((from != null) && (to != null) && (compare(from, to) > 0))
+          to = from;
+        
+        return new View(owner, map, from, to);
+      }
+      
+      SortedMap copy = copy();
+      
+      if (from == null)
+        return copy.headMap(to);
+      else if (to == null)
+        return copy.tailMap(from);
+      else
+        return copy.subMap(from, to);
+    }
+    
+    public Comparator comparator() {
+      return map.comparator();
+    }
+    
+    public SortedMap subMap(Object fromKey, Object toKey) {
+      return view(fromKey, toKey);
+    }
+    
+    public SortedMap headMap(Object toKey) {
+      return view(null, toKey);
+    }
+    
+    public SortedMap tailMap(Object fromKey) {
+      return view(fromKey, null);
+    }
+    
+    public Object firstKey() {
+      ConcurrentNavigableMap[] parts = parts();
+      
+      for (int i = 0; i < parts.length; i++) {
+        Map.Entry entry = parts[i].firstEntry();
+        
+        if (entry != null)
+          return entry.getKey();
+      }
+      
+      throw new NoSuchElementException();
+    }
+    
+    public Object lastKey() {
+      ConcurrentNavigableMap[] parts = parts();
+      
+      for (int i = parts.length - 1; i >= 0; i--) {
+        Map.Entry entry = parts[i].lastEntry();
+        
+        if (entry != null)
+          return entry.getKey();
+      }
+      
+      throw new NoSuchElementException();
+    }
+    
+    /**
+     * Returns the size, which the skip list has to count, so it is kept 
+     * until the next write, as the RedBlackMap's sub maps do.  The whole key
+     * map uses the owner's count.
+     */
+    public int size() {
+      if ((map == owner.normal) && (start == null) && (end == null))
+        return owner.size;
+      
+      int mod = owner.modCount;
+      
+      if ((size < 0) || (sizeModCount != mod)) {
+        ConcurrentNavigableMap[] parts = parts();
+        int result = 0;
+        
+        for (int i = 0; i < parts.length; i++) 
+          result += parts[i].size();
+        
+        size = result;
+        sizeModCount = mod;
+      }
+      
+      return size;
+    }
+    
+    public boolean isEmpty() {
+      ConcurrentNavigableMap[] parts = parts();
+      
+      for (int i = 0; i < parts.length; i++) 
+        if (! parts[i].isEmpty())
+          return false;
+      
+      return true;
+    }
+    
+    public boolean containsKey(Object key) {
+      return inRange(key) && map.containsKey(key);
+    }
+    
+    public Object get(Object key) {
+      if (! inRange(key))
+        return null;
+      
+      return unmask(map.get(key));
+    }
+    
+    public Set entrySet() {
+      if (entrySet == null) {
+        entrySet = new AbstractSet() {
+          public int size() {
+            return View.this.size();
+          }
+          
+          public Iterator iterator() {
+            final ConcurrentNavigableMap[] parts = parts();
+            
+            return new Iterator() {
+              int part = 0;
+              Iterator i = (parts.length == 0 ? null : parts[0].entrySet().iterator());
+              
+              public boolean hasNext() {
+                while (i != null) {
+                  if (i.hasNext())
+                    return true;
+                  
+                  part++;
+                  i = (part < parts.length ? parts[part].entrySet().iterator() : null);
+                }
+                
+                return false;
+              }
+              
+              public Object next() {
+                if (! hasNext())
+                  throw new NoSuchElementException();
+                
+                Map.Entry entry = (Map.Entry) i.next();
+                return new AbstractMap.SimpleImmutableEntry(entry.getKey(), unmask(entry.getValue()));
+              }
+              
+              public void remove() {
+                throw new UnsupportedOperationException("remove not supported!");
+              }
+            };
+          }
+        };
+      }
+      
+      return entrySet;
+    }
+    
+    /**
+     * Returns a copy of this view.  The entries are put one by one, as the 
+     * size may change while copying.
+     */
+    protected SortedMap copy() {
+      RedBlackMap result = new RedBlackMap(comparator());
+      Iterator i = entrySet().iterator();
+      
+      while (i.hasNext()) {
+        Map.Entry entry = (Map.Entry) i.next();
+        result.put(entry.getKey(), entry.getValue());
+      }
+      
+      return result;
+    }
+    
+    protected Object writeReplace() {
+      return copy();
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util;
+
+import java.io.*;
+
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.commonapi.rawserialization.*;
+
+/**
+ * @(#) DoubleHashBloomFilter.java
+ *
+ * Bloom filter which derives all of its hash functions from a single 128-bit
+ * MurmurHash3 of the element, following Kirsch and Mitzenmacher: with 
+ * (h_1, h_2) = murmur(seed, x), the ith hash function is
+ *
+ * g_i(x) = (h_1 + i * h_2) mod length
+ *
+ * The bits are kept in a long[], and neither add() nor check() allocate, so 
+ * filters can be built and probed for every key of a range cheaply.  The seed 
+ * is chosen randomly for each filter, so that false positives are not repeated 
+ * from one filter to the next.
+ *
+ * On the wire, this filter is preceeded by its negated VERSION, which the 
+ * original BloomFilter format can never start with; see BloomFilter.build().
+ *
+ * @version $Id$
+ */
+public class DoubleHashBloomFilter extends BloomFilter {
+  
+  private static final long serialVersionUID = -2695270474911087218L;
+  
+  /**
+   * The version of the wire format of this filter
+   */
+  public static final int VERSION = 1;
+  
+  /**
+   * The number of hash functions to use
+   */
+  protected int numHashes;
+  
+  /**
+   * The seed of the hash function
+   */
+  protected long seed;
+  
+  /**
+   * The bits of this filter
+   */
+  protected long[] bits;
+  
+  /**
+   * Scratch space for the two halves of the hash, allocated lazily
+   */
+  protected transient long[] hashes;
+  
+  /**
+   * Constructor which takes the number of hash functions to use
+   * and the length of the set to use.
+   *
+   * @param num The number of hash functions to use
+   * @param length The length of the underlying bit set
+   */
+  public DoubleHashBloomFilter(int num, int length) {
+    RandomSource rand = new SimpleRandomSource(null);
+    this.length = length;
+    this.numHashes = num;
+    this.seed = rand.nextLong();
+    this.bits = new long[(length + 63) >>> 6];
+  }
+  
+  /**
+   * Constructor which reads a filter off the wire, after its version has 
+   * been read by BloomFilter.build().
+   *
+   * @param buf The buffer to read from
+   */
+  public DoubleHashBloomFilter(InputBuffer buf) throws IOException {
+    length = buf.readInt();
+    numHashes = buf.readInt();
+    seed = buf.readLong();
+    bits = new long[buf.readInt()];
+    
+    if ((length < 0) || (numHashes < 0) || (bits.length != ((length + 63) >>> 6)))
+      throw new IOException("Invalid bloom filter of "+length+" bits in "+bits.length+" words");
+    
+    for (int i = 0; i < bits.length; i++)
+      bits[i] = buf.readLong();
+  }
+
+  /**
+   * Method which adds an element to this bloom filter
+   *
+   * @param array The element to add
+   */
+  public void add(byte[] array) {
+    add(array, 0, array.length);
+  }
+  
+  /**
+   * Method which adds a region of an array to this bloom filter
+   *
+   * @param array The array containing the element
+   * @param offset The offset of the element
+   * @param len The length of the element
+   */
+  public void add(byte[] array, int offset, int len) {
+    if (length <= 0)
+      return;
+    
+    long[] h = hash(array, offset, len);
+    long combined = h[0];
+    
+    for (int i = 0; i < numHashes; i++) {
+      int index = (int) ((combined & Long.MAX_VALUE) % length);
+      bits[index >>> 6] |= (1L << index);
+      combined += h[1];
+    }
+  }
+  
+  /**
+   * Method which returns whether or not an element *may* be in the set.
+   *
+   * @param array The element to check for
+   */
+  public boolean check(byte[] array) {
+    return check(array, 0, array.length);
+  }
+  
+  /**
+   * Method which returns whether or not a region of an array *may* be in the set.
+   *
+   * @param array The array containing the element
+   * @param offset The offset of the element
+   * @param len The length of the element
+   */
+  public boolean check(byte[] array, int offset, int len) {
+    if (length <= 0)
+      return true;
+    
+    long[] h = hash(array, offset, len);
+    long combined = h[0];
+    
+    for (int i = 0; i < numHashes; i++) {
+      int index = (int) ((combined & Long.MAX_VALUE) % length);
+      if ((bits[index >>> 6] & (1L << index)) == 0)
+        return false;
+      combined += h[1];
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Internal method which computes the 128-bit hash of the element into 
+   * the scratch array
+   *
+   * @param array The array containing the element
+   * @param offset The offset of the element
+   * @param len The length of the element
+   * @return The two halves of the hash
+   */
+  protected long[] hash(byte[] array, int offset, int len) {
+    if (hashes == null)
+      hashes = new long[2];
+    
+    MathUtils.murmurHash128(array, offset, len, seed, hashes);
+    return hashes;
+  }
+  
+  /**
+   * Method which returns what the internal bit set looks like as a string
+   *
+   * @return The internal bit set as a string
+   */
+  public String getBitSet() {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("[BloomFilter ");
+    for (int i=0; i<length; i++)
+      if ((bits[i >>> 6] & (1L << i)) != 0) 
+        buffer.append("1");
+      else 
+        buffer.append("0");
+    
+    buffer.append("]");
+    
+    return buffer.toString();
+  }
+  
+  public String toString() {
+    return "[DoubleHashBloomFilter "+length+" bits, "+numHashes+" hashes]";
+  }
+  
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeInt(-VERSION);
+    buf.writeInt(length);
+    buf.writeInt(numHashes);
+    buf.writeLong(seed);
+    
+    buf.writeInt(bits.length);
+    for (int i = 0; i < bits.length; i++)
+      buf.writeLong(bits[i]);
+  }
+}
@@ -94,8 +94,23 @@ public class IdBloomFilter implements Serializable {
    * @param length The length of the underlying bit set
    */
   public IdBloomFilter(IdSet set) {
+    this(set, false);
+  }
+  
+  /**
+   * Constructor which builds a bloom filter of the given set.  Both formats are 
+   * understood when reading, but nodes which predate the DoubleHashBloomFilter 
+   * can only read the original format.
+   *
+   * @param set The set to build the filter of
+   * @param doubleHashing Whether to build a DoubleHashBloomFilter, rather than the original format
+   */
+  public IdBloomFilter(IdSet set, boolean doubleHashing) {
     int size = (set.numElements() < 64 ? 64 : set.numElements());
-    this.filter = new BloomFilter(NUM_HASH_FUNCTIONS, NUM_BITS_PER_KEY * size);
+    if (doubleHashing)
+      this.filter = new DoubleHashBloomFilter(NUM_HASH_FUNCTIONS, NUM_BITS_PER_KEY * size);
+    else
+      this.filter = new BloomFilter(NUM_HASH_FUNCTIONS, NUM_BITS_PER_KEY * size);
     Iterator<Id> i = set.getIterator();  
     
     while (i.hasNext())
@@ -165,7 +180,7 @@ public class IdBloomFilter implements Serializable {
 //    array = new byte[buf.readInt()];
 //    buf.read(array);
 
-    filter = new BloomFilter(buf);
+    filter = BloomFilter.build(buf);
   }
   
   public void serialize(OutputBuffer buf) throws IOException {
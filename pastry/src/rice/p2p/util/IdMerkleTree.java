@@ -0,0 +1,724 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util;
+
+import java.util.*;
+
+import rice.p2p.commonapi.*;
+
+/**
+ * @(#) IdMerkleTree.java
+ *
+ * Class which is a hash tree over a set of Ids, which can be updated
+ * incrementally as Ids are added and removed, and which gives a fingerprint 
+ * of the Ids in any range.  The tree branches on the hexadecimal digits of 
+ * the Ids, most significant first, so that each node covers a range of the 
+ * Id space, and a leaf is split once it holds more than LEAF_SIZE Ids.  The
+ * fingerprint of a node is the XOR of the SHA-1 hashes of all Ids below it, 
+ * so that adding or removing an Id only updates the nodes on its path, and 
+ * the fingerprint of a range is the XOR of the nodes it covers, and of the 
+ * Ids of at most two partially covered leaves.  
+ * 
+ * Two sets with the same Ids in a range therefore have the same fingerprint
+ * for that range, no matter how their trees are shaped, and two sets can 
+ * find their differences by comparing the fingerprints of the ranges given 
+ * by split(), descending only into the ranges which differ.
+ *
+ * The Ids are expected to be laid out as the rice.pastry.Id, whose byte[] 
+ * starts with the least significant byte, and all Ids of a tree must have 
+ * the same length, which is fixed when the tree is built.  Other Ids, such 
+ * as the variable-length Ids which some applications store, are not 
+ * supported.
+ *
+ * @version $Id$
+ */
+public class IdMerkleTree {
+  
+  /**
+   * The number of Ids a leaf holds before it is split
+   */
+  public static final int LEAF_SIZE = 16;
+  
+  /**
+   * The number of children of each node
+   */
+  public static final int FANOUT = 16;
+  
+  /**
+   * The length of the fingerprints
+   */
+  public static final int HASH_LENGTH = 20;
+  
+  /**
+   * The length of the Ids of a tree built without one, that of a rice.pastry.Id
+   */
+  public static final int DEFAULT_LENGTH = 20;
+  
+  // the root of the tree
+  protected Node root;
+  
+  // the length of the Ids, in bytes
+  protected int length;
+  
+  // the number of digits of the Ids
+  protected int digits;
+  
+  /**
+   * Constructor, which builds an empty tree of Ids of the default length
+   */
+  public IdMerkleTree() {
+    this(DEFAULT_LENGTH);
+  }
+  
+  /**
+   * Constructor, which builds an empty tree of Ids of the given length
+   *
+   * @param length The length of the Ids, in bytes
+   */
+  public IdMerkleTree(int length) {
+    this.root = new Node();
+    this.length = length;
+    this.digits = length * 2;
+  }
+  
+  /**
+   * Constructor, which builds a tree of the Ids of the given set which it
+   * supports, any others are left out
+   *
+   * @param set The Ids to add
+   */
+  public IdMerkleTree(IdSet set) {
+    this();
+    Iterator i = set.getIterator();
+    
+    while (i.hasNext()) {
+      Id id = (Id) i.next();
+      
+      if (supports(id))
+        add(id);
+    }
+  }
+  
+  /**
+   * Returns whether or not the given Id can be kept in this tree, which 
+   * requires it to have the length of the tree
+   *
+   * @param id The Id
+   * @return Whether or not it is supported
+   */
+  public boolean supports(Id id) {
+    byte[] bytes = id.toByteArray();
+    
+    return (bytes != null) && (bytes.length == length);
+  }
+  
+  /**
+   * Adds the given Id to the tree
+   *
+   * @param id The Id to add
+   * @return Whether or not the Id was added, as it was not in the tree
+   */
+  public synchronized boolean add(Id id) {
+    byte[] key = getSupportedKey(id);
+    
+    if (contains(key, id))
+      return false;
+    
+    byte[] hash = getHash(id);
+    Node node = root;
+    int depth = 0;
+    
+    while (true) {
+      node.add(hash);
+      
+      if (node.children == null) {
+        node.addId(id);
+        
+        if ((node.size > LEAF_SIZE) && (depth < digits))
+          node.split(depth, digits);
+        
+        return true;
+      }
+      
+      int digit = getDigit(key, depth);
+      if (node.children[digit] == null)
+        node.children[digit] = new Node();
+      
+      node = node.children[digit];
+      depth++;
+    }
+  }
+  
+  /**
+   * Removes the given Id from the tree
+   *
+   * @param id The Id to remove
+   * @return Whether or not the Id was removed, as it was in the tree
+   */
+  public synchronized boolean remove(Id id) {
+    byte[] key = getSupportedKey(id);
+    
+    if (! contains(key, id))
+      return false;
+    
+    byte[] hash = getHash(id);
+    Node node = root;
+    int depth = 0;
+    
+    while (true) {
+      node.remove(hash);
+      
+      if (node.children == null) {
+        node.removeId(id);
+        return true;
+      } else if (node.size <= LEAF_SIZE / 2) {
+        node.collapse(id);
+        return true;
+      }
+      
+      int digit = getDigit(key, depth);
+      Node next = node.children[digit];
+      
+      if (next.size == 1) {
+        node.children[digit] = null;
+        return true;
+      }
+      
+      node = next;
+      depth++;
+    }
+  }
+  
+  /**
+   * Returns whether or not the given Id is in the tree
+   *
+   * @param id The Id
+   * @return Whether or not it is in the tree
+   */
+  public synchronized boolean contains(Id id) {
+    return contains(getSupportedKey(id), id);
+  }
+  
+  /**
+   * Returns the number of Ids in the tree
+   *
+   * @return The number of Ids
+   */
+  public synchronized int size() {
+    return root.size;
+  }
+  
+  /**
+   * Returns the fingerprint of the Ids in the given range
+   *
+   * @param range The range
+   * @return The fingerprint of the Ids in the range
+   */
+  public synchronized byte[] getHash(IdRange range) {
+    Result result = new Result(null);
+    visit(range, result);
+    
+    return result.hash;
+  }
+  
+  /**
+   * Returns the number of Ids in the given range
+   *
+   * @param range The range
+   * @return The number of Ids in the range
+   */
+  public synchronized int getSize(IdRange range) {
+    Result result = new Result(null);
+    visit(range, result);
+    
+    return result.size;
+  }
+  
+  /**
+   * Adds the Ids in the given range to the given set
+   *
+   * @param range The range
+   * @param set The set to add the Ids to
+   * @return The set
+   */
+  public synchronized IdSet getIds(IdRange range, IdSet set) {
+    visit(range, new Result(set));
+    
+    return set;
+  }
+  
+  /**
+   * Splits the given range into the ranges of the children of the smallest 
+   * node of a tree which covers all of it.  A wrapped range is first split 
+   * into its two parts, and a range of a single Id cannot be split.
+   *
+   * @param range The range to split
+   * @param factory The factory to build the ranges with
+   * @return The parts of the range
+   */
+  public static IdRange[] split(IdRange range, IdFactory factory) {
+    if (range.isEmpty())
+      return new IdRange[0];
+    
+    byte[] lo = getKey(range.getCCWId());
+    byte[] hi = getKey(range.getCWId());
+    byte[] zero = new byte[lo.length];
+    
+    int c = compare(lo, hi);
+    
+    if ((c > 0) && (compare(hi, zero) != 0)) 
+      return new IdRange[] {build(factory, lo, null), build(factory, zero, hi)};
+    
+    if (c == 0)
+      lo = zero;
+    if (c >= 0)
+      hi = null;
+    
+    /* find the node covering [lo, hi) */
+    byte[] last = (hi == null ? ones(lo.length) : decrement(hi));
+    int digits = lo.length * 2;
+    int depth = 0;
+    
+    while ((depth < digits) && (getDigit(lo, depth) == getDigit(last, depth)))
+      depth++;
+    
+    if (depth == digits)
+      return new IdRange[] {range};
+    
+    ArrayList result = new ArrayList();
+    for (int i = getDigit(lo, depth); i <= getDigit(last, depth); i++) {
+      byte[] start = prefix(lo, depth);
+      setDigit(start, depth, i);
+      byte[] end = getEnd(start, depth + 1);
+      
+      result.add(build(factory, (compare(start, lo) < 0 ? lo : start), (compareHi(end, hi) < 0 ? end : hi)));
+    }
+    
+    return (IdRange[]) result.toArray(new IdRange[0]);
+  }
+  
+  /**
+   * Returns the SHA-1 hash of the given Id
+   *
+   * @param id The Id
+   * @return Its hash
+   */
+  protected static byte[] getHash(Id id) {
+    return SecurityUtils.hash(id.toByteArray());
+  }
+  
+  /**
+   * Returns the bytes of the given Id, most significant first
+   *
+   * @param id The Id
+   * @return The bytes
+   */
+  protected static byte[] getKey(Id id) {
+    byte[] bytes = id.toByteArray();
+    byte[] result = new byte[bytes.length];
+    
+    for (int i = 0; i < bytes.length; i++)
+      result[i] = bytes[bytes.length - 1 - i];
+    
+    return result;
+  }
+  
+  /**
+   * Returns the key of the given Id, which must be supported by this tree
+   *
+   * @param id The Id
+   * @return The key
+   */
+  protected byte[] getSupportedKey(Id id) {
+    if (! supports(id))
+      throw new IllegalArgumentException("Id " + id + " is not an Id of " + length + " bytes");
+    
+    return getKey(id);
+  }
+  
+  /**
+   * Builds the range [lo, hi), where a null hi is the end of the Id space
+   */
+  protected static IdRange build(IdFactory factory, byte[] lo, byte[] hi) {
+    return factory.buildIdRange(build(factory, lo), build(factory, (hi == null ? new byte[lo.length] : hi)));
+  }
+  
+  /**
+   * Builds the Id of the given key
+   */
+  protected static Id build(IdFactory factory, byte[] key) {
+    byte[] bytes = new byte[key.length];
+    
+    for (int i = 0; i < key.length; i++) 
+      bytes[i] = key[key.length - 1 - i];
+    
+    return factory.buildId(bytes);
+  }
+  
+  /**
+   * Returns the given digit of the given key
+   */
+  protected static int getDigit(byte[] key, int digit) {
+    if (digit % 2 == 0)
+      return (key[digit / 2] >> 4) & 0xf;
+    else 
+      return key[digit / 2] & 0xf;
+  }
+  
+  /**
+   * Sets the given digit of the given key
+   */
+  protected static void setDigit(byte[] key, int digit, int value) {
+    if (digit % 2 == 0)
+      key[digit / 2] = (byte) ((key[digit / 2] & 0x0f) | (value << 4));
+    else 
+      key[digit / 2] = (byte) ((key[digit / 2] & 0xf0) | value);
+  }
+  
+  /**
+   * Returns the first depth digits of the given key, followed by zeros
+   */
+  protected static byte[] prefix(byte[] key, int depth) {
+    byte[] result = new byte[key.length];
+    System.arraycopy(key, 0, result, 0, depth / 2);
+    
+    if (depth % 2 == 1)
+      result[depth / 2] = (byte) (key[depth / 2] & 0xf0);
+    
+    return result;
+  }
+  
+  /**
+   * Returns the start of the next node after the node at the given depth
+   * starting at start, or null if there is none
+   */
+  protected static byte[] getEnd(byte[] start, int depth) {
+    byte[] result = (byte[]) start.clone();
+    
+    for (int digit = depth - 1; digit >= 0; digit--) {
+      int value = getDigit(result, digit) + 1;
+      
+      if (value < FANOUT) {
+        setDigit(result, digit, value);
+        return result;
+      }
+      
+      setDigit(result, digit, 0);
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Returns the key before the given one, which is not zero
+   */
+  protected static byte[] decrement(byte[] key) {
+    byte[] result = (byte[]) key.clone();
+    
+    for (int i = result.length - 1; i >= 0; i--) 
+      if (result[i]-- != 0)
+        break;
+    
+    return result;
+  }
+  
+  /**
+   * Returns the largest key of the given length
+   */
+  protected static byte[] ones(int length) {
+    byte[] result = new byte[length];
+    Arrays.fill(result, (byte) 0xff);
+    
+    return result;
+  }
+  
+  /**
+   * Compares the two keys as unsigned numbers
+   */
+  protected static int compare(byte[] a, byte[] b) {
+    for (int i = 0; i < a.length; i++) 
+      if (a[i] != b[i])
+        return (a[i] & 0xff) - (b[i] & 0xff);
+    
+    return 0;
+  }
+  
+  /**
+   * Compares the two upper bounds, where null is the end of the Id space
+   */
+  protected static int compareHi(byte[] a, byte[] b) {
+    if (a == null)
+      return (b == null ? 0 : 1);
+    else if (b == null)
+      return -1;
+    else
+      return compare(a, b);
+  }
+  
+  /**
+   * Returns whether the tree contains the given Id with the given key
+   */
+  protected boolean contains(byte[] key, Id id) {
+    Node node = root;
+    int depth = 0;
+    
+    while (node.children != null) {
+      node = node.children[getDigit(key, depth++)];
+      
+      if (node == null)
+        return false;
+    }
+    
+    return node.containsId(id);
+  }
+  
+  /**
+   * Visits the nodes and Ids in the given range with the given result
+   */
+  protected void visit(IdRange range, Result result) {
+    if (range.isEmpty() || (root.size == 0))
+      return;
+    
+    byte[] lo = getKey(range.getCCWId());
+    byte[] hi = getKey(range.getCWId());
+    byte[] zero = new byte[lo.length];
+    int c = compare(lo, hi);
+    
+    if (c == 0) {
+      visit(root, zero, 0, zero, null, result);
+    } else if (c < 0) {
+      visit(root, zero, 0, lo, hi, result);
+    } else {
+      visit(root, zero, 0, lo, null, result);
+      visit(root, zero, 0, zero, hi, result);
+    }
+  }
+  
+  /**
+   * Visits the nodes and Ids in [lo, hi) below the given node, which covers
+   * the Ids with the first depth digits of start
+   */
+  protected void visit(Node node, byte[] start, int depth, byte[] lo, byte[] hi, Result result) {
+    if (node == null) 
+      return;
+    
+    byte[] end = getEnd(start, depth);
+    
+    if ((compare(start, lo) >= 0) && (compareHi(end, hi) <= 0)) {
+      result.add(node);
+    } else if (((end == null) || (compare(end, lo) > 0)) && ((hi == null) || (compare(start, hi) < 0))) {
+      if (node.children == null) {
+        for (int i = 0; i < node.size; i++) {
+          byte[] key = getKey(node.ids[i]);
+          
+          if ((compare(key, lo) >= 0) && ((hi == null) || (compare(key, hi) < 0)))
+            result.add(node.ids[i]);
+        }
+      } else {
+        for (int i = 0; i < FANOUT; i++) {
+          if (node.children[i] != null) {
+            byte[] child = (byte[]) start.clone();
+            setDigit(child, depth, i);
+            visit(node.children[i], child, depth + 1, lo, hi, result);
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * The accumulated fingerprint, size and Ids of a range
+   */
+  protected static class Result {
+    protected byte[] hash = new byte[HASH_LENGTH];
+    protected int size;
+    protected IdSet set;
+    
+    public Result(IdSet set) {
+      this.set = set;
+    }
+    
+    public void add(Node node) {
+      xor(hash, node.hash);
+      size += node.size;
+      
+      if (set != null)
+        node.getIds(set);
+    }
+    
+    public void add(Id id) {
+      xor(hash, getHash(id));
+      size++;
+      
+      if (set != null)
+        set.addId(id);
+    }
+  }
+  
+  /**
+   * XORs the second fingerprint into the first
+   */
+  protected static void xor(byte[] a, byte[] b) {
+    for (int i = 0; i < a.length; i++)
+      a[i] ^= b[i];
+  }
+  
+  /**
+   * A node of the tree, which is either a leaf with Ids or has children
+   */
+  protected static class Node {
+    
+    // the fingerprint of the Ids below this node
+    protected byte[] hash = new byte[HASH_LENGTH];
+    
+    // the number of Ids below this node
+    protected int size;
+    
+    // the children, or null for a leaf
+    protected Node[] children;
+    
+    // the Ids of a leaf
+    protected Id[] ids = new Id[4];
+    
+    public void add(byte[] hash) {
+      xor(this.hash, hash);
+      size++;
+    }
+    
+    public void remove(byte[] hash) {
+      xor(this.hash, hash);
+      size--;
+    }
+    
+    public boolean containsId(Id id) {
+      for (int i = 0; i < size; i++) 
+        if (ids[i].equals(id))
+          return true;
+      
+      return false;
+    }
+    
+    /**
+     * Adds the id to this leaf, whose size has already been updated
+     */
+    public void addId(Id id) {
+      if (size > ids.length) {
+        Id[] tmp = new Id[ids.length * 2];
+        System.arraycopy(ids, 0, tmp, 0, size - 1);
+        ids = tmp;
+      }
+      
+      ids[size - 1] = id;
+    }
+    
+    /**
+     * Removes the id from this leaf, whose size has already been updated
+     */
+    public void removeId(Id id) {
+      for (int i = 0; i <= size; i++) {
+        if (ids[i].equals(id)) {
+          ids[i] = ids[size];
+          ids[size] = null;
+          return;
+        }
+      }
+    }
+    
+    /**
+     * Adds all Ids below this node to the given set
+     */
+    public void getIds(IdSet set) {
+      if (children == null) {
+        for (int i = 0; i < size; i++) 
+          set.addId(ids[i]);
+      } else {
+        for (int i = 0; i < FANOUT; i++) 
+          if (children[i] != null)
+            children[i].getIds(set);
+      }
+    }
+    
+    /**
+     * Adds all Ids below this node, except the given one, to the given list
+     */
+    protected void getIds(ArrayList list, Id except) {
+      if (children == null) {
+        for (int i = 0; i < ids.length; i++) 
+          if ((ids[i] != null) && (! ids[i].equals(except)))
+            list.add(ids[i]);
+      } else {
+        for (int i = 0; i < FANOUT; i++) 
+          if (children[i] != null)
+            children[i].getIds(list, except);
+      }
+    }
+    
+    /**
+     * Turns this node into a leaf, after the given id has been removed
+     */
+    public void collapse(Id removed) {
+      ArrayList list = new ArrayList();
+      getIds(list, removed);
+      
+      ids = (Id[]) list.toArray(new Id[LEAF_SIZE]);
+      children = null;
+    }
+    
+    /**
+     * Moves the Ids of this leaf at the given depth into new children
+     */
+    public void split(int depth, int digits) {
+      children = new Node[FANOUT];
+      
+      for (int i = 0; i < size; i++) {
+        int digit = getDigit(getKey(ids[i]), depth);
+        
+        if (children[digit] == null)
+          children[digit] = new Node();
+        
+        children[digit].add(getHash(ids[i]));
+        children[digit].addId(ids[i]);
+      }
+      
+      ids = null;
+      
+      for (int i = 0; i < FANOUT; i++) 
+        if ((children[i] != null) && (children[i].size > LEAF_SIZE) && (depth + 1 < digits))
+          children[i].split(depth + 1, digits);
+    }
+  }
+}
@@ -187,6 +187,101 @@ public class MathUtils {
     return hash;
   }
 
+  /**
+   * Computes the 128-bit x64 variant of MurmurHash3 over the given region
+   * of a byte array, storing the two halves of the result in result[0] and
+   * result[1].  Not for crypto, but fast and well distributed, and it does
+   * not allocate.
+   *
+   * @param b The input array
+   * @param offset The offset of the first byte to hash
+   * @param length The number of bytes to hash
+   * @param seed The seed of the hash
+   * @param result An array of at least two longs which receives the hash
+   */
+  public static void murmurHash128(byte[] b, int offset, int length, long seed, long[] result) {
+    final long c1 = 0x87c37b91114253d5L;
+    final long c2 = 0x4cf5ad432745937fL;
+    long h1 = seed;
+    long h2 = seed;
+    int end = offset + (length & ~15);
+
+    for (int i = offset; i < end; i += 16) {
+      long k1 = getLongLE(b, i);
+      long k2 = getLongLE(b, i + 8);
+
+      k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+      h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+      k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+      h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    long k1 = 0;
+    long k2 = 0;
+
+    switch (length & 15) {
+      case 15: k2 ^= ((long) b[end + 14] & 0xff) << 48;
+      case 14: k2 ^= ((long) b[end + 13] & 0xff) << 40;
+      case 13: k2 ^= ((long) b[end + 12] & 0xff) << 32;
+      case 12: k2 ^= ((long) b[end + 11] & 0xff) << 24;
+      case 11: k2 ^= ((long) b[end + 10] & 0xff) << 16;
+      case 10: k2 ^= ((long) b[end + 9] & 0xff) << 8;
+      case 9:  k2 ^= ((long) b[end + 8] & 0xff);
+        k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+      case 8:  k1 ^= ((long) b[end + 7] & 0xff) << 56;
+      case 7:  k1 ^= ((long) b[end + 6] & 0xff) << 48;
+      case 6:  k1 ^= ((long) b[end + 5] & 0xff) << 40;
+      case 5:  k1 ^= ((long) b[end + 4] & 0xff) << 32;
+      case 4:  k1 ^= ((long) b[end + 3] & 0xff) << 24;
+      case 3:  k1 ^= ((long) b[end + 2] & 0xff) << 16;
+      case 2:  k1 ^= ((long) b[end + 1] & 0xff) << 8;
+      case 1:  k1 ^= ((long) b[end] & 0xff);
+        k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+    }
+
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+
+    result[0] = h1;
+    result[1] = h2;
+  }
+
+  /**
+   * The finalization mix of MurmurHash3, which forces all bits of the
+   * input to avalanche.
+   *
+   * @param k The value to mix
+   * @return The mixed value
+   */
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  /**
+   * Reads a little-endian long out of a byte array
+   *
+   * @param b The array
+   * @param i The offset of the long
+   * @return The long
+   */
+  private static long getLongLE(byte[] b, int i) {
+    return ((long) b[i] & 0xff) | (((long) b[i+1] & 0xff) << 8) |
+      (((long) b[i+2] & 0xff) << 16) | (((long) b[i+3] & 0xff) << 24) |
+      (((long) b[i+4] & 0xff) << 32) | (((long) b[i+5] & 0xff) << 40) |
+      (((long) b[i+6] & 0xff) << 48) | (((long) b[i+7] & 0xff) << 56);
+  }
+
   /**  
    * Utility method for converting a char to a byte
    *
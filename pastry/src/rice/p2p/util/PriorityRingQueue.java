@@ -0,0 +1,415 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A queue made of one FIFO ring buffer per priority.  Lower priority values 
+ * come out first, elements of the same priority come out in the order they 
+ * were added.  This is the same order as a SortedLinkedList of elements that 
+ * compare on priority then sequence number, but add(), addFirst(), poll() and
+ * removeLast() don't depend on the number of elements in the queue, only on 
+ * the number of distinct priorities, which is small.
+ * 
+ * Each element is added with a size in bytes so the queue can keep an exact 
+ * total for byte-based limits.
+ * 
+ * Not synchronized.
+ * 
+ * @version $Id$
+ */
+public class PriorityRingQueue<E> implements Iterable<E> {
+  public static final int INITIAL_RING_SIZE = 8;
+  
+  /**
+   * Sorted by priority, rings are kept when they become empty, so there is 
+   * one for every priority that was ever used.
+   */
+  Ring<E>[] rings;
+  int numRings = 0;
+  
+  int size = 0;
+  long bytes = 0;
+  int modCount = 0;
+  
+  @SuppressWarnings("unchecked")
+  public PriorityRingQueue() {
+    rings = new Ring[4];
+  }
+  
+  /**
+   * Adds the element to the tail of its priority.
+   * 
+   * @param elt the element
+   * @param priority lower values are returned first
+   * @param numBytes the size of the element, added to bytes()
+   */
+  public void add(E elt, int priority, int numBytes) {
+    getRing(priority).add(elt, numBytes);
+    size++;
+    bytes+=numBytes;
+    modCount++;
+  }
+  
+  /**
+   * Adds the element to the head of its priority, for an element that was 
+   * polled and has to go back ahead of the ones added after it.
+   * 
+   * @param elt the element
+   * @param priority lower values are returned first
+   * @param numBytes the size of the element, added to bytes()
+   */
+  public void addFirst(E elt, int priority, int numBytes) {
+    getRing(priority).addFirst(elt, numBytes);
+    size++;
+    bytes+=numBytes;
+    modCount++;
+  }
+  
+  /**
+   * @return the oldest element of the lowest priority value, or null if empty
+   */
+  public E peek() {
+    if (size == 0) return null;
+    return firstRing().get(0);
+  }
+  
+  /**
+   * Removes and returns the oldest element of the lowest priority value.
+   * 
+   * @return null if empty
+   */
+  public E poll() {
+    if (size == 0) return null;
+    Ring<E> r = firstRing();
+    bytes-=r.bytes[r.head];
+    size--;
+    modCount++;
+    return r.remove(0);
+  }
+  
+  /**
+   * Removes and returns the newest element of the highest priority value, 
+   * this is the element that poll() would return last.
+   * 
+   * @return null if empty
+   */
+  public E removeLast() {
+    if (size == 0) return null;
+    Ring<E> r = lastRing();
+    int i = r.count-1;
+    bytes-=r.bytes[r.index(i)];
+    size--;
+    modCount++;
+    return r.remove(i);
+  }
+  
+  /**
+   * Removes and returns the newest element of the priority.
+   * 
+   * @return null if there is no element of the priority
+   */
+  public E removeLast(int priority) {
+    int ctr = find(priority);
+    if (ctr < 0 || rings[ctr].count == 0) return null;
+    Ring<E> r = rings[ctr];
+    int i = r.count-1;
+    bytes-=r.bytes[r.index(i)];
+    size--;
+    modCount++;
+    return r.remove(i);
+  }
+  
+  /**
+   * Removes the element (compared by equals()).  This is O(n), but only used 
+   * to cancel.
+   * 
+   * @return true if the element was in the queue
+   */
+  public boolean remove(Object o) {
+    for (int ctr = 0; ctr < numRings; ctr++) {
+      Ring<E> r = rings[ctr];
+      for (int i = 0; i < r.count; i++) {
+        int index = r.index(i);
+        if (o == null ? r.elts[index] == null : o.equals(r.elts[index])) {
+          bytes-=r.bytes[index];
+          size--;
+          modCount++;
+          r.remove(i);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  public void clear() {
+    for (int ctr = 0; ctr < numRings; ctr++) {
+      rings[ctr].clear();
+    }
+    size = 0;
+    bytes = 0;
+    modCount++;
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  public boolean isEmpty() {
+    return size == 0;
+  }
+  
+  /**
+   * @return the sum of the sizes the queued elements were added with
+   */
+  public long bytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of elements queued at this priority
+   */
+  public int size(int priority) {
+    int i = find(priority);
+    if (i < 0) return 0;
+    return rings[i].count;
+  }
+  
+  /**
+   * @return the priorities that currently have queued elements, in order
+   */
+  public int[] getPriorities() {
+    int num = 0;
+    for (int ctr = 0; ctr < numRings; ctr++) {
+      if (rings[ctr].count > 0) num++;
+    }
+    int[] ret = new int[num];
+    num = 0;
+    for (int ctr = 0; ctr < numRings; ctr++) {
+      if (rings[ctr].count > 0) ret[num++] = rings[ctr].priority;
+    }
+    return ret;
+  }
+  
+  /**
+   * Iterates in the order poll() would return the elements.  Does not support 
+   * remove().
+   */
+  public Iterator<E> iterator() {
+    return new Iterator<E>() {
+      int ring = 0;
+      int i = 0;
+      int expectedModCount = modCount;
+      
+      public boolean hasNext() {
+        while (ring < numRings && i >= rings[ring].count) {
+          ring++;
+          i = 0;
+        }
+        return ring < numRings;
+      }
+      
+      public E next() {
+        if (modCount != expectedModCount) throw new ConcurrentModificationException();
+        if (!hasNext()) throw new NoSuchElementException();
+        return rings[ring].get(i++);
+      }
+      
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+  
+  public String toString() {
+    StringBuffer sb = new StringBuffer("PRQ{");
+    for (int ctr = 0; ctr < numRings; ctr++) {
+      if (rings[ctr].count > 0) {
+        sb.append(rings[ctr].priority+":"+rings[ctr].count+" ");
+      }
+    }
+    sb.append("bytes:"+bytes+"}");
+    return sb.toString();
+  }
+  
+  private Ring<E> firstRing() {
+    for (int ctr = 0; ctr < numRings; ctr++) {
+      if (rings[ctr].count > 0) return rings[ctr];
+    }
+    throw new IllegalStateException("size:"+size+" but all rings are empty");
+  }
+  
+  private Ring<E> lastRing() {
+    for (int ctr = numRings-1; ctr >= 0; ctr--) {
+      if (rings[ctr].count > 0) return rings[ctr];
+    }
+    throw new IllegalStateException("size:"+size+" but all rings are empty");
+  }
+  
+  /**
+   * @return the index of the ring, or -(insertion point)-1
+   */
+  private int find(int priority) {
+    int lo = 0;
+    int hi = numRings-1;
+    while (lo <= hi) {
+      int mid = (lo+hi) >>> 1;
+      int p = rings[mid].priority;
+      if (p < priority) {
+        lo = mid+1;
+      } else if (p > priority) {
+        hi = mid-1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo+1);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private Ring<E> getRing(int priority) {
+    int i = find(priority);
+    if (i >= 0) return rings[i];
+    i = -(i+1);
+    if (numRings == rings.length) {
+      Ring<E>[] temp = new Ring[rings.length*2];
+      System.arraycopy(rings, 0, temp, 0, numRings);
+      rings = temp;
+    }
+    System.arraycopy(rings, i, rings, i+1, numRings-i);
+    Ring<E> ret = new Ring<E>(priority);
+    rings[i] = ret;
+    numRings++;
+    return ret;
+  }
+  
+  /**
+   * A growable FIFO ring buffer of the elements of one priority.
+   */
+  static class Ring<E> {
+    int priority;
+    Object[] elts;
+    int[] bytes;
+    int head = 0;
+    int count = 0;
+    
+    Ring(int priority) {
+      this.priority = priority;
+      elts = new Object[INITIAL_RING_SIZE];
+      bytes = new int[INITIAL_RING_SIZE];
+    }
+    
+    /**
+     * @param i the position from the head
+     * @return the index into elts
+     */
+    int index(int i) {
+      return (head+i) & (elts.length-1);
+    }
+    
+    @SuppressWarnings("unchecked")
+    E get(int i) {
+      return (E)elts[index(i)];
+    }
+    
+    void add(E elt, int numBytes) {
+      if (count == elts.length) grow();
+      int index = index(count);
+      elts[index] = elt;
+      bytes[index] = numBytes;
+      count++;
+    }
+    
+    void addFirst(E elt, int numBytes) {
+      if (count == elts.length) grow();
+      head = (head-1) & (elts.length-1);
+      elts[head] = elt;
+      bytes[head] = numBytes;
+      count++;
+    }
+    
+    /**
+     * Removes the element at position i from the head, closing the gap.
+     */
+    @SuppressWarnings("unchecked")
+    E remove(int i) {
+      int mask = elts.length-1;
+      int index = index(i);
+      E ret = (E)elts[index];
+      if (i == 0) {
+        elts[head] = null;
+        head = (head+1) & mask;
+      } else {
+        // shift the younger elements down one, i == count-1 doesn't move anything
+        for (int j = i+1; j < count; j++) {
+          int from = index(j);
+          int to = (from-1) & mask;
+          elts[to] = elts[from];
+          bytes[to] = bytes[from];
+        }
+        elts[index(count-1)] = null;
+      }
+      count--;
+      return ret;
+    }
+    
+    void clear() {
+      for (int i = 0; i < count; i++) {
+        elts[index(i)] = null;
+      }
+      head = 0;
+      count = 0;
+    }
+    
+    private void grow() {
+      Object[] newElts = new Object[elts.length*2];
+      int[] newBytes = new int[elts.length*2];
+      for (int i = 0; i < count; i++) {
+        int index = index(i);
+        newElts[i] = elts[index];
+        newBytes[i] = bytes[index];
+      }
+      elts = newElts;
+      bytes = newBytes;
+      head = 0;
+    }
+  }
+}
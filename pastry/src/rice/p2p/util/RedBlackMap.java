@@ -1044,7 +1044,7 @@ public class RedBlackMap extends AbstractMap implements SortedMap, Cloneable, ja
         }
         
         public Object lastKey() {
-          if (compare(key(lastEntry()), fromKey) > 0)
+          if (compare(key(lastEntry()), fromKey) >= 0)
             return key(lastEntry());
           
           if (getPrecedingEntry(toKey) == null)
@@ -0,0 +1,218 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util;
+
+import java.lang.ref.*;
+
+/**
+ * @(#) WeakInterner.java
+ *
+ * Canonicalizes equal objects to a single instance, like String.intern(), while 
+ * only holding the canonical instances weakly.  This replaces the 
+ * WeakHashMap<T, WeakReference<T>> idiom, which took a single lock and used two 
+ * objects per entry: the table is split into stripes by hash code, each with 
+ * its own lock, and each entry is a single weak reference which remembers its 
+ * hash code.
+ *
+ * @version $Id$
+ */
+public class WeakInterner<T> {
+  
+  /**
+   * The stripes of the table
+   */
+  protected Stripe<T>[] stripes;
+  
+  /**
+   * The shift and mask selecting a stripe from the top bits of a spread hash code, 
+   * leaving the bottom bits to the buckets
+   */
+  protected int shift;
+  protected int mask;
+  
+  /**
+   * Constructor
+   *
+   * @param numStripes The number of stripes, rounded up to a power of two
+   */
+  @SuppressWarnings("unchecked")
+  public WeakInterner(int numStripes) {
+    int n = 1;
+    int bits = 0;
+    while (n < numStripes) {
+      n <<= 1;
+      bits++;
+    }
+    
+    this.stripes = new Stripe[n];
+    this.shift = (bits == 0 ? 0 : 32 - bits);
+    this.mask = n - 1;
+    
+    for (int i=0; i<n; i++)
+      stripes[i] = new Stripe<T>();
+  }
+  
+  /**
+   * Returns the canonical instance equal to the given object, which becomes 
+   * the canonical instance if there is none yet.
+   *
+   * @param t The object
+   * @return The canonical instance
+   */
+  public T intern(T t) {
+    int hash = spread(t.hashCode());
+    return stripes[(hash >>> shift) & mask].intern(t, hash);
+  }
+  
+  /**
+   * Returns the number of canonical instances currently held, some of which 
+   * may have been collected already
+   *
+   * @return The number of entries
+   */
+  public int size() {
+    int size = 0;
+    for (int i=0; i<stripes.length; i++) 
+      synchronized (stripes[i]) {
+        size += stripes[i].size;
+      }
+    
+    return size;
+  }
+  
+  /**
+   * Mixes the bits of a hash code, so that both the stripe and the bucket 
+   * get well distributed bits
+   *
+   * @param h The hash code
+   * @return The mixed hash code
+   */
+  protected static int spread(int h) {
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+  
+  /**
+   * A weak reference to a canonical instance, chained in a bucket
+   */
+  protected static class Entry<T> extends WeakReference<T> {
+    final int hash;
+    Entry<T> next;
+    
+    Entry(T referent, int hash, Entry<T> next, ReferenceQueue<T> queue) {
+      super(referent, queue);
+      this.hash = hash;
+      this.next = next;
+    }
+  }
+  
+  /**
+   * One stripe, a chained hash table guarded by its own lock
+   */
+  protected static class Stripe<T> {
+    Entry<T>[] table = newTable(16);
+    int size = 0;
+    ReferenceQueue<T> queue = new ReferenceQueue<T>();
+    
+    @SuppressWarnings("unchecked")
+    static <T> Entry<T>[] newTable(int length) {
+      return new Entry[length];
+    }
+    
+    synchronized T intern(T t, int hash) {
+      expunge();
+      
+      int index = hash & (table.length - 1);
+      for (Entry<T> e = table[index]; e != null; e = e.next) {
+        if (e.hash == hash) {
+          T result = e.get();
+          if ((result != null) && result.equals(t))
+            return result;
+        }
+      }
+      
+      table[index] = new Entry<T>(t, hash, table[index], queue);
+      size++;
+      
+      if (size > table.length - (table.length >>> 2))
+        resize();
+      
+      return t;
+    }
+    
+    /**
+     * Removes the entries whose referents have been collected
+     */
+    @SuppressWarnings("unchecked")
+    void expunge() {
+      Entry<T> e;
+      while ((e = (Entry<T>) queue.poll()) != null) {
+        int index = e.hash & (table.length - 1);
+        Entry<T> prev = null;
+        
+        for (Entry<T> p = table[index]; p != null; prev = p, p = p.next) {
+          if (p == e) {
+            if (prev == null)
+              table[index] = p.next;
+            else
+              prev.next = p.next;
+            size--;
+            break;
+          }
+        }
+      }
+    }
+    
+    void resize() {
+      Entry<T>[] old = table;
+      table = newTable(old.length << 1);
+      
+      for (int i=0; i<old.length; i++) {
+        Entry<T> e = old[i];
+        while (e != null) {
+          Entry<T> next = e.next;
+          int index = e.hash & (table.length - 1);
+          e.next = table[index];
+          table[index] = e;
+          e = next;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.rawserialization;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+/**
+ * An InputBuffer that reads straight out of a ByteBuffer, heap or direct, 
+ * from its position to its limit.  The encoding is identical to 
+ * SimpleInputBuffer's, but there is no stream underneath it and the bytes are 
+ * not copied.
+ * 
+ * The ByteBuffer itself is never modified, this class keeps its own read 
+ * position.  A layer that peels off a header and passes the rest of the 
+ * message up can call buf.position(sib.position()).
+ * 
+ * The bytes are read lazily by some messages (RouteMessage keeps its 
+ * InputBuffer until the message is unwrapped), so the ByteBuffer must not be 
+ * reused while the InputBuffer is reachable.
+ * 
+ * @version $Id$
+ */
+public class ByteBufferInputBuffer implements InputBuffer {
+  protected ByteBuffer buf;
+  protected int pos;
+  protected int limit;
+  
+  public ByteBufferInputBuffer(ByteBuffer buf) {
+    if (buf.order() != ByteOrder.BIG_ENDIAN) {
+      buf = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+    this.buf = buf;
+    this.pos = buf.position();
+    this.limit = buf.limit();
+  }
+
+  /**
+   * @return the index in the ByteBuffer of the next byte to be read
+   */
+  public int position() {
+    return pos;
+  }
+  
+  public int bytesRemaining() {
+    return limit-pos;
+  }
+  
+  /**
+   * Advance pos by n, or throw an EOFException if there aren't n bytes left.
+   * 
+   * @return the index to read from
+   */
+  protected int take(int n) throws IOException {
+    if (limit-pos < n) {
+      pos = limit;
+      throw new EOFException();
+    }
+    int ret = pos;
+    pos+=n;
+    return ret;
+  }
+  
+  /**
+   * Copy the unread bytes to out without consuming them, so that a message 
+   * can be forwarded and still be read afterwards.  Heap buffers are written 
+   * straight out of their array, a direct buffer is copied in place into a 
+   * PooledOutputBuffer.
+   */
+  public void writeRemainingTo(OutputBuffer out) throws IOException {
+    int n = limit-pos;
+    if (n == 0) return;
+    if (buf.hasArray()) {
+      out.write(buf.array(), buf.arrayOffset()+pos, n);
+      return;
+    }
+    ByteBuffer temp = buf.duplicate();
+    temp.position(pos);
+    if (out instanceof PooledOutputBuffer) {
+      ((PooledOutputBuffer)out).write(temp);
+      return;
+    }
+    byte[] chunk = new byte[Math.min(n, 4096)];
+    while (temp.hasRemaining()) {
+      int len = Math.min(chunk.length, temp.remaining());
+      temp.get(chunk, 0, len);
+      out.write(chunk, 0, len);
+    }
+  }
+  
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (pos >= limit) return -1;
+    int n = Math.min(len, limit-pos);
+    if (buf.hasArray()) {
+      System.arraycopy(buf.array(), buf.arrayOffset()+pos, b, off, n);
+    } else {
+      ByteBuffer temp = buf.duplicate();
+      temp.position(pos);
+      temp.get(b, off, n);
+    }
+    pos+=n;
+    return n;
+  }
+
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  public boolean readBoolean() throws IOException {
+    return buf.get(take(1)) != 0;
+  }
+
+  public byte readByte() throws IOException {
+    return buf.get(take(1));
+  }
+
+  public char readChar() throws IOException {
+    return buf.getChar(take(2));
+  }
+
+  public short readShort() throws IOException {
+    return buf.getShort(take(2));
+  }
+
+  public int readInt() throws IOException {
+    return buf.getInt(take(4));
+  }
+
+  public long readLong() throws IOException {
+    return buf.getLong(take(8));
+  }
+
+  public float readFloat() throws IOException {
+    return buf.getFloat(take(4));
+  }
+
+  public double readDouble() throws IOException {
+    return buf.getDouble(take(8));
+  }
+
+  /**
+   * Java's modified UTF-8, the same as DataInputStream.readUTF()
+   */
+  public String readUTF() throws IOException {
+    int utflen = buf.getShort(take(2)) & 0xFFFF;
+    int start = take(utflen);
+    int end = start+utflen;
+    char[] chars = new char[utflen];
+    int count = 0;
+    int i = start;
+    while (i < end) {
+      int c = buf.get(i) & 0xFF;
+      switch (c >> 4) {
+        case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+          // 0xxxxxxx
+          i++;
+          chars[count++] = (char)c;
+          break;
+        case 12: case 13: {
+          // 110x xxxx   10xx xxxx
+          if (i+2 > end) throw new UTFDataFormatException("malformed input: partial character at end");
+          int c2 = buf.get(i+1);
+          if ((c2 & 0xC0) != 0x80) throw new UTFDataFormatException("malformed input around byte "+(i-start));
+          chars[count++] = (char)(((c & 0x1F) << 6) | (c2 & 0x3F));
+          i+=2;
+          break;
+        }
+        case 14: {
+          // 1110 xxxx  10xx xxxx  10xx xxxx
+          if (i+3 > end) throw new UTFDataFormatException("malformed input: partial character at end");
+          int c2 = buf.get(i+1);
+          int c3 = buf.get(i+2);
+          if (((c2 & 0xC0) != 0x80) || ((c3 & 0xC0) != 0x80)) throw new UTFDataFormatException("malformed input around byte "+(i-start));
+          chars[count++] = (char)(((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+          i+=3;
+          break;
+        }
+        default:
+          // 10xx xxxx,  1111 xxxx
+          throw new UTFDataFormatException("malformed input around byte "+(i-start));
+      }
+    }
+    return new String(chars, 0, count);
+  }
+  
+  public String toString() {
+    return "ByteBufferInputBuffer{"+pos+"/"+limit+" "+buf+"}";
+  }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.rawserialization;
+
+/**
+ * A pool of the byte arrays behind PooledOutputBuffers.
+ * 
+ * Arrays come in power-of-2 size classes from MIN_BUFFER_SIZE up to 
+ * maxBufferSize.  Each class holds at most buffersPerClass idle arrays, 
+ * anything else is left to the garbage collector.  Requests larger than 
+ * maxBufferSize are allocated at the exact size and never pooled.
+ * 
+ * Thread safe, though it is expected to be used almost entirely on the 
+ * selector thread.
+ * 
+ * @version $Id$
+ */
+public class OutputBufferPool {
+  public static final int MIN_BUFFER_SIZE = 256;
+  
+  protected int maxBufferSize;
+  protected int buffersPerClass;
+  
+  /**
+   * free[c] holds idle arrays of size MIN_BUFFER_SIZE << c
+   */
+  protected byte[][][] free;
+  protected int[] numFree;
+  
+  // statistics
+  protected long allocated = 0;
+  protected long reused = 0;
+  protected long returned = 0;
+  
+  /**
+   * @param buffersPerClass the maximum number of idle arrays to keep of each size
+   * @param maxBufferSize the largest array to pool, rounded up to a power of 2
+   */
+  public OutputBufferPool(int buffersPerClass, int maxBufferSize) {
+    if (buffersPerClass < 0) throw new IllegalArgumentException("buffersPerClass must be >= 0, was "+buffersPerClass);
+    this.buffersPerClass = buffersPerClass;
+    
+    int numClasses = sizeClass(Math.max(maxBufferSize, MIN_BUFFER_SIZE))+1;
+    this.maxBufferSize = MIN_BUFFER_SIZE << (numClasses-1);
+    free = new byte[numClasses][][];
+    numFree = new int[numClasses];
+    for (int i = 0; i < numClasses; i++) {
+      free[i] = new byte[buffersPerClass][];
+    }
+  }
+  
+  /**
+   * @param headroom the number of bytes to reserve in front of the message
+   * @return an empty buffer backed by this pool
+   */
+  public PooledOutputBuffer getBuffer(int headroom) {
+    return new PooledOutputBuffer(this, headroom, MIN_BUFFER_SIZE);
+  }
+  
+  /**
+   * @return the smallest size class that holds size bytes
+   */
+  protected static int sizeClass(int size) {
+    if (size <= MIN_BUFFER_SIZE) return 0;
+    return 32-Integer.numberOfLeadingZeros(size-1)-8; // MIN_BUFFER_SIZE == 1 << 8
+  }
+  
+  /**
+   * @return an array of at least minSize bytes, the contents are undefined
+   */
+  protected byte[] take(int minSize) {
+    if (minSize > maxBufferSize) {
+      synchronized(this) {
+        allocated++;
+      }
+      return new byte[minSize];
+    }
+    int c = sizeClass(minSize);
+    synchronized(this) {
+      if (numFree[c] > 0) {
+        reused++;
+        numFree[c]--;
+        byte[] ret = free[c][numFree[c]];
+        free[c][numFree[c]] = null;
+        return ret;
+      }
+      allocated++;
+    }
+    return new byte[MIN_BUFFER_SIZE << c];
+  }
+  
+  /**
+   * Return an array obtained from take().  The caller must not touch it again.
+   */
+  protected void give(byte[] bytes) {
+    if (bytes.length > maxBufferSize) return;
+    int c = sizeClass(bytes.length);
+    if ((MIN_BUFFER_SIZE << c) != bytes.length) return; // not one of ours
+    synchronized(this) {
+      if (numFree[c] < buffersPerClass) {
+        returned++;
+        free[c][numFree[c]++] = bytes;
+      }
+    }
+  }
+  
+  /**
+   * @return the number of arrays that had to be allocated
+   */
+  public synchronized long getAllocated() {
+    return allocated;
+  }
+  
+  /**
+   * @return the number of arrays that were served from the pool
+   */
+  public synchronized long getReused() {
+    return reused;
+  }
+  
+  /**
+   * @return the number of arrays that were given back and kept
+   */
+  public synchronized long getReturned() {
+    return returned;
+  }
+  
+  public String toString() {
+    return "OutputBufferPool{allocated:"+getAllocated()+" reused:"+getReused()+" returned:"+getReturned()+"}";
+  }
+}
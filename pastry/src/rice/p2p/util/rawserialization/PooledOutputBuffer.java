@@ -0,0 +1,262 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.rawserialization;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+/**
+ * An OutputBuffer that writes into a growable array borrowed from an 
+ * OutputBufferPool.  The encoding is identical to SimpleOutputBuffer's.
+ * 
+ * A number of bytes (the headroom) is reserved in front of the message so 
+ * that a lower layer can write its header (such as the size prefix) in place 
+ * rather than copying the message into a larger buffer.  getByteBuffer() 
+ * returns a view of the array without copying it.
+ * 
+ * The buffer is handed down the transport stack under OPTION_POOLED_BUFFER.  
+ * Ownership goes with it: the layer that finishes with the bytes (acks the 
+ * message, or fails it) calls release(), after which nobody may touch the 
+ * ByteBuffer again.  If nobody releases it, the array is simply garbage 
+ * collected.
+ * 
+ * @version $Id$
+ */
+public class PooledOutputBuffer implements OutputBuffer {
+  /**
+   * The options key under which a serialized message's PooledOutputBuffer is 
+   * passed down the stack.  Layers that reuse the headroom must check 
+   * isView() first, the ByteBuffer may have been replaced on the way.
+   */
+  public static final String OPTION_POOLED_BUFFER = "pooled_output_buffer";
+  
+  protected OutputBufferPool pool;
+  protected byte[] bytes;
+  protected int headroom;
+  /**
+   * The next index in bytes to write to.
+   */
+  protected int pos;
+  
+  protected PooledOutputBuffer(OutputBufferPool pool, int headroom, int initialSize) {
+    if (headroom < 0) throw new IllegalArgumentException("headroom must be >= 0, was "+headroom);
+    this.pool = pool;
+    this.headroom = headroom;
+    this.bytes = pool.take(headroom+initialSize);
+    this.pos = headroom;
+  }
+  
+  /**
+   * Make room for n more bytes.
+   */
+  protected void ensure(int n) {
+    if (bytes == null) throw new IllegalStateException(this+" was already released.");
+    if (pos+n <= bytes.length) return;
+    byte[] grown = pool.take(Math.max(pos+n, bytes.length*2));
+    System.arraycopy(bytes, headroom, grown, headroom, pos-headroom);
+    pool.give(bytes);
+    bytes = grown;
+  }
+  
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensure(len);
+    System.arraycopy(b, off, bytes, pos, len);
+    pos+=len;
+  }
+
+  /**
+   * Write the remaining bytes of src, advancing its position.
+   */
+  public void write(ByteBuffer src) throws IOException {
+    int len = src.remaining();
+    ensure(len);
+    src.get(bytes, pos, len);
+    pos+=len;
+  }
+
+  public void write(byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  public void writeBoolean(boolean v) throws IOException {
+    ensure(1);
+    bytes[pos++] = (byte)(v ? 1 : 0);
+  }
+
+  public void writeByte(byte v) throws IOException {
+    ensure(1);
+    bytes[pos++] = v;
+  }
+
+  public void writeChar(char v) throws IOException {
+    writeShort((short)v);
+  }
+
+  public void writeShort(short v) throws IOException {
+    ensure(2);
+    bytes[pos++] = (byte)(v >>> 8);
+    bytes[pos++] = (byte)v;
+  }
+
+  public void writeInt(int v) throws IOException {
+    ensure(4);
+    bytes[pos++] = (byte)(v >>> 24);
+    bytes[pos++] = (byte)(v >>> 16);
+    bytes[pos++] = (byte)(v >>>  8);
+    bytes[pos++] = (byte)v;
+  }
+
+  public void writeLong(long v) throws IOException {
+    ensure(8);
+    bytes[pos++] = (byte)(v >>> 56);
+    bytes[pos++] = (byte)(v >>> 48);
+    bytes[pos++] = (byte)(v >>> 40);
+    bytes[pos++] = (byte)(v >>> 32);
+    bytes[pos++] = (byte)(v >>> 24);
+    bytes[pos++] = (byte)(v >>> 16);
+    bytes[pos++] = (byte)(v >>>  8);
+    bytes[pos++] = (byte)v;
+  }
+
+  public void writeFloat(float v) throws IOException {
+    writeInt(Float.floatToIntBits(v));
+  }
+
+  public void writeDouble(double v) throws IOException {
+    writeLong(Double.doubleToLongBits(v));
+  }
+
+  /**
+   * Java's modified UTF-8, the same as DataOutputStream.writeUTF()
+   */
+  public void writeUTF(String str) throws IOException {
+    int strlen = str.length();
+    int utflen = 0;
+    for (int i = 0; i < strlen; i++) {
+      char c = str.charAt(i);
+      if ((c >= 0x0001) && (c <= 0x007F)) {
+        utflen++;
+      } else if (c > 0x07FF) {
+        utflen += 3;
+      } else {
+        utflen += 2;
+      }
+    }
+    if (utflen > 65535) throw new UTFDataFormatException("encoded string too long: "+utflen+" bytes");
+    
+    writeShort((short)utflen);
+    ensure(utflen);
+    for (int i = 0; i < strlen; i++) {
+      char c = str.charAt(i);
+      if ((c >= 0x0001) && (c <= 0x007F)) {
+        bytes[pos++] = (byte)c;
+      } else if (c > 0x07FF) {
+        bytes[pos++] = (byte)(0xE0 | ((c >> 12) & 0x0F));
+        bytes[pos++] = (byte)(0x80 | ((c >>  6) & 0x3F));
+        bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+      } else {
+        bytes[pos++] = (byte)(0xC0 | ((c >>  6) & 0x1F));
+        bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  public int bytesRemaining() {
+    return Integer.MAX_VALUE;
+  }
+  
+  /**
+   * The amount of bytes written so far, not counting the headroom.
+   */
+  public int getWritten() {
+    return pos-headroom;
+  }
+
+  public int getHeadroom() {
+    return headroom;
+  }
+  
+  /**
+   * @return a copy of the bytes written so far
+   */
+  public byte[] getBytes() {
+    byte[] ret = new byte[pos-headroom];
+    System.arraycopy(bytes, headroom, ret, 0, ret.length);
+    return ret;
+  }
+  
+  /**
+   * A view of the bytes written so far, it shares the pooled array.  The 
+   * position is the start of the message, the headroom is directly in front 
+   * of it.
+   */
+  public ByteBuffer getByteBuffer() {
+    if (bytes == null) throw new IllegalStateException(this+" was already released.");
+    return ByteBuffer.wrap(bytes, headroom, pos-headroom);
+  }
+  
+  /**
+   * @return true if buf is an untouched view returned by getByteBuffer(), so 
+   * the headroom in front of its position belongs to this buffer.
+   */
+  public boolean isView(ByteBuffer buf) {
+    return bytes != null && 
+      buf.hasArray() && 
+      buf.array() == bytes && 
+      buf.arrayOffset() == 0 && 
+      buf.position() == headroom && 
+      buf.limit() == pos;
+  }
+  
+  /**
+   * Return the array to the pool.  Neither this buffer nor any view of it may 
+   * be used afterwards.  Calling it twice has no effect.
+   */
+  public void release() {
+    if (bytes == null) return;
+    byte[] temp = bytes;
+    bytes = null;
+    pool.give(temp);
+  }
+  
+  public String toString() {
+    return "PooledOutputBuffer{"+(pos-headroom)+"/"+(bytes == null ? "released" : ""+bytes.length)+"}";
+  }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.io.IOException;
+import java.util.Random;
+
+import rice.p2p.util.*;
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.pastry.Id;
+
+/**
+ * Measures the time and allocation of adding and checking Ids in the original 
+ * BloomFilter and in the DoubleHashBloomFilter, configured the way 
+ * IdBloomFilter uses them (NUM_BITS_PER_KEY bits per key, NUM_HASH_FUNCTIONS 
+ * hash functions), along with their false positive rates.
+ * 
+ * First checks that the original filter still hashes exactly as before, and 
+ * that both formats survive serialization through BloomFilter.build().
+ * 
+ * Usage: BloomFilterBenchmark [numKeys] [rounds]  (default 1000000 3)
+ * 
+ * @version $Id$
+ */
+public class BloomFilterBenchmark {
+  
+  /**
+   * Exposes the original filter's hash, to compare against the allocating version
+   */
+  static class Original extends BloomFilter {
+    public Original() {
+      super(1, 1);
+    }
+    
+    public int hashOf(byte[] array, int seed) {
+      return doHash(array, seed);
+    }
+  }
+  
+  public static void main(String[] args) throws IOException {
+    int n = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+    int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 3);
+    Random rng = new Random(42);
+    
+    Original original = new Original();
+    for (int i=0; i<10000; i++) {
+      byte[] array = new byte[rng.nextInt(40)];
+      rng.nextBytes(array);
+      int seed = rng.nextInt();
+      byte[] tmp = new byte[array.length+4];
+      MathUtils.intToByteArray(seed, tmp, 0);
+      System.arraycopy(array, 0, tmp, 4, array.length);
+      
+      if (original.hashOf(array, seed) != MathUtils.simpleHash(tmp)) 
+        throw new RuntimeException("FAILURE: original hash changed for seed "+seed);
+    }
+    
+    Id[] ids = new Id[n];
+    Id[] others = new Id[n];
+    for (int i=0; i<n; i++) {
+      ids[i] = Id.makeRandomId(rng);
+      others[i] = Id.makeRandomId(rng);
+    }
+    
+    checkSerialization(new BloomFilter(IdBloomFilter.NUM_HASH_FUNCTIONS, 1000), ids);
+    checkSerialization(new DoubleHashBloomFilter(IdBloomFilter.NUM_HASH_FUNCTIONS, 1000), ids);
+    System.out.println("Serialization and compatibility checks passed");
+    
+    for (int r=0; r<rounds; r++) {
+      run(new BloomFilter(IdBloomFilter.NUM_HASH_FUNCTIONS, IdBloomFilter.NUM_BITS_PER_KEY * n), ids, others);
+      run(new DoubleHashBloomFilter(IdBloomFilter.NUM_HASH_FUNCTIONS, IdBloomFilter.NUM_BITS_PER_KEY * n), ids, others);
+    }
+  }
+  
+  protected static void checkSerialization(BloomFilter filter, Id[] ids) throws IOException {
+    byte[] array = new byte[Id.IdBitLength/8];
+    for (int i=0; i<100; i++) {
+      ids[i].toByteArray(array, 0);
+      filter.add(array);
+    }
+    
+    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    filter.serialize(sob);
+    BloomFilter copy = BloomFilter.build(new SimpleInputBuffer(sob.getBytes()));
+    
+    if ((copy.getClass() != filter.getClass()) || (! copy.getBitSet().equals(filter.getBitSet())))
+      throw new RuntimeException("FAILURE: "+filter.getClass().getName()+" did not survive serialization");
+    
+    for (int i=0; i<ids.length; i++) {
+      ids[i].toByteArray(array, 0);
+      if (copy.check(array) != filter.check(array))
+        throw new RuntimeException("FAILURE: "+filter.getClass().getName()+" copy answers differently");
+    }
+  }
+  
+  protected static void run(BloomFilter filter, Id[] ids, Id[] others) {
+    byte[] array = new byte[Id.IdBitLength/8];
+    int n = ids.length;
+    
+    long startAlloc = OutputBufferBenchmark.allocatedBytes();
+    long start = System.nanoTime();
+    for (int i=0; i<n; i++) {
+      ids[i].toByteArray(array, 0);
+      filter.add(array);
+    }
+    long addTime = System.nanoTime() - start;
+    long addAlloc = OutputBufferBenchmark.allocatedBytes() - startAlloc;
+    
+    startAlloc = OutputBufferBenchmark.allocatedBytes();
+    start = System.nanoTime();
+    for (int i=0; i<n; i++) {
+      ids[i].toByteArray(array, 0);
+      if (! filter.check(array))
+        throw new RuntimeException("FAILURE: Element " + i + " did not exist!");
+    }
+    
+    int falsePositives = 0;
+    for (int i=0; i<n; i++) {
+      others[i].toByteArray(array, 0);
+      if (filter.check(array))
+        falsePositives++;
+    }
+    long checkTime = System.nanoTime() - start;
+    long checkAlloc = OutputBufferBenchmark.allocatedBytes() - startAlloc;
+    
+    System.out.println(filter.getClass().getName()+" keys:"+n+
+        " add: "+(addTime/n)+"ns "+(addAlloc/n)+" bytes allocated/key"+
+        " check: "+(checkTime/(2*n))+"ns "+(checkAlloc/(2*n))+" bytes allocated/key"+
+        " false positives: "+(falsePositives*100.0/n)+"%");
+  }
+}
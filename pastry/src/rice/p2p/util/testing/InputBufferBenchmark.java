@@ -0,0 +1,195 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.MessageDeserializer;
+import rice.p2p.util.rawserialization.ByteBufferInputBuffer;
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.pastry.Id;
+import rice.pastry.commonapi.PastryEndpointMessage;
+import rice.pastry.routing.RouteMessage;
+
+/**
+ * Measures the allocation rate and time of deserializing a RouteMessage 
+ * carrying a PastryEndpointMessage, the way the CommonAPI transport layer 
+ * does it, with a SimpleInputBuffer and with a ByteBufferInputBuffer (over a 
+ * heap and a direct buffer).
+ * 
+ * First checks that ByteBufferInputBuffer reads random primitives exactly as 
+ * SimpleInputBuffer does.
+ * 
+ * Usage: InputBufferBenchmark [payloadSize...]  (default 32 256 1024 8192)
+ * 
+ * @version $Id$
+ */
+public class InputBufferBenchmark {
+  
+  public static final int MESSAGES = 500000;
+
+  static final MessageDeserializer PAYLOAD_MD = new MessageDeserializer() {
+    public Message deserialize(InputBuffer buf, short type, int priority, NodeHandle sender) throws IOException {
+      return new OutputBufferBenchmark.Payload(buf);
+    }
+  };
+  
+  static final MessageDeserializer PEM_MD = new MessageDeserializer() {
+    public Message deserialize(InputBuffer buf, short type, int priority, NodeHandle sender) throws IOException {
+      return new PastryEndpointMessage(7, buf, PAYLOAD_MD, type, priority, (rice.pastry.NodeHandle)sender);
+    }
+  };
+
+  public static void main(String[] args) throws IOException {
+    int[] sizes = {32, 256, 1024, 8192};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+    }
+    
+    checkPrimitives();
+    
+    Random rng = new Random(1);
+    for (int i = 0; i < sizes.length; i++) {
+      RouteMessage rm = new RouteMessage(Id.makeRandomId(rng), 
+          new PastryEndpointMessage(7, new OutputBufferBenchmark.Payload(sizes[i]), null), (byte)0);
+      SimpleOutputBuffer sob = new SimpleOutputBuffer();
+      rm.serialize(sob);
+      byte[] bytes = sob.getBytes();
+      ByteBuffer heap = ByteBuffer.wrap(bytes);
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes);
+      direct.flip();
+      
+      // warm up
+      for (int j = 0; j < 3; j++) {
+        run("simple", heap, 0, MESSAGES/10, false);
+        run("bytebuffer", heap, 1, MESSAGES/10, false);
+        run("bytebuffer(direct)", direct, 1, MESSAGES/10, false);
+      }
+      
+      run("simple", heap, 0, MESSAGES, true);
+      run("bytebuffer", heap, 1, MESSAGES, true);
+      run("bytebuffer(direct)", direct, 1, MESSAGES, true);
+    }
+  }
+  
+  static void checkPrimitives() throws IOException {
+    Random rng = new Random(2);
+    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    for (int i = 0; i < 10000; i++) {
+      switch (i % 9) {
+        case 0: sob.writeBoolean(rng.nextBoolean()); break;
+        case 1: sob.writeByte((byte)rng.nextInt()); break;
+        case 2: sob.writeChar((char)rng.nextInt()); break;
+        case 3: sob.writeShort((short)rng.nextInt()); break;
+        case 4: sob.writeInt(rng.nextInt()); break;
+        case 5: sob.writeLong(rng.nextLong()); break;
+        case 6: sob.writeFloat(rng.nextFloat()); break;
+        case 7: sob.writeDouble(rng.nextDouble()); break;
+        case 8: 
+          char[] c = new char[rng.nextInt(20)];
+          for (int j = 0; j < c.length; j++) c[j] = (char)rng.nextInt(rng.nextBoolean() ? 0x80 : 0x10000);
+          sob.writeUTF(new String(c)); 
+          break;
+      }
+    }
+    byte[] bytes = sob.getBytes();
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length+3);
+    direct.position(3);
+    direct.put(bytes);
+    direct.position(3);
+    
+    InputBuffer[] bufs = {new SimpleInputBuffer(bytes), new ByteBufferInputBuffer(ByteBuffer.wrap(bytes)), new ByteBufferInputBuffer(direct)};
+    for (int i = 0; i < 10000; i++) {
+      Object[] vals = new Object[bufs.length];
+      for (int j = 0; j < bufs.length; j++) {
+        InputBuffer b = bufs[j];
+        switch (i % 9) {
+          case 0: vals[j] = b.readBoolean(); break;
+          case 1: vals[j] = b.readByte(); break;
+          case 2: vals[j] = b.readChar(); break;
+          case 3: vals[j] = b.readShort(); break;
+          case 4: vals[j] = b.readInt(); break;
+          case 5: vals[j] = b.readLong(); break;
+          case 6: vals[j] = b.readFloat(); break;
+          case 7: vals[j] = b.readDouble(); break;
+          case 8: vals[j] = b.readUTF(); break;
+        }
+      }
+      for (int j = 1; j < bufs.length; j++) {
+        if (!vals[0].equals(vals[j]) || bufs[0].bytesRemaining() != bufs[j].bytesRemaining()) {
+          System.out.println("FAILURE at "+i+": "+vals[0]+" != "+vals[j]+" ("+bufs[j]+")");
+          System.exit(1);
+        }
+      }
+    }
+    System.out.println("primitives match");
+  }
+  
+  /**
+   * @param mode 0 = SimpleInputBuffer, 1 = ByteBufferInputBuffer
+   */
+  static void run(String name, ByteBuffer msg, int mode, int n, boolean print) throws IOException {
+    long check = 0;
+    long startAlloc = OutputBufferBenchmark.allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      InputBuffer buf;
+      if (mode == 0) {
+        buf = new SimpleInputBuffer(msg.array(), msg.position());
+      } else {
+        buf = new ByteBufferInputBuffer(msg);
+      }
+      RouteMessage rm = RouteMessage.build(buf, (byte)0, null, null, (byte)0);
+      PastryEndpointMessage pem = (PastryEndpointMessage)rm.unwrap(PEM_MD);
+      check += ((OutputBufferBenchmark.Payload)pem.getMessage()).data.length;
+    }
+    long time = System.nanoTime()-start;
+    long alloc = OutputBufferBenchmark.allocatedBytes()-startAlloc;
+    if (print) {
+      System.out.println(name+" payload:"+(check/n)+" "+(time/n)+" ns/msg "+
+          (alloc/n)+" bytes allocated/msg");
+    }
+  }
+}
@@ -146,7 +146,20 @@ public class MathUtilsUnit {
       }
       
       if (passed) System.out.println("[ PASSED ]");
-      
+
+    System.out.print("    Testing murmurHash128\t\t\t\t");
+
+    long[] hash = new long[2];
+    byte[] fox = "xThe quick brown fox jumps over the lazy dog".getBytes();
+    MathUtils.murmurHash128(fox, 1, fox.length - 1, 0, hash);
+
+    if ((hash[0] == 0xe34bbc7bbc071b6cL) && (hash[1] == 0x7a433ca9c49a9347L)) {
+      System.out.println("[ PASSED ]");
+    } else {
+      System.out.println("[ FAILED ]");
+      System.out.println("    Output:\t" + Long.toHexString(hash[0]) + " " + Long.toHexString(hash[1]));
+    }
+
     System.out.println("-------------------------------------------------------------");
   }
 }
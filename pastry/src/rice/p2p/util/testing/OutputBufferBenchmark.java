@@ -0,0 +1,205 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.p2p.util.rawserialization.OutputBufferPool;
+import rice.p2p.util.rawserialization.PooledOutputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.pastry.Id;
+import rice.pastry.commonapi.PastryEndpointMessage;
+import rice.pastry.routing.RouteMessage;
+
+/**
+ * Measures the allocation rate and time of serializing a RouteMessage and 
+ * framing it for the PriorityTransportLayer, the way the CommonAPI transport 
+ * layer does it:
+ * 
+ *   simple: SimpleOutputBuffer, getBytes(), then copy behind a size header
+ *   pooled: PooledOutputBuffer with headroom, size written in place, released
+ * 
+ * First checks that both produce identical bytes.  Allocation is measured 
+ * with the HotSpot per-thread allocation counter.
+ * 
+ * Usage: OutputBufferBenchmark [payloadSize...]  (default 32 256 1024 8192)
+ * 
+ * @version $Id$
+ */
+public class OutputBufferBenchmark {
+  
+  public static final int MESSAGES = 500000;
+  
+  static class Payload implements RawMessage {
+    static final String LABEL = "payload\u00e9\u4e2d";
+    byte[] data;
+    
+    public Payload(int size) {
+      data = new byte[size];
+      new Random(size).nextBytes(data);
+    }
+    
+    public Payload(InputBuffer buf) throws IOException {
+      if (!buf.readUTF().equals(LABEL)) throw new IOException("bad label");
+      if (buf.readLong() != 0x0102030405060708L) throw new IOException("bad long");
+      data = new byte[buf.readInt()];
+      buf.read(data);
+    }
+    
+    public short getType() {
+      return 42;
+    }
+
+    public int getPriority() {
+      return DEFAULT_PRIORITY;
+    }
+    
+    public void serialize(OutputBuffer buf) throws IOException {
+      buf.writeUTF(LABEL);
+      buf.writeLong(0x0102030405060708L);
+      buf.writeInt(data.length);
+      buf.write(data, 0, data.length);
+    }
+  }
+  
+  public static void main(String[] args) throws IOException {
+    int[] sizes = {32, 256, 1024, 8192};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+    }
+    
+    OutputBufferPool pool = new OutputBufferPool(32, 65536);
+    Random rng = new Random(1);
+    
+    for (int i = 0; i < sizes.length; i++) {
+      RouteMessage rm = new RouteMessage(Id.makeRandomId(rng), 
+          new PastryEndpointMessage(7, new Payload(sizes[i]), null), (byte)0);
+      
+      if (!Arrays.equals(simple(rm).array(), pooledCopy(pool, rm))) {
+        System.out.println("FAILURE: pooled serialization differs for size "+sizes[i]);
+        System.exit(1);
+      }
+      
+      // warm up
+      run("simple", rm, null, MESSAGES/10, false);
+      run("pooled", rm, pool, MESSAGES/10, false);
+      
+      run("simple", rm, null, MESSAGES, true);
+      run("pooled", rm, pool, MESSAGES, true);
+    }
+    System.out.println(pool);
+  }
+  
+  /**
+   * The old path, returns the framed message.
+   */
+  static ByteBuffer simple(RouteMessage rm) throws IOException {
+    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    rm.serialize(sob);
+    ByteBuffer message = ByteBuffer.wrap(sob.getBytes());
+    int size = message.remaining();
+    ByteBuffer ret = ByteBuffer.allocate(size+4);
+    ret.putInt(size);
+    ret.put(message);
+    ret.clear();
+    return ret;
+  }
+  
+  /**
+   * The new path, returns the buffer to be released once the framed message is written.
+   */
+  static PooledOutputBuffer pooled(OutputBufferPool pool, RouteMessage rm) throws IOException {
+    PooledOutputBuffer pob = pool.getBuffer(4);
+    rm.serialize(pob);
+    ByteBuffer message = pob.getByteBuffer();
+    int size = message.remaining();
+    int off = message.position()-4;
+    message.putInt(off, size);
+    // the slice is what the PriorityTransportLayer writes to the socket
+    ByteBuffer.wrap(message.array(), off, size+4).slice();
+    return pob;
+  }
+
+  static byte[] pooledCopy(OutputBufferPool pool, RouteMessage rm) throws IOException {
+    PooledOutputBuffer pob = pooled(pool, rm);
+    ByteBuffer message = pob.getByteBuffer();
+    byte[] ret = new byte[message.remaining()+4];
+    System.arraycopy(message.array(), message.position()-4, ret, 0, ret.length);
+    pob.release();
+    return ret;
+  }
+  
+  static void run(String name, RouteMessage rm, OutputBufferPool pool, int n, boolean print) throws IOException {
+    long bytes = 0;
+    long startAlloc = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      if (pool == null) {
+        bytes += simple(rm).remaining();
+      } else {
+        PooledOutputBuffer pob = pooled(pool, rm);
+        bytes += pob.getWritten()+4;
+        pob.release();
+      }
+    }
+    long time = System.nanoTime()-start;
+    long alloc = allocatedBytes()-startAlloc;
+    if (print) {
+      System.out.println(name+" msgSize:"+(bytes/n)+" "+(time/n)+" ns/msg "+
+          (alloc/n)+" bytes allocated/msg "+
+          (alloc*1000L/Math.max(time, 1))+" MB/s at "+(n*1000000000L/Math.max(time, 1))+" msgs/s");
+    }
+  }
+  
+  /**
+   * @return the bytes allocated by this thread so far, or 0 if the JVM can't tell us
+   */
+  public static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,282 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+import rice.p2p.util.ConcurrentReverseTreeMap;
+import rice.p2p.util.ReverseTreeMap;
+
+/**
+ * Runs random operations against a ConcurrentReverseTreeMap and a 
+ * ReverseTreeMap and checks that their maps agree, then measures put latency 
+ * and scan time with a writer, which puts every 100us, and a scanner running
+ * at the same time.  
+ * The ReverseTreeMap has to be locked for the whole scan, as the storages 
+ * did, while the ConcurrentReverseTreeMap is scanned without a lock.
+ * 
+ * Usage: TestConcurrentReverseTreeMap [numKeys] [seconds]
+ * 
+ * @version $Id$
+ */
+@SuppressWarnings("unchecked")
+public class TestConcurrentReverseTreeMap {
+  
+  static void check(String name, Map expected, Map actual) {
+    if (expected.size() != actual.size()) throw new RuntimeException(name + ": size " + actual.size() + " != " + expected.size());
+    Iterator i = expected.entrySet().iterator();
+    Iterator j = actual.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry e = (Map.Entry) i.next();
+      Map.Entry a = (Map.Entry) j.next();
+      if (! (e.getKey().equals(a.getKey()) && ((e.getValue() == null) ? (a.getValue() == null) : e.getValue().equals(a.getValue()))))
+        throw new RuntimeException(name + ": " + a + " != " + e);
+    }
+    if (j.hasNext()) throw new RuntimeException(name + ": iterator too long");
+  }
+  
+  static void check(String name, SortedMap expected, SortedMap actual, Random r, int range) {
+    check(name, (Map) expected, (Map) actual);
+    
+    if (! expected.isEmpty()) {
+      Object[] order = expected.keySet().toArray();
+      if (! order[0].equals(expected.firstKey())) throw new RuntimeException(name + ": expected firstKey " + expected.firstKey() + " != " + order[0]);
+      if (! order[order.length - 1].equals(expected.lastKey())) throw new RuntimeException(name + ": expected lastKey " + expected.lastKey() + " != " + order[order.length - 1]);
+      if (! expected.firstKey().equals(actual.firstKey())) throw new RuntimeException(name + ": firstKey " + actual.firstKey() + " != " + expected.firstKey());
+      if (! expected.lastKey().equals(actual.lastKey())) throw new RuntimeException(name + ": lastKey " + actual.lastKey() + " != " + expected.lastKey());
+    } else if (! actual.isEmpty()) {
+      throw new RuntimeException(name + ": not empty");
+    }
+    
+    for (int i = 0; i < 5; i++) {
+      Integer key = new Integer(r.nextInt(range));
+      if (expected.containsKey(key) != actual.containsKey(key)) throw new RuntimeException(name + ": containsKey " + key);
+      Object e = expected.get(key);
+      Object a = actual.get(key);
+      if ((e == null) ? (a != null) : (! e.equals(a))) throw new RuntimeException(name + ": get " + key + " " + a + " != " + e);
+    }
+  }
+  
+  /**
+   * A wrapped sub map whose last key is its start, which the RedBlackMap's
+   * lastKey() used to miss
+   */
+  static void wrappedLastKey() {
+    ReverseTreeMap expected = new ReverseTreeMap();
+    ConcurrentReverseTreeMap actual = new ConcurrentReverseTreeMap();
+    
+    for (int i = 0; i < 10; i += 3) {
+      expected.put(new Integer(i), null);
+      actual.put(new Integer(i), null);
+    }
+    
+    SortedMap e = expected.keySubMap(new Integer(9), new Integer(4));
+    SortedMap a = actual.keySubMap(new Integer(9), new Integer(4));
+    if (! new Integer(9).equals(e.lastKey())) throw new RuntimeException("RedBlackMap wrapped lastKey " + e.lastKey() + " != 9");
+    if (! new Integer(9).equals(a.lastKey())) throw new RuntimeException("wrapped lastKey " + a.lastKey() + " != 9");
+    check("wrapped keySubMap", e, a, new Random(0), 10);
+  }
+  
+  static void correctness(Random r) {
+    int range = 200;
+    ReverseTreeMap expected = new ReverseTreeMap();
+    ConcurrentReverseTreeMap actual = new ConcurrentReverseTreeMap();
+    
+    for (int step = 0; step < 20000; step++) {
+      Integer key = new Integer(r.nextInt(range));
+      
+      if (r.nextInt(3) == 0) {
+        expected.remove(key);
+        actual.remove(key);
+      } else {
+        Integer value = (r.nextInt(5) == 0) ? null : new Integer(r.nextInt(20));
+        expected.put(key, value);
+        actual.put(key, value);
+      }
+      
+      if (step % 20 != 0) 
+        continue;
+      
+      if (expected.size() != actual.size()) throw new RuntimeException("size " + actual.size() + " != " + expected.size());
+      check("keyMap", expected.keyMap(), actual.keyMap(), r, range);
+      check("valueNullMap", expected.valueNullMap(), actual.valueNullMap(), r, range);
+      
+      Integer a = new Integer(r.nextInt(range));
+      Integer b = new Integer(r.nextInt(range));
+      check("keyHeadMap " + a, expected.keyHeadMap(a), actual.keyHeadMap(a), r, range);
+      check("keyTailMap " + a, expected.keyTailMap(a), actual.keyTailMap(a), r, range);
+      check("keySubMap " + a + " " + b, expected.keySubMap(a, b), actual.keySubMap(a, b), r, range);
+      check("keyMap.subMap " + a + " " + b, expected.keyMap().subMap(a, b), actual.keyMap().subMap(a, b), r, range);
+      
+      /* views of views, within the bounds of the outer view */
+      int lo = Math.min(a.intValue(), b.intValue());
+      int hi = Math.max(a.intValue(), b.intValue());
+      Integer c = new Integer(lo + r.nextInt(hi - lo + 1));
+      Integer d = new Integer(c.intValue() + r.nextInt(hi - c.intValue() + 1));
+      SortedMap e = expected.keySubMap(new Integer(lo), new Integer(hi));
+      SortedMap f = actual.keySubMap(new Integer(lo), new Integer(hi));
+      check("keySubMap.subMap", e.subMap(c, d), f.subMap(c, d), r, range);
+      check("keySubMap.headMap", e.headMap(c), f.headMap(c), r, range);
+      check("keySubMap.tailMap", e.tailMap(c), f.tailMap(c), r, range);
+      
+      Integer v = new Integer(r.nextInt(20));
+      Integer w = new Integer(v.intValue() + r.nextInt(20 - v.intValue()));
+      check("valueHeadMap " + v, expected.valueHeadMap(v), actual.valueHeadMap(v), r, range);
+      check("valueTailMap " + v, expected.valueTailMap(v), actual.valueTailMap(v), r, range);
+      check("valueSubMap " + v + " " + w, expected.valueSubMap(v, w), actual.valueSubMap(v, w), r, range);
+    }
+  }
+  
+  static String percentiles(long[] times, int count) {
+    Arrays.sort(times, 0, count);
+    return "p50 " + (times[count / 2] / 1000) + "us p99 " + (times[(int) (count * 0.99)] / 1000) + "us max " + (times[count - 1] / 1000) + "us";
+  }
+  
+  /**
+   * Runs a writer and a scanner for the given time, and prints their latency
+   */
+  static void concurrent(final boolean concurrent, final int keys, long millis) throws InterruptedException {
+    final ReverseTreeMap locked = new ReverseTreeMap();
+    final ConcurrentReverseTreeMap map = new ConcurrentReverseTreeMap();
+    final Random r = new Random(1);
+    
+    for (int i = 0; i < keys; i++) {
+      if (concurrent) 
+        map.put(new Integer(i), new Long(r.nextInt(keys)));
+      else
+        locked.put(new Integer(i), new Long(r.nextInt(keys)));
+    }
+    
+    final long end = System.currentTimeMillis() + millis;
+    final long[] writes = new long[10000000];
+    final int[] numWrites = new int[1];
+    final long[] scans = new long[1000000];
+    final int[] numScans = new int[1];
+    
+    Thread writer = new Thread() {
+      public void run() {
+        Random r = new Random(2);
+        int count = 0;
+        
+        while ((count < writes.length) && (System.currentTimeMillis() < end)) {
+          /* a store every 100us, as a storage sees them, rather than a writer which never lets go */
+          LockSupport.parkNanos(100000);
+          Integer key = new Integer(r.nextInt(keys));
+          Long value = new Long(r.nextInt(keys));
+          long start = System.nanoTime();
+          
+          if (concurrent) {
+            map.put(key, value);
+          } else {
+            synchronized (locked) {
+              locked.put(key, value);
+            }
+          }
+          
+          writes[count++] = System.nanoTime() - start;
+        }
+        
+        numWrites[0] = count;
+      }
+    };
+    
+    Thread scanner = new Thread() {
+      public void run() {
+        Random r = new Random(3);
+        int count = 0;
+        long sum = 0;
+        
+        while ((count < scans.length) && (System.currentTimeMillis() < end)) {
+          /* a range of a sixteenth of the keys, and the keys whose value is below a sixteenth */
+          Integer from = new Integer(r.nextInt(keys));
+          Integer to = new Integer((from.intValue() + keys / 16) % keys);
+          Long expiration = new Long(keys / 16);
+          long start = System.nanoTime();
+          
+          if (concurrent) {
+            sum += iterate(map.keySubMap(from, to));
+            sum += iterate(map.valueHeadMap(expiration));
+          } else {
+            synchronized (locked) {
+              sum += iterate(locked.keySubMap(from, to));
+              sum += iterate(locked.valueHeadMap(expiration));
+            }
+          }
+          
+          scans[count++] = System.nanoTime() - start;
+        }
+        
+        numScans[0] = count;
+        if (sum == 42) System.out.println();
+      }
+    };
+    
+    writer.start();
+    scanner.start();
+    writer.join();
+    scanner.join();
+    
+    System.out.println((concurrent ? "ConcurrentReverseTreeMap" : "locked ReverseTreeMap") + " keys:" + keys +
+        " puts: " + (numWrites[0] * 1000L / millis) + "/s " + percentiles(writes, numWrites[0]) + 
+        " scans: " + (numScans[0] * 1000L / millis) + "/s " + percentiles(scans, numScans[0]));
+  }
+  
+  static long iterate(SortedMap map) {
+    long result = 0;
+    Iterator i = map.keySet().iterator();
+    
+    while (i.hasNext())
+      result += ((Integer) i.next()).intValue();
+    
+    return result;
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    long millis = (args.length > 1 ? Integer.parseInt(args[1]) : 5) * 1000L;
+    
+    wrappedLastKey();
+    correctness(new Random(Long.getLong("seed", 0).longValue()));
+    System.out.println("ConcurrentReverseTreeMap agrees with ReverseTreeMap");
+    
+    for (int i = 0; i < 2; i++) {
+      concurrent(false, keys, millis);
+      concurrent(true, keys, millis);
+    }
+  }
+}
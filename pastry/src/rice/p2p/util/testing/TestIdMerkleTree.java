@@ -0,0 +1,279 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.*;
+import rice.p2p.util.*;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.persistence.MerkleMetadataMap;
+
+/**
+ * Runs random adds and removes against an IdMerkleTree and an IdSet, and 
+ * checks the fingerprints, sizes, Ids and splits of random ranges against 
+ * the IdSet, and checks that the tree a storage builds on demand follows
+ * the later changes to the storage.  It then compares two trees of numIds Ids which differ in a 
+ * few Ids the way the replication does, by descending into the ranges 
+ * whose fingerprints differ, and prints how many ranges had to be compared.
+ * 
+ * Usage: TestIdMerkleTree [numIds]
+ * 
+ * @version $Id$
+ */
+public class TestIdMerkleTree {
+  
+  static IdFactory factory;
+  static Random random = new Random(42);
+  
+  static Id randomId(Id[] near) {
+    byte[] bytes = new byte[20];
+    random.nextBytes(bytes);
+    
+    /* keep most ids close to another one, so that the tree gets deep */
+    if ((near != null) && random.nextBoolean()) {
+      byte[] other = near[random.nextInt(near.length)].toByteArray();
+      System.arraycopy(other, 2, bytes, 2, 18);
+    }
+    
+    return factory.buildId(bytes);
+  }
+  
+  static IdRange randomRange(Id[] ids) {
+    switch (random.nextInt(8)) {
+      case 0:
+        return factory.buildIdRange(ids[0], ids[0]);
+      case 1:
+        return new rice.pastry.IdRange();
+      case 2: 
+        return factory.buildIdRange(ids[random.nextInt(ids.length)], ids[random.nextInt(ids.length)]);
+      default:
+        return factory.buildIdRange(randomId(ids), randomId(ids));
+    }
+  }
+  
+  static byte[] hash(IdSet set) {
+    byte[] result = new byte[IdMerkleTree.HASH_LENGTH];
+    Iterator i = set.getIterator();
+    
+    while (i.hasNext()) {
+      byte[] hash = SecurityUtils.hash(((Id) i.next()).toByteArray());
+      for (int j = 0; j < result.length; j++) 
+        result[j] ^= hash[j];
+    }
+    
+    return result;
+  }
+  
+  static void check(IdMerkleTree tree, IdSet set, IdRange range, int splits) {
+    IdSet expected = set.subSet(range);
+    
+    if (tree.getSize(range) != expected.numElements()) throw new RuntimeException("size of " + range + ": " + tree.getSize(range) + " != " + expected.numElements());
+    if (! Arrays.equals(tree.getHash(range), hash(expected))) throw new RuntimeException("hash of " + range);
+    
+    IdSet ids = tree.getIds(range, factory.buildIdSet());
+    if ((ids.numElements() != expected.numElements()) || (! Arrays.equals(hash(ids), hash(expected)))) throw new RuntimeException("ids of " + range);
+    
+    if ((splits > 0) && (expected.numElements() > 1)) {
+      IdRange[] parts = IdMerkleTree.split(range, factory);
+      if (parts.length < 2) throw new RuntimeException("split of " + range + " into " + parts.length);
+      
+      int size = 0;
+      for (int i = 0; i < parts.length; i++) {
+        size += set.subSet(parts[i]).numElements();
+        check(tree, set, parts[i], splits - 1);
+      }
+      
+      if (size != expected.numElements()) throw new RuntimeException("parts of " + range + " hold " + size + " != " + expected.numElements());
+    }
+  }
+  
+  /**
+   * Finds the Ids in b missing from a, the way the replication does, and 
+   * returns the number of ranges compared
+   */
+  static int sync(IdMerkleTree a, IdMerkleTree b, IdRange range, IdSet missing, int leafKeys) {
+    int compared = 1;
+    
+    if (Arrays.equals(a.getHash(range), b.getHash(range)))
+      return compared;
+    
+    if (b.getSize(range) <= leafKeys) {
+      Iterator i = b.getIds(range, factory.buildIdSet()).getIterator();
+      while (i.hasNext()) {
+        Id id = (Id) i.next();
+        if (! a.contains(id)) 
+          missing.addId(id);
+      }
+    } else {
+      IdRange[] parts = IdMerkleTree.split(range, factory);
+      for (int i = 0; i < parts.length; i++) 
+        compared += sync(a, b, parts[i], missing, leafKeys);
+    }
+    
+    return compared;
+  }
+
+  public static void main(String[] args) {
+    int num = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    
+    Environment env = new Environment();
+    factory = new PastryIdFactory(env);
+    
+    try {
+      run(num);
+    } finally {
+      env.destroy();
+    }
+  }
+  
+  static void run(int num) {    
+    /* random operations */
+    IdMerkleTree tree = new IdMerkleTree();
+    IdSet set = factory.buildIdSet();
+    ArrayList list = new ArrayList();
+    list.add(randomId(null));
+    tree.add((Id) list.get(0));
+    set.addId((Id) list.get(0));
+    
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 1000; i++) {
+        Id[] ids = (Id[]) list.toArray(new Id[0]);
+        
+        if ((random.nextInt(3) == 0) && (list.size() > 1)) {
+          Id id = (Id) list.remove(random.nextInt(list.size()));
+          if (! tree.remove(id)) throw new RuntimeException("remove " + id);
+          if (tree.remove(id)) throw new RuntimeException("removed twice " + id);
+          set.removeId(id);
+        } else {
+          Id id = randomId(ids);
+          boolean added = ! set.isMemberId(id);
+          if (tree.add(id) != added) throw new RuntimeException("add " + id);
+          if (tree.add(id)) throw new RuntimeException("added twice " + id);
+          set.addId(id);
+          if (added)
+            list.add(id);
+        }
+      }
+      
+      if (tree.size() != set.numElements()) throw new RuntimeException("size " + tree.size() + " != " + set.numElements());
+      
+      Id[] ids = (Id[]) list.toArray(new Id[0]);
+      for (int i = 0; i < 100; i++) 
+        check(tree, set, randomRange(ids), 2);
+    }
+    
+    /* shrink it again, so that leaves are collapsed */
+    while (list.size() > 10) {
+      if (tree.size() != list.size()) throw new RuntimeException("size " + tree.size() + " != " + list.size());
+      Id id = (Id) list.remove(random.nextInt(list.size()));
+      tree.remove(id);
+      set.removeId(id);
+    }
+    Id[] rest = (Id[]) list.toArray(new Id[0]);
+    for (int i = 0; i < 100; i++) 
+      check(tree, set, randomRange(rest), 3);
+    
+    System.out.println("Random operations passed.");
+    
+    /* only Ids of the length of the tree are supported */
+    IdMerkleTree shorter = new IdMerkleTree(16);
+    if (shorter.supports(rest[0]) || (! tree.supports(rest[0]))) throw new RuntimeException("supports " + rest[0]);
+    
+    try {
+      shorter.add(rest[0]);
+      throw new RuntimeException("added an Id of the wrong length");
+    } catch (IllegalArgumentException e) {
+    }
+    
+    /* a storage's tree is built when it is first asked for, and then kept up to date */
+    MerkleMetadataMap map = new MerkleMetadataMap();
+    for (int i = 0; i < rest.length - 1; i++) 
+      map.put(rest[i], null);
+    
+    IdMerkleTree built = map.getMerkleTree();
+    map.put(rest[rest.length - 1], null);
+    map.remove(rest[0]);
+    set.removeId(rest[0]);
+    
+    if (built.size() != set.numElements()) throw new RuntimeException("size " + built.size() + " != " + set.numElements());
+    check(built, set, factory.buildIdRange(rest[0], rest[0]), 3);
+    
+    System.out.println("Storage trees passed.");
+    
+    /* synchronization of two replicas */
+    IdMerkleTree a = new IdMerkleTree();
+    IdMerkleTree b = new IdMerkleTree();
+    Id[] ids = new Id[num];
+    
+    long start = System.nanoTime();
+    for (int i = 0; i < num; i++) {
+      ids[i] = randomId(null);
+      a.add(ids[i]);
+      b.add(ids[i]);
+    }
+    System.out.println("Built two trees of " + num + " ids in " + ((System.nanoTime() - start) / 2000000) + "ms");
+    
+    IdRange range = factory.buildIdRange(randomId(null), randomId(null));
+    int[] diffs = new int[] {0, 1, 10, 100, 1000};
+    
+    for (int d = 0; d < diffs.length; d++) {
+      IdSet expected = factory.buildIdSet();
+      
+      while (expected.numElements() < diffs[d]) {
+        Id id = ids[random.nextInt(num)];
+        
+        if (range.containsId(id) && a.remove(id)) 
+          expected.addId(id);
+      }
+      
+      IdSet missing = factory.buildIdSet();
+      start = System.nanoTime();
+      int compared = sync(a, b, range, missing, 64);
+      long time = System.nanoTime() - start;
+      
+      if (! Arrays.equals(hash(missing), hash(expected))) throw new RuntimeException("found " + missing.numElements() + " of " + expected.numElements() + " missing ids");
+      
+      System.out.println("ids in range: " + b.getSize(range) + " missing: " + diffs[d] + " ranges compared: " + compared + " time: " + (time / 1000) + "us");
+      
+      Iterator i = expected.getIterator();
+      while (i.hasNext()) 
+        a.add((Id) i.next());
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import rice.p2p.util.PriorityRingQueue;
+import rice.p2p.util.SortedLinkedList;
+
+/**
+ * Runs random operations against a PriorityRingQueue and a SortedLinkedList 
+ * and checks that they agree, then times both filling up to a depth and 
+ * draining, as the queue of a stalled socket would.
+ * 
+ * @version $Id$
+ */
+public class TestPriorityRingQueue {
+
+  static class Elt implements Comparable<Elt> {
+    int priority;
+    int seq;
+    int size;
+    
+    Elt(int priority, int seq, int size) {
+      this.priority = priority;
+      this.seq = seq;
+      this.size = size;
+    }
+    
+    public int compareTo(Elt that) {
+      if (this.priority == that.priority) {
+        return this.seq-that.seq;        
+      }
+      return this.priority-that.priority;
+    }
+    
+    public String toString() {
+      return priority+"/"+seq;
+    }
+  }
+  
+  static void check(PriorityRingQueue<Elt> q, SortedLinkedList<Elt> l, long bytes) {
+    if (q.size() != l.size()) throw new RuntimeException("size "+q.size()+" != "+l.size());
+    if (q.bytes() != bytes) throw new RuntimeException("bytes "+q.bytes()+" != "+bytes);
+    Iterator<Elt> i = l.iterator();
+    for (Elt e : q) {
+      Elt e2 = i.next();
+      if (e != e2) throw new RuntimeException("order "+e+" != "+e2+" "+q+" "+l);
+    }
+    if (i.hasNext()) throw new RuntimeException("iterator too short");
+  }
+  
+  public static void main(String[] args) {
+    Random r = new Random(Long.getLong("seed", 0));
+    PriorityRingQueue<Elt> q = new PriorityRingQueue<Elt>();
+    SortedLinkedList<Elt> l = new SortedLinkedList<Elt>();
+    long bytes = 0;
+    int seq = 0;
+    for (int ctr = 0; ctr < 200000; ctr++) {
+      int op = r.nextInt(12);
+      if (op < 5) {
+        Elt e = new Elt(r.nextInt(7)-3, seq++, r.nextInt(100));
+        q.add(e, e.priority, e.size);
+        l.add(e);
+        bytes+=e.size;
+      } else if (op < 7) {
+        Elt e = q.poll();
+        Elt e2 = l.poll();
+        if (e != e2) throw new RuntimeException("poll "+e+" != "+e2);
+        if (e != null) bytes-=e.size;
+      } else if (op < 8) {
+        Elt e = l.isEmpty() ? null : l.removeLast();
+        Elt e2 = q.removeLast();
+        if (e != e2) throw new RuntimeException("removeLast "+e+" != "+e2);
+        if (e != null) bytes-=e.size;
+      } else if (op < 9) {
+        if (!l.isEmpty()) {
+          Elt e = l.get(r.nextInt(l.size()));
+          l.remove(e);
+          if (!q.remove(e)) throw new RuntimeException("remove "+e);
+          bytes-=e.size;
+        }
+      } else if (op < 10) {
+        // requeue a few polled elements, the way a failed batch is put back
+        Elt[] polled = new Elt[r.nextInt(4)];
+        int num = 0;
+        while (num < polled.length && !l.isEmpty()) {
+          polled[num] = q.poll();
+          if (polled[num] != l.poll()) throw new RuntimeException("poll "+polled[num]);
+          num++;
+        }
+        for (int i = num-1; i >= 0; i--) {
+          q.addFirst(polled[i], polled[i].priority, polled[i].size);
+          l.add(polled[i]);
+        }
+      } else if (op < 11) {
+        // the newest element of a priority, as DROP_NEWEST removes it
+        int p = r.nextInt(7)-3;
+        Elt e = null;
+        for (Elt x : l) {
+          if (x.priority == p) e = x;
+        }
+        if (e != null) l.remove(e);
+        Elt e2 = q.removeLast(p);
+        if (e != e2) throw new RuntimeException("removeLast("+p+") "+e+" != "+e2);
+        if (e != null) bytes-=e.size;
+      } else {
+        if (q.peek() != l.peek()) throw new RuntimeException("peek "+q.peek()+" != "+l.peek());
+        if (r.nextInt(1000) == 0) {
+          q.clear();
+          l.clear();
+          bytes = 0;
+        }
+      }
+      check(q, l, bytes);
+    }
+    System.out.println("PriorityRingQueue agrees with SortedLinkedList");
+    
+    // a stalled socket: the queue fills up to depth with mixed priorities, then drains
+    int depth = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int rounds = 2000000/depth;
+    int[] priorities = new int[depth];
+    for (int ctr = 0; ctr < depth; ctr++) {
+      priorities[ctr] = r.nextInt(3);
+    }
+    for (int trial = 0; trial < 3; trial++) {
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; round++) {
+        for (int ctr = 0; ctr < depth; ctr++) {
+          l.add(new Elt(priorities[ctr], ctr, 0));
+        }
+        while (l.poll() != null);
+      }
+      long slTime = System.nanoTime()-start;
+      start = System.nanoTime();
+      for (int round = 0; round < rounds; round++) {
+        for (int ctr = 0; ctr < depth; ctr++) {
+          q.add(new Elt(priorities[ctr], ctr, 0), priorities[ctr], 0);
+        }
+        while (q.poll() != null);
+      }
+      long prqTime = System.nanoTime()-start;
+      int ops = rounds*depth;
+      System.out.println("depth:"+depth+" SortedLinkedList:"+(slTime/ops)+"ns/msg PriorityRingQueue:"+(prqTime/ops)+"ns/msg");
+    }
+  }
+}
@@ -37,17 +37,21 @@ advised of the possibility of such damage.
 package rice.pastry;
 
 import java.io.*;
-import java.lang.ref.*;
 import java.util.*;
 
 import rice.environment.random.RandomSource;
 import rice.p2p.commonapi.rawserialization.RawSerializable;
+import rice.p2p.util.WeakInterner;
 
 /**
  * Represents a Pastry identifier for a node, object or key. A single identifier and the bit length
  * for Ids is stored in this class. Ids are stored little endian.  NOTE: Ids are immutable, and are
  * coalesced for memory efficiency.  New Ids are to be constructed from the build() methods, which
  * ensure that only one copy of each Id is in memory at a time.
+ * 
+ * The 160 bits are packed into two longs and an int, and the raw material used by secure Ids is 
+ * only kept when it is provided.  The Java serialized form is still the original int[], raw and 
+ * validationAlg fields.
  *
  * @version $Id$
  * @author Andrew Ladd
@@ -60,7 +64,7 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
     /**
      * Support for coalesced Ids - ensures only one copy of each Id is in memory
      */
-    private static WeakHashMap ID_MAP = new WeakHashMap();
+    private static WeakInterner<Id> ID_MAP = new WeakInterner<Id>(64);
     /**
      * The static translation array
      */
@@ -83,13 +87,25 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
     public final static int[] NegOne = {-1, -1, -1, -1, -1};
     public final static int[] Half = {0, 0, 0, 0, 0x80000000};
     /**
-     * The actual contents of this Id
+     * The actual contents of this Id: bits 0-63, 64-127 and 128-159.  These are never modified 
+     * after construction; they are not final only so that readObject() can restore them.
      */
-    private int Id[];
+    private transient long low;
+    private transient long middle;
+    private transient int high;
     public final static int rlen = 10;
     private static boolean secureId = false;
-    private byte raw[];
-    private short validationAlg;
+    private transient byte raw[];
+    private transient short validationAlg;
+
+    /**
+     * The serialized form of Ids, which predates the packed representation
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("Id", int[].class),
+        new ObjectStreamField("raw", byte[].class),
+        new ObjectStreamField("validationAlg", Short.TYPE)
+    };
 
     /**
      * Constructor.
@@ -97,24 +113,60 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @param material an array of length at least IdBitLength/32 containing raw Id material.
      */
     protected Id(int material[]) {
-        Id = new int[nlen];
-        for (int i = 0; (i < nlen) && (i < material.length); i++) {
-            Id[i] = material[i];
-        }
-        this.raw = new byte[rlen];
-        this.validationAlg = -1;
+        this(material, null, (short) -1);
     }
 
     protected Id(int material[], byte raw[], short validationAlg) {
-        this(material);
-        this.raw = new byte[rlen];
-        for (int i = 0; (i < rlen) && (i < raw.length); i++) {
-            this.raw[i] = raw[i];
+        int[] m = new int[nlen];
+        for (int i = 0; (i < nlen) && (i < material.length); i++) {
+            m[i] = material[i];
+        }
+        this.low = pack(m[0], m[1]);
+        this.middle = pack(m[2], m[3]);
+        this.high = m[4];
+
+        if (raw != null) {
+            this.raw = new byte[rlen];
+            for (int i = 0; (i < rlen) && (i < raw.length); i++) {
+                this.raw[i] = raw[i];
+            }
         }
 
         this.validationAlg = validationAlg;
     }
 
+    /**
+     * Constructor, which takes ownership of the raw array.
+     */
+    private Id(long low, long middle, int high, byte raw[], short validationAlg) {
+        this.low = low;
+        this.middle = middle;
+        this.high = high;
+        this.raw = raw;
+        this.validationAlg = validationAlg;
+    }
+
+    /**
+     * Packs two little endian ints into a long
+     */
+    private static long pack(int lo, int hi) {
+        return (((long) hi) << 32) | (lo & 0xffffffffL);
+    }
+
+    /**
+     * Returns the ith 64 bits of this Id, i = 0 being the least significant.
+     */
+    private long word(int i) {
+        return (i == 0 ? low : (i == 1 ? middle : (high & 0xffffffffL)));
+    }
+
+    /**
+     * Returns the contents of this Id as a fresh, little endian int[].
+     */
+    private int[] toInts() {
+        return new int[] {(int) low, (int) (low >>> 32), (int) middle, (int) (middle >>> 32), high};
+    }
+
     /**
      * return the number of digits in a given base
      *
@@ -151,11 +203,11 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @param material an array of length at least IdBitLength/32 containing raw Id material.
      */
     public static Id build(int material[]) {
-        return resolve(ID_MAP, new Id(material));
+        return resolve(new Id(material));
     }
 
     public static Id build(int material[], byte raw[], short validationAlg) {
-        return resolve(ID_MAP, new Id(material, raw, validationAlg));
+        return resolve(new Id(material, raw, validationAlg));
     }
 
     /**
@@ -171,29 +223,34 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @throws IOException
      */
     public static Id build(rice.p2p.commonapi.rawserialization.InputBuffer buf) throws IOException {
-        int[] material = new int[nlen];
-        for (int i = 0; i < material.length; i++) {
-            material[i] = buf.readInt();
-        }
-
+        int i0 = buf.readInt();
+        int i1 = buf.readInt();
+        int i2 = buf.readInt();
+        int i3 = buf.readInt();
+        int i4 = buf.readInt();
+
+        byte[] raw = null;
+        short validationAlg = -1;
         if (secureId) {
-            byte[] raw = new byte[rlen];
+            raw = new byte[rlen];
             for (int i = 0; i < raw.length; i++) {
                 raw[i] = buf.readByte();
             }
-            short validationAlg = buf.readShort();
-            return build(material, raw, validationAlg);
+            validationAlg = buf.readShort();
         }
-        return build(material);
+        return resolve(new Id(pack(i0, i1), pack(i2, i3), i4, raw, validationAlg));
     }
 
     public void serialize(rice.p2p.commonapi.rawserialization.OutputBuffer buf) throws IOException {
-        for (int i = 0; i < Id.length; i++) {
-            buf.writeInt(Id[i]);
-        }
+        buf.writeInt((int) low);
+        buf.writeInt((int) (low >>> 32));
+        buf.writeInt((int) middle);
+        buf.writeInt((int) (middle >>> 32));
+        buf.writeInt(high);
         if (secureId) {
-            for (int i = 0; i < raw.length; i++) {
-                buf.writeByte(raw[i]);
+            byte[] r = getRaw();
+            for (int i = 0; i < r.length; i++) {
+                buf.writeByte(r[i]);
             }
             buf.writeShort(validationAlg);
         }
@@ -301,23 +358,41 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
     }
 
     /**
-     * Method which performs the coalescing and interaction with the weak hash map
+     * Method which performs the coalescing and interaction with the interner
      *
      * @param id The Id to coalesce
      * @return The Id to use
      */
-    protected static Id resolve(WeakHashMap map, Id id) {
-        synchronized (map) {
-            WeakReference ref = (WeakReference) map.get(id);
-            Id result = null;
+    protected static Id resolve(Id id) {
+        return ID_MAP.intern(id);
+    }
 
-            if ((ref != null) && ((result = (Id) ref.get()) != null)) {
-                return result;
-            } else {
-                map.put(id, new WeakReference(id));
-                return id;
-            }
+    /**
+     * Writes the original serialized form of this Id
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("Id", toInts());
+        fields.put("raw", getRaw());
+        fields.put("validationAlg", validationAlg);
+        out.writeFields();
+    }
+
+    /**
+     * Reads the original serialized form of this Id
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        int[] material = (int[]) fields.get("Id", null);
+        if ((material == null) || (material.length < nlen)) {
+            throw new InvalidObjectException("Invalid Id material");
         }
+
+        low = pack(material[0], material[1]);
+        middle = pack(material[2], material[3]);
+        high = material[4];
+        raw = (byte[]) fields.get("raw", null);
+        validationAlg = fields.get("validationAlg", (short) -1);
     }
 
     /**
@@ -327,7 +402,7 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @return The real Id
      */
     private Object readResolve() throws ObjectStreamException {
-        return resolve(ID_MAP, this);
+        return resolve(this);
     }
 
     // ----- NORMAL ID METHODS -----
@@ -379,15 +454,15 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      */
     public int getDigit(int i, int b) {
         int bitIndex = b * i + (IdBitLength % b);
-        int index = bitIndex / 32;
-        int shift = bitIndex % 32;
+        int index = bitIndex >>> 6;
+        int shift = bitIndex & 63;
 
-        long val = Id[index];
-        if (shift + b > 32) {
-            val = (val & 0xffffffffL) | (((long) Id[index + 1]) << 32);
+        long val = word(index) >>> shift;
+        if (shift + b > 64) {
+            val |= word(index + 1) << (64 - shift);
         }
 
-        return ((int) (val >> shift)) & ((1 << b) - 1);
+        return ((int) val) & ((1 << b) - 1);
     }
 
     /**
@@ -401,14 +476,14 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @return the resulting Id
      */
     public Id getDomainPrefix(int row, int column, int suffixDigit, int b) {
-        Id res = new Id(Id);
+        int[] res = toInts();
 
-        res.setDigit(row, column, b);
+        setDigit(res, row, column, b);
         for (int i = 0; i < row; i++) {
-            res.setDigit(i, suffixDigit, b);
+            setDigit(res, i, suffixDigit, b);
         }
 
-        return build(res.Id);
+        return build(res);
     }
 
     /**
@@ -427,12 +502,12 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
             return null;
         }
 
-        Id res = new Id(Id);
+        int[] res = toInts();
 
-        int digit = res.getDigit(numDigits(b) - 1, b) + ((1 << b) / num) * i;
-        res.setDigit(numDigits(b) - 1, digit, b);
+        int digit = getDigit(numDigits(b) - 1, b) + ((1 << b) / num) * i;
+        setDigit(res, numDigits(b) - 1, digit, b);
 
-        return build(res.Id);
+        return build(res);
     }
 
     // ----- COMMON API SUPPORT -----
@@ -466,13 +541,14 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
 //    }
 //  }
     /**
-     * Sets the ith digit in base 2^b. i = 0 is the least significant digit.
+     * Sets the ith digit in base 2^b of the given Id material. i = 0 is the least significant digit.
      *
+     * @param Id the little endian material to modify
      * @param i which digit to get.
      * @param v the new value of the digit
      * @param b which power of 2 is the base to get it in.
      */
-    private void setDigit(int i, int v, int b) {
+    private static void setDigit(int[] Id, int i, int v, int b) {
         int bitIndex = b * i + (IdBitLength % b);
         int index = bitIndex / 32;
         int shift = bitIndex % 32;
@@ -513,9 +589,12 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @param target an array of length at least IdBitLength/8 for the distance to be stored in.
      */
     public void blit(byte target[], int offset) {
-        for (int j = 0; j < IdBitLength / 8; j++) {
-            int k = Id[j / 4] >> ((j % 4) * 8);
-            target[offset + j] = (byte) (k & 0xff);
+        for (int j = 0; j < 8; j++) {
+            target[offset + j] = (byte) (low >>> (8 * j));
+            target[offset + 8 + j] = (byte) (middle >>> (8 * j));
+        }
+        for (int j = 0; j < 4; j++) {
+            target[offset + 16 + j] = (byte) (high >>> (8 * j));
         }
     }
 
@@ -543,13 +622,7 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
 
         Id nid = (Id) obj;
 
-        for (int i = 0; i < nlen; i++) {
-            if (Id[i] != nid.Id[i]) {
-                return false;
-            }
-        }
-
-        return true;
+        return (low == nid.low) && (middle == nid.middle) && (high == nid.high);
     }
 
     /**
@@ -561,16 +634,14 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
     public int compareTo(rice.p2p.commonapi.Id obj) {
         Id oth = (Id) obj;
 
-        for (int i = nlen - 1; i >= 0; i--) {
-            if (Id[i] != oth.Id[i]) {
-                long t = Id[i] & 0x0ffffffffL;
-                long o = oth.Id[i] & 0x0ffffffffL;
-                if (t < o) {
-                    return -1;
-                } else {
-                    return 1;
-                }
-            }
+        if (high != oth.high) {
+            return ((high ^ Integer.MIN_VALUE) < (oth.high ^ Integer.MIN_VALUE)) ? -1 : 1;
+        }
+        if (middle != oth.middle) {
+            return ((middle ^ Long.MIN_VALUE) < (oth.middle ^ Long.MIN_VALUE)) ? -1 : 1;
+        }
+        if (low != oth.low) {
+            return ((low ^ Long.MIN_VALUE) < (oth.low ^ Long.MIN_VALUE)) ? -1 : 1;
         }
 
         return 0;
@@ -609,14 +680,10 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @return a hash code.
      */
     public int hashCode() {
-        int h = 0;
-
         /// Hash function is computed by XORing the bits of the Id.
-        for (int i = 0; i < nlen; i++) {
-            h ^= Id[i];
-        }
+        long h = low ^ middle;
 
-        return h;
+        return ((int) h) ^ ((int) (h >>> 32)) ^ high;
     }
 
     /**
@@ -627,6 +694,7 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      */
     public Id add(Distance offset) {
         int[] array = new int[nlen];
+        int[] Id = toInts();
         long x;
         long y;
         long sum;
@@ -720,13 +788,7 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
             return false;
         }
 
-        for (int i = 0; i < nlen; i++) {
-            if (Id[i] != nid.Id[i]) {
-                return false;
-            }
-        }
-
-        return true;
+        return (low == nid.low) && (middle == nid.middle) && (high == nid.high);
     }
 
     /**
@@ -738,32 +800,21 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @return true if clockwise, false otherwise.
      */
     public boolean clockwise(Id nid) {
-        boolean diffMSB = ((Id[nlen - 1] & 0x80000000) != (nid.Id[nlen - 1] & 0x80000000));
-        int x;
-        int y;
-        int i;
+        boolean diffMSB = ((high ^ nid.high) < 0);
+        int x = high & 0x7fffffff;
+        int y = nid.high & 0x7fffffff;
 
-        if ((x = (Id[nlen - 1] & 0x7fffffff)) != (y = (nid.Id[nlen - 1] & 0x7fffffff))) {
+        // compare the remaining 159 bits
+        if (x != y) {
             return ((y > x) ^ diffMSB);
-        } else {
-            for (i = nlen - 2; i >= 0; i--) {
-                if (Id[i] != nid.Id[i]) {
-                    break;
-                }
-            }
-
-            if (i < 0) {
-                return diffMSB;
-            } else {
-                long xl;
-                long yl;
-
-                xl = Id[i] & 0xffffffffL;
-                yl = nid.Id[i] & 0xffffffffL;
-
-                return ((yl > xl) ^ diffMSB);
-            }
         }
+        if (middle != nid.middle) {
+            return (((nid.middle ^ Long.MIN_VALUE) > (middle ^ Long.MIN_VALUE)) ^ diffMSB);
+        }
+        if (low != nid.low) {
+            return (((nid.low ^ Long.MIN_VALUE) > (low ^ Long.MIN_VALUE)) ^ diffMSB);
+        }
+        return diffMSB;
     }
 
     /**
@@ -773,16 +824,7 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      * @return true if the bit is set, false otherwise.
      */
     public boolean checkBit(int i) {
-        int index = i / 32;
-        int shift = i % 32;
-        int val = Id[index];
-        int mask = (1 << shift);
-
-        if ((val & mask) != 0) {
-            return true;
-        } else {
-            return false;
-        }
+        return ((word(i >>> 6) >>> (i & 63)) & 1) != 0;
     }
 
     /**
@@ -793,34 +835,19 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
      *      not differ.
      */
     public int indexOfMSDB(Id nid) {
-        for (int i = nlen - 1; i >= 0; i--) {
-            int cmp = Id[i] ^ nid.Id[i];
-
-            if (cmp != 0) {
-                int tmp;
-                int j = 0;
-                if ((tmp = cmp & 0xffff0000) != 0) {
-                    cmp = tmp;
-                    j += 16;
-                }
-                if ((tmp = cmp & 0xff00ff00) != 0) {
-                    cmp = tmp;
-                    j += 8;
-                }
-                if ((tmp = cmp & 0xf0f0f0f0) != 0) {
-                    cmp = tmp;
-                    j += 4;
-                }
-                if ((tmp = cmp & 0xcccccccc) != 0) {
-                    cmp = tmp;
-                    j += 2;
-                }
-                if ((tmp = cmp & 0xaaaaaaaa) != 0) {
-                    cmp = tmp;
-                    j += 1;
-                }
-                return 32 * i + j;
-            }
+        int h = high ^ nid.high;
+        if (h != 0) {
+            return 159 - Integer.numberOfLeadingZeros(h);
+        }
+
+        long x = middle ^ nid.middle;
+        if (x != 0) {
+            return 127 - Long.numberOfLeadingZeros(x);
+        }
+
+        x = low ^ nid.low;
+        if (x != 0) {
+            return 63 - Long.numberOfLeadingZeros(x);
         }
 
         return -1;
@@ -953,42 +980,25 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
     }
 
     private int[] absDistance(Id nid, int dist[]) {
-        long x;
-        long y;
-        long diff;
-        int carry = 0;
-
-        if (compareTo(nid) > 0) {
-            for (int i = 0; i < nlen; i++) {
-                x = Id[i] & 0x0ffffffffL;
-                y = nid.Id[i] & 0x0ffffffffL;
-
-                diff = x - y - carry;
-
-                if (diff < 0) {
-                    carry = 1;
-                } else {
-                    carry = 0;
-                }
-
-                dist[i] = (int) diff;
-            }
-        } else {
-            for (int i = 0; i < nlen; i++) {
-                x = Id[i] & 0x0ffffffffL;
-                y = nid.Id[i] & 0x0ffffffffL;
-
-                diff = y - x - carry;
-
-                if (diff < 0) {
-                    carry = 1;
-                } else {
-                    carry = 0;
-                }
+        Id a = this;
+        Id b = nid;
 
-                dist[i] = (int) diff;
-            }
+        if (compareTo(nid) <= 0) {
+            a = nid;
+            b = this;
         }
+
+        // a - b, with the borrows computed as in a full subtractor
+        long l = a.low - b.low;
+        long borrow = ((~a.low & b.low) | (~(a.low ^ b.low) & l)) >>> 63;
+        long m = a.middle - b.middle - borrow;
+        borrow = ((~a.middle & b.middle) | (~(a.middle ^ b.middle) & m)) >>> 63;
+
+        dist[0] = (int) l;
+        dist[1] = (int) (l >>> 32);
+        dist[2] = (int) m;
+        dist[3] = (int) (m >>> 32);
+        dist[4] = a.high - b.high - (int) borrow;
         return dist;
     }
 
@@ -1263,6 +1273,9 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
     }
 
     public byte[] getRaw() {
+        if (raw == null) {
+            return new byte[rlen];
+        }
         return raw;
     }
     
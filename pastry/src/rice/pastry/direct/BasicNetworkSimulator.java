@@ -125,6 +125,14 @@ public class BasicNetworkSimulator<Identifier, MessageType> extends EventSimulat
     return dtt;
   }
   
+  public CancellableTask enqueueDelivery(Delivery d, int delay, Identifier source, Identifier destination) {
+    return enqueueDelivery(d, delay);
+  }
+  
+  public boolean isParallel() {
+    return false;
+  }
+  
   /**
    * node should always be a local node, because this will be delivered instantly
    */
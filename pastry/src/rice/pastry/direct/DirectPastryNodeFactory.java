@@ -170,6 +170,10 @@ public class DirectPastryNodeFactory extends TransportPastryNodeFactory {
             this.environment.getExceptionStrategy());
         }
       }    
+      if (simulator.getGenericSimulator() instanceof ParallelNetworkSimulator) {
+        // each node runs on one of the simulator's partitions
+        environment = ((ParallelNetworkSimulator<DirectNodeHandle, RawMessage>)simulator.getGenericSimulator()).buildEnvironment(environment);
+      }
       PastryNode pn = new PastryNode(nodeId, environment);
       nodeHandleHelper(pn);
 //      ((DirectPastryNode)pn).doneNode(getNearest(pn.getLocalHandle(), bootstrap));
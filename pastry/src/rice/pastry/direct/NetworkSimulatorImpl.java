@@ -36,10 +36,9 @@ advised of the possibility of such damage.
 *******************************************************************************/ 
 package rice.pastry.direct;
 
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.mpisws.p2p.transport.TransportLayer;
 import org.mpisws.p2p.transport.direct.Delivery;
@@ -87,7 +86,12 @@ public class NetworkSimulatorImpl<Identifier, MessageType> implements NetworkSim
     }
     generator.setRandom(random);
     this.generator = generator;
-    simulator = new BasicNetworkSimulator<Identifier, MessageType>(env, random, this);
+    int threads = params.contains("pastry_direct_parallel_threads") ? params.getInt("pastry_direct_parallel_threads") : 0;
+    if (threads > 0) {
+      simulator = new ParallelNetworkSimulator<Identifier, MessageType>(env, random, this, threads, generator.getMinNetworkDelay());
+    } else {
+      simulator = new BasicNetworkSimulator<Identifier, MessageType>(env, random, this);
+    }
     livenessProvider = simulator;
   }
 
@@ -165,43 +169,27 @@ public class NetworkSimulatorImpl<Identifier, MessageType> implements NetworkSim
 
   
   /************** SimulatorListeners handling *******************/
-  List<GenericSimulatorListener<Identifier, MessageType>> listeners = new ArrayList<GenericSimulatorListener<Identifier, MessageType>>();  
+  /**
+   * Notified for every message, possibly from several partitions at once, so 
+   * iteration must not copy or lock.
+   */
+  CopyOnWriteArrayList<GenericSimulatorListener<Identifier, MessageType>> listeners = new CopyOnWriteArrayList<GenericSimulatorListener<Identifier, MessageType>>();  
   public boolean addSimulatorListener(GenericSimulatorListener<Identifier, MessageType> sl) {
-    synchronized(listeners) {
-      if (listeners.contains(sl)) return false;
-      listeners.add(sl);
-      return true;
-    }
+    return listeners.addIfAbsent(sl);
   }
 
   public boolean removeSimulatorListener(GenericSimulatorListener<Identifier, MessageType> sl) {
-    synchronized(listeners) {
-      return listeners.remove(sl);
-    }
+    return listeners.remove(sl);
   }
 
   public void notifySimulatorListenersSent(MessageType m, Identifier from, Identifier to, int delay) {
-    List<GenericSimulatorListener<Identifier, MessageType>> temp;
-    
-    // so we aren't holding a lock while iterating/calling
-    synchronized(listeners) {
-       temp = new ArrayList<GenericSimulatorListener<Identifier, MessageType>>(listeners);
-    }
-  
-    for(GenericSimulatorListener<Identifier, MessageType> listener : temp) {
+    for(GenericSimulatorListener<Identifier, MessageType> listener : listeners) {
       listener.messageSent(m, from, to, delay);
     }
   }
 
   public void notifySimulatorListenersReceived(MessageType m, Identifier from, Identifier to) {
-    List<GenericSimulatorListener<Identifier, MessageType>> temp;
-    
-    // so we aren't holding a lock while iterating/calling
-    synchronized(listeners) {
-       temp = new ArrayList<GenericSimulatorListener<Identifier, MessageType>>(listeners);
-    }
-  
-    for(GenericSimulatorListener<Identifier, MessageType> listener : temp) {
+    for(GenericSimulatorListener<Identifier, MessageType> listener : listeners) {
       listener.messageReceived(m, from, to);
     }
   }
@@ -0,0 +1,512 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.direct;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.mpisws.p2p.transport.direct.Delivery;
+import org.mpisws.p2p.transport.direct.DirectTransportLayer;
+
+import rice.Destructable;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.environment.processing.sim.SimProcessor;
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.environment.time.simulated.DirectTimeSource;
+import rice.p2p.commonapi.Cancellable;
+import rice.p2p.commonapi.CancellableTask;
+import rice.selector.TimerTask;
+
+/**
+ * A conservative parallel version of the BasicNetworkSimulator.  
+ * 
+ * The nodes are divided among a fixed number of SimulationPartitions, each with 
+ * its own clock and timer queue.  The simulated time is cut into windows 
+ * [start, start+lookahead), where lookahead is the minimum network delay of the 
+ * ProximityGenerator.  A message sent at time t >= start arrives no earlier 
+ * than start+lookahead, so the partitions can run a window concurrently without 
+ * hearing from each other.  Messages between nodes are collected during the 
+ * window and handed to their destination in a fixed order after it, so the 
+ * result only depends on the seed, not on the thread scheduling or the 
+ * number of threads.
+ * 
+ * Differences to the BasicNetworkSimulator:
+ * <ul>
+ * <li>Deliveries between different nodes take at least lookahead millis, also 
+ *   the ones that are otherwise immediate (such as a socket's flow control).</li>
+ * <li>A node that is removed during a window stays alive for the others until 
+ *   the end of the window.</li>
+ * <li>The simulation only advances while the thread that created the simulator 
+ *   is idle: blocked in the simulated TimeSource's sleep(), between 
+ *   beginIdle() and endIdle(), or exited.  The results are reproducible if that
+ *   thread only blocks in sleep().  A thread that waits in real time, such as 
+ *   in ExternalContinuation.sleep(), has to call beginIdle() first, or the 
+ *   simulation doesn't advance, and interleaves non-deterministically.</li>
+ * <li>setMaxSpeed() is ignored, the simulator always runs at full speed.</li>
+ * <li>Code that reads another node's state directly (such as 
+ *   DirectPastryNodeFactory.getLeafSet()) instead of sending it a message 
+ *   races with that node's partition.</li>
+ * </ul>
+ * 
+ * Nodes must be built on an Environment from buildEnvironment().
+ * 
+ * @version $Id$
+ */
+public class ParallelNetworkSimulator<Identifier, MessageType> extends BasicNetworkSimulator<Identifier, MessageType> {
+  
+  /**
+   * Where a node is simulated.
+   */
+  static class Placement {
+    SimulationPartition partition;
+    /**
+     * The order in which the node was registered, breaks ties between deliveries.
+     */
+    int index;
+    
+    public Placement(SimulationPartition partition, int index) {
+      this.partition = partition;
+      this.index = index;
+    }
+  }
+  
+  /**
+   * A delivery to another node that was produced during a window.
+   */
+  static class Pending {
+    TimerTask task;
+    int sender;
+    SimulationPartition destination;
+    
+    public Pending(TimerTask task, int sender, SimulationPartition destination) {
+      this.task = task;
+      this.sender = sender;
+      this.destination = destination;
+    }
+  }
+  
+  /**
+   * Orders by arrival time, then by sender.  Used with a stable sort, so 
+   * each sender's deliveries keep the order they were made in.
+   */
+  static final Comparator<Pending> PENDING_ORDER = new Comparator<Pending>() {
+    public int compare(Pending a, Pending b) {
+      long ta = a.task.scheduledExecutionTime();
+      long tb = b.task.scheduledExecutionTime();
+      if (ta != tb) return ta < tb ? -1 : 1;
+      return a.sender < b.sender ? -1 : (a.sender == b.sender ? 0 : 1);
+    }
+  };
+  
+  protected final int lookahead;
+  
+  protected SimulationPartition[] partitions;
+  
+  /**
+   * One per partition, only touched by the partition's worker during a 
+   * window, and by the selector thread in between.
+   */
+  protected List<List<Pending>> outboxes;
+  
+  /**
+   * Nodes that were removed during the current window.
+   */
+  protected List<Identifier> removals = new ArrayList<Identifier>();
+  
+  protected Map<Identifier, Placement> placements = new ConcurrentHashMap<Identifier, Placement>();
+  
+  protected int nextIndex = 0;
+  protected int nextPartition = 0;
+
+  protected ExecutorService workers;
+  protected List<Callable<Object>> windowTasks;
+  protected long windowStart, windowEnd;
+  
+  /**
+   * The simulation may only advance while this thread is idle.
+   */
+  protected Thread driver;
+  
+  /**
+   * The number of beginIdle() calls without an endIdle(), synchronized on the 
+   * manager.
+   */
+  protected int driverIdle = 0;
+  
+  /**
+   * How long the selector waits for the driver before checking whether it 
+   * has exited, the driver notifies it when it becomes idle.
+   */
+  protected static final int DRIVER_EXIT_CHECK = 100;
+  
+  /**
+   * @param threads the number of partitions (and worker threads)
+   * @param minNetworkDelay the smallest delay between two distinct nodes, see 
+   *   ProximityGenerator.getMinNetworkDelay()
+   */
+  public ParallelNetworkSimulator(Environment env, RandomSource random, NetworkSimulator<Identifier, MessageType> sim, 
+      int threads, float minNetworkDelay) {
+    super(env, random, sim);
+    if (threads <= 0) throw new IllegalArgumentException("threads must be positive, was "+threads);
+    if (!(timeSource instanceof DirectTimeSource)) throw new IllegalArgumentException("The ParallelNetworkSimulator requires a DirectTimeSource, use Environment.directEnvironment().");
+    lookahead = (int)Math.round(minNetworkDelay);
+    if (lookahead < 1) throw new IllegalArgumentException("The minimum network delay must be at least 1 milli for parallel simulation, was "+minNetworkDelay);
+    driver = Thread.currentThread();
+    
+    SimulationPartition[] temp = new SimulationPartition[threads];
+    outboxes = new ArrayList<List<Pending>>(threads);
+    windowTasks = new ArrayList<Callable<Object>>(threads);
+    for (int i = 0; i < threads; i++) {
+      // the nodes have their own RandomSources, don't draw from the shared one 
+      // here, or the number of threads would change the simulation
+      final SimulationPartition p = new SimulationPartition(i, env, env.getLogManager(), new SimpleRandomSource(i, env.getLogManager()));
+      temp[i] = p;
+      outboxes.add(new ArrayList<Pending>());
+      windowTasks.add(new Callable<Object>() {
+        public Object call() {
+          p.runWindow(windowStart, windowEnd);
+          return null;
+        }
+      });
+    }
+    if (threads > 1) {
+      workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        int ctr = 0;
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Simulation Worker "+(ctr++));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      env.addDestructable(new Destructable() {
+        public void destroy() {
+          workers.shutdownNow();
+        }
+      });
+    }
+    if (logger.level <= Logger.INFO) logger.log("Simulating on "+threads+" partitions with a lookahead of "+lookahead+" millis.");
+    // the selector thread is already running simulate(), publish the partitions last
+    synchronized(manager) {
+      partitions = temp;
+    }
+  }
+  
+  /**
+   * Builds the Environment of a new node on the next partition.  It shares 
+   * env's logging, parameters and exception strategy, and gets its own 
+   * RandomSource seeded from env's so that the nodes don't share one.
+   * 
+   * @param env the Environment the node would otherwise run on
+   */
+  public Environment buildEnvironment(Environment env) {
+    SimulationPartition p;
+    synchronized(this) {
+      p = partitions[nextPartition];
+      nextPartition = (nextPartition+1)%partitions.length;
+    }
+    return new Environment(p, new SimProcessor(p), 
+        new SimpleRandomSource(env.getRandomSource().nextLong(), env.getLogManager()),
+        p.getClock(), env.getLogManager(), env.getParameters(), env.getExceptionStrategy());
+  }
+  
+  public int getLookahead() {
+    return lookahead;
+  }
+  
+  public boolean isParallel() {
+    return true;
+  }
+  
+  public void registerIdentifier(Identifier i, DirectTransportLayer<Identifier, MessageType> dtl, NodeRecord record) {
+    if (!(dtl.getEnvironment().getSelectorManager() instanceof SimulationPartition)) 
+      throw new IllegalArgumentException("Node "+i+" isn't running on a SimulationPartition, build its Environment with buildEnvironment().");
+    synchronized(this) {
+      placements.put(i, new Placement((SimulationPartition)dtl.getEnvironment().getSelectorManager(), nextIndex++));
+    }
+    super.registerIdentifier(i, dtl, record);
+  }
+  
+  /**
+   * @return the partition whose window is running on this thread, null if 
+   * no window is running on this thread
+   */
+  protected SimulationPartition currentPartition() {
+    Thread t = Thread.currentThread();
+    SimulationPartition[] p = partitions;
+    if (p == null) return null;
+    for (int i = 0; i < p.length; i++) {
+      if (p[i].owner == t) return p[i];
+    }
+    return null;
+  }
+  
+  /**
+   * True if a delivery from source to destination has to wait for the end of 
+   * the window.
+   */
+  protected boolean isDeferred(SimulationPartition current, Identifier source, Identifier destination) {
+    if (current == null) return false;
+    Placement dst = destination == null ? null : placements.get(destination);
+    if (dst == null) return false;
+    return !(dst.partition == current && destination.equals(source));
+  }
+  
+  protected long now(SimulationPartition current) {
+    if (current == null) return timeSource.currentTimeMillis();
+    return current.getClock().currentTimeMillis();
+  }
+  
+  /**
+   * Schedules a task on the destination's partition, or in the outbox if it is deferred.
+   */
+  protected void submit(TimerTask task, SimulationPartition current, boolean deferred, Identifier source, Identifier destination) {
+    if (logger.level <= Logger.FINE) logger.log("PNS: submit "+task+":"+task.scheduledExecutionTime()+(deferred ? " deferred" : ""));
+    Placement dst = destination == null ? null : placements.get(destination);
+    if (deferred) {
+      Placement src = source == null ? null : placements.get(source);
+      outboxes.get(current.getIndex()).add(new Pending(task, src == null ? -1 : src.index, dst.partition));
+      return;
+    }
+    if (dst != null) {
+      dst.partition.getTimer().schedule(task);
+    } else if (current != null) {
+      current.getTimer().schedule(task);
+    } else {
+      manager.getTimer().schedule(task);
+    }
+  }
+  
+  /**
+   * Runs on the running partition, or on the selector if called between windows.
+   */
+  public CancellableTask enqueueDelivery(Delivery d, int delay) {
+    SimulationPartition current = currentPartition();
+    DeliveryTimerTask dtt = new DeliveryTimerTask(d, now(current)+delay, d.getSeq());
+    submit(dtt, current, false, null, null);
+    return dtt;
+  }
+  
+  public CancellableTask enqueueDelivery(Delivery d, int delay, Identifier source, Identifier destination) {
+    SimulationPartition current = currentPartition();
+    boolean deferred = isDeferred(current, source, destination);
+    if (deferred && delay < lookahead) delay = lookahead;
+    DeliveryTimerTask dtt = new DeliveryTimerTask(d, now(current)+delay, d.getSeq());
+    submit(dtt, current, deferred, source, destination);
+    return dtt;
+  }
+  
+  public Cancellable deliverMessage(MessageType msg, Identifier node, Identifier from, int delay, int period) {
+    if (logger.level <= Logger.FINE)
+      logger.log("PNS: deliver " + msg + " to " + node);
+    
+    DirectTimerTask dtt = null;
+    
+    if (from == null || isAlive(from)) {
+      SimulationPartition current = currentPartition();
+      boolean deferred = isDeferred(current, from, node);
+      if (deferred && delay < lookahead) delay = lookahead;
+      MessageDelivery<Identifier, MessageType> md = new MessageDelivery<Identifier, MessageType>(msg, node, from, null, this);
+      dtt = new DirectTimerTask(md, now(current)+delay, period);
+      submit(dtt, current, deferred, from, node);
+    }
+    return dtt;
+  }
+  
+  /**
+   * Removals during a window are applied at its end, in the order the nodes 
+   * were registered.
+   */
+  public void remove(Identifier i) {
+    if (currentPartition() == null) {
+      super.remove(i);
+      return;
+    }
+    synchronized(removals) {
+      removals.add(i);
+    }
+  }
+  
+  /**
+   * Lets the simulation advance while the driver waits for it in real time.  
+   * Must be called on the thread that created the simulator, followed by 
+   * endIdle() once the wait is over.
+   */
+  public void beginIdle() {
+    synchronized(manager) {
+      driverIdle++;
+      manager.notifyAll();
+    }
+  }
+  
+  /**
+   * Stops the simulation from advancing after beginIdle().
+   */
+  public void endIdle() {
+    synchronized(manager) {
+      if (driverIdle <= 0) throw new IllegalStateException("endIdle() without beginIdle()");
+      driverIdle--;
+    }
+  }
+  
+  /**
+   * Should be synchronized on the manager.
+   * 
+   * @return true if the thread that created the simulator can't make progress 
+   * before the simulation does
+   */
+  protected boolean isDriverBlocked() {
+    DirectTimeSource ts = (DirectTimeSource)timeSource;
+    if (ts.getPendingWakeups() > 0) return false;
+    return ts.isSleeping(driver) || driverIdle > 0 || !driver.isAlive();
+  }
+  
+  /**
+   * Sets the simulator's and all partitions' clocks forward to time.
+   */
+  protected void setClocks(long time) {
+    synchronized(manager) {
+      if (time > timeSource.currentTimeMillis()) ((DirectTimeSource)timeSource).setTime(time);
+    }
+    for (int i = 0; i < partitions.length; i++) {
+      partitions[i].advanceTo(time);
+    }
+  }
+  
+  /**
+   * Runs the tasks on the selector that are due before any node's, otherwise 
+   * runs the nodes for one window.
+   */
+  protected boolean simulate() throws InterruptedException {
+    if (!manager.isSelectorThread()) throw new RuntimeException("Must be on selector thread");
+    long now;
+    long rootNext;
+    synchronized(manager) {
+      if (partitions == null) return false;
+      if (!isDriverBlocked()) {
+        // the driver notifies the manager when it calls sleep() or beginIdle()
+        manager.wait(DRIVER_EXIT_CHECK);
+        return true;
+      }
+      now = timeSource.currentTimeMillis();
+      rootNext = manager.getNextTaskExecutionTime();
+    }
+    
+    long start = Long.MAX_VALUE;
+    for (int i = 0; i < partitions.length; i++) {
+      long next = partitions[i].getNumInvocations() > 0 ? now : partitions[i].getNextTaskExecutionTime();
+      if (next >= 0 && next < start) start = next;
+    }
+    if (start == Long.MAX_VALUE && rootNext < 0) return false;
+    if (start < now) start = now;
+    
+    if (rootNext >= 0 && rootNext <= start) {
+      // the selector's own tasks (such as waking up the driver) come first
+      setClocks(rootNext);
+      return true;
+    }
+    
+    long end = start+lookahead;
+    if (rootNext >= 0 && rootNext < end) end = rootNext;
+    runWindow(start, end);
+    return true;
+  }
+  
+  protected void runWindow(long start, long end) throws InterruptedException {
+    if (logger.level <= Logger.FINER) logger.log("runWindow("+start+","+end+")");
+    windowStart = start;
+    windowEnd = end;
+    if (workers == null) {
+      partitions[0].runWindow(start, end);
+    } else {
+      List<Future<Object>> results;
+      try {
+        results = workers.invokeAll(windowTasks);
+      } catch (RejectedExecutionException ree) {
+        // the environment was destroyed
+        return;
+      }
+      for (Future<Object> f : results) {
+        try {
+          f.get();
+        } catch (ExecutionException ee) {
+          environment.getExceptionStrategy().handleException(this, ee.getCause());
+        }
+      }
+    }
+    
+    setClocks(end-1);
+    
+    // hand over the deliveries between nodes
+    List<Pending> pending = new ArrayList<Pending>();
+    for (List<Pending> outbox : outboxes) {
+      pending.addAll(outbox);
+      outbox.clear();
+    }
+    Collections.sort(pending, PENDING_ORDER);
+    for (Pending p : pending) {
+      if (!p.task.isCancelled()) p.destination.getTimer().schedule(p.task);
+    }
+    
+    List<Identifier> removed;
+    synchronized(removals) {
+      if (removals.isEmpty()) return;
+      removed = new ArrayList<Identifier>(removals);
+      removals.clear();
+    }
+    Collections.sort(removed, new Comparator<Identifier>() {
+      public int compare(Identifier a, Identifier b) {
+        return placements.get(a).index - placements.get(b).index;
+      }
+    });
+    for (Identifier i : removed) {
+      super.remove(i);
+    }
+  }
+}
@@ -42,4 +42,12 @@ public interface ProximityGenerator {
   public NodeRecord generateNodeRecord();
 
   public void setRandom(RandomSource random);
+  
+  /**
+   * A lower bound on NodeRecord.networkDelay() between any two distinct records
+   * this generator produces.  The parallel simulator uses it as its lookahead.
+   * 
+   * @return the minimum one-way delay in millis
+   */
+  public float getMinNetworkDelay();
 }
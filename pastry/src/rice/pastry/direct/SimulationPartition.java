@@ -0,0 +1,168 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.direct;
+
+import java.io.IOException;
+
+import rice.environment.Environment;
+import rice.environment.logging.LogManager;
+import rice.environment.logging.Logger;
+import rice.environment.random.RandomSource;
+import rice.environment.time.simulated.DirectTimeSource;
+import rice.selector.SelectorManager;
+
+/**
+ * The SelectorManager of a group of simulated nodes in the 
+ * ParallelNetworkSimulator.  It has its own clock and timer queue, but no 
+ * thread of its own: the simulator runs it one window at a time on one of its 
+ * worker threads, and that thread is the selector thread for the duration of 
+ * the window.  Between windows only the simulator's (root selector) thread may 
+ * touch the partition, and it counts as the selector thread too.
+ * 
+ * @version $Id$
+ */
+public class SimulationPartition extends SelectorManager {
+  
+  /**
+   * The position of this partition in the simulator.
+   */
+  protected int index;
+  
+  protected DirectTimeSource clock;
+  
+  /**
+   * The root selector, which coordinates the windows.
+   */
+  protected SelectorManager coordinator;
+  
+  /**
+   * The worker that is running the current window, null between windows.
+   */
+  protected volatile Thread owner;
+  
+  public SimulationPartition(int index, Environment env, LogManager log, RandomSource random) {
+    this(index, env, new DirectTimeSource(env.getTimeSource().currentTimeMillis(), "partition "+index), log, random);
+  }
+  
+  private SimulationPartition(int index, Environment env, DirectTimeSource clock, LogManager log, RandomSource random) {
+    super("partition "+index, clock, log, random);
+    this.index = index;
+    this.clock = clock;
+    this.coordinator = env.getSelectorManager();
+    clock.setLogManager(log);
+    clock.setSelectorManager(this);
+    useLoopListeners(false);
+    setSelect(false);
+    // never started, the simulator drives us
+    environment = env;
+    env.addDestructable(this);
+  }
+  
+  public int getIndex() {
+    return index;
+  }
+  
+  public DirectTimeSource getClock() {
+    return clock;
+  }
+  
+  /**
+   * Moves the clock forward to time, never backwards.
+   */
+  protected void advanceTo(long time) {
+    if (time > clock.currentTimeMillis()) clock.setTime(time);
+  }
+  
+  /**
+   * Runs everything that is due before end, advancing the clock from start.  
+   * Called on a worker thread while all other partitions run the same window.
+   * 
+   * @param start the beginning of the window
+   * @param end the first time that is not part of the window
+   */
+  protected void runWindow(long start, long end) {
+    owner = Thread.currentThread();
+    try {
+      advanceTo(start);
+      while (true) {
+        try {
+          executeDueTasks();
+          doInvocations();
+        } catch (Throwable t) {
+          if (logger.level <= Logger.SEVERE) logger.logException("ERROR (SimulationPartition.runWindow): ", t);
+          environment.getExceptionStrategy().handleException(this, t);
+        }
+        if (getNumInvocations() > 0) continue;
+        long next = getNextTaskExecutionTime();
+        if (next < 0 || next >= end) return;
+        advanceTo(next);
+      }
+    } finally {
+      owner = null;
+    }
+  }
+  
+  /**
+   * The worker running our window, or the coordinator between windows.
+   */
+  public boolean isSelectorThread() {
+    Thread current = Thread.currentThread();
+    return current == owner || current == coordinator;
+  }
+  
+  /**
+   * Nobody is waiting on us, the simulator asks for our next task time.
+   */
+  public void wakeup() {
+  }
+  
+  protected void wakeupForInvocations() {
+  }
+  
+  public void destroy() {
+    super.destroy();
+    try {
+      if (selector != null) selector.close();
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException("Error closing selector:", ioe);
+    }
+  }
+  
+  public String toString() {
+    return "SimulationPartition "+index;
+  }
+}
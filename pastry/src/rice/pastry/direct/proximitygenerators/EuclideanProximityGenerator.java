@@ -110,4 +110,8 @@ public class EuclideanProximityGenerator implements ProximityGenerator{
     this.random = random;
   }  
 
+
+  public float getMinNetworkDelay() {
+    return 2.0f;
+  }
 }
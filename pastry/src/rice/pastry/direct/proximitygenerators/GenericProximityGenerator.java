@@ -333,4 +333,7 @@ public class GenericProximityGenerator implements ProximityGenerator {
     this.random = random;
   }
 
+  public float getMinNetworkDelay() {
+    return MIN_DIST;
+  }
 }
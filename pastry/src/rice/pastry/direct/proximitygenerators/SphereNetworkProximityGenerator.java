@@ -123,4 +123,8 @@ public class SphereNetworkProximityGenerator implements ProximityGenerator {
   public void setRandom(RandomSource random) {
     this.random = random;
   }  
+
+  public float getMinNetworkDelay() {
+    return 2.0f;
+  }
 }
@@ -323,6 +323,17 @@ public class LeafSet extends Observable implements Serializable, Iterable<NodeHa
     return res;
   }
 
+  /**
+   * Scratch distances for mostSimilar(), so that routing doesn't produce garbage.
+   * Per thread, because applications also call mostSimilar() (e.g. through 
+   * PastryNode.isClosest()) off of the selector thread.
+   */
+  static final ThreadLocal<Id.Distance[]> minDists = new ThreadLocal<Id.Distance[]>() {
+    protected Id.Distance[] initialValue() {
+      return new Id.Distance[] {new Id.Distance(), new Id.Distance()};
+    }
+  };
+  
   /**
    * Numerically closests node to a given a node in the leaf set.
    *
@@ -330,8 +341,6 @@ public class LeafSet extends Observable implements Serializable, Iterable<NodeHa
    * @return the index of the numerically closest node (0 if baseId is the closest).
    */
   public int mostSimilar(Id nid) {
-    Id.Distance cwMinDist;
-    Id.Distance ccwMinDist;
     int cwMS;
     int ccwMS;
     int res;
@@ -351,8 +360,11 @@ public class LeafSet extends Observable implements Serializable, Iterable<NodeHa
       cwMS = cwSet.mostSimilar(nid);
     }
 
-    cwMinDist = cwSet.get(cwMS).getNodeId().distance(nid);
-    ccwMinDist = ccwSet.get(ccwMS).getNodeId().distance(nid);
+    Id.Distance[] dists = minDists.get();
+    Id.Distance cwMinDist = dists[0];
+    Id.Distance ccwMinDist = dists[1];
+    cwSet.get(cwMS).getNodeId().distance(nid, cwMinDist);
+    ccwSet.get(ccwMS).getNodeId().distance(nid, ccwMinDist);
 
     int cmp = cwMinDist.compareTo(ccwMinDist);
     if (cmp < 0 || (cmp == 0 && nid.clockwise(cwSet.get(cwMS).getNodeId())) )
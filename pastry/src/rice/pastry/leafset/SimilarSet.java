@@ -579,8 +579,16 @@ public class SimilarSet extends Observable implements NodeSetEventSource, Serial
 //    return min;
 //  }
   
-  transient Id.Distance d1 = new Id.Distance();
-  transient Id.Distance d = new Id.Distance();
+  /**
+   * Scratch distances for mostSimilar(), per thread because it is also called 
+   * off of the selector thread.
+   */
+  static final ThreadLocal<Id.Distance[]> scratch = new ThreadLocal<Id.Distance[]>() {
+    protected Id.Distance[] initialValue() {
+      return new Id.Distance[] {new Id.Distance(), new Id.Distance()};
+    }
+  };
+  
   /**
    * Impl that doesn't produce garbage
    * 
@@ -596,8 +604,9 @@ public class SimilarSet extends Observable implements NodeSetEventSource, Serial
     if (theSize == 0)
       return -1;
 
-    Id.Distance other = d;
-    Id.Distance minDist = ln.getNodeId().distance(nid, d1);
+    Id.Distance[] dists = scratch.get();
+    Id.Distance other = dists[0];
+    Id.Distance minDist = ln.getNodeId().distance(nid, dists[1]);
     int min = -1;
 
     for (int i = 0; i < theSize; i++) {
@@ -708,8 +717,6 @@ public class SimilarSet extends Observable implements NodeSetEventSource, Serial
   private void readObject(java.io.ObjectInputStream in)
     throws IOException, ClassNotFoundException {
     in.defaultReadObject();
-    d1 = new Id.Distance();
-    d = new Id.Distance();
     listeners = new ArrayList<NodeSetListener>();
   }
 
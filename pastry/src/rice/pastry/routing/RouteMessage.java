@@ -38,6 +38,7 @@ package rice.pastry.routing;
 
 import rice.p2p.commonapi.Cancellable;
 import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.util.rawserialization.ByteBufferInputBuffer;
 import rice.p2p.util.rawserialization.SimpleInputBuffer;
 
 import rice.pastry.*;
@@ -442,11 +443,16 @@ public class RouteMessage extends PRawMessage implements Serializable,
       
       buf.writeShort(internalType);
       
-      // optimize this, possibly by extending InternalBuffer interface to access the raw underlieing bytes
-      byte[] raw = new byte[serializedMsg.bytesRemaining()]; 
-      serializedMsg.read(raw);
-      buf.write(raw,0,raw.length);
-      serializedMsg = new SimpleInputBuffer(raw);
+      if (serializedMsg instanceof ByteBufferInputBuffer) {
+        // cut through: copy the payload straight out of the received frame, 
+        // it stays unread so the message can still be unwrapped or resent
+        ((ByteBufferInputBuffer)serializedMsg).writeRemainingTo(buf);
+      } else {
+        byte[] raw = new byte[serializedMsg.bytesRemaining()]; 
+        serializedMsg.read(raw);
+        buf.write(raw,0,raw.length);
+        serializedMsg = new SimpleInputBuffer(raw);
+      }
     } else {
 //      System.out.println(this+".serialize() 2");
       if (rawInternalMsg == null) {
@@ -148,6 +148,7 @@ import rice.pastry.transport.NodeHandleAdapter;
 import rice.pastry.transport.TLDeserializer;
 import rice.pastry.transport.TransportPastryNodeFactory;
 import rice.selector.SelectorManager;
+import rice.selector.SelectorManagerPool;
 import rice.selector.TimerTask;
 
 /**
@@ -1439,8 +1440,28 @@ public class SocketPastryNodeFactory extends TransportPastryNodeFactory {
   }
   
 
+  /**
+   * Shared selector loops for the nodes of this factory, null unless pastry_factory_selectorPoolSize > 0
+   */
+  protected SelectorManagerPool selectorPool;
+  
+  protected synchronized SelectorManagerPool getSelectorPool(Environment rootEnvironment) {
+    if (selectorPool == null) {
+      Parameters p = rootEnvironment.getParameters();
+      selectorPool = new SelectorManagerPool("Pool", 
+          p.getInt("pastry_factory_selectorPoolSize"),
+          SelectorManagerPool.parseAssignment(p.getString("pastry_factory_selectorPoolAssignment")),
+          rootEnvironment.getTimeSource(), rootEnvironment.getLogManager(), rootEnvironment.getRandomSource());
+      selectorPool.setEnvironment(rootEnvironment);
+    }
+    return selectorPool;
+  }
+  
   protected SelectorManager cloneSelectorManager(Environment rootEnvironment, Id nodeId, LogManager lman) {
     SelectorManager sman = rootEnvironment.getSelectorManager();
+    if (rootEnvironment.getParameters().getInt("pastry_factory_selectorPoolSize") > 0) {
+      return getSelectorPool(rootEnvironment).getSelectorManager(nodeId);
+    }
     if (rootEnvironment.getParameters().getBoolean("pastry_factory_selectorPerNode")) {
       sman = new SelectorManager(nodeId.toString() + " Selector",
           rootEnvironment.getTimeSource(), lman, rootEnvironment.getRandomSource());
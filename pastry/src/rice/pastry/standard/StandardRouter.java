@@ -256,10 +256,17 @@ public class StandardRouter extends PastryAppl implements Router {
       // don't return, we want to check for routing table hole
     } else {
       msg.getOptions().setRerouteIfSuspected(true);
-      Iterator<NodeHandle> i = getBestRoutingCandidates(target);
       
-      // the next hop
-      NodeHandle nextHop = routerStrategy.pickNextHop(msg, i);
+      // the next hop, without building the candidate iterator in the common case
+      NodeHandle nextHop = null;
+      if (routerStrategy.getClass() == AliveRouterStrategy.class)
+        nextHop = getAliveNextHop(target, lsPos);
+      
+      if (nextHop == null) {
+        Iterator<NodeHandle> i = getBestRoutingCandidates(target);
+        nextHop = routerStrategy.pickNextHop(msg, i);
+      }
+      
       if (nextHop == null) {
         msg.sendFailed(new NoLegalRouteToMakeProgressException(target));
         return;
@@ -378,9 +385,6 @@ public class StandardRouter extends PastryAppl implements Router {
 //  }
 
   public Iterator<NodeHandle> getBestRoutingCandidates(final Id target) {
-    int cwSize = thePastryNode.getLeafSet().cwSize();
-    int ccwSize = thePastryNode.getLeafSet().ccwSize();
-
     int lsPos = thePastryNode.getLeafSet().mostSimilar(target);
 
     if (lsPos == 0) {
@@ -388,12 +392,63 @@ public class StandardRouter extends PastryAppl implements Router {
       return Collections.singleton(thePastryNode.getLocalHandle()).iterator();
     } 
 
-    boolean leafSetOnly = false;
-    if ((lsPos > 0 &&  (lsPos < cwSize || !thePastryNode.getLeafSet().get(lsPos).getNodeId().clockwise(target)))
-     || (lsPos < 0 && (-lsPos < ccwSize || thePastryNode.getLeafSet().get(lsPos).getNodeId().clockwise(target)))) {
-      leafSetOnly = true;
+    return getBestRoutingCandidates(target, lsPos, isLeafSetOnly(target, lsPos));
+  }
+  
+  /**
+   * Returns whether the target falls within the leafset, in which case only the leafset 
+   * entries between us and lsPos are routing candidates.
+   * 
+   * @param target the key being routed to
+   * @param lsPos the position of the most similar leafset member, which is not 0
+   * @return true if only the leafset should be used
+   */
+  protected boolean isLeafSetOnly(Id target, int lsPos) {
+    LeafSet ls = thePastryNode.getLeafSet();
+    
+    return ((lsPos > 0 &&  (lsPos < ls.cwSize() || !ls.get(lsPos).getNodeId().clockwise(target)))
+        || (lsPos < 0 && (-lsPos < ls.ccwSize() || ls.get(lsPos).getNodeId().clockwise(target))));
+  }
+  
+  /**
+   * Picks the next hop the way the AliveRouterStrategy would from getBestRoutingCandidates(), 
+   * but without allocating, for the common cases: a live leafset member between us and lsPos, 
+   * or a live member of the best routing table entry.
+   * 
+   * @param target the key being routed to
+   * @param lsPos the position of the most similar leafset member, which is not 0
+   * @return the first live candidate, or null if the full candidate iterator is needed
+   */
+  public NodeHandle getAliveNextHop(Id target, int lsPos) {
+    LeafSet ls = thePastryNode.getLeafSet();
+    
+    if (isLeafSetOnly(target, lsPos)) {
+      if (lsPos > 0) {
+        for (int i = lsPos; i > 0; i--) {
+          NodeHandle nh = ls.get(i);
+          if (nh.getLiveness() < NodeHandle.LIVENESS_SUSPECTED) 
+            return nh;
+        }
+      } else {
+        for (int i = lsPos; i < 0; i++) {
+          NodeHandle nh = ls.get(i);
+          if (nh.getLiveness() < NodeHandle.LIVENESS_SUSPECTED) 
+            return nh;
+        }
+      }
+      return null;
+    }
+    
+    RouteSet best = thePastryNode.getRoutingTable().getBestEntry(target);
+    if (best == null) 
+      return null;
+    
+    for (int k = 0; k < best.size(); k++) {
+      NodeHandle nh = best.get(k);
+      if (nh.getLiveness() < NodeHandle.LIVENESS_SUSPECTED) 
+        return nh;
     }
-    return getBestRoutingCandidates(target, lsPos, leafSetOnly);
+    return null;
   }
   
   protected Iterator<NodeHandle> getBestRoutingCandidates(final Id target, final int lsPos, boolean leafSetOnly) {
@@ -0,0 +1,129 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.IOException;
+import java.util.Random;
+
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.pastry.Id;
+
+/**
+ * Measures the heap used per Id (including the coalescing map), and the rate 
+ * at which Ids can be deserialized by several threads at once, both for Ids 
+ * which are already in memory and for Ids which are not.
+ * 
+ * Usage: IdBenchmark [numIds] [threads]  (default 1000000 4)
+ * 
+ * @version $Id$
+ */
+public class IdBenchmark {
+  
+  public static void main(String[] args) throws Exception {
+    int n = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+    int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+    Random rng = new Random(42);
+    
+    long before = usedHeap();
+    Id[] ids = new Id[n];
+    for (int i=0; i<n; i++) 
+      ids[i] = Id.makeRandomId(rng);
+    long after = usedHeap();
+    
+    System.out.println("heap: "+((after - before) / n)+" bytes/Id, "+((after - before) / 1024 / 1024 * 1000000 / n)+" MB per million Ids");
+    
+    SimpleOutputBuffer live = new SimpleOutputBuffer(n * Id.IdBitLength / 8);
+    for (int i=0; i<n; i++) 
+      ids[i].serialize(live);
+    
+    // Ids which are not referenced anywhere, so each one is a new entry in the map
+    SimpleOutputBuffer fresh = new SimpleOutputBuffer(n * Id.IdBitLength / 8);
+    for (int i=0; i<n; i++) 
+      Id.makeRandomId(rng).serialize(fresh);
+    
+    for (int round=0; round<3; round++) {
+      deserialize("live", live.getBytes(), n, 1);
+      deserialize("live", live.getBytes(), n, threads);
+      deserialize("fresh", fresh.getBytes(), n, 1);
+      deserialize("fresh", fresh.getBytes(), n, threads);
+    }
+    
+    // keep the live Ids live
+    System.out.println(ids[rng.nextInt(n)]);
+  }
+  
+  protected static void deserialize(String name, final byte[] bytes, final int n, int numThreads) throws Exception {
+    Thread[] threads = new Thread[numThreads];
+    final Exception[] failure = new Exception[1];
+    
+    for (int t=0; t<numThreads; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            SimpleInputBuffer buf = new SimpleInputBuffer(bytes);
+            for (int i=0; i<n; i++) 
+              Id.build(buf);
+          } catch (IOException e) {
+            failure[0] = e;
+          }
+        }
+      };
+    }
+    
+    long start = System.nanoTime();
+    for (int t=0; t<numThreads; t++) 
+      threads[t].start();
+    for (int t=0; t<numThreads; t++) 
+      threads[t].join();
+    long time = System.nanoTime() - start;
+    
+    if (failure[0] != null)
+      throw failure[0];
+    
+    System.out.println(name+" threads:"+numThreads+" "+(numThreads * (long) n * 1000000000L / time)+" Ids/s");
+  }
+  
+  protected static long usedHeap() {
+    Runtime r = Runtime.getRuntime();
+    for (int i=0; i<5; i++) {
+      System.gc();
+      try { Thread.sleep(100); } catch (InterruptedException ie) {}
+    }
+    return r.totalMemory() - r.freeMemory();
+  }
+}
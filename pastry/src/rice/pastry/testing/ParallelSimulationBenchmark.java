@@ -0,0 +1,224 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.pastry.NodeIdFactory;
+import rice.pastry.PastryNode;
+import rice.pastry.direct.*;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+/**
+ * Runs the same seeded direct simulation (build a ring, then route random 
+ * lookups) with the BasicNetworkSimulator and with the ParallelNetworkSimulator 
+ * on different numbers of threads.  Checks that every lookup reaches the node 
+ * with the numerically closest Id, and prints the wall time, the speedup over 
+ * the first parallel run and a digest of where and when the lookups arrived.  
+ * The digest must be the same for every parallel run.  0 threads is the 
+ * BasicNetworkSimulator, which delivers some events sooner and so has its own 
+ * digest.
+ * 
+ * Usage: ParallelSimulationBenchmark [numNodes] [numLookups] [threads...]  (default 200 2000 0 1 2 4)
+ * 
+ * @version $Id$
+ */
+public class ParallelSimulationBenchmark {
+  
+  public static final int SEED = 42;
+  
+  static class LookupMessage implements Message {
+    int seq;
+    
+    public LookupMessage(int seq) {
+      this.seq = seq;
+    }
+    
+    public int getPriority() {
+      return Message.LOW_PRIORITY;
+    }
+  }
+  
+  static class LookupApp implements Application {
+    int index;
+    Endpoint endpoint;
+    Results results;
+    
+    public LookupApp(int index, PastryNode node, Results results) {
+      this.index = index;
+      this.results = results;
+      endpoint = node.buildEndpoint(this, "lookup");
+      endpoint.register();
+    }
+    
+    public boolean forward(RouteMessage message) {
+      return true;
+    }
+
+    public void deliver(Id id, Message message) {
+      LookupMessage msg = (LookupMessage)message;
+      // each slot is only written once, by the receiver's partition
+      results.receiver[msg.seq] = index;
+      results.arrival[msg.seq] = endpoint.getEnvironment().getTimeSource().currentTimeMillis();
+      results.delivered.incrementAndGet();
+    }
+
+    public void update(NodeHandle handle, boolean joined) {
+    }
+  }
+  
+  static class Results {
+    int[] receiver;
+    long[] sent;
+    long[] arrival;
+    AtomicInteger delivered = new AtomicInteger();
+    long wallTime;
+    
+    public Results(int numLookups) {
+      receiver = new int[numLookups];
+      sent = new long[numLookups];
+      arrival = new long[numLookups];
+    }
+    
+    public long digest() {
+      long ret = 17;
+      for (int i = 0; i < receiver.length; i++) {
+        ret = ret*31+receiver[i];
+        ret = ret*31+(arrival[i]-sent[i]);
+      }
+      return ret;
+    }
+  }
+  
+  public static Results run(int numNodes, int numLookups, int threads) throws Exception {
+    Environment env = Environment.directEnvironment(SEED);
+    try {
+      env.getParameters().setInt("pastry_direct_parallel_threads", threads);
+      long start = System.currentTimeMillis();
+      
+      NodeIdFactory nidFactory = new RandomNodeIdFactory(env);
+      NetworkSimulator<DirectNodeHandle,RawMessage> simulator = new SphereNetwork<DirectNodeHandle,RawMessage>(env);
+      DirectPastryNodeFactory factory = new DirectPastryNodeFactory(nidFactory, simulator, env);
+      Results results = new Results(numLookups);
+      
+      PastryNode[] nodes = new PastryNode[numNodes];
+      LookupApp[] apps = new LookupApp[numNodes];
+      rice.pastry.NodeHandle bootHandle = null;
+      for (int i = 0; i < numNodes; i++) {
+        nodes[i] = factory.newNode();
+        apps[i] = new LookupApp(i, nodes[i], results);
+        nodes[i].boot(bootHandle);
+        bootHandle = nodes[i].getLocalHandle();
+        // only block in the simulated clock, so the run is reproducible
+        while (!nodes[i].isReady()) {
+          if (nodes[i].joinFailed()) throw new RuntimeException("FAILURE: node "+i+" could not join: "+nodes[i].joinFailedReason());
+          env.getTimeSource().sleep(100);
+        }
+      }
+      // let the leafsets and routing tables settle
+      env.getTimeSource().sleep(10000);
+      
+      RandomSource rng = new SimpleRandomSource(SEED, env.getLogManager());
+      rice.pastry.Id[] keys = new rice.pastry.Id[numLookups];
+      for (int i = 0; i < numLookups; i++) {
+        keys[i] = nidFactory.generateNodeId();
+        results.sent[i] = env.getTimeSource().currentTimeMillis();
+        apps[rng.nextInt(numNodes)].endpoint.route(keys[i], new LookupMessage(i), null);
+        // keep many lookups in flight at once
+        if (i % numNodes == numNodes-1) env.getTimeSource().sleep(10);
+      }
+      for (int i = 0; i < 600 && results.delivered.get() < numLookups; i++) {
+        env.getTimeSource().sleep(100);
+      }
+      results.wallTime = System.currentTimeMillis()-start;
+      
+      if (results.delivered.get() != numLookups) 
+        throw new RuntimeException("FAILURE: "+results.delivered.get()+" of "+numLookups+" lookups arrived");
+      for (int i = 0; i < numLookups; i++) {
+        int closest = 0;
+        for (int n = 1; n < numNodes; n++) {
+          if (nodes[n].getNodeId().distance(keys[i]).compareTo(nodes[closest].getNodeId().distance(keys[i])) < 0)
+            closest = n;
+        }
+        if (results.receiver[i] != closest) 
+          throw new RuntimeException("FAILURE: lookup "+i+" for "+keys[i]+" arrived at "+nodes[results.receiver[i]]+" instead of "+nodes[closest]);
+      }
+      return results;
+    } finally {
+      env.destroy();
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int numNodes = (args.length > 0 ? Integer.parseInt(args[0]) : 200);
+    int numLookups = (args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+    int[] threads;
+    if (args.length > 2) {
+      threads = new int[args.length-2];
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = Integer.parseInt(args[i+2]);
+      }
+    } else {
+      threads = new int[] {0, 1, 2, 4};
+    }
+    
+    System.out.println("nodes:"+numNodes+" lookups:"+numLookups+" processors:"+Runtime.getRuntime().availableProcessors());
+    // so that the first measured run doesn't pay for the JIT
+    run(numNodes, numLookups, threads[0]);
+    long baseTime = -1;
+    long parallelDigest = 0;
+    for (int i = 0; i < threads.length; i++) {
+      Results r = run(numNodes, numLookups, threads[i]);
+      String speedup = "";
+      if (threads[i] > 0) {
+        if (baseTime < 0) {
+          baseTime = r.wallTime;
+          parallelDigest = r.digest();
+        } else if (r.digest() != parallelDigest) {
+          throw new RuntimeException("FAILURE: "+threads[i]+" threads gave digest "+Long.toHexString(r.digest())+" instead of "+Long.toHexString(parallelDigest));
+        }
+        speedup = " speedup:"+((baseTime*100/Math.max(r.wallTime, 1))/100.0);
+      }
+      System.out.println("threads:"+threads[i]+" wall:"+r.wallTime+"ms"+speedup+" digest:"+Long.toHexString(r.digest()));
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.util.rawserialization.*;
+import rice.p2p.util.testing.OutputBufferBenchmark;
+import rice.pastry.Id;
+import rice.pastry.commonapi.PastryEndpointMessage;
+import rice.pastry.routing.RouteMessage;
+
+/**
+ * Measures the CPU and allocation of one intermediate hop of a RouteMessage 
+ * whose payload is never deserialized: rebuild it from the received frame and 
+ * serialize it into a pooled buffer for the next hop.
+ * 
+ *   copying: the frame is read through a SimpleInputBuffer, so serialize() 
+ *     copies the payload into a temporary array and wraps it again
+ *   cut through: the frame is read through a ByteBufferInputBuffer (as 
+ *     CommonAPITransportLayerImpl does), the payload is copied once, 
+ *     straight from the frame into the outgoing buffer
+ * 
+ * Checks that both produce the received frame, and that the message can be 
+ * serialized again.
+ * 
+ * Usage: RouteMessageForwardBenchmark [payload sizes...]  (default 1024 65536)
+ * 
+ * @version $Id$
+ */
+public class RouteMessageForwardBenchmark {
+  
+  /**
+   * The payload bytes to forward per measurement.
+   */
+  public static final long VOLUME = 4L*1024*1024*1024;
+  
+  static class Payload implements RawMessage {
+    byte[] data;
+    
+    public Payload(byte[] data) {
+      this.data = data;
+    }
+    
+    public short getType() {
+      return 1;
+    }
+
+    public int getPriority() {
+      return Message.LOW_PRIORITY;
+    }
+
+    public void serialize(OutputBuffer buf) throws IOException {
+      buf.write(data, 0, data.length);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int[] sizes = {1024, 65536};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+    }
+    
+    Random rng = new Random(1);
+    OutputBufferPool pool = new OutputBufferPool(32, 256*1024);
+    for (int i = 0; i < sizes.length; i++) {
+      byte[] data = new byte[sizes[i]];
+      rng.nextBytes(data);
+      RouteMessage original = new RouteMessage(Id.makeRandomId(rng), 
+          new PastryEndpointMessage(7, new Payload(data), null), (byte)0);
+      SimpleOutputBuffer sob = new SimpleOutputBuffer();
+      original.serialize(sob);
+      byte[] frame = sob.getBytes();
+      
+      check("copying", frame, false, pool);
+      check("cut through", frame, true, pool);
+      
+      int n = (int)Math.max(100, VOLUME/frame.length);
+      // warm up
+      run("copying", frame, false, pool, n/10, false);
+      run("cut through", frame, true, pool, n/10, false);
+      
+      run("copying", frame, false, pool, n, true);
+      run("cut through", frame, true, pool, n, true);
+    }
+  }
+  
+  static RouteMessage receive(byte[] frame, boolean cutThrough) throws IOException {
+    InputBuffer in;
+    if (cutThrough) {
+      in = new ByteBufferInputBuffer(ByteBuffer.wrap(frame));
+    } else {
+      in = new SimpleInputBuffer(frame);
+    }
+    return RouteMessage.build(in, (byte)Message.LOW_PRIORITY, null, null, (byte)0);
+  }
+  
+  static void check(String name, byte[] frame, boolean cutThrough, OutputBufferPool pool) throws IOException {
+    RouteMessage rm = receive(frame, cutThrough);
+    for (int i = 0; i < 2; i++) {
+      PooledOutputBuffer pob = pool.getBuffer(4);
+      rm.serialize(pob);
+      if (!Arrays.equals(frame, pob.getBytes())) {
+        System.out.println("FAILURE: "+name+" forwarded a different frame, serialization "+i);
+        System.exit(1);
+      }
+      pob.release();
+    }
+  }
+  
+  static void run(String name, byte[] frame, boolean cutThrough, OutputBufferPool pool, int n, boolean print) throws IOException {
+    long startAlloc = OutputBufferBenchmark.allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      RouteMessage rm = receive(frame, cutThrough);
+      PooledOutputBuffer pob = pool.getBuffer(4);
+      rm.serialize(pob);
+      pob.release();
+    }
+    long time = System.nanoTime()-start;
+    long alloc = OutputBufferBenchmark.allocatedBytes()-startAlloc;
+    if (print) {
+      System.out.println(name+" msgSize:"+frame.length+" "+(time/n)+" ns/hop "+
+          (alloc/n)+" bytes allocated/hop "+
+          ((long)frame.length*n*1000L/Math.max(time, 1))+" MB/s");
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.pastry.*;
+import rice.pastry.leafset.LeafSet;
+import rice.pastry.routing.*;
+import rice.pastry.standard.StandardRouter;
+
+/**
+ * Measures the time and allocation of picking the next hop in the StandardRouter, 
+ * through the candidate iterator and the RouterStrategy, and through the 
+ * allocation-free getAliveNextHop(), over a RoutingTable and LeafSet populated 
+ * from a network of random nodes.  Checks that both pick the same hop.
+ * 
+ * Usage: RoutingBenchmark [numNodes] [numLookups]  (default 10000 1000000)
+ * 
+ * @version $Id$
+ */
+public class RoutingBenchmark {
+  
+  /**
+   * A handle which is always alive, and can be observed by the routing table
+   */
+  static class BenchmarkNodeHandle extends LeafSetTest.TestNodeHandle {
+    public BenchmarkNodeHandle(Id id, PastryNode pn) {
+      super(id);
+      localnode = pn;
+      logger = pn.getEnvironment().getLogManager().getLogger(getClass(), null);
+    }
+  }
+  
+  /**
+   * Exposes the router's strategy, to pick the next hop the usual way
+   */
+  static class BenchmarkRouter extends StandardRouter {
+    public BenchmarkRouter(PastryNode pn) {
+      super(pn, null);
+    }
+    
+    public NodeHandle getStrategyNextHop(Id target) {
+      return routerStrategy.pickNextHop(null, getBestRoutingCandidates(target));
+    }
+  }
+  
+  public static void main(String[] args) {
+    int numNodes = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+    int numLookups = (args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+    
+    Environment env = new Environment();
+    try {
+      Parameters p = env.getParameters();
+      Random rng = new Random(42);
+      
+      // the node has no transport to destroy
+      PastryNode pn = new PastryNode(Id.makeRandomId(rng), env);
+      env.removeDestructable(pn);
+      NodeHandle local = new BenchmarkNodeHandle(pn.getNodeId(), pn);
+      RoutingTable rt = new RoutingTable(local, p.getInt("pastry_rtMax"), (byte) p.getInt("pastry_rtBaseBitLength"), pn);
+      LeafSet ls = new LeafSet(local, p.getInt("pastry_lSetSize"), rt);
+      BenchmarkRouter router = new BenchmarkRouter(pn);
+      pn.setElements(local, null, ls, rt, router);
+      
+      for (int i=0; i<numNodes; i++) {
+        NodeHandle handle = new BenchmarkNodeHandle(Id.makeRandomId(rng), pn);
+        ls.put(handle);
+        
+        // only fill empty entries, we have no proximity to choose between handles
+        RouteSet best = rt.getBestEntry(handle.getNodeId());
+        if ((best == null) || best.isEmpty())
+          rt.put(handle);
+      }
+      
+      // a tenth of the lookups are for keys in the leafset
+      Id[] targets = new Id[10000];
+      for (int i=0; i<targets.length; i++) {
+        if (i % 10 == 0) 
+          targets[i] = ls.get(rng.nextInt(ls.cwSize()) + 1).getNodeId();
+        else 
+          targets[i] = Id.makeRandomId(rng);
+      }
+      
+      for (int i=0; i<targets.length; i++) {
+        int lsPos = ls.mostSimilar(targets[i]);
+        if ((lsPos != 0) && (router.getAliveNextHop(targets[i], lsPos) != router.getStrategyNextHop(targets[i])))
+          throw new RuntimeException("FAILURE: next hops differ for "+targets[i]);
+      }
+      System.out.println("Routing table: "+rt.numEntries()+" entries, leafset: "+ls.size()+" entries");
+      
+      for (int round=0; round<3; round++) {
+        long startAlloc = allocatedBytes();
+        long start = System.nanoTime();
+        int hops = 0;
+        for (int i=0; i<numLookups; i++) {
+          Id target = targets[i % targets.length];
+          if ((ls.mostSimilar(target) != 0) && (router.getStrategyNextHop(target) != null))
+            hops++;
+        }
+        report("iterator", numLookups, hops, System.nanoTime() - start, allocatedBytes() - startAlloc);
+        
+        startAlloc = allocatedBytes();
+        start = System.nanoTime();
+        hops = 0;
+        for (int i=0; i<numLookups; i++) {
+          Id target = targets[i % targets.length];
+          int lsPos = ls.mostSimilar(target);
+          if ((lsPos != 0) && (router.getAliveNextHop(target, lsPos) != null))
+            hops++;
+        }
+        report("fast path", numLookups, hops, System.nanoTime() - start, allocatedBytes() - startAlloc);
+      }
+    } finally {
+      env.destroy();
+    }
+  }
+  
+  /**
+   * @return the bytes allocated by this thread so far, or 0 if the JVM can't tell us
+   */
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+  
+  protected static void report(String name, int n, int hops, long time, long alloc) {
+    System.out.println(name+": lookups:"+n+" hops:"+hops+" "+(time/n)+"ns/lookup "+
+        (alloc/n)+" bytes allocated/lookup "+(n*1000000000L/Math.max(time, 1))+" lookups/s");
+  }
+}
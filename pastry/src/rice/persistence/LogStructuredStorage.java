@@ -0,0 +1,1135 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import rice.*;
+import rice.Continuation.ListenerContinuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.environment.processing.KeyedWorkRequest;
+import rice.p2p.commonapi.*;
+import rice.p2p.util.*;
+
+/**
+ * This class is an implementation of Storage which appends every object to 
+ * the end of a large segment file, instead of writing one file per object 
+ * like the PersistentStorage.  Stores, metadata updates and deletes are all 
+ * records appended to the current segment, so that writing an object costs a 
+ * single sequential write, and a crash can at most lose the tail of the 
+ * current segment, which is detected with a checksum.
+ *
+ * Each record is 
+ *
+ *   [magic (int)][type (byte)][key length (int)][metadata length (int)][object length (int)]
+ *   [key][metadata][object][crc32 (int)]
+ *
+ * where the key, metadata and object are sections in the format of the 
+ * PersistentStorage revision 2.2 files.  
+ *
+ * The location of each object, and its metadata, are kept in memory, and are 
+ * rebuilt by replaying the segments in order on startup.  Once enough of a 
+ * segment has been overwritten or deleted, its live records are copied to the 
+ * end of the current segment in the background, and the segment is deleted.
+ * A delete record counts as live only while an older segment still holds a 
+ * store record for its id, which would otherwise come back on recovery.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("unchecked")
+public class LogStructuredStorage implements Storage, IdMerkleTreeSource {
+  
+  /**
+   * The magic number which starts every record
+   */
+  public static final int RECORD_MAGIC_NUMBER = 0x4C534731;
+  
+  /**
+   * The types of record
+   */
+  public static final byte RECORD_STORE = 1;
+  public static final byte RECORD_METADATA = 2;
+  public static final byte RECORD_DELETE = 3;
+  
+  /**
+   * The length of the fields around the key, metadata and object of a record
+   */
+  public static final int RECORD_HEADER_LENGTH = 17;
+  public static final int RECORD_TRAILER_LENGTH = 4;
+  
+  /**
+   * The suffix of the segment files, which are named by their number
+   */
+  public static final String SEGMENT_SUFFIX = ".segment";
+  
+  /**
+   * The default size at which a new segment is started
+   */
+  public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  
+  /**
+   * The default fraction of a segment which must be garbage before it is compacted
+   */
+  public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+  
+  /**
+   * The number of bytes of a segment which are compacted by each request, so
+   * that reads and writes are not held up by the whole segment
+   */
+  public static final int COMPACTION_CHUNK_SIZE = 1024 * 1024;
+
+  private static final byte[] EMPTY = new byte[0];
+  
+  private Environment environment;
+  
+  private Logger logger;
+  
+  // the factory for manipulating the ids
+  private IdFactory factory;
+  
+  // the name of this instance
+  private String name;
+  
+  // the directory holding the segments
+  private File directory;
+  
+  // the amount of storage allowed to be used, or less than 1 for unlimited
+  private long storageSize;
+  
+  // the size at which a new segment is started
+  private long segmentSize = DEFAULT_SEGMENT_SIZE;
+  
+  // the fraction of a segment which must be garbage before it is compacted
+  private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+  
+  // sections at least this large are compressed
+  private int compressionThreshold = PersistentStorage.DEFAULT_COMPRESSION_THRESHOLD;
+  
+  // the segments, by number, the last one is the one being appended to
+  private TreeMap<Integer, Segment> segments;
+  
+  // the segment being appended to
+  private Segment active;
+  
+  // where each object is, only used with the lock held
+  private HashMap<Id, Entry> index;
+  
+  // the delete records which are still needed, only used with the lock held
+  private HashMap<Id, Entry> tombstones;
+  
+  // the metadata of each object, this is also the sorted set of ids, read without a lock
+  private volatile MerkleMetadataMap metadata;
+  
+  // the number of bytes of live records
+  private long usedSize;
+
+  // reads share the lock, anything which appends holds it exclusively
+  private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+  
+  /**
+   * Builds a LogStructuredStorage, which keeps its segments in the directory 
+   * name under rootDir.
+   *
+   * @param factory The factory to use for creating Ids.
+   * @param name the name of this instance
+   * @param rootDir The root directory of the persisted disk.
+   * @param size the size of the storage in bytes, or -1 for unlimited
+   */
+  public LogStructuredStorage(IdFactory factory, String name, String rootDir, long size, Environment env) throws IOException {
+    this.environment = env;
+    this.logger = environment.getLogManager().getLogger(LogStructuredStorage.class, null);
+    this.factory = factory;
+    this.name = name;
+    this.storageSize = size;
+    this.directory = new File(rootDir, name);
+    this.segments = new TreeMap<Integer, Segment>();
+    this.index = new HashMap<Id, Entry>();
+    this.tombstones = new HashMap<Id, Entry>();
+    this.metadata = new MerkleMetadataMap();
+    
+    if (environment.getParameters().contains("p2p_persistence_compression_threshold"))
+      this.compressionThreshold = environment.getParameters().getInt("p2p_persistence_compression_threshold");
+    if (environment.getParameters().contains("p2p_persistence_segment_size"))
+      this.segmentSize = environment.getParameters().getLong("p2p_persistence_segment_size");
+    if (environment.getParameters().contains("p2p_persistence_segment_compaction_ratio"))
+      this.compactionRatio = environment.getParameters().getDouble("p2p_persistence_segment_compaction_ratio");
+    
+    if (! directory.exists())
+      directory.mkdirs();
+    
+    if (! directory.isDirectory())
+      throw new IOException("Could not create directory " + directory);
+    
+    if (logger.level <= Logger.INFO) logger.log("Launching log structured storage in " + directory + " with segment size " + segmentSize);
+    
+    recover();
+  }
+  
+  /**
+   * Renames the given object to the new id.  This method is potentially faster
+   * than store/cache and unstore/uncache.
+   *
+   * @param oldId The id of the object in question.
+   * @param newId The new id of the object in question.
+   * @param c The command to run once the operation is complete
+   */
+  public void rename(final Id oldId, final Id newId, Continuation c) {
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, null) {
+      public String toString() { return "rename " + oldId + " " + newId; }
+      public Object doWrite() throws Exception {
+        Entry entry = index.get(oldId);
+        
+        if (entry == null)
+          return Boolean.FALSE;
+        
+        if (oldId.equals(newId))
+          return Boolean.TRUE;
+        
+        Serializable md = getMetadata(oldId);
+        byte[] key = PersistentStorage.serialize(newId, compressionThreshold);
+        byte[] meta = PersistentStorage.serialize(md, compressionThreshold);
+        byte[] data = entry.readObject();
+        
+        long offset = append(RECORD_STORE, key, meta, data);
+        putEntry(newId, new Entry(active, offset, key.length, meta.length, data.length), md);
+        
+        delete(oldId, PersistentStorage.serialize(oldId, compressionThreshold));
+        
+        return Boolean.TRUE;
+      }
+    });
+  }
+  
+  /**
+   * Stores the object under the key <code>id</code>.  If there is already
+   * an object under <code>id</code>, that object is replaced.
+   *
+   * This method completes by calling recieveResult() of the provided continuation
+   * with the success or failure of the operation.
+   *
+   * @param obj The object to be made persistent.
+   * @param id The object's id.
+   * @param metadata The object's metadata
+   * @param c The command to run once the operation is complete
+   */
+  public void store(final Id id, final Serializable metadata, final Serializable obj, Continuation c) {
+    if (id == null || obj == null) {
+      c.receiveResult(new Boolean(false));
+      return;
+    }
+    
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, id) {
+      byte[] key, meta, data;
+      
+      public String toString() { return "store " + id; }
+      protected void prepare() throws Exception {
+        key = PersistentStorage.serialize(id, compressionThreshold);
+        meta = PersistentStorage.serialize(metadata, compressionThreshold);
+        data = PersistentStorage.serialize(obj, compressionThreshold);
+      }
+      public Object doWrite() throws Exception {
+        Entry old = index.get(id);
+        long length = recordLength(key, meta, data);
+        
+        if ((storageSize > 0) && (usedSize + length - (old == null ? 0 : old.getSize()) > storageSize))
+          throw new IOException("Storing " + id + " of size " + length + " would exceed the storage size " + storageSize + " of " + name);
+        
+        long offset = append(RECORD_STORE, key, meta, data);
+        putEntry(id, new Entry(active, offset, key.length, meta.length, data.length), metadata);
+        
+        return Boolean.TRUE;
+      }
+    });
+  }
+  
+  /**
+   * Removes the object from the list of stored objects. If the object was not
+   * in the cached list in the first place, nothing happens and <code>false</code>
+   * is returned.
+   *
+   * This method completes by calling recieveResult() of the provided continuation
+   * with the success or failure of the operation.
+   *
+   * @param id The object's persistence id
+   * @param c The command to run once the operation is complete
+   */
+  public void unstore(final Id id, Continuation c) {
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, id) {
+      public String toString() { return "unstore " + id; }
+      public Object doWrite() throws Exception {
+        if (! index.containsKey(id))
+          return Boolean.FALSE;
+        
+        delete(id, PersistentStorage.serialize(id, compressionThreshold));
+        
+        return Boolean.TRUE;
+      }
+    });
+  }
+  
+  /**
+   * Returns whether or not an object is present in the location <code>id</code>.
+   *
+   * @param id The id of the object in question.
+   * @return Whether or not an object is present at id.
+   */
+  public boolean exists(Id id) {
+    return metadata.containsKey(id);
+  }
+  
+  /**
+   * Returns the object identified by the given id, or <code>null</code> if
+   * there is no corresponding object (through receiveResult on c).
+   *
+   * @param id The id of the object in question.
+   * @param c The command to run once the operation is complete
+   */
+  public void getObject(final Id id, Continuation c) {
+    if (! exists(id)) {
+      c.receiveResult(null);
+      return;
+    }
+    
+    environment.getProcessor().processBlockingIO(new KeyedWorkRequest(c, environment.getSelectorManager(), this, id) {
+      public String toString() { return "getObject " + id; }
+      public Object doWork() throws Exception {
+        byte[] data;
+        
+        lock.readLock().lock();
+        try {
+          Entry entry = index.get(id);
+          
+          if (entry == null)
+            return null;
+          
+          data = entry.readObject();
+        } finally {
+          lock.readLock().unlock();
+        }
+        
+        return PersistentStorage.deserialize(data);
+      }
+    });
+  }
+  
+  /**
+   * Returns the metadata associated with the provided object, or null if
+   * no metadata exists.  The metadata must be stored in memory, so this 
+   * operation is guaranteed to be fast and non-blocking.
+   *
+   * @param id The id for which the metadata is needed
+   * @return The metadata, or null of non exists
+   */
+  public Serializable getMetadata(Id id) {
+    return (Serializable) metadata.get(id);
+  }
+  
+  /**
+   * Updates the metadata stored under the given key to be the provided
+   * value.  The new metadata is appended to the current segment, so the 
+   * object itself is not rewritten.
+   *
+   * @param id The id for the metadata 
+   * @param metadata The metadata to store
+   * @param c The command to run once the operation is complete
+   */
+  public void setMetadata(final Id id, final Serializable metadata, Continuation c) {
+    if (! exists(id)) {
+      c.receiveResult(new Boolean(false));
+      return;
+    }
+    
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, id) {
+      byte[] key, meta;
+      
+      public String toString() { return "setMetadata " + id; }
+      protected void prepare() throws Exception {
+        key = PersistentStorage.serialize(id, compressionThreshold);
+        meta = PersistentStorage.serialize(metadata, compressionThreshold);
+      }
+      public Object doWrite() throws Exception {
+        Entry entry = index.get(id);
+        
+        if (entry == null)
+          return Boolean.FALSE;
+        
+        long offset = append(RECORD_METADATA, key, meta, EMPTY);
+        setMetadataRecord(entry, active, offset, (int) recordLength(key, meta, EMPTY));
+        
+        LogStructuredStorage.this.metadata.put(id, metadata);
+        
+        return Boolean.TRUE;
+      }
+    });
+  }
+  
+  /**
+   * Return the objects identified by the given range of ids
+   *
+   * @param range The range to query  
+   * @return The idset containg the keys 
+   */
+  public IdSet scan(IdRange range) {
+    if (range.isEmpty())
+      return factory.buildIdSet();
+    else if (range.getCCWId().equals(range.getCWId())) 
+      return scan();
+    else 
+      return factory.buildIdSet(new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId())));
+  }
+  
+  /**
+   * Return all objects currently stored by this catalog
+   *
+   * @return The idset containg the keys 
+   */
+  public IdSet scan() {
+    return factory.buildIdSet(new ImmutableSortedMap(metadata.keyMap()));
+  }
+  
+  /**
+   * Returns a map which contains keys mapping ids to the associated 
+   * metadata.  
+   *
+   * @param range The range to query  
+   * @return The map containg the keys 
+   */
+  public SortedMap scanMetadata(IdRange range) {
+    if (range.isEmpty()) 
+      return new RedBlackMap();
+    else if (range.getCCWId().equals(range.getCWId())) 
+      return scanMetadata();
+    else 
+      return new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId()));
+  }
+  
+  /**
+   * Returns a map which contains keys mapping ids to the associated 
+   * metadata.  
+   *
+   * @return The treemap mapping ids to metadata 
+   */
+  public SortedMap scanMetadata() {
+    return new ImmutableSortedMap(metadata.keyMap());
+  }
+  
+  /**
+   * Returns the submapping of ids which have metadata less than the provided
+   * value.
+   *
+   * @param value The maximal metadata value 
+   * @return The submapping
+   */
+  public SortedMap scanMetadataValuesHead(Object value) {
+    return new ImmutableSortedMap(metadata.valueHeadMap(value));
+  }
+  
+  /**
+   * Returns the submapping of ids which have metadata null
+   *
+   * @return The submapping
+   */
+  public SortedMap scanMetadataValuesNull() {
+    return new ImmutableSortedMap(metadata.valueNullMap());
+  }
+  
+  /**
+   * Returns the number of Ids currently stored in the catalog
+   *
+   * @return The number of ids in the catalog
+   */
+  public int getSize() {
+    return metadata.size();
+  }
+
+  /**
+   * Returns the IdMerkleTree of the stored Ids, which is built on the first
+   * call and then updated as objects are stored and removed, or null if 
+   * some of the Ids are not supported by the tree
+   *
+   * @return The tree, or null
+   */
+  public IdMerkleTree getMerkleTree() {
+    return metadata.getMerkleTree();
+  }
+  
+  /**
+   * Returns the total size of the live records, in bytes.
+   *
+   * @return The total storage size
+   */
+  public long getTotalSize() {
+    return usedSize;
+  }
+  
+  /**
+   * Method which is used to erase all data stored in the Storage.  
+   * Use this method with care!
+   *
+   * @param c The command to run once done
+   */
+  public void flush(Continuation c) {
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, null) {
+      public String toString() { return "flush"; }
+      public Object doWrite() throws Exception {
+        Iterator<Segment> i = segments.values().iterator();
+        while (i.hasNext()) 
+          i.next().delete();
+        
+        segments.clear();
+        index.clear();
+        tombstones.clear();
+        usedSize = 0;
+        active = null;
+        
+        metadata = new MerkleMetadataMap();
+        
+        roll();
+        
+        return Boolean.TRUE;
+      }
+    });
+  }
+  
+  /**
+   * A request which appends to this storage, it runs with the lock held exclusively.
+   */
+  private abstract class WriteRequest extends KeyedWorkRequest {
+    
+    /**
+     * @param id the Id it changes, null if it may change any Id
+     */
+    public WriteRequest(Continuation c, Id id) {
+      super(c, environment.getSelectorManager(), LogStructuredStorage.this, id);
+    }
+    
+    public Object doWork() throws Exception {
+      prepare();
+      
+      lock.writeLock().lock();
+      try {
+        return doWrite();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    
+    /**
+     * Does any work, such as serialization, which doesn't need the lock
+     */
+    protected void prepare() throws Exception {
+    }
+    
+    protected abstract Object doWrite() throws Exception;
+  }
+  
+  /*****************************************************************/
+  /* The index                                                     */
+  /*****************************************************************/
+  
+  /**
+   * Adds or replaces the entry for the given id, the records of any old
+   * entry become garbage.
+   */
+  private void putEntry(Id id, Entry entry, Serializable md) {
+    Entry old = index.put(id, entry);
+    Entry tombstone = tombstones.remove(id);
+    
+    entry.segment.live += entry.length;
+    entry.segment.stored.add(id);
+    usedSize += entry.length;
+    
+    metadata.put(id, md);
+    
+    if (old != null)
+      release(old);
+    
+    /* the new store record hides any older ones on recovery */
+    if (tombstone != null)
+      release(tombstone);
+  }
+  
+  /**
+   * Removes the entry for the given id, its records become garbage.
+   */
+  private void removeEntry(Id id) {
+    Entry old = index.remove(id);
+    
+    metadata.remove(id);
+    
+    if (old != null)
+      release(old);
+  }
+  
+  /**
+   * Appends a delete record for the given id, and removes its entry.
+   */
+  private void delete(Id id, byte[] key) throws IOException {
+    long offset = append(RECORD_DELETE, key, EMPTY, EMPTY);
+    removeEntry(id);
+    
+    if (isStoredBefore(id, active))
+      putTombstone(id, new Entry(active, offset, key.length, 0, 0));
+  }
+  
+  /**
+   * Records that the given delete record is needed to keep the store records 
+   * of older segments from coming back on recovery, so it is live.
+   */
+  private void putTombstone(Id id, Entry tombstone) {
+    Entry old = tombstones.put(id, tombstone);
+    
+    tombstone.segment.live += tombstone.length;
+    usedSize += tombstone.length;
+    
+    if (old != null)
+      release(old);
+  }
+  
+  /**
+   * Returns whether a segment older than the given one holds a store record,
+   * live or not, for the id.
+   */
+  private boolean isStoredBefore(Id id, Segment segment) {
+    Iterator<Segment> i = segments.headMap(new Integer(segment.number)).values().iterator();
+    
+    while (i.hasNext()) 
+      if (i.next().stored.contains(id))
+        return true;
+    
+    return false;
+  }
+  
+  /**
+   * Releases the delete records which were only needed because of the store 
+   * records of the given segment, which has been deleted.
+   */
+  private void releaseTombstones(Segment deleted) {
+    Iterator<Id> i = deleted.stored.iterator();
+    
+    while (i.hasNext()) {
+      Id id = i.next();
+      Entry tombstone = tombstones.get(id);
+      
+      if ((tombstone != null) && (! isStoredBefore(id, tombstone.segment))) {
+        tombstones.remove(id);
+        release(tombstone);
+      }
+    }
+    
+    deleted.stored.clear();
+  }
+  
+  /**
+   * Records that the metadata of the entry is now in the given record.
+   */
+  private void setMetadataRecord(Entry entry, Segment segment, long offset, int length) {
+    Segment old = entry.metadataSegment;
+    int oldLength = entry.metadataLength;
+    
+    entry.metadataSegment = segment;
+    entry.metadataOffset = offset;
+    entry.metadataLength = length;
+    segment.live += length;
+    usedSize += length;
+    
+    if (old != null) {
+      old.live -= oldLength;
+      usedSize -= oldLength;
+      checkCompaction(old);
+    }
+  }
+  
+  /**
+   * Marks the records of the entry as garbage.
+   */
+  private void release(Entry entry) {
+    entry.segment.live -= entry.length;
+    usedSize -= entry.length;
+    checkCompaction(entry.segment);
+    
+    if (entry.metadataSegment != null) {
+      entry.metadataSegment.live -= entry.metadataLength;
+      usedSize -= entry.metadataLength;
+      checkCompaction(entry.metadataSegment);
+    }
+  }
+  
+  /*****************************************************************/
+  /* Segments                                                      */
+  /*****************************************************************/
+  
+  /**
+   * Returns the length of the record holding the given sections
+   */
+  private static long recordLength(byte[] key, byte[] meta, byte[] data) {
+    return RECORD_HEADER_LENGTH + (long) key.length + meta.length + data.length + RECORD_TRAILER_LENGTH;
+  }
+  
+  /**
+   * Appends a record to the active segment, starting a new segment first if 
+   * it would grow too large.
+   *
+   * @return The offset of the record in the active segment
+   */
+  private long append(byte type, byte[] key, byte[] meta, byte[] data) throws IOException {
+    long length = recordLength(key, meta, data);
+    
+    if (length > Integer.MAX_VALUE)
+      throw new IOException("Record of length " + length + " is too large");
+    
+    if ((active.size > 0) && (active.size + length > segmentSize))
+      roll();
+    
+    ByteBuffer buffer = ByteBuffer.allocate((int) length);
+    buffer.putInt(RECORD_MAGIC_NUMBER);
+    buffer.put(type);
+    buffer.putInt(key.length);
+    buffer.putInt(meta.length);
+    buffer.putInt(data.length);
+    buffer.put(key);
+    buffer.put(meta);
+    buffer.put(data);
+    
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.position());
+    buffer.putInt((int) crc.getValue());
+    buffer.flip();
+    
+    long offset = active.size;
+    write(active.channel, buffer, offset);
+    active.size += length;
+    
+    return offset;
+  }
+  
+  /**
+   * Seals the active segment, and starts a new one.
+   */
+  private void roll() throws IOException {
+    Segment sealed = active;
+    
+    if (sealed != null) 
+      sealed.channel.force(false);
+    
+    int number = (segments.isEmpty() ? 0 : segments.lastKey().intValue() + 1);
+    active = new Segment(number, new File(directory, number + SEGMENT_SUFFIX));
+    segments.put(new Integer(number), active);
+    
+    if (logger.level <= Logger.FINE) logger.log("Started segment " + number + " of " + name);
+    
+    if (sealed != null)
+      checkCompaction(sealed);
+  }
+  
+  /**
+   * Starts compacting the segment if enough of it is garbage.
+   */
+  private void checkCompaction(Segment segment) {
+    if ((active == null) || (segment == active) || segment.compacting)
+      return;
+    
+    if (segment.size - segment.live < compactionRatio * segment.size)
+      return;
+    
+    segment.compacting = true;
+    environment.getProcessor().processBlockingIO(new CompactionRequest(segment, 0));
+  }
+  
+  /**
+   * Copies the live records of part of a segment to the active segment, and
+   * deletes the segment once it has been completely copied.  Each request 
+   * copies at most COMPACTION_CHUNK_SIZE bytes, and then enqueues the next.
+   */
+  private class CompactionRequest extends WriteRequest {
+    
+    private Segment segment;
+    
+    private long position;
+    
+    public CompactionRequest(Segment segment, long position) {
+      super(new ListenerContinuation("Compaction of " + name, environment), null);
+      this.segment = segment;
+      this.position = position;
+    }
+    
+    public String toString() { return "compact segment " + segment.number + " of " + name + " at " + position; }
+    
+    public Object doWrite() throws Exception {
+      /* the storage was flushed in the meantime */
+      if (segments.get(new Integer(segment.number)) != segment)
+        return Boolean.FALSE;
+      
+      long end = Math.min(segment.size, position + COMPACTION_CHUNK_SIZE);
+      
+      while (position < end) 
+        position += compact(segment, position);
+      
+      if (position < segment.size) {
+        environment.getProcessor().processBlockingIO(new CompactionRequest(segment, position));
+        return Boolean.TRUE;
+      }
+      
+      /* the copies must be on disk before the originals go away */
+      active.channel.force(false);
+      segments.remove(new Integer(segment.number));
+      segment.delete();
+      releaseTombstones(segment);
+      
+      if (logger.level <= Logger.INFO) logger.log("Compacted segment " + segment.number + " of " + name + " with " + segment.live + " of " + segment.size + " bytes live");
+      
+      return Boolean.TRUE;
+    }
+  }
+  
+  /**
+   * Copies the record at the given offset of the segment to the active 
+   * segment if it is live.  A delete record is live, and kept, as long as 
+   * an older segment still holds a store record for its id.
+   *
+   * @return The length of the record
+   */
+  private long compact(Segment segment, long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+    read(segment.channel, header, offset);
+    header.flip();
+    
+    int magic = header.getInt();
+    byte type = header.get();
+    int keyLength = header.getInt();
+    int metaLength = header.getInt();
+    int dataLength = header.getInt();
+    long length = RECORD_HEADER_LENGTH + (long) keyLength + metaLength + dataLength + RECORD_TRAILER_LENGTH;
+    
+    /* recovery left an unreadable tail in this segment, which is all garbage */
+    if ((magic != RECORD_MAGIC_NUMBER) || (keyLength < 1) || (metaLength < 0) || (dataLength < 0) || (offset + length > segment.size)) {
+      if (logger.level <= Logger.WARNING) logger.log("Dropping unreadable tail of segment " + segment.number + " of " + name + " at " + offset);
+      return segment.size - offset;
+    }
+    
+    byte[] key = new byte[keyLength];
+    read(segment.channel, ByteBuffer.wrap(key), offset + RECORD_HEADER_LENGTH);
+    Id id = (Id) PersistentStorage.deserialize(key);
+    Entry entry = index.get(id);
+    
+    switch (type) {
+      case RECORD_STORE:
+        if ((entry != null) && (entry.segment == segment) && (entry.offset == offset)) {
+          /* the metadata may have been updated since, so write the current one */
+          Serializable md = getMetadata(id);
+          byte[] meta = PersistentStorage.serialize(md, compressionThreshold);
+          byte[] data = entry.readObject();
+          
+          long newOffset = append(RECORD_STORE, key, meta, data);
+          putEntry(id, new Entry(active, newOffset, key.length, meta.length, data.length), md);
+        }
+        break;
+      case RECORD_METADATA:
+        if ((entry != null) && (entry.metadataSegment == segment) && (entry.metadataOffset == offset)) {
+          byte[] meta = new byte[metaLength];
+          read(segment.channel, ByteBuffer.wrap(meta), offset + RECORD_HEADER_LENGTH + keyLength);
+          
+          long newOffset = append(RECORD_METADATA, key, meta, EMPTY);
+          setMetadataRecord(entry, active, newOffset, (int) length);
+        }
+        break;
+      case RECORD_DELETE:
+        Entry tombstone = tombstones.get(id);
+        
+        if ((tombstone != null) && (tombstone.segment == segment) && (tombstone.offset == offset)) {
+          long newOffset = append(RECORD_DELETE, key, EMPTY, EMPTY);
+          putTombstone(id, new Entry(active, newOffset, keyLength, 0, 0));
+        }
+        break;
+    }
+    
+    return length;
+  }
+  
+  /*****************************************************************/
+  /* Recovery                                                      */
+  /*****************************************************************/
+  
+  /**
+   * Rebuilds the index by replaying all of the segments in order, and 
+   * starts compacting any segments which need it.
+   */
+  private void recover() throws IOException {
+    TreeMap<Integer, File> found = new TreeMap<Integer, File>();
+    File[] files = directory.listFiles();
+    
+    for (int i = 0; i < files.length; i++) {
+      String fileName = files[i].getName();
+      
+      if (fileName.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          found.put(Integer.valueOf(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())), files[i]);
+        } catch (NumberFormatException e) {
+          if (logger.level <= Logger.WARNING) logger.log("Ignoring unknown file " + files[i]);
+        }
+      }
+    }
+    
+    long start = environment.getTimeSource().currentTimeMillis();
+    Iterator<Integer> i = found.keySet().iterator();
+    
+    while (i.hasNext()) {
+      Integer number = i.next();
+      Segment segment = new Segment(number.intValue(), found.get(number));
+      segments.put(number, segment);
+      replay(segment, ! i.hasNext());
+    }
+    
+    if (segments.isEmpty() || (segments.get(segments.lastKey()).size >= segmentSize)) {
+      roll();
+    } else {
+      active = segments.get(segments.lastKey());
+    }
+    
+    if (logger.level <= Logger.INFO) logger.log("Recovered " + index.size() + " objects from " + segments.size() + " segments of " + name + " in " + (environment.getTimeSource().currentTimeMillis() - start) + " millis");
+    
+    Iterator<Segment> j = new ArrayList<Segment>(segments.values()).iterator();
+    while (j.hasNext())
+      checkCompaction(j.next());
+  }
+  
+  /**
+   * Applies the records of a segment to the index.  A record which is cut 
+   * short or fails its checksum ends the segment, and if this is the last 
+   * segment, it is truncated there, as the record was being written when 
+   * the node went down.
+   *
+   * @param segment The segment
+   * @param last Whether this is the last segment
+   */
+  private void replay(Segment segment, boolean last) throws IOException {
+    long fileLength = segment.file.length();
+    long offset = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 65536));
+    
+    try {
+      byte[] header = new byte[RECORD_HEADER_LENGTH];
+      
+      while (offset + RECORD_HEADER_LENGTH + RECORD_TRAILER_LENGTH <= fileLength) {
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        
+        int magic = buffer.getInt();
+        byte type = buffer.get();
+        int keyLength = buffer.getInt();
+        int metaLength = buffer.getInt();
+        int dataLength = buffer.getInt();
+        long length = RECORD_HEADER_LENGTH + (long) keyLength + metaLength + dataLength + RECORD_TRAILER_LENGTH;
+        
+        if ((magic != RECORD_MAGIC_NUMBER) || (keyLength < 1) || (metaLength < 0) || (dataLength < 0) || (offset + length > fileLength))
+          break;
+        
+        byte[] body = new byte[(int) length - RECORD_HEADER_LENGTH];
+        in.readFully(body);
+        
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        crc.update(body, 0, body.length - RECORD_TRAILER_LENGTH);
+        
+        if ((int) crc.getValue() != ByteBuffer.wrap(body, body.length - RECORD_TRAILER_LENGTH, RECORD_TRAILER_LENGTH).getInt())
+          break;
+        
+        Id id = (Id) PersistentStorage.deserialize(section(body, 0, keyLength));
+        
+        switch (type) {
+          case RECORD_STORE:
+            Serializable md = PersistentStorage.deserialize(section(body, keyLength, metaLength));
+            putEntry(id, new Entry(segment, offset, keyLength, metaLength, dataLength), md);
+            break;
+          case RECORD_METADATA:
+            Entry entry = index.get(id);
+            
+            if (entry != null) {
+              setMetadataRecord(entry, segment, offset, (int) length);
+              
+              metadata.put(id, PersistentStorage.deserialize(section(body, keyLength, metaLength)));
+            }
+            break;
+          case RECORD_DELETE:
+            removeEntry(id);
+            
+            if (isStoredBefore(id, segment))
+              putTombstone(id, new Entry(segment, offset, keyLength, metaLength, dataLength));
+            break;
+        }
+        
+        offset += length;
+      }
+    } finally {
+      in.close();
+    }
+    
+    segment.size = fileLength;
+    
+    if (offset < fileLength) {
+      if (last) {
+        if (logger.level <= Logger.WARNING) logger.log("Truncating segment " + segment.number + " of " + name + " from " + fileLength + " to " + offset + " bytes");
+        segment.raf.setLength(offset);
+        segment.size = offset;
+      } else {
+        if (logger.level <= Logger.WARNING) logger.log("Ignoring the last " + (fileLength - offset) + " bytes of segment " + segment.number + " of " + name);
+      }
+    }
+  }
+  
+  /**
+   * Returns a copy of part of a record
+   */
+  private static byte[] section(byte[] body, int offset, int length) {
+    byte[] result = new byte[length];
+    System.arraycopy(body, offset, result, 0, length);
+    
+    return result;
+  }
+  
+  /**
+   * Reads until the buffer is full
+   */
+  private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      
+      if (read < 0)
+        throw new EOFException("Reached the end of the segment at " + position);
+      
+      position += read;
+    }
+  }
+  
+  /**
+   * Writes all of the buffer
+   */
+  private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) 
+      position += channel.write(buffer, position);
+  }
+  
+  /**
+   * One segment file
+   */
+  private static class Segment {
+    
+    // the number of this segment, later segments have larger numbers
+    protected int number;
+    
+    protected File file;
+    
+    protected RandomAccessFile raf;
+    
+    protected FileChannel channel;
+    
+    // the length of the segment
+    protected long size;
+    
+    // the number of bytes of live records
+    protected long live;
+    
+    // whether this segment is being compacted
+    protected boolean compacting;
+    
+    // the ids with a store record, live or not, in this segment
+    protected HashSet<Id> stored = new HashSet<Id>();
+    
+    public Segment(int number, File file) throws IOException {
+      this.number = number;
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.channel = raf.getChannel();
+    }
+    
+    public void delete() throws IOException {
+      raf.close();
+      file.delete();
+    }
+  }
+  
+  /**
+   * Where an object and its metadata are
+   */
+  private static class Entry {
+    
+    // the store record
+    protected Segment segment;
+    protected long offset;
+    protected int length;
+    
+    // the object within the store record
+    protected int dataOffset;
+    protected int dataLength;
+    
+    // the latest metadata record, if the metadata has changed since the store
+    protected Segment metadataSegment;
+    protected long metadataOffset;
+    protected int metadataLength;
+    
+    public Entry(Segment segment, long offset, int keyLength, int metaLength, int dataLength) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = RECORD_HEADER_LENGTH + keyLength + metaLength + dataLength + RECORD_TRAILER_LENGTH;
+      this.dataOffset = RECORD_HEADER_LENGTH + keyLength + metaLength;
+      this.dataLength = dataLength;
+    }
+    
+    /**
+     * Returns the number of bytes of live records of this entry
+     */
+    public long getSize() {
+      return length + (metadataSegment == null ? 0 : metadataLength);
+    }
+    
+    /**
+     * Returns the serialized object
+     */
+    public byte[] readObject() throws IOException {
+      byte[] data = new byte[dataLength];
+      read(segment.channel, ByteBuffer.wrap(data), offset + dataOffset);
+      
+      return data;
+    }
+  }
+}
@@ -60,13 +60,13 @@ import rice.p2p.util.*;
  * enhanced hash table.
  */
 @SuppressWarnings("unchecked")
-public class MemoryStorage implements Storage {
+public class MemoryStorage implements Storage, IdMerkleTreeSource {
 
   // the map used to store the data
   private HashMap storage;
   
   // the map used to store the metadata
-  private ReverseTreeMap metadata;
+  private MerkleMetadataMap metadata;
 
   // the current list of Ids
   private IdSet idSet;
@@ -86,7 +86,7 @@ public class MemoryStorage implements Storage {
     this.factory = factory;
     idSet = factory.buildIdSet();
     storage = new HashMap();
-    metadata = new ReverseTreeMap();
+    metadata = new MerkleMetadataMap();
     currentSize = 0;
   } 
   
@@ -98,7 +98,7 @@ public class MemoryStorage implements Storage {
    */
   public void flush(Continuation c) {
     storage = new HashMap();
-    metadata = new ReverseTreeMap();
+    metadata = new MerkleMetadataMap();
     idSet = factory.buildIdSet();
     currentSize = 0;
     
@@ -329,6 +329,17 @@ public class MemoryStorage implements Storage {
     return idSet.numElements();
   }
 
+  /**
+   * Returns the IdMerkleTree of the stored Ids, which is built on the first
+   * call and then updated as objects are stored and removed, or null if 
+   * some of the Ids are not supported by the tree
+   *
+   * @return The tree, or null
+   */
+  public IdMerkleTree getMerkleTree() {
+    return metadata.getMerkleTree();
+  }
+
   /**
    * Returns the size of the given object, in bytes.
    *
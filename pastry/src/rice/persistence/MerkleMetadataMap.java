@@ -0,0 +1,122 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence;
+
+import java.util.*;
+
+import rice.p2p.commonapi.*;
+import rice.p2p.util.*;
+
+/**
+ * The map from the Ids of the stored objects to their metadata used by the
+ * storages, which can also keep an IdMerkleTree of the Ids.  The tree is 
+ * only built once it is first asked for, which happens when replication 
+ * uses the storage through IdMerkleTreeSource, and from then on it is 
+ * updated with every change to the stored Ids.  Storages which are never 
+ * synchronized, such as caches, therefore pay nothing for it.
+ *
+ * @version $Id$
+ */
+public class MerkleMetadataMap extends ConcurrentReverseTreeMap {
+  
+  // the tree of the keys, or null if it has not been asked for
+  protected IdMerkleTree tree;
+  
+  // the number of keys which the tree does not support
+  protected int unsupported;
+  
+  /**
+   * Returns the tree of the keys of this map, building it if this is the
+   * first call.  If some of the keys are not supported by the tree, as they
+   * are not fixed-length Ids, there is no tree which covers all of the keys, 
+   * and null is returned.
+   *
+   * @return The tree, or null
+   */
+  public synchronized IdMerkleTree getMerkleTree() {
+    if (tree == null) {
+      tree = new IdMerkleTree();
+      Iterator i = keySet().iterator();
+      
+      while (i.hasNext()) 
+        addToTree((Id) i.next());
+    }
+    
+    return (unsupported == 0 ? tree : null);
+  }
+  
+  /**
+   * Removes any and all mappings with the given key
+   *
+   * @param key The key
+   */
+  public synchronized void remove(Object key) {
+    if ((tree != null) && containsKey(key)) {
+      if (tree.supports((Id) key)) 
+        tree.remove((Id) key);
+      else
+        unsupported--;
+    }
+    
+    super.remove(key);
+  }
+  
+  /**
+   * Maps the given key to the given value
+   *
+   * @param key The key 
+   * @param value The value
+   */
+  public synchronized void put(Object key, Object value) {
+    if ((tree != null) && (! containsKey(key)))
+      addToTree((Id) key);
+    
+    super.put(key, value);
+  }
+  
+  /**
+   * Adds the given new key to the tree, or counts it if it is not supported
+   *
+   * @param key The key
+   */
+  protected void addToTree(Id key) {
+    if (tree.supports(key))
+      tree.add(key);
+    else
+      unsupported++;
+  }
+}
@@ -0,0 +1,895 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import rice.*;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.*;
+import rice.p2p.util.*;
+
+/**
+ * This class is an implementation of Storage which, like the MemoryStorage,
+ * provides non-persistent in-memory storage, but keeps the stored objects 
+ * outside of the Java heap.  Each object is serialized when it is stored, 
+ * and deserialized again on every getObject, so that a large store adds only 
+ * one index entry per object, and no object graphs, to the work of the garbage 
+ * collector.  The metadata has to stay on the heap, as the metadata scans 
+ * are sorted by it, but the Ids are shared by the metadata map and an open 
+ * addressing index of the object handles, so that the only other per-object
+ * heap cost is a slot in two arrays.  If a RawObjectSerializer is set, 
+ * RawSerializable objects are stored in their raw form, as with the 
+ * PersistentStorage.
+ *
+ * The serialized objects live in direct buffers of p2p_persistence_offheap_arena_size
+ * bytes, which are carved into buddy chunks of power-of-two size classes, 
+ * each aligned to its size.  Freed chunks are merged with their buddy if it is
+ * free too, kept in a free list per class, and reused by objects of the same 
+ * class, or split for smaller classes when the arenas are full.  The free 
+ * lists are linked through the free chunks themselves.  Objects larger than 
+ * an arena get a direct buffer of their own.  An arena is returned once all 
+ * of its chunks have been freed, so a store which shrinks gives memory back 
+ * unless its remaining objects are spread over every arena.
+ *
+ * The total size reported is the size of the serialized objects, not the 
+ * size of their gzipped XML as with the MemoryStorage.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("unchecked")
+public class OffHeapMemoryStorage implements Storage, IdMerkleTreeSource {
+  
+  // the smallest size class, 64 bytes
+  protected static final int MIN_CLASS = 6;
+  
+  // the largest supported arena, 1GB, so that offsets fit into an int
+  protected static final int MAX_CLASS = 30;
+  
+  // the length of the header stored in front of each object
+  protected static final int HEADER_LENGTH = 4;
+  
+  // where a free chunk keeps the handles of the previous and next free chunks 
+  // of its class, after a header of -1 - its size class
+  protected static final int PREV_OFFSET = 4;
+  protected static final int NEXT_OFFSET = 12;
+
+  // the map from Id to the handle of the stored object
+  private HandleMap storage;
+  
+  // the map used to store the metadata, which is also the sorted set of ids, read without a lock
+  private volatile MerkleMetadataMap metadata;
+  
+  // the current total size of the serialized objects
+  private long currentSize;
+
+  // the factory for manipulating the ids
+  private IdFactory factory;
+  
+  // the size above which objects are compressed
+  private int compressionThreshold;
+  
+  // write RawSerializable objects in their raw form
+  private RawObjectSerializerTable rawSerializers = new RawObjectSerializerTable();
+  
+  // the size of each arena, a power of two
+  private int arenaSize;
+  
+  // the size class of the arenas
+  private int arenaClass;
+  
+  // the arenas, and the buffers of objects larger than an arena
+  private ArrayList arenas;
+  
+  // the number of bytes of allocated chunks in each arena
+  private int[] live;
+  
+  // the slots in arenas freed by large objects
+  private IntStack freeArenas;
+  
+  // the arena currently being carved, and the offset of its unused part
+  private int current;
+  private int top;
+  
+  // the first free chunk of each size class, or -1
+  private long[] free;
+  
+  // the number of bytes of direct memory allocated
+  private long allocated;
+  
+  /**
+   * Builds an OffHeapMemoryStorage object.
+   *
+   * @param factory The factory to build protocol-specific Ids from.
+   * @param environment The environment to read the parameters from
+   */
+  public OffHeapMemoryStorage(IdFactory factory, Environment environment) {
+    Parameters p = environment.getParameters();
+    
+    this.factory = factory;
+    this.compressionThreshold = (p.contains("p2p_persistence_compression_threshold") ?
+        p.getInt("p2p_persistence_compression_threshold") : 4096);
+    
+    int size = (p.contains("p2p_persistence_offheap_arena_size") ? 
+        p.getInt("p2p_persistence_offheap_arena_size") : 64 * 1024 * 1024);
+    
+    arenaClass = MIN_CLASS;
+    while ((arenaClass < MAX_CLASS) && ((1 << arenaClass) < size)) 
+      arenaClass++;
+    arenaSize = 1 << arenaClass;
+    
+    clear();
+  } 
+  
+  /**
+   * Drops all stored objects and arenas.
+   */
+  private synchronized void clear() {
+    storage = new HandleMap();
+    metadata = new MerkleMetadataMap();
+    currentSize = 0;
+    
+    arenas = new ArrayList();
+    live = new int[16];
+    freeArenas = new IntStack();
+    current = -1;
+    top = arenaSize;
+    allocated = 0;
+    free = new long[arenaClass + 1];
+    Arrays.fill(free, -1);
+  }
+  
+  /**
+   * Sets the serializer used to write RawSerializable objects in their raw 
+   * form under the given name, and to read them back.  Objects stored before
+   * it is set are still read with Java serialization, and objects written by
+   * a serializer which has been removed cannot be read until it is set again.
+   *
+   * @param name The name of the serializer, such as the application instance
+   * @param serializer The serializer, or null to remove it
+   * @throws IllegalStateException If a different serializer is already set 
+   * under the name
+   */
+  public void setRawObjectSerializer(String name, RawObjectSerializer serializer) {
+    rawSerializers.put(name, serializer);
+  }
+  
+  /**
+   * Method which is used to erase all data stored in the Storage.  
+   * Use this method with care!
+   *
+   * @param c The command to run once done
+   */
+  public void flush(Continuation c) {
+    clear();
+    c.receiveResult(Boolean.TRUE);
+  }
+  
+  /**
+   * Renames the given object to the new id.  This method is potentially faster
+   * than store/cache and unstore/uncache.
+   *
+   * @param oldId The id of the object in question.
+   * @param newId The new id of the object in question.
+   * @param c The command to run once the operation is complete
+   */
+  public void rename(Id oldId, Id newId, Continuation c) {
+    synchronized (this) {
+      long handle = storage.remove(oldId);
+      
+      if (handle < 0) {
+        c.receiveResult(new Boolean(false));
+        return;
+      }
+      
+      long previous = storage.put(newId, handle);
+      if (previous >= 0)
+        release(previous);
+    
+      metadata.put(newId, metadata.get(oldId));
+      metadata.remove(oldId);
+    }
+    
+    c.receiveResult(new Boolean(true));
+  }
+    
+  /**
+   * Stores the object under the key <code>id</code>.  If there is already
+   * an object under <code>id</code>, that object is replaced.
+   *
+   * This method completes by calling recieveResult() of the provided continuation
+   * with the success or failure of the operation.
+   *
+   * @param obj The object to be made persistent.
+   * @param id The object's id.
+   * @param metadata The object's metadata
+   * @param c The command to run once the operation is complete
+   */
+  public void store(Id id, Serializable metadata, Serializable obj, Continuation c) {
+    if (id == null || obj == null) {
+      c.receiveResult(new Boolean(false));
+      return;
+    }
+    
+    byte[] bytes;
+    
+    try {
+      bytes = PersistentStorage.serialize(obj, compressionThreshold, rawSerializers);
+    } catch (IOException e) {
+      c.receiveException(e);
+      return;
+    }
+    
+    synchronized (this) {
+      long handle = allocate(bytes.length);
+      ByteBuffer arena = (ByteBuffer) arenas.get(arena(handle));
+      int offset = offset(handle);
+      
+      arena.putInt(offset, bytes.length);
+      arena.position(offset + HEADER_LENGTH);
+      arena.put(bytes);
+      
+      long previous = this.storage.put(id, handle);
+      if (previous >= 0)
+        release(previous);
+      
+      currentSize += bytes.length;
+      this.metadata.put(id, metadata);
+    }
+    
+    c.receiveResult(new Boolean(true));
+  }
+
+  /**
+   * Removes the object from the list of stored objects. If the object was not
+   * in the cached list in the first place, nothing happens and <code>false</code>
+   * is returned.
+   *
+   * This method completes by calling recieveResult() of the provided continuation
+   * with the success or failure of the operation.
+   *
+   * @param id The object's persistence id
+   * @param c The command to run once the operation is complete
+   */
+  public void unstore(Id id, Continuation c) {
+    long handle;
+    
+    synchronized (this) {
+      handle = storage.remove(id);
+      metadata.remove(id);
+      
+      if (handle >= 0)
+        release(handle);
+    }
+
+    c.receiveResult(new Boolean(handle >= 0));
+  }
+
+  /**
+   * Returns whether or not the provided id exists
+   *
+   * @param id The id to check
+   * @return Whether or not the given id is stored
+   */
+  public synchronized boolean exists(Id id) {
+    return storage.get(id) >= 0;
+  }
+  
+  /**
+   * Returns the metadata associated with the provided object, or null if
+   * no metadata exists.  The metadata must be stored in memory, so this 
+   * operation is guaranteed to be fast and non-blocking.
+   *
+   * @param id The id for which the metadata is needed
+   * @return The metadata, or null of non exists
+   */
+  public Serializable getMetadata(Id id) {
+    return (Serializable) metadata.get(id);
+  }
+  
+  /**
+   * Updates the metadata stored under the given key to be the provided
+   * value.  As this may require a disk access, the requestor must
+   * also provide a continuation to return the result to.  
+   *
+   * @param id The id for the metadata 
+   * @param metadata The metadata to store
+   * @param c The command to run once the operation is complete
+   */
+  public void setMetadata(Id id, Serializable metadata, Continuation command) {
+    boolean exists;
+    
+    synchronized (this) {
+      exists = exists(id);
+      
+      if (exists) 
+        this.metadata.put(id, metadata);
+    }
+
+    command.receiveResult(new Boolean(exists));
+  }
+
+  /**
+   * Returns the object identified by the given id, or <code>null</code> if
+   * there is no cooresponding object (through receiveResult on c).  The
+   * object is deserialized anew on each call.
+   *
+   * @param id The id of the object in question.
+   * @param c The command to run once the operation is complete
+   */
+  public void getObject(Id id, Continuation c) {
+    byte[] bytes = null;
+    
+    synchronized (this) {
+      long handle = storage.get(id);
+      
+      if (handle >= 0) {
+        ByteBuffer arena = (ByteBuffer) arenas.get(arena(handle));
+        int offset = offset(handle);
+        
+        bytes = new byte[arena.getInt(offset)];
+        arena.position(offset + HEADER_LENGTH);
+        arena.get(bytes);
+      }
+    }
+    
+    if (bytes == null) {
+      c.receiveResult(null);
+      return;
+    }
+    
+    try {
+      c.receiveResult(PersistentStorage.deserialize(bytes, rawSerializers));
+    } catch (IOException e) {
+      c.receiveException(e);
+    }
+  }
+
+  /**
+   * Return the objects identified by the given range of ids. The IdSet 
+   * returned contains the Ids of the stored objects. The range is
+   * partially inclusive, the lower range is inclusive, and the upper
+   * exclusive.
+   *
+   * @param range The range to query  
+   * @return The idset containg the keys 
+   */
+  public synchronized IdSet scan(IdRange range){
+    if (range.isEmpty())
+      return factory.buildIdSet();
+    else if (range.getCCWId().equals(range.getCWId())) 
+      return scan();
+    else 
+      return factory.buildIdSet(new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId())));
+  }
+  
+  /**
+   * Return all objects currently stored by this catalog
+   *
+   * @return The idset containg the keys 
+   */
+  public synchronized IdSet scan() {
+    return factory.buildIdSet(new ImmutableSortedMap(metadata.keyMap()));
+  }
+  
+  /**
+   * Returns a map which contains keys mapping ids to the associated 
+   * metadata.  
+   *
+   * @param range The range to query  
+   * @return The map containg the keys 
+   */
+  public SortedMap scanMetadata(IdRange range) {
+    if (range.isEmpty()) 
+      return new RedBlackMap();
+    else if (range.getCCWId().equals(range.getCWId())) 
+      return scanMetadata();
+    else 
+      return new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId()));
+  }
+  
+  /**
+   * Returns a map which contains keys mapping ids to the associated 
+   * metadata.  
+   *
+   * @return The treemap mapping ids to metadata 
+   */
+  public SortedMap scanMetadata() {
+    return new ImmutableSortedMap(metadata.keyMap());
+  }
+  
+  /**
+   * Returns the submapping of ids which have metadata less than the provided
+   * value.
+   *
+   * @param value The maximal metadata value 
+   * @return The submapping
+   */
+  public SortedMap scanMetadataValuesHead(Object value) {
+    return new ImmutableSortedMap(metadata.valueHeadMap(value));
+  }
+  
+  /**
+   * Returns the submapping of ids which have metadata null
+   *
+   * @return The submapping
+   */
+  public SortedMap scanMetadataValuesNull() {
+    return new ImmutableSortedMap(metadata.valueNullMap());
+  }
+
+  /**
+   * Returns the total size of the stored objects in their serialized form, 
+   * in bytes.
+   *
+   * @return The total size
+   */
+  public synchronized long getTotalSize() {
+    return currentSize;
+  }
+  
+  /**
+   * Returns the number of Ids currently stored in the catalog
+   *
+   * @return The number of ids in the catalog
+   */
+  public synchronized int getSize() {
+    return storage.size();
+  }
+
+  /**
+   * Returns the IdMerkleTree of the stored Ids, which is built on the first
+   * call and then updated as objects are stored and removed, or null if 
+   * some of the Ids are not supported by the tree
+   *
+   * @return The tree, or null
+   */
+  public IdMerkleTree getMerkleTree() {
+    return metadata.getMerkleTree();
+  }
+  
+  /**
+   * Returns the number of bytes of direct memory held by this storage,
+   * including the free chunks.
+   *
+   * @return The number of bytes allocated
+   */
+  public synchronized long getAllocatedSize() {
+    return allocated;
+  }
+  
+  /**
+   * Returns the arena of the given handle
+   */
+  private static int arena(long handle) {
+    return (int) (handle >>> 32);
+  }
+  
+  /**
+   * Returns the offset in its arena of the given handle
+   */
+  private static int offset(long handle) {
+    return (int) handle;
+  }
+  
+  /**
+   * Returns the size class of a chunk holding length bytes of object
+   */
+  private static int sizeClass(int length) {
+    int result = MIN_CLASS;
+    while ((1 << result) < length + HEADER_LENGTH)
+      result++;
+    
+    return result;
+  }
+  
+  /**
+   * Returns the handle of a chunk which can hold length bytes of object, 
+   * taking it from the free list of its class, from the unused part of 
+   * the current arena, by splitting a larger free chunk, or from a new
+   * arena, in that order.  
+   *
+   * @param length The length of the object
+   * @return The handle of the chunk
+   */
+  private long allocate(int length) {
+    if (length + HEADER_LENGTH > arenaSize) 
+      return add(ByteBuffer.allocateDirect(length + HEADER_LENGTH));
+    
+    int sizeClass = sizeClass(length);
+    long handle = chunk(sizeClass);
+    live[arena(handle)] += 1 << sizeClass;
+    
+    return handle;
+  }
+  
+  /**
+   * Returns the handle of a chunk of the given size class, which is not yet
+   * counted as live in its arena.
+   *
+   * @param sizeClass The size class
+   * @return The handle of the chunk
+   */
+  private long chunk(int sizeClass) {
+    int chunk = 1 << sizeClass;
+    
+    if (free[sizeClass] >= 0) 
+      return pop(sizeClass);
+    
+    /* chunks are aligned to their size, the gap goes onto the free lists */
+    int aligned = (top + chunk - 1) & -chunk;
+    
+    if (aligned + chunk > arenaSize) {
+      for (int i = sizeClass + 1; i < free.length; i++) {
+        if (free[i] >= 0) {
+          long handle = pop(i);
+          
+          /* put the upper halves back onto the free lists */
+          for (int j = i - 1; j >= sizeClass; j--) 
+            push(handle + (1 << j), j);
+          
+          return handle;
+        }
+      }
+      
+      /* keep the rest of the current arena in the free lists */
+      int sealed = current;
+      if (sealed >= 0)
+        freeRange(sealed, top, arenaSize);
+      
+      current = arena(add(ByteBuffer.allocateDirect(arenaSize)));
+      top = 0;
+      aligned = 0;
+      
+      /* everything in the old arena may have been freed while it was being carved */
+      if ((sealed >= 0) && (live[sealed] == 0))
+        drop(sealed);
+    } else {
+      freeRange(current, top, aligned);
+    }
+    
+    long handle = ((long) current << 32) | aligned;
+    top = aligned + chunk;
+    
+    return handle;
+  }
+  
+  /**
+   * Adds the given buffer as an arena
+   *
+   * @param buffer The buffer
+   * @return The handle of the start of the buffer
+   */
+  private long add(ByteBuffer buffer) {
+    int index;
+    
+    if (freeArenas.size() > 0) {
+      index = freeArenas.pop();
+      arenas.set(index, buffer);
+    } else {
+      index = arenas.size();
+      arenas.add(buffer);
+      
+      if (index == live.length) {
+        int[] tmp = new int[live.length * 2];
+        System.arraycopy(live, 0, tmp, 0, live.length);
+        live = tmp;
+      }
+    }
+    
+    allocated += buffer.capacity();
+    return (long) index << 32;
+  }
+  
+  /**
+   * Releases the chunk of the given handle, and updates the size
+   *
+   * @param handle The handle to release
+   */
+  private void release(long handle) {
+    ByteBuffer arena = (ByteBuffer) arenas.get(arena(handle));
+    int length = arena.getInt(offset(handle));
+    currentSize -= length;
+    
+    if (arena.capacity() > arenaSize) {
+      arenas.set(arena(handle), null);
+      freeArenas.push(arena(handle));
+      allocated -= arena.capacity();
+    } else {
+      int sizeClass = sizeClass(length);
+      int index = arena(handle);
+      
+      live[index] -= 1 << sizeClass;
+      freeChunk(handle, sizeClass);
+      
+      if ((live[index] == 0) && (index != current))
+        drop(index);
+    }
+  }
+  
+  /**
+   * Frees the given part of an arena, which is not in use, as the largest 
+   * aligned chunks which fit.
+   *
+   * @param index The arena
+   * @param start The start of the part, a multiple of the smallest chunk
+   * @param end The end of the part, a multiple of the smallest chunk
+   */
+  private void freeRange(int index, int start, int end) {
+    while (start < end) {
+      int sizeClass = MIN_CLASS;
+      while ((sizeClass < arenaClass) && ((start & ((2 << sizeClass) - 1)) == 0) && (start + (2 << sizeClass) <= end))
+        sizeClass++;
+      
+      freeChunk(((long) index << 32) | start, sizeClass);
+      start += 1 << sizeClass;
+    }
+  }
+  
+  /**
+   * Puts the given chunk onto the free lists, after merging it with its buddy 
+   * for as long as the buddy is free.  A chunk's buddy is always either a 
+   * whole chunk, split into smaller chunks, or not carved yet, in which case
+   * it is still zeroed, so its header only says free if it is a free chunk of 
+   * the same class.
+   *
+   * @param handle The chunk
+   * @param sizeClass Its size class
+   */
+  private void freeChunk(long handle, int sizeClass) {
+    int index = arena(handle);
+    int offset = offset(handle);
+    ByteBuffer arena = (ByteBuffer) arenas.get(index);
+    
+    while (sizeClass < arenaClass) {
+      int buddy = offset ^ (1 << sizeClass);
+      
+      if (arena.getInt(buddy) != -1 - sizeClass)
+        break;
+      
+      unlink(((long) index << 32) | buddy, sizeClass);
+      offset = Math.min(offset, buddy);
+      sizeClass++;
+    }
+    
+    push(((long) index << 32) | offset, sizeClass);
+  }
+  
+  /**
+   * Adds the given chunk to the front of the free list of its class
+   */
+  private void push(long handle, int sizeClass) {
+    ByteBuffer arena = (ByteBuffer) arenas.get(arena(handle));
+    int offset = offset(handle);
+    long next = free[sizeClass];
+    
+    arena.putInt(offset, -1 - sizeClass);
+    arena.putLong(offset + PREV_OFFSET, -1);
+    arena.putLong(offset + NEXT_OFFSET, next);
+    
+    if (next >= 0)
+      ((ByteBuffer) arenas.get(arena(next))).putLong(offset(next) + PREV_OFFSET, handle);
+    
+    free[sizeClass] = handle;
+  }
+  
+  /**
+   * Removes and returns the first chunk of the free list of the given class
+   */
+  private long pop(int sizeClass) {
+    long handle = free[sizeClass];
+    unlink(handle, sizeClass);
+    
+    return handle;
+  }
+  
+  /**
+   * Removes the given chunk from the free list of its class, and clears its 
+   * header, so that it is no longer taken for a free buddy
+   */
+  private void unlink(long handle, int sizeClass) {
+    ByteBuffer arena = (ByteBuffer) arenas.get(arena(handle));
+    int offset = offset(handle);
+    long prev = arena.getLong(offset + PREV_OFFSET);
+    long next = arena.getLong(offset + NEXT_OFFSET);
+    
+    if (prev >= 0)
+      ((ByteBuffer) arenas.get(arena(prev))).putLong(offset(prev) + NEXT_OFFSET, next);
+    else
+      free[sizeClass] = next;
+    
+    if (next >= 0)
+      ((ByteBuffer) arenas.get(arena(next))).putLong(offset(next) + PREV_OFFSET, prev);
+    
+    arena.putInt(offset, 0);
+  }
+  
+  /**
+   * Returns an arena none of whose chunks are in use, after taking its 
+   * chunks off of the free lists.  They have all been merged, so this is 
+   * usually a single chunk.
+   *
+   * @param index The arena
+   */
+  private void drop(int index) {
+    ByteBuffer arena = (ByteBuffer) arenas.get(index);
+    int offset = 0;
+    
+    while (offset < arenaSize) {
+      int sizeClass = -1 - arena.getInt(offset);
+      
+      if ((sizeClass < MIN_CLASS) || (sizeClass > arenaClass))
+        throw new IllegalStateException("Dropping arena " + index + " with a chunk in use at " + offset);
+      
+      unlink(((long) index << 32) | offset, sizeClass);
+      offset += 1 << sizeClass;
+    }
+    
+    arenas.set(index, null);
+    freeArenas.push(index);
+    allocated -= arenaSize;
+  }
+  
+  /**
+   * An open addressing map from Ids to handles, with linear probing, which 
+   * keeps the handles in a long array instead of boxing them.  Missing Ids
+   * map to -1.
+   */
+  protected static class HandleMap {
+    protected Id[] keys = new Id[16];
+    protected long[] handles = new long[16];
+    protected int size = 0;
+    
+    public int size() {
+      return size;
+    }
+    
+    public long get(Id id) {
+      int i = find(id);
+      
+      return (keys[i] == null ? -1 : handles[i]);
+    }
+    
+    public long put(Id id, long handle) {
+      int i = find(id);
+      
+      if (keys[i] != null) {
+        long previous = handles[i];
+        handles[i] = handle;
+        return previous;
+      }
+      
+      keys[i] = id;
+      handles[i] = handle;
+      
+      if (++size * 4 > keys.length * 3)
+        resize(keys.length * 2);
+      
+      return -1;
+    }
+    
+    public long remove(Id id) {
+      int mask = keys.length - 1;
+      int i = find(id);
+      
+      if (keys[i] == null)
+        return -1;
+      
+      long previous = handles[i];
+      
+      /* move back any following entry which could no longer be found */
+      for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+        int home = slot(keys[j], mask);
+        
+        if ((i <= j) ? ((i < home) && (home <= j)) : ((i < home) || (home <= j)))
+          continue;
+        
+        keys[i] = keys[j];
+        handles[i] = handles[j];
+        i = j;
+      }
+      
+      keys[i] = null;
+      size--;
+      
+      return previous;
+    }
+    
+    /**
+     * Returns the slot holding the id, or the empty slot where it would go
+     */
+    protected int find(Id id) {
+      int mask = keys.length - 1;
+      int i = slot(id, mask);
+      
+      while ((keys[i] != null) && (! keys[i].equals(id)))
+        i = (i + 1) & mask;
+      
+      return i;
+    }
+    
+    protected static int slot(Id id, int mask) {
+      int h = id.hashCode() * 0x9E3779B9;
+      
+      return (h ^ (h >>> 16)) & mask;
+    }
+    
+    protected void resize(int length) {
+      Id[] oldKeys = keys;
+      long[] oldHandles = handles;
+      keys = new Id[length];
+      handles = new long[length];
+      
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          int j = find(oldKeys[i]);
+          keys[j] = oldKeys[i];
+          handles[j] = oldHandles[i];
+        }
+      }
+    }
+  }
+  
+  /**
+   * A growable stack of ints
+   */
+  protected static class IntStack {
+    protected int[] values = new int[16];
+    protected int size = 0;
+    
+    public int size() {
+      return size;
+    }
+    
+    public void push(int value) {
+      if (size == values.length) {
+        int[] tmp = new int[values.length * 2];
+        System.arraycopy(values, 0, tmp, 0, size);
+        values = tmp;
+      }
+      
+      values[size++] = value;
+    }
+    
+    public int pop() {
+      return values[--size];
+    }
+  }
+}
@@ -47,16 +47,21 @@ package rice.persistence;
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.*;
 
 import rice.*;
 import rice.Continuation.*;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
-import rice.environment.processing.WorkRequest;
+import rice.environment.processing.KeyedWorkRequest;
 import rice.p2p.commonapi.*;
 import rice.p2p.util.*;
+import rice.p2p.commonapi.rawserialization.RawSerializable;
 import rice.p2p.util.rawserialization.JavaSerializationException;
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
 
 /**
  * This class is an implementation of Storage which provides
@@ -74,29 +79,70 @@ import rice.p2p.util.rawserialization.JavaSerializationException;
  * *CANNOT* have the period ('.') or exclamation point ('!') 
  * characters in them - these are used for internal purposes.<b>
  *
- * The serialized objects are stored on-disk in a GZIPed XML format,
- * which provides extensibility with reasonable storage and processing
- * costs.  Additionally, any metadata, if provided, is also stored
- * in the on-disk file.  The format of the file is
+ * The serialized objects are stored on-disk with Java serialization 
+ * behind a fixed binary header, so the object or the version can be read 
+ * without parsing anything else in the file.  Additionally, any metadata, 
+ * if provided, is also stored in the on-disk file.  The format of the 
+ * file (revision 2.2) is
  *
- * [Key, Object, Version, Gzipped XML]
- * [Metadata, Gzipped XML]
+ * [persistence magic number, long]
+ * [persistence version, long]
+ * [persistence revision, long]
+ * [version, long]
+ * [key length, int]
+ * [object length, int]
+ * [Key section]
+ * [Object section]
+ * [Metadata section]
  * [persistence magic number, long]
  * [persistence version, long]
  * [persistence revision, long]
  * [metadata length, long]
+ * 
+ * Each section is an encoding byte, followed by the Java serialized 
+ * object, deflated if the encoding is ENCODING_DEFLATE.  Sections are only 
+ * deflated if they are at least p2p_persistence_compression_threshold bytes.
+ * Objects which Java serialization refuses are written as Gzipped XML.  If a
+ * RawObjectSerializer is set, RawSerializable objects it gives a type are 
+ * written in their raw form instead: ENCODING_RAW or ENCODING_RAW_DEFLATE, 
+ * followed by the name the serializer is set under (in UTF), the type (a 
+ * short) and the serialized object.
+ * 
+ * Revisions 2.0 and 2.1 stored the key, object and version as one Gzipped 
+ * XML stream, followed by the metadata as Gzipped XML and the same trailer.
  *
  * The persistence package is set up to automatically upgrade older
  * versions of the on-disk format as new data is written under the
- * key.  
+ * key, or when the object is read.  
  *
  * Persistence also supports the metadata interface specified in the
  * Catalog interface.  All metadata is guaranteed to be stored
  * in memory, so fetching the metadata of a given key is an efficient
  * operation.  
+ *
+ * The disk requests are KeyedWorkRequests, keyed by Id, so a Processor may 
+ * run them concurrently.  A request for one Id shares the store lock and 
+ * holds its stripe of the Id locks, so requests for different Ids do not wait
+ * for each other.  Anything which may change any Id or the directory layout 
+ * (renames, flushes, splitting and pruning directories, writing the metadata 
+ * files, checkpoints) holds the store lock exclusively.
+ * 
+ * When indexing, the directory layout, the metadata and the used space are 
+ * checkpointed into a snapshot file, and every request which changes them 
+ * appends its changes to a journal.  On startup the snapshot is read and the 
+ * journal replayed, so the files themselves are not touched.  If the last 
+ * request did not complete (a crash), or the snapshot or journal cannot be 
+ * read, the directories are walked as before.
+ *
+ * Neither the object files nor the journal are forced to disk by default, so
+ * the index survives a crash of the process, but not necessarily of the 
+ * operating system: journal records which never reached the disk are lost, 
+ * and the index comes back as of an earlier request.  With 
+ * p2p_persistence_journal_sync set, every JOURNAL_COMMIT and snapshot is 
+ * forced to disk before the request completes.
  */
 @SuppressWarnings("unchecked")
-public class PersistentStorage implements Storage {
+public class PersistentStorage implements Storage, IdMerkleTreeSource {
   
   /**
    * Fields for logging based on the requests we are writing.
@@ -109,6 +155,7 @@ public class PersistentStorage implements Storage {
   private long numRenames = 0;
   private long numDeletes = 0;
   private long numMetadataWrites = 0;
+  private long numUpgrades = 0;
   
   /**
    * Static variables defining the layout of the on-disk storage 
@@ -117,6 +164,56 @@ public class PersistentStorage implements Storage {
   public static final long PERSISTENCE_VERSION_2 = 2L;
   public static final long PERSISTENCE_REVISION_2_0 = 0L;
   public static final long PERSISTENCE_REVISION_2_1 = 1L;
+  public static final long PERSISTENCE_REVISION_2_2 = 2L;
+  
+  /**
+   * The length of the revision 2.2 header and of the trailer of all revisions
+   */
+  public static final int HEADER_LENGTH = 40;
+  public static final int TRAILER_LENGTH = 32;
+  
+  /**
+   * The first byte of each revision 2.2 section, says how the object which 
+   * follows is serialized, and whether it is deflated.  ENCODING_XML is 
+   * gzipped XML, used for objects that only the XMLObjectOutputStream can 
+   * write, because it skips non-serializable fields.  ENCODING_RAW is the 
+   * RawSerializable form, read back by the RawObjectSerializer whose name 
+   * follows.
+   */
+  public static final byte ENCODING_JAVA = 0;
+  public static final byte ENCODING_DEFLATE = 1;
+  public static final byte ENCODING_XML = 2;
+  public static final byte ENCODING_RAW = 3;
+  public static final byte ENCODING_RAW_DEFLATE = 4;
+  
+  /**
+   * Sections at least this large are compressed, unless 
+   * p2p_persistence_compression_threshold says otherwise
+   */
+  public static final int DEFAULT_COMPRESSION_THRESHOLD = 4096;
+  
+  /**
+   * Static variables defining the layout of the index snapshot and journal,
+   * which are stored in the backup directory next to the instance directory
+   */
+  public static final String SNAPSHOT_SUFFIX = ".snapshot";
+  public static final String JOURNAL_SUFFIX = ".journal";
+  public static final long SNAPSHOT_MAGIC_NUMBER = 8038844222L;
+  public static final long JOURNAL_MAGIC_NUMBER = 8038844223L;
+  public static final int SNAPSHOT_VERSION = 1;
+  public static final byte JOURNAL_BEGIN = 1;
+  public static final byte JOURNAL_COMMIT = 2;
+  
+  /**
+   * The number of stripes of the per-Id locks
+   */
+  public static final int ID_LOCK_STRIPES = 64;
+  
+  /**
+   * The number of journaled requests after which a new snapshot is written, 
+   * unless p2p_persistence_checkpoint_journal_size says otherwise
+   */
+  public static final int DEFAULT_CHECKPOINT_JOURNAL_SIZE = 100000;
   
   /** 
    * Static variables which define the location of the storage root
@@ -155,19 +252,46 @@ public class PersistentStorage implements Storage {
   
   private boolean index;            // whether or not we are indexing the objects
   private HashMap directories;      // the in-memory map of directories (for efficiency)
-  private HashMap prefixes;         // an in-memory cache of the directory prefixes
+  private Map prefixes;             // an in-memory cache of the directory prefixes
   private HashSet dirty;            // the list of directories which have dirty metadata
 
-  private ReverseTreeMap metadata;  // the in-memory cache of object metadata
+  private volatile MerkleMetadataMap metadata;  // the in-memory cache of object metadata, read without a lock
 
   private String rootDir;           // rootDirectory
 
   private long storageSize;         // The amount of storage allowed to be used 
   private long usedSize;            // The amount of storage currently in use
+  
+  private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD; // sections this large are compressed
+  
+  private RawObjectSerializerTable rawSerializers = new RawObjectSerializerTable(); // write RawSerializable objects in their raw form
+  
+  private File snapshotFile;        // the checkpoint of the index
+  private File journalFile;         // the changes since the snapshot
+  private long snapshotSequence;    // the sequence number of the snapshot, the journal must match
+  private FileOutputStream journal; // the open journal, null if we are not journaling
+  private int journalSize;          // the number of commits in the journal
+  private int checkpointJournalSize = DEFAULT_CHECKPOINT_JOURNAL_SIZE;
+  private boolean syncJournal = false; // whether to force the journal to disk at every commit
+  private HashSet journalIds = new HashSet();                // the ids changed by the current exclusive request
+  private LinkedHashMap journalDirs = new LinkedHashMap();   // the directories changed by the current exclusive request, to File[] or null if removed
+  private Object journalLock = new Object();                 // guards appending to the journal
 
   Environment environment;
   Logger logger;
   
+  /**
+   * Held shared while reading or changing the file of one Id, and exclusively
+   * while changing the directories map or the files of several Ids.
+   */
+  private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+  
+  /**
+   * Stripes of locks by Id, held shared while reading the file of an Id and 
+   * exclusively while changing it.  Always acquired after the store lock.
+   */
+  private ReentrantReadWriteLock[] idLocks = new ReentrantReadWriteLock[ID_LOCK_STRIPES];
+  
  /**
   * Builds a PersistentStorage given a root directory in which to
   * persist the data. Uses a default instance name.
@@ -212,11 +336,19 @@ public class PersistentStorage implements Storage {
     this.storageSize = size; 
     this.index = index;
     this.directories = new HashMap();
-    this.prefixes = new HashMap();
+    this.prefixes = new ConcurrentHashMap();
+    for (int i=0; i<idLocks.length; i++)
+      idLocks[i] = new ReentrantReadWriteLock();
     statsLastWritten = environment.getTimeSource().currentTimeMillis();
+    if (environment.getParameters().contains("p2p_persistence_compression_threshold"))
+      this.compressionThreshold = environment.getParameters().getInt("p2p_persistence_compression_threshold");
+    if (environment.getParameters().contains("p2p_persistence_checkpoint_journal_size"))
+      this.checkpointJournalSize = environment.getParameters().getInt("p2p_persistence_checkpoint_journal_size");
+    if (environment.getParameters().contains("p2p_persistence_journal_sync"))
+      this.syncJournal = environment.getParameters().getBoolean("p2p_persistence_journal_sync");
     if (index) {
       this.dirty = new HashSet();
-      this.metadata = new ReverseTreeMap();
+      this.metadata = new MerkleMetadataMap();
     }
       
     if (logger.level <= Logger.INFO) logger.log( "Launching persistent storage in " + rootDir + " with name " + name + " spliting factor " + MAX_FILES);
@@ -231,9 +363,9 @@ public class PersistentStorage implements Storage {
         if (logger.level <= Logger.INFO) logger.log("@L.PE name=" + name + " interval="+statsLastWritten+"-"+now);
         statsLastWritten = now;
         
-        if (logger.level <= Logger.INFO) logger.log("@L.PE   objsTotal=" + (index ? "" + metadata.keySet().size() : "?") + " objsBytesTotal=" + getTotalSize());
+        if (logger.level <= Logger.INFO) logger.log("@L.PE   objsTotal=" + (index ? "" + metadata.size() : "?") + " objsBytesTotal=" + getTotalSize());
         if (logger.level <= Logger.INFO) logger.log("@L.PE   numWrites=" + numWrites + " numReads=" + numReads + " numDeletes=" + numDeletes);
-        if (logger.level <= Logger.INFO) logger.log("@L.PE   numMetadataWrites=" + numMetadataWrites + " numRenames=" + numRenames);
+        if (logger.level <= Logger.INFO) logger.log("@L.PE   numMetadataWrites=" + numMetadataWrites + " numRenames=" + numRenames + " numUpgrades=" + numUpgrades);
       }
     }
   }
@@ -250,9 +382,9 @@ public class PersistentStorage implements Storage {
       timer.scheduleAtFixedRate(new rice.selector.TimerTask() {
         public String toString() { return "persistence dirty purge enqueue"; }
         public void run() {
-          environment.getProcessor().processBlockingIO(new WorkRequest(new ListenerContinuation("Enqueue of writeMetadataFile", environment), environment.getSelectorManager()) {
+          environment.getProcessor().processBlockingIO(new WriteRequest(new ListenerContinuation("Enqueue of writeMetadataFile", environment), null) {
             public String toString() { return "persistence dirty purge"; }
-            public Object doWork() throws Exception {
+            public Object doWrite() throws Exception {
               writeDirty();
               return Boolean.TRUE;
             }
@@ -262,6 +394,21 @@ public class PersistentStorage implements Storage {
     }
   }
   
+  /**
+   * Sets the serializer used to write RawSerializable objects in their raw 
+   * form under the given name, which is written with each object so that it
+   * is read back by the same serializer.  Objects written by a serializer 
+   * which is not set cannot be read until it is set again, but are kept.
+   *
+   * @param name The name of the serializer, such as the application instance
+   * @param serializer The serializer, or null to remove it
+   * @throws IllegalStateException If a different serializer is already set 
+   * under the name
+   */
+  public void setRawObjectSerializer(String name, RawObjectSerializer serializer) {
+    rawSerializers.put(name, serializer);
+  }
+  
   /**
    * Renames the given object to the new id.  This method is potentially faster
    * than store/cache and unstore/uncache.
@@ -273,12 +420,14 @@ public class PersistentStorage implements Storage {
   public void rename(final Id oldId, final Id newId, Continuation c) {
     printStats();
     
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) {
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, null) {
       public String toString() { return "rename " + oldId + " " + newId; }
-      public Object doWork() throws Exception {
+      public Object doWrite() throws Exception {
         synchronized(statLock) { numRenames++; }
         
         File f = getFile(oldId);
+        journalId(oldId);
+        journalId(newId);
         
         if ((f != null) && (f.exists())) {
           File g = getFile(newId);
@@ -329,9 +478,9 @@ public class PersistentStorage implements Storage {
     
     printStats();
     
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, id) { 
       public String toString() { return "store " + id; }
-      public Object doWork() throws Exception {
+      public Object doWrite() throws Exception {
         synchronized(statLock) { numWrites++; }
         
         if (logger.level <= Logger.FINER) logger.log("Storing object " + obj + " under id " + id.toStringFull() + " in root " + appDirectory);
@@ -344,7 +493,7 @@ public class PersistentStorage implements Storage {
 
         /* next, write out the data to a new copy of the original file */
         try {
-          writeObject(obj, metadata, id, environment.getTimeSource().currentTimeMillis(), transcFile);
+          writeObject(obj, metadata, id, environment.getTimeSource().currentTimeMillis(), transcFile, compressionThreshold, rawSerializers);
           if (logger.level <= Logger.FINER) logger.log("Done writing object " + obj + " under id " + id.toStringFull() + " in root " + appDirectory);
 
           /* abort if this will put us over quota */
@@ -375,7 +524,7 @@ public class PersistentStorage implements Storage {
         }
                 
         /* finally, check to see if this directory needs to be split */
-        checkDirectory(objFile.getParentFile());
+        checkDirectoryWhenDone(objFile.getParentFile());
         
         return Boolean.TRUE;
       }
@@ -402,9 +551,9 @@ public class PersistentStorage implements Storage {
   public void unstore(final Id id, Continuation c) {
     printStats();
     
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, id) { 
       public String toString() { return "unstore " + id; }
-      public Object doWork() throws Exception {
+      public Object doWrite() throws Exception {
         synchronized(statLock) { numDeletes++; }
         
         /* first get the file */
@@ -441,9 +590,7 @@ public class PersistentStorage implements Storage {
    */
   public boolean exists(Id id) {
     if (index) {
-      synchronized (metadata) {
-        return metadata.containsKey(id);
-      }
+      return metadata.containsKey(id);
     } else {
       throw new UnsupportedOperationException("exists() not supported without indexing");
     }
@@ -459,9 +606,7 @@ public class PersistentStorage implements Storage {
    */
   public Serializable getMetadata(Id id) {
     if (index) {
-      synchronized (metadata) {
-        return (Serializable) metadata.get(id);
-      }
+      return (Serializable) metadata.get(id);
     } else {
       throw new UnsupportedOperationException("getMetadata() not supported without indexing");
     }
@@ -482,16 +627,21 @@ public class PersistentStorage implements Storage {
     if (! exists(id)) {
       c.receiveResult(new Boolean(false));
     } else {    
-      environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+      environment.getProcessor().processBlockingIO(new WriteRequest(c, id) { 
         public String toString() { return "setMetadata " + id; }
-        public Object doWork() throws Exception {
+        public Object doWrite() throws Exception {
           synchronized(statLock) { numMetadataWrites++; }
           
           if (logger.level <= Logger.FINER) logger.log("COUNT: Updating metadata for " + id.toStringFull() + " in " + name);
           
           /* write the metadata to the file */
           File objFile = getFile(id);
-          writeMetadata(objFile, metadata);
+          long length = getFileLength(objFile);
+          writeMetadata(objFile, metadata, compressionThreshold);
+          
+          /* the metadata may have changed the size of the file */
+          decreaseUsedSpace(length);
+          increaseUsedSpace(getFileLength(objFile));
                     
           /* then update our cache */
           if (index) {
@@ -521,35 +671,81 @@ public class PersistentStorage implements Storage {
     if (index && (! exists(id))) {
       c.receiveResult(null);
     } else {    
-      environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+      environment.getProcessor().processBlockingIO(new KeyedWorkRequest(c, environment.getSelectorManager(), this, id) { 
         public String toString() { return "getObject " + id; }
         public Object doWork() throws Exception {
           synchronized(statLock) { numReads++; }
           
-          /* get the file */
-          File objFile = getFile(id);
-          
+          Exception error;
+          Serializable result;
+          ReentrantReadWriteLock idLock = getIdLock(id);
+          lock.readLock().lock();
+          idLock.readLock().lock();
           try { 
-            /* and make sure that it exists */
+            /* get the file, and make sure that it exists */
+            File objFile = lookupFile(id);
+            
             if ((objFile == null) || (! objFile.exists())) 
               return null;
 
             if (logger.level <= Logger.FINER) logger.log("COUNT: Fetching data under " + id.toStringFull() + " of size " + objFile.length() + " in " + name);
-            return readData(objFile);
+            result = readBinaryObject(objFile, 1, rawSerializers);
+            
+            if (result != null)
+              return result;
+            
+            result = readLegacyObject(objFile, 1);
+            error = null;
           } catch (Exception e) {
-            /* remove our index for this file */
-            if (index) {
-              synchronized (metadata) {
-                metadata.remove(id);
-                dirty.add(objFile.getParentFile());
+            result = null;
+            error = e;
+          } finally {
+            idLock.readLock().unlock();
+            lock.readLock().unlock();
+          }
+          
+          /* only this id's file changes, so the store lock can stay shared */
+          lock.readLock().lock();
+          idLock.writeLock().lock();
+          boolean journaled = journalBegin(id);
+          try {
+            /* the file is in an older format, so rewrite it in the current one */
+            if (error == null) {
+              try {
+                upgradeFile(id, result);
+              } catch (IOException e) {
+                if (logger.level <= Logger.WARNING) logger.logException("Could not upgrade the file of " + id.toStringFull(), e);
               }
+              
+              return result;
             }
             
-            /* if there's a problem, move the file to the lost+found */
-            moveToLost(objFile);
-
-            throw e;
+            File objFile = lookupFile(id);
+            
+            /* the file is fine, its serializer has just not been set */
+            if (error instanceof RawObjectSerializerTable.MissingSerializerException)
+              objFile = null;
+            
+            if (objFile != null) {
+              /* remove our index for this file */
+              if (index) {
+                synchronized (metadata) {
+                  metadata.remove(id);
+                  dirty.add(objFile.getParentFile());
+                }
+              }
+              
+              /* if there's a problem, move the file to the lost+found */
+              moveToLost(objFile);
+            }
+          } finally {
+            if (journaled)
+              journalCommit(id);
+            idLock.writeLock().unlock();
+            lock.readLock().unlock();
           }
+
+          throw error;
         }
       });
     }
@@ -575,9 +771,7 @@ public class PersistentStorage implements Storage {
       else if (range.getCCWId().equals(range.getCWId())) 
         return scan();
       else 
-        synchronized (metadata) {
-          return factory.buildIdSet(new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId())));
-        }
+        return factory.buildIdSet(new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId())));
     } else {
       throw new UnsupportedOperationException("scan() not supported without indexing");
     }
@@ -596,9 +790,7 @@ public class PersistentStorage implements Storage {
    */
   public IdSet scan() {
     if (index) {
-      synchronized (metadata){
-        return factory.buildIdSet(new ImmutableSortedMap(metadata.keyMap()));
-      }
+      return factory.buildIdSet(new ImmutableSortedMap(metadata.keyMap()));
     } else {
       throw new UnsupportedOperationException("scan() not supported without indexing");
     }
@@ -618,9 +810,7 @@ public class PersistentStorage implements Storage {
       else if (range.getCCWId().equals(range.getCWId())) 
         return scanMetadata();
       else 
-        synchronized (metadata) {
-          return new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId()));
-        }
+        return new ImmutableSortedMap(metadata.keySubMap(range.getCCWId(), range.getCWId()));
     } else {
       throw new UnsupportedOperationException("scanMetadata() not supported without indexing");
     }
@@ -693,6 +883,17 @@ public class PersistentStorage implements Storage {
     }
   }  
   
+  /**
+   * Returns the IdMerkleTree of the stored Ids, which is built on the first
+   * call and then updated as objects are stored and removed, or null if 
+   * the storage is not indexed or some of the Ids are not supported by the tree
+   *
+   * @return The tree, or null
+   */
+  public IdMerkleTree getMerkleTree() {
+    return (index ? metadata.getMerkleTree() : null);
+  }
+  
   /**
    * Method which is used to erase all data stored in the Catalog.  
    * Use this method with care!
@@ -700,17 +901,135 @@ public class PersistentStorage implements Storage {
    * @param c The command to run once done
    */
   public void flush(Continuation c) {
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+    environment.getProcessor().processBlockingIO(new WriteRequest(c, null) { 
       public String toString() { return "flush"; }
-      public Object doWork() throws Exception {
+      public Object doWrite() throws Exception {
         if (logger.level <= Logger.FINER) logger.log("COUNT: Flushing all data in " + name);
 
         flushDirectory(appDirectory);
+        setSubDirectories(appDirectory, new File[0]);
+        
+        /* the journal can't list every removed id, so start from an empty snapshot */
+        if (index)
+          checkpoint();
+        
         return Boolean.TRUE;
       }
     });
   }
                   
+  /**
+   * A request which changes this storage.  A request for one Id runs with the 
+   * lock shared and the Id's lock held exclusively, unless the directory for
+   * the Id has to be created.  Other requests run with the lock held 
+   * exclusively.
+   */
+  private abstract class WriteRequest extends KeyedWorkRequest {
+    
+    /**
+     * A directory which needs to be split or pruned once the lock is released
+     */
+    private File check;
+    
+    /**
+     * @param id the Id it changes, null if it may change any Id
+     */
+    public WriteRequest(Continuation c, Id id) {
+      super(c, environment.getSelectorManager(), PersistentStorage.this, id);
+    }
+    
+    public Object doWork() throws Exception {
+      if (key != null) {
+        Id id = (Id) key;
+        ReentrantReadWriteLock idLock = getIdLock(id);
+        lock.readLock().lock();
+        idLock.writeLock().lock();
+        try {
+          /* creating the directory for the id changes the layout */
+          if (lookupFile(id) != null) {
+            boolean journaled = journalBegin(id);
+            try {
+              return doWrite();
+            } finally {
+              if (journaled)
+                journalCommit(id);
+            }
+          }
+        } finally {
+          idLock.writeLock().unlock();
+          lock.readLock().unlock();
+          
+          if ((check != null) || needsCheckpoint())
+            maintain(check);
+        }
+      }
+      
+      lock.writeLock().lock();
+      try {
+        boolean journaled = journalBegin((Id) key);
+        try {
+          return doWrite();
+        } finally {
+          if (journaled)
+            journalCommit(null);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    
+    /**
+     * Checks whether the directory needs to be split or pruned.  If the lock
+     * is only shared, the directory is changed after the request.
+     *
+     * @param dir The directory
+     */
+    protected void checkDirectoryWhenDone(File dir) throws IOException {
+      if (lock.isWriteLockedByCurrentThread())
+        checkDirectory(dir);
+      else if (needsChange(dir))
+        check = dir;
+    }
+    
+    protected abstract Object doWrite() throws Exception;
+  }
+  
+  /**
+   * Takes the lock exclusively to do what requests holding it shared could 
+   * not: split or prune a directory, and checkpoint a journal which has grown 
+   * too long.
+   *
+   * @param dir The directory to check, or null
+   */
+  private void maintain(File dir) {
+    lock.writeLock().lock();
+    try {
+      boolean journaled = journalBegin(null);
+      try {
+        /* another request may have changed it in the meantime */
+        if ((dir != null) && directories.containsKey(dir))
+          checkDirectory(dir);
+      } finally {
+        if (journaled)
+          journalCommit(null);
+      }
+    } catch (IOException e) {
+      if (logger.level <= Logger.WARNING) logger.logException("Could not check directory " + dir, e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Returns the lock for the given id
+   *
+   * @param id The id
+   * @return Its stripe of the id locks
+   */
+  private ReentrantReadWriteLock getIdLock(Id id) {
+    return idLocks[(id.hashCode() & Integer.MAX_VALUE) % idLocks.length];
+  }
+  
   /*****************************************************************/
   /* Functions for init/crash recovery                             */
   /*****************************************************************/
@@ -722,15 +1041,24 @@ public class PersistentStorage implements Storage {
   private void init() throws IOException {
     if (logger.level <= Logger.INFO) logger.log("Initing directories");
     initDirectories();
-    if (logger.level <= Logger.INFO) logger.log("Initing directory map");
-    initDirectoryMap(appDirectory);
-    if (logger.level <= Logger.INFO) logger.log("Initing files");
-    initFiles(appDirectory);
-    if (logger.level <= Logger.INFO) logger.log("Initing file map");
-    initFileMap(appDirectory);
-    if (logger.level <= Logger.INFO) logger.log("Syncing metadata");
-    if (index)
+    
+    if (index && readSnapshot()) {
+      if (logger.level <= Logger.INFO) logger.log("Read snapshot " + snapshotSequence + " with " + metadata.size() + " objects");
+    } else {
+      if (logger.level <= Logger.INFO) logger.log("Initing directory map");
+      initDirectoryMap(appDirectory);
+      if (logger.level <= Logger.INFO) logger.log("Initing files");
+      initFiles(appDirectory);
+      if (logger.level <= Logger.INFO) logger.log("Initing file map");
+      initFileMap(appDirectory);
+    }
+    
+    if (index) {
+      if (logger.level <= Logger.INFO) logger.log("Syncing metadata");
       writeDirty();
+      if (logger.level <= Logger.INFO) logger.log("Writing snapshot");
+      checkpoint();
+    }
     if (logger.level <= Logger.INFO) logger.log("Done initing");
   }
 
@@ -753,6 +1081,9 @@ public class PersistentStorage implements Storage {
     
     lostDirectory = new File(backupDirectory, LOST_AND_FOUND_DIRECTORY); 
     createDirectory(lostDirectory);
+    
+    snapshotFile = new File(backupDirectory, getName() + SNAPSHOT_SUFFIX);
+    journalFile = new File(backupDirectory, getName() + JOURNAL_SUFFIX);
   }
   
   /**
@@ -898,43 +1229,580 @@ public class PersistentStorage implements Storage {
     /* and finally see if this directory needs to be pruned or expanded */
     checkDirectory(dir);
   }
-
+
+  /**
+   * Resolves a conflict between the two provided files by picking the
+   * newer one and renames it to the given output file.
+   *
+   * @param file1 The first file
+   * @param file2 The second file
+   * @param output The file to store the result in
+   */
+  private void resolveConflict(File file1, File file2, File output) throws IOException {
+    if (! file2.exists()) {
+      renameFile(file1, output);
+    } else if (! file1.exists()) {
+      renameFile(file2, output);
+    } else if (file1.equals(file2)) {
+      renameFile(file1, output);
+    } else {
+      if (logger.level <= Logger.FINE) logger.log("resolving conflict between " + file1 + " and " + file2);
+      
+      if (readVersion(file1) < readVersion(file2)) {
+        moveToLost(file1);
+        renameFile(file2, output);
+      } else {
+        moveToLost(file2);
+        renameFile(file1, output);
+      }
+    }
+  }
+
+  /**
+   * Moves a file to the lost and found directory for this instance
+   *
+   * @param file the file to be moved
+   *
+   */ 
+  private void moveToLost(File file) throws IOException {
+    renameFile(file, new File(lostDirectory, getPrefix(file.getParentFile()) + file.getName()));
+  }
+ 
+  /*****************************************************************/
+  /* Functions for the index snapshot and journal                  */
+  /*****************************************************************/
+  
+  /**
+   * Updates the in-memory map of directories, and records the change for 
+   * the journal.
+   *
+   * @param dir The directory
+   * @param subDirs Its subdirectories
+   */
+  private void setSubDirectories(File dir, File[] subDirs) {
+    directories.put(dir, subDirs);
+    
+    if (journal != null)
+      journalDirs.put(dir, subDirs);
+  }
+  
+  /**
+   * Removes a directory from the in-memory map of directories, and records 
+   * the change for the journal.
+   *
+   * @param dir The directory
+   */
+  private void removeDirectory(File dir) {
+    directories.remove(dir);
+    prefixes.remove(dir);
+    
+    if (journal != null)
+      journalDirs.put(dir, null);
+  }
+  
+  /**
+   * Records that the id may change in the current request.  
+   *
+   * @param id The id, may be null
+   */
+  private void journalId(Id id) {
+    if ((journal != null) && (id != null))
+      journalIds.add(id);
+  }
+  
+  /**
+   * Called before a request changes anything.  Writes a JOURNAL_BEGIN record,
+   * so that if we crash before the matching JOURNAL_COMMIT is written the 
+   * directories are walked on startup.  Requests for different ids may have 
+   * their records interleaved.  With the lock held exclusively, the changed 
+   * ids and directories are recorded from here on.
+   *
+   * @param id The id the request changes, or null
+   * @return Whether journalCommit() must be called after the request
+   */
+  private boolean journalBegin(Id id) {
+    synchronized (journalLock) {
+      if (journal == null)
+        return false;
+      
+      if (lock.isWriteLockedByCurrentThread()) {
+        journalIds.clear();
+        journalDirs.clear();
+        journalId(id);
+      }
+      
+      try {
+        appendJournal(JOURNAL_BEGIN, new byte[0]);
+        return true;
+      } catch (IOException e) {
+        journalFailed(e);
+        return false;
+      }
+    }
+  }
+  
+  /**
+   * Called after a request.  Writes the used space, the changed directories 
+   * and the current metadata of the changed ids as a JOURNAL_COMMIT record. 
+   * With the lock held exclusively, checkpoints if the journal has grown too 
+   * long.
+   *
+   * @param id The id the request changed, if it held the lock shared
+   */
+  private void journalCommit(Id id) {
+    boolean exclusive = lock.isWriteLockedByCurrentThread();
+    Collection ids = (exclusive ? (Collection) journalIds : Collections.singleton(id));
+    Map dirs = (exclusive ? (Map) journalDirs : Collections.EMPTY_MAP);
+    
+    synchronized (journalLock) {
+      if (journal == null)
+        return;
+      
+      try {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream objout = new ObjectOutputStream(baos);
+        objout.writeLong(getUsedSpace());
+        writeDirectories(objout, dirs);
+        
+        objout.writeInt(ids.size());
+        Iterator i = ids.iterator();
+        while (i.hasNext()) {
+          Id next = (Id) i.next();
+          objout.writeUTF(next.toStringFull());
+          
+          synchronized (metadata) {
+            objout.writeBoolean(metadata.containsKey(next));
+            if (metadata.containsKey(next))
+              objout.writeObject(metadata.get(next));
+          }
+        }
+        objout.close();
+        
+        appendJournal(JOURNAL_COMMIT, baos.toByteArray());
+        journalSize++;
+        
+        if (syncJournal)
+          journal.getFD().sync();
+        
+        if (exclusive && needsCheckpoint())
+          checkpoint();
+      } catch (IOException e) {
+        journalFailed(e);
+      } finally {
+        if (exclusive) {
+          journalIds.clear();
+          journalDirs.clear();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Returns whether the journal has grown long enough for a new snapshot
+   *
+   * @return Whether to checkpoint
+   */
+  private boolean needsCheckpoint() {
+    synchronized (journalLock) {
+      return (journal != null) && (journalSize >= checkpointJournalSize);
+    }
+  }
+  
+  /**
+   * Appends one record to the journal: [length, int][type, byte][payload][CRC32, int]
+   *
+   * @param type The record type
+   * @param payload The record
+   */
+  private void appendJournal(byte type, byte[] payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(payload);
+    
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(payload.length + 9);
+    DataOutputStream dos = new DataOutputStream(baos);
+    dos.writeInt(payload.length);
+    dos.writeByte(type);
+    dos.write(payload);
+    dos.writeInt((int) crc.getValue());
+    dos.close();
+    
+    journal.write(baos.toByteArray());
+  }
+  
+  /**
+   * If the journal cannot be written, we stop journaling and delete the 
+   * snapshot, so the next startup walks the directories.
+   *
+   * @param e The problem
+   */
+  private void journalFailed(IOException e) {
+    if (logger.level <= Logger.WARNING) logger.logException("Could not write journal " + journalFile + " - deleting the snapshot and disabling journaling", e);
+    
+    try {
+      journal.close();
+    } catch (IOException f) {
+    }
+    
+    journal = null;
+    snapshotFile.delete();
+  }
+  
+  /**
+   * Writes the directory map, the metadata and the used space to a new 
+   * snapshot, and starts a new, empty journal.  Must be called with the 
+   * write lock held, or during init().  The format is
+   *
+   * [snapshot magic number, long]
+   * [snapshot version, int]
+   * [snapshot sequence number, long]
+   * [used space, long]
+   * [directories, see writeDirectories()]
+   * [number of objects, int]
+   * [Id.toStringFull(), UTF] [metadata, object] for each object
+   * [snapshot magic number, long]
+   *
+   * all written to one ObjectOutputStream.  The journal starts with
+   * [journal magic number, long] [snapshot sequence number, long]
+   */
+  private void checkpoint() throws IOException {
+    long sequence = snapshotSequence + 1;
+    File temp = new File(snapshotFile.getPath() + ".tmp");
+    FileOutputStream fout = null;
+    
+    try {
+      fout = new FileOutputStream(temp);
+      ObjectOutputStream objout = new ObjectOutputStream(new BufferedOutputStream(fout, 65536));
+      objout.writeLong(SNAPSHOT_MAGIC_NUMBER);
+      objout.writeInt(SNAPSHOT_VERSION);
+      objout.writeLong(sequence);
+      objout.writeLong(usedSize);
+      writeDirectories(objout, directories);
+      
+      objout.writeInt(metadata.size());
+      Iterator i = metadata.keySet().iterator();
+      int count = 0;
+      
+      while (i.hasNext()) {
+        Id id = (Id) i.next();
+        objout.writeUTF(id.toStringFull());
+        objout.writeObject(metadata.get(id));
+        
+        /* don't let the stream hold on to every object */
+        if (++count % 1000 == 0)
+          objout.reset();
+      }
+      
+      objout.writeLong(SNAPSHOT_MAGIC_NUMBER);
+      objout.flush();
+      
+      if (syncJournal)
+        fout.getFD().sync();
+      
+      objout.close();
+    } catch (IOException e) {
+      if (fout != null) 
+        fout.close();
+      deleteFile(temp);
+      throw e;
+    }
+    
+    if (! temp.renameTo(snapshotFile))
+      renameFile(temp, snapshotFile);
+    snapshotSequence = sequence;
+    
+    /* and start a new journal */
+    if (journal != null)
+      journal.close();
+    
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(16);
+    DataOutputStream dos = new DataOutputStream(baos);
+    dos.writeLong(JOURNAL_MAGIC_NUMBER);
+    dos.writeLong(sequence);
+    dos.close();
+    
+    journal = new FileOutputStream(journalFile);
+    journal.write(baos.toByteArray());
+    journalSize = 0;
+    
+    if (syncJournal)
+      journal.getFD().sync();
+    
+    if (logger.level <= Logger.FINE) logger.log("Wrote snapshot " + sequence + " of " + metadata.size() + " objects, " + snapshotFile.length() + " bytes");
+  }
+  
+  /**
+   * Reads the snapshot and replays the journal.  If this fails, the in-memory
+   * state is reset so the directories can be walked.
+   *
+   * @return Whether the snapshot could be used
+   */
+  private boolean readSnapshot() {
+    if (! snapshotFile.exists())
+      return false;
+    
+    try {
+      if (readSnapshotFile() && replayJournal() && checkDirectories())
+        return true;
+    } catch (Exception e) {
+      if (logger.level <= Logger.WARNING) logger.logException("Got exception " + e + " reading snapshot " + snapshotFile + " - walking the directories", e);
+    }
+    
+    directories = new HashMap();
+    prefixes = new ConcurrentHashMap();
+    metadata = new MerkleMetadataMap();
+    usedSize = 0;
+    snapshotSequence = 0;
+    return false;
+  }
+  
+  /**
+   * Reads the snapshot written by checkpoint().
+   *
+   * @return Whether the snapshot was complete
+   */
+  private boolean readSnapshotFile() throws IOException, ClassNotFoundException {
+    FileInputStream fin = null;
+    
+    try {
+      fin = new FileInputStream(snapshotFile);
+      ObjectInputStream objin = new ObjectInputStream(new BufferedInputStream(fin, 65536));
+      
+      if ((objin.readLong() != SNAPSHOT_MAGIC_NUMBER) || (objin.readInt() != SNAPSHOT_VERSION)) {
+        if (logger.level <= Logger.WARNING) logger.log("Snapshot " + snapshotFile + " has the wrong magic number or version - walking the directories");
+        return false;
+      }
+      
+      snapshotSequence = objin.readLong();
+      usedSize = objin.readLong();
+      readDirectories(objin);
+      
+      int num = objin.readInt();
+      for (int i=0; i<num; i++) {
+        String s = objin.readUTF();
+        metadata.put(factory.buildIdFromToString(s.toCharArray(), 0, s.length()), objin.readObject());
+      }
+      
+      return (objin.readLong() == SNAPSHOT_MAGIC_NUMBER);
+    } finally {
+      if (fin != null)
+        fin.close();
+    }
+  }
+  
+  /**
+   * Applies the commits in the journal to the state read from the snapshot.
+   *
+   * @return false if a request was not committed, or a record is damaged
+   */
+  private boolean replayJournal() throws IOException, ClassNotFoundException {
+    if (! journalFile.exists())
+      return true;
+    
+    DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 65536));
+    
+    try {
+      long sequence;
+      try {
+        if (din.readLong() != JOURNAL_MAGIC_NUMBER)
+          return false;
+        sequence = din.readLong();
+      } catch (EOFException e) {
+        /* we crashed while starting the journal, so nothing happened since the snapshot */
+        return true;
+      }
+      
+      /* the journal from before the snapshot, all of its changes are in the snapshot */
+      if (sequence < snapshotSequence)
+        return true;
+      
+      if (sequence > snapshotSequence)
+        return false;
+      
+      int open = 0;
+      int commits = 0;
+      
+      while (true) {
+        int length;
+        try {
+          length = din.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        
+        if ((length < 0) || (length > journalFile.length()))
+          return false;
+        
+        byte type;
+        byte[] payload = new byte[length];
+        
+        try {
+          type = din.readByte();
+          din.readFully(payload);
+          
+          CRC32 crc = new CRC32();
+          crc.update(type);
+          crc.update(payload);
+          
+          if (din.readInt() != (int) crc.getValue()) 
+            return false;
+        } catch (EOFException e) {
+          return false;
+        }
+        
+        /* requests for different ids may be open at the same time */
+        if (type == JOURNAL_BEGIN) {
+          open++;
+        } else if ((type == JOURNAL_COMMIT) && (open > 0)) {
+          applyCommit(payload);
+          open--;
+          commits++;
+        } else {
+          return false;
+        }
+      }
+      
+      if (open > 0) {
+        if (logger.level <= Logger.WARNING) logger.log(open + " requests in " + journalFile + " did not complete - walking the directories");
+        return false;
+      }
+      
+      if (logger.level <= Logger.INFO) logger.log("Replayed " + commits + " requests from " + journalFile);
+      return true;
+    } finally {
+      din.close();
+    }
+  }
+  
+  /**
+   * Applies one JOURNAL_COMMIT record, written by journalCommit()
+   *
+   * @param payload The record
+   */
+  private void applyCommit(byte[] payload) throws IOException, ClassNotFoundException {
+    ObjectInputStream objin = new ObjectInputStream(new ByteArrayInputStream(payload));
+    usedSize = objin.readLong();
+    readDirectories(objin);
+    
+    int num = objin.readInt();
+    for (int i=0; i<num; i++) {
+      String s = objin.readUTF();
+      Id id = factory.buildIdFromToString(s.toCharArray(), 0, s.length());
+      
+      if (objin.readBoolean()) 
+        metadata.put(id, objin.readObject());
+      else
+        metadata.remove(id);
+    }
+  }
+  
+  /**
+   * Writes a map of directories to subdirectories as
+   * [number of directories, int] and then for each 
+   * [path relative to the instance directory, UTF]
+   * [number of subdirectories, int, -1 if the directory was removed]
+   * [subdirectory name, UTF] for each subdirectory
+   *
+   * @param out The stream
+   * @param dirs The map from directory to File[]
+   */
+  private void writeDirectories(DataOutput out, Map dirs) throws IOException {
+    out.writeInt(dirs.size());
+    Iterator i = dirs.keySet().iterator();
+    
+    while (i.hasNext()) {
+      File dir = (File) i.next();
+      File[] subDirs = (File[]) dirs.get(dir);
+      out.writeUTF(getRelativePath(dir));
+      
+      if (subDirs == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(subDirs.length);
+        for (int j=0; j<subDirs.length; j++)
+          out.writeUTF(subDirs[j].getName());
+      }
+    }
+  }
+  
+  /**
+   * Reads directories written by writeDirectories() into the directory map
+   *
+   * @param in The stream
+   */
+  private void readDirectories(DataInput in) throws IOException {
+    int num = in.readInt();
+    
+    for (int i=0; i<num; i++) {
+      File dir = getDirectoryForRelativePath(in.readUTF());
+      int length = in.readInt();
+      
+      if (length < 0) {
+        directories.remove(dir);
+        prefixes.remove(dir);
+      } else {
+        File[] subDirs = new File[length];
+        for (int j=0; j<length; j++)
+          subDirs[j] = new File(dir, in.readUTF());
+        
+        directories.put(dir, subDirs);
+      }
+    }
+  }
+  
   /**
-   * Resolves a conflict between the two provided files by picking the
-   * newer one and renames it to the given output file.
+   * Makes sure that the directories read from the snapshot still exist
    *
-   * @param file1 The first file
-   * @param file2 The second file
-   * @param output The file to store the result in
+   * @return Whether they all exist
    */
-  private void resolveConflict(File file1, File file2, File output) throws IOException {
-    if (! file2.exists()) {
-      renameFile(file1, output);
-    } else if (! file1.exists()) {
-      renameFile(file2, output);
-    } else if (file1.equals(file2)) {
-      renameFile(file1, output);
-    } else {
-      if (logger.level <= Logger.FINE) logger.log("resolving conflict between " + file1 + " and " + file2);
+  private boolean checkDirectories() {
+    if (! directories.containsKey(appDirectory))
+      return false;
+    
+    Iterator i = directories.keySet().iterator();
+    
+    while (i.hasNext()) {
+      File dir = (File) i.next();
       
-      if (readVersion(file1) < readVersion(file2)) {
-        moveToLost(file1);
-        renameFile(file2, output);
-      } else {
-        moveToLost(file2);
-        renameFile(file1, output);
+      if (! dir.isDirectory()) {
+        if (logger.level <= Logger.WARNING) logger.log("Directory " + dir + " from the snapshot does not exist - walking the directories");
+        return false;
       }
     }
+    
+    return true;
   }
-
+  
   /**
-   * Moves a file to the lost and found directory for this instance
+   * Returns the path of the directory relative to the instance directory, 
+   * with '/' as the separator
    *
-   * @param file the file to be moved
+   * @param dir The directory
+   */
+  private String getRelativePath(File dir) {
+    String result = "";
+    
+    while (! dir.equals(appDirectory)) {
+      result = "/" + dir.getName() + result;
+      dir = dir.getParentFile();
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Returns the directory for a path returned by getRelativePath()
    *
-   */ 
-  private void moveToLost(File file) throws IOException {
-    renameFile(file, new File(lostDirectory, getPrefix(file.getParentFile()) + file.getName()));
+   * @param path The relative path
+   */
+  private File getDirectoryForRelativePath(String path) {
+    File result = appDirectory;
+    StringTokenizer tok = new StringTokenizer(path, "/");
+    
+    while (tok.hasMoreTokens())
+      result = new File(result, tok.nextToken());
+    
+    return result;
   }
  
   /*****************************************************************/
@@ -968,6 +1836,21 @@ public class PersistentStorage implements Storage {
     return false;
   }
   
+  /**
+   * Returns whether checkDirectory() would change the given directory, without 
+   * changing anything.
+   *
+   * @param dir The directory to check
+   * @return Whether the directory needs to be expanded or pruned
+   */
+  private boolean needsChange(File directory) {
+    int files = numFilesDir(directory);
+    int dirs = numDirectoriesDir(directory);
+    
+    return ((files > MAX_FILES) || (dirs > MAX_DIRECTORIES) || 
+            ((files == 0) && (dirs == 0) && (! directory.equals(appDirectory))));
+  }
+  
   /**
    * This method removes an empty directory from the storage root, and updates
    * all of the associated metadata.
@@ -984,9 +1867,8 @@ public class PersistentStorage implements Storage {
     deleteDirectory(dir);
     
     /* Finally update the metadata */
-    directories.remove(dir);
-    prefixes.remove(dir);
-    this.directories.put(dir.getParentFile(), dir.getParentFile().listFiles(new DirectoryFilter()));
+    removeDirectory(dir);
+    setSubDirectories(dir.getParentFile(), dir.getParentFile().listFiles(new DirectoryFilter()));
   }
   
   /**
@@ -1037,15 +1919,15 @@ public class PersistentStorage implements Storage {
         renameFile(oldDir, newSubDirs[j]);
 
         /* remove the stale entry, add the new one */        
-        this.directories.remove(oldDir); 
-        this.directories.put(newSubDirs[j], new File[0]);
+        removeDirectory(oldDir); 
+        setSubDirectories(newSubDirs[j], new File[0]);
       }
       
-      this.directories.put(newDirs[i], newSubDirs);
+      setSubDirectories(newDirs[i], newSubDirs);
     }
     
     /* lastly, update the root directory */
-    this.directories.put(dir, newDirs);
+    setSubDirectories(dir, newDirs);
   } 
   
   /**
@@ -1086,7 +1968,7 @@ public class PersistentStorage implements Storage {
     /* create the directories */
     for (int i=0; i<dirNames.length; i++) {
       dirs[i] = new File(dir, dirNames[i]);
-      directories.put(dirs[i], new File[0]);
+      setSubDirectories(dirs[i], new File[0]);
       
       if (dirs[i].exists() && dirs[i].isFile())
         renameFile(dirs[i], new File(dir, dirs[i].getName() + ZERO_LENGTH_NAME));
@@ -1100,7 +1982,7 @@ public class PersistentStorage implements Storage {
     }
     
     /* add the list of directories to the map */
-    directories.put(dir, dirs);
+    setSubDirectories(dir, dirs);
     
     /* last, move the files into the correct directory */
     File[] files = dir.listFiles(new FileFilter());
@@ -1231,8 +2113,7 @@ public class PersistentStorage implements Storage {
         flushDirectory(dirs[i]);
 
         /* update the metadata */
-        directories.remove(dirs[i]);
-        prefixes.remove(dirs[i]);      
+        removeDirectory(dirs[i]);
 
         /* delete the dir */
         deleteFile(dirs[i]);
@@ -1373,6 +2254,48 @@ public class PersistentStorage implements Storage {
     return file;
   }
 
+  /**
+   * Gets the file for a certain id without changing the directories, 
+   * so it may be called with the lock shared.
+   *
+   * @param id the id to get a file for
+   * @return File the file for the id, null if there is no directory for it
+   */
+  private File lookupFile(Id id) {
+    String name = id.toStringFull();
+    File dir = appDirectory;
+    File[] subDirs = (File[]) directories.get(dir);
+    
+    while (subDirs.length > 0) {
+      File next = null;
+      for (int i=0; i<subDirs.length; i++) {
+        if (name.startsWith(subDirs[i].getName())) {
+          next = subDirs[i];
+          name = name.substring(subDirs[i].getName().length());
+          break;
+        } else if ((name.length() == 0) && subDirs[i].getName().equals(ZERO_LENGTH_NAME)) {
+          next = subDirs[i];
+          break;
+        }
+      }
+      
+      if (next == null)
+        return null;
+      
+      dir = next;
+      subDirs = (File[]) directories.get(dir);
+    }
+    
+    if (name.equals("")) name = ZERO_LENGTH_NAME;
+    
+    // check for ! directory
+    File file = new File(dir, name);
+    if (file.exists() && file.isDirectory())
+      file = new File(file, ZERO_LENGTH_NAME);
+
+    return file;
+  }
+
   /**
    * Gets the directory an id should be stored in
    *
@@ -1417,8 +2340,8 @@ public class PersistentStorage implements Storage {
         File newDir = new File(dir, (name.length() == 0 ? ZERO_LENGTH_NAME : name.substring(0, subDirs[0].getName().length())));
         if (logger.level <= Logger.FINE) logger.log("Necessarily creating dir " + newDir.getName());
         createDirectory(newDir);
-        this.directories.put(dir, append(subDirs, newDir));
-        this.directories.put(newDir, new File[0]);
+        setSubDirectories(dir, append(subDirs, newDir));
+        setSubDirectories(newDir, new File[0]);
       
         /* finally, we must check if this caused too many dirs in one dir.  If so, we
            simply rerun the algorithm which will reflect the new dir */
@@ -1468,13 +2391,15 @@ public class PersistentStorage implements Storage {
       return (String) prefixes.get(file);
     
     StringBuffer buffer = new StringBuffer();
-    while (! file.equals(appDirectory)) {
-      buffer.insert(0, file.getName().replaceAll(ZERO_LENGTH_NAME, ""));
-      file = file.getParentFile();
+    File dir = file;
+    while (! dir.equals(appDirectory)) {
+      buffer.insert(0, dir.getName().replaceAll(ZERO_LENGTH_NAME, ""));
+      dir = dir.getParentFile();
     }
-    prefixes.put(file, buffer.toString());
+    String prefix = buffer.toString();
+    prefixes.put(file, prefix);
     
-    return getPrefix(file);
+    return prefix;
   }
   
   /**
@@ -1702,6 +2627,55 @@ public class PersistentStorage implements Storage {
    *
    */
   private static Serializable readObject(File file, int offset) throws IOException {    
+    Serializable result = readBinaryObject(file, offset, null);
+    
+    if (result != null)
+      return result;
+    
+    return readLegacyObject(file, offset);
+  }
+  
+  /**
+   * Reads an object from a revision 2.2 file, using the offsets in the header.
+   *
+   * @param file the file to read from
+   * @param offset 0 for the key, 1 for the data, 2 for the version
+   * @param raw reads the data if it is in the raw form, may be null
+   * @return the object, or null if the file is not in the revision 2.2 format
+   */
+  private static Serializable readBinaryObject(File file, int offset, RawObjectSerializerTable raw) throws IOException {
+    RandomAccessFile ras = new RandomAccessFile(file, "r");
+    
+    try {
+      if (! isBinary(ras))
+        return null;
+      
+      long version = ras.readLong();
+      int keyLength = ras.readInt();
+      int dataLength = ras.readInt();
+      
+      switch (offset) {
+        case 0:
+          return readSection(ras, HEADER_LENGTH, keyLength, null);
+        case 1:
+          return readSection(ras, HEADER_LENGTH + keyLength, dataLength, raw);
+        default:
+          return new Long(version);
+      }
+    } finally {
+      ras.close();
+    }
+  }
+
+  /**
+   * Reads an object from a revision 2.0 or 2.1 file, which is a stream of 
+   * gzipped XML objects.
+   *
+   * @param file the file to read from
+   * @param offset the offset to read from
+   * @return Serializable the data stored at the offset in the file
+   */
+  private static Serializable readLegacyObject(File file, int offset) throws IOException {    
     FileInputStream fin = null;
     
     try {
@@ -1721,6 +2695,238 @@ public class PersistentStorage implements Storage {
       fin.close();
     }
   }
+  
+  /**
+   * Returns whether or not the file starts with a revision 2.2 header.  If it 
+   * does, the file pointer is left after the revision.
+   *
+   * @param ras The file to check
+   */
+  private static boolean isBinary(RandomAccessFile ras) throws IOException {
+    if (ras.length() < HEADER_LENGTH + TRAILER_LENGTH)
+      return false;
+    
+    ras.seek(0);
+    return ((ras.readLong() == PERSISTENCE_MAGIC_NUMBER) && 
+            (ras.readLong() == PERSISTENCE_VERSION_2) &&
+            (ras.readLong() == PERSISTENCE_REVISION_2_2));
+  }
+  
+  /**
+   * Returns whether or not the file is in the revision 2.2 format
+   *
+   * @param file The file to check
+   */
+  private static boolean isBinary(File file) throws IOException {
+    RandomAccessFile ras = new RandomAccessFile(file, "r");
+    
+    try {
+      return isBinary(ras);
+    } finally {
+      ras.close();
+    }
+  }
+  
+  /**
+   * Reads and deserializes one section of a revision 2.2 file
+   *
+   * @param ras The file to read from
+   * @param offset Where the section starts
+   * @param length The length of the section
+   * @param raw Reads the section if it is in the raw form, may be null
+   */
+  private static Serializable readSection(RandomAccessFile ras, long offset, int length, RawObjectSerializerTable raw) throws IOException {
+    if ((length < 1) || (offset + length > ras.length()))
+      throw new IOException("Section at " + offset + " of length " + length + " does not fit in file of length " + ras.length());
+    
+    byte[] bytes = new byte[length];
+    ras.seek(offset);
+    ras.readFully(bytes);
+    
+    return deserialize(bytes, raw);
+  }
+  
+  /**
+   * Serializes the object into a section of a revision 2.2 file, which is an 
+   * encoding byte followed by the Java serialized object.  The object is 
+   * deflated if it is at least threshold bytes and deflating makes it smaller.
+   *
+   * @param obj The object to serialize
+   * @param threshold The size at which to compress
+   * @return The section
+   */
+  static byte[] serialize(Serializable obj, int threshold) throws IOException {
+    return serialize(obj, threshold, null);
+  }
+  
+  /**
+   * Serializes the object into a section, in its raw form if it is 
+   * RawSerializable and one of the RawObjectSerializers gives it a type.
+   *
+   * @param obj The object to serialize
+   * @param threshold The size at which to compress
+   * @param serializers The serializers for raw objects, may be null
+   * @return The section
+   */
+  static byte[] serialize(Serializable obj, int threshold, RawObjectSerializerTable serializers) throws IOException {
+    if ((serializers != null) && (obj instanceof RawSerializable)) {
+      RawObjectSerializerTable.Entry entry = serializers.find(obj);
+      
+      if (entry != null) 
+        return serializeRaw((RawSerializable) obj, entry.name, entry.serializer.getType(obj), threshold);
+    }
+    
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(ENCODING_JAVA);
+    
+    try {
+      ObjectOutputStream objout = new ObjectOutputStream(baos);
+      objout.writeObject(obj);
+      objout.close();
+    } catch (NotSerializableException e) {
+      baos = new ByteArrayOutputStream();
+      baos.write(ENCODING_XML);
+      ObjectOutputStream objout = new XMLObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(baos)));
+      objout.writeObject(obj);
+      objout.close();
+      
+      return baos.toByteArray();
+    }
+    
+    byte[] raw = baos.toByteArray();
+    
+    if (raw.length - 1 < threshold)
+      return raw;
+
+    baos = new ByteArrayOutputStream(raw.length / 2);
+    baos.write(ENCODING_DEFLATE);
+    DeflaterOutputStream dos = new DeflaterOutputStream(baos);
+    dos.write(raw, 1, raw.length - 1);
+    dos.close();
+    
+    if (baos.size() >= raw.length)
+      return raw;
+    
+    return baos.toByteArray();
+  }
+  
+  /**
+   * Serializes the object into an ENCODING_RAW section, or an 
+   * ENCODING_RAW_DEFLATE one if it is at least threshold bytes and deflating
+   * makes it smaller.  The name of the serializer and the type are never
+   * deflated.
+   *
+   * @param obj The object to serialize
+   * @param name The name of the serializer
+   * @param type The type of the object
+   * @param threshold The size at which to compress
+   * @return The section
+   */
+  private static byte[] serializeRaw(RawSerializable obj, String name, short type, int threshold) throws IOException {
+    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    sob.writeByte(ENCODING_RAW);
+    sob.writeUTF(name);
+    sob.writeShort(type);
+    int header = sob.getWritten();
+    obj.serialize(sob);
+    byte[] raw = sob.getBytes();
+    
+    if (raw.length - header < threshold)
+      return raw;
+    
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(raw.length / 2);
+    baos.write(ENCODING_RAW_DEFLATE);
+    baos.write(raw, 1, header - 1);
+    DeflaterOutputStream dos = new DeflaterOutputStream(baos);
+    dos.write(raw, header, raw.length - header);
+    dos.close();
+    
+    if (baos.size() >= raw.length)
+      return raw;
+    
+    return baos.toByteArray();
+  }
+  
+  /**
+   * Deserializes a section written by serialize()
+   *
+   * @param bytes The section
+   * @return The object
+   */
+  static Serializable deserialize(byte[] bytes) throws IOException {
+    return deserialize(bytes, null);
+  }
+  
+  /**
+   * Deserializes a section written by serialize()
+   *
+   * @param bytes The section
+   * @param serializers The serializers for raw objects, may be null if the 
+   * section is not in the raw form
+   * @return The object
+   * @throws RawObjectSerializerTable.MissingSerializerException If the 
+   * section is in the raw form and its serializer is not set
+   */
+  static Serializable deserialize(byte[] bytes, RawObjectSerializerTable serializers) throws IOException {
+    if ((bytes[0] == ENCODING_RAW) || (bytes[0] == ENCODING_RAW_DEFLATE)) {
+      SimpleInputBuffer sib = new SimpleInputBuffer(bytes, 1);
+      String name = sib.readUTF();
+      short type = sib.readShort();
+      
+      if (serializers == null)
+        throw new RawObjectSerializerTable.MissingSerializerException(name);
+      
+      RawObjectSerializer raw = serializers.get(name);
+      
+      if (bytes[0] == ENCODING_RAW)
+        return raw.deserialize(sib, type);
+      
+      int header = bytes.length - sib.bytesRemaining();
+      InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(bytes, header, bytes.length - header));
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length * 2);
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = iis.read(buffer)) > 0) 
+        baos.write(buffer, 0, read);
+      
+      return raw.deserialize(new SimpleInputBuffer(baos.toByteArray()), type);
+    }
+    
+    InputStream in = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+    
+    try {
+      switch (bytes[0]) {
+        case ENCODING_JAVA:
+          return (Serializable) new ObjectInputStream(in).readObject();
+        case ENCODING_DEFLATE:
+          return (Serializable) new ObjectInputStream(new InflaterInputStream(in)).readObject();
+        case ENCODING_XML:
+          return (Serializable) new XMLObjectInputStream(new BufferedInputStream(new GZIPInputStream(in))).readObject();
+        default:
+          throw new IOException("Unknown section encoding " + bytes[0]);
+      }
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+  
+  /**
+   * Builds the trailer which ends every file, and points to the metadata
+   *
+   * @param revision The revision of the file
+   * @param length The length of the metadata
+   */
+  private static byte[] buildTrailer(long revision, long length) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(TRAILER_LENGTH);
+    DataOutputStream dos = new DataOutputStream(baos);
+    dos.writeLong(PERSISTENCE_MAGIC_NUMBER);
+    dos.writeLong(PERSISTENCE_VERSION_2);
+    dos.writeLong(revision);
+    dos.writeLong(length);
+    dos.close();
+    
+    return baos.toByteArray();
+  }
 
   /**
    * Abstract over reading a single object to a file using Java
@@ -1740,27 +2946,32 @@ public class PersistentStorage implements Storage {
    * @param file The file which should be read for the metadata
    */
   private Serializable readMetadata(File file) throws IOException {  
-    if (file.length() < 32) 
+    if (file.length() < TRAILER_LENGTH) 
       return null;
         
     RandomAccessFile ras = null;
     
     try {
       ras = new RandomAccessFile(file, "r");
-      ras.seek(file.length() - 32);
+      ras.seek(file.length() - TRAILER_LENGTH);
 
+      long revision;
       if (ras.readLong() != PERSISTENCE_MAGIC_NUMBER) {
         return null;
       } else if (ras.readLong() != PERSISTENCE_VERSION_2) {
         if (logger.level <= Logger.WARNING) logger.log( "Persistence version did not match - exiting!");
         return null;
-      } else if (ras.readLong() > PERSISTENCE_REVISION_2_1) {
+      } else if ((revision = ras.readLong()) > PERSISTENCE_REVISION_2_2) {
         if (logger.level <= Logger.WARNING) logger.log( "Persistence revision did not match - exiting!");
         return null;
       }
       
       long length = ras.readLong();
-      ras.seek(file.length() - 32 - length);
+      
+      if (revision == PERSISTENCE_REVISION_2_2) 
+        return readSection(ras, file.length() - TRAILER_LENGTH - length, (int) length, null);
+      
+      ras.seek(file.length() - TRAILER_LENGTH - length);
       
       FileInputStream fis = null;
       
@@ -1823,78 +3034,113 @@ public class PersistentStorage implements Storage {
   } 
 
   /**
-   * Abstract over writing a single object to a file using Java
-   * serialization.
+   * Writes a revision 2.2 file containing the key, object, version and 
+   * metadata, see the class comment for the layout.
    *
    * @param obj The object to be writen
+   * @param metadata The object's metadata
+   * @param key The object's key
+   * @param version The version, used to resolve conflicts
    * @param file The file to serialize the object to.
+   * @param threshold The section size above which sections are compressed
+   * @param raw Writes the object in its raw form, may be null
    * @return The object's disk space usage
    */
-  private static long writeObject(Serializable obj, Serializable metadata, Id key, long version, File file) throws IOException {
+  private static long writeObject(Serializable obj, Serializable metadata, Id key, long version, File file, int threshold, RawObjectSerializerTable raw) throws IOException {
+    byte[] keyBytes = serialize(key, threshold);
+    byte[] objBytes = serialize(obj, threshold, raw);
+    byte[] metadataBytes = serialize(metadata, threshold);
+    
     FileOutputStream fout = null;
     
     try {
       fout = new FileOutputStream(file);
-      ObjectOutputStream objout = new XMLObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(fout)));
-      objout.writeObject(key);
-      objout.writeObject(obj);
-      objout.writeObject(new Long(version));
-      objout.close();
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fout));
+      dos.writeLong(PERSISTENCE_MAGIC_NUMBER);
+      dos.writeLong(PERSISTENCE_VERSION_2);
+      dos.writeLong(PERSISTENCE_REVISION_2_2);
+      dos.writeLong(version);
+      dos.writeInt(keyBytes.length);
+      dos.writeInt(objBytes.length);
+      dos.write(keyBytes);
+      dos.write(objBytes);
+      dos.write(metadataBytes);
+      dos.write(buildTrailer(PERSISTENCE_REVISION_2_2, metadataBytes.length));
+      dos.close();
     } finally {
       if (fout != null)
         fout.close();
     }
     
-    long len1 = file.length();
+    return file.length();
+  }
+  
+  /**
+   * Rewrites a revision 2.0 or 2.1 file in the revision 2.2 format.  Must be 
+   * called while holding the id's lock exclusively.
+   *
+   * @param id The id of the object
+   * @param obj The object, which the caller has already read from the file
+   */
+  private void upgradeFile(Id id, Serializable obj) throws IOException {
+    File objFile = lookupFile(id);
     
-    try {
-      fout = new FileOutputStream(file, true);
-      ObjectOutputStream objout = new XMLObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(fout)));
-      objout.writeObject(metadata);
-      objout.close();
-    } finally {
-      fout.close();
-    }
+    /* make sure that nobody has replaced the file since it was read */
+    if ((objFile == null) || (! objFile.exists()) || isBinary(objFile))
+      return;
     
-    long len2 = file.length();
+    long version = readVersion(objFile);
+    Serializable metadata = readMetadata(objFile);
+    File transcFile = makeTemporaryFile(id);
     
     try {
-      fout = new FileOutputStream(file, true);
-      DataOutputStream dos = new DataOutputStream(fout);
-      dos.writeLong(PERSISTENCE_MAGIC_NUMBER);
-      dos.writeLong(PERSISTENCE_VERSION_2);
-      dos.writeLong(PERSISTENCE_REVISION_2_1);
-      dos.writeLong(len2-len1);
-      dos.close();
-    } finally {
-      fout.close();
+      writeObject(obj, metadata, id, version, transcFile, compressionThreshold, rawSerializers);
+    } catch (IOException e) {
+      deleteFile(transcFile);
+      throw e;
     }
     
-    return file.length();
+    if (logger.level <= Logger.FINE) logger.log("Upgraded " + objFile + " from " + objFile.length() + " to " + transcFile.length() + " bytes");
+    
+    decreaseUsedSpace(getFileLength(objFile));
+    increaseUsedSpace(getFileLength(transcFile));
+    renameFile(transcFile, objFile);
+    
+    synchronized(statLock) { numUpgrades++; }
   }
   
-  
   /**
    * Re-writes the metadata stored in the provided file.
    * 
    * @param file The file to which the metadata should be written
    * @param metadata The metadata to write
+   * @param threshold The size above which the metadata is compressed, if the file is revision 2.2
    */
-  private static void writeMetadata(File file, Serializable metadata) throws IOException {
+  private static void writeMetadata(File file, Serializable metadata, int threshold) throws IOException {
     RandomAccessFile ras = null;
     FileOutputStream fout = null;
     
-    if (file.length() > 32) {
+    if (file.length() > TRAILER_LENGTH) {
       try {
         ras = new RandomAccessFile(file, "rw");
-        ras.seek(file.length() - 32);
+        boolean binary = isBinary(ras);
+        ras.seek(file.length() - TRAILER_LENGTH);
       
         if ((ras.readLong() == PERSISTENCE_MAGIC_NUMBER) && 
             (ras.readLong() == PERSISTENCE_VERSION_2) &&
-            (ras.readLong() <= PERSISTENCE_REVISION_2_1)) {
+            (ras.readLong() <= PERSISTENCE_REVISION_2_2)) {
           long length = ras.readLong();
-          ras.setLength(file.length() - 32 - length);
+          ras.setLength(file.length() - TRAILER_LENGTH - length);
         } 
+        
+        /* revision 2.2 files get the metadata written in place */
+        if (binary) {
+          byte[] metadataBytes = serialize(metadata, threshold);
+          ras.seek(ras.length());
+          ras.write(metadataBytes);
+          ras.write(buildTrailer(PERSISTENCE_REVISION_2_2, metadataBytes.length));
+          return;
+        }
       } finally {
         ras.close();
       }
@@ -1915,12 +3161,7 @@ public class PersistentStorage implements Storage {
     
     try {
       fout = new FileOutputStream(file, true);
-      DataOutputStream dos = new DataOutputStream(fout);
-      dos.writeLong(PERSISTENCE_MAGIC_NUMBER);
-      dos.writeLong(PERSISTENCE_VERSION_2);
-      dos.writeLong(PERSISTENCE_REVISION_2_1);
-      dos.writeLong(len2-len1);
-      dos.close();
+      fout.write(buildTrailer(PERSISTENCE_REVISION_2_1, len2-len1));
     } finally {
       fout.close();
     }
@@ -1991,7 +3232,9 @@ public class PersistentStorage implements Storage {
    * @param long i the amount to increase usage by 
    */
   private void increaseUsedSpace(long i){
-     usedSize = usedSize + i;
+    synchronized(statLock) {
+      usedSize = usedSize + i;
+    }
   }
 
   /**
@@ -2001,7 +3244,9 @@ public class PersistentStorage implements Storage {
    * @param long i the amount to decrease usage by 
    */
   private void decreaseUsedSpace(long i){
-     usedSize = usedSize - i;
+    synchronized(statLock) {
+      usedSize = usedSize - i;
+    }
   }
 
   /**
@@ -2012,7 +3257,9 @@ public class PersistentStorage implements Storage {
    *
    */
   private long getUsedSpace(){
-    return usedSize;
+    synchronized(statLock) {
+      return usedSize;
+    }
   }
 
   /**
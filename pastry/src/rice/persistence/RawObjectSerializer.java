@@ -0,0 +1,75 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+
+/**
+ * Lets PersistentStorage write the application's RawSerializable objects in
+ * their raw form rather than with Java serialization.  The storage writes the 
+ * name the serializer is set under and the type returned by getType() before 
+ * the raw bytes, and passes the type back to deserialize() of the serializer
+ * set under that name when the object is read.
+ *
+ * A serializer with the same name must be set whenever the storage is 
+ * opened.  Until it is, its objects cannot be read, but they are kept.
+ *
+ * @version $Id$
+ */
+public interface RawObjectSerializer {
+  
+  /**
+   * Returns the type to write the object under, or a negative value if it 
+   * should be Java serialized.  Only called for RawSerializable objects.
+   *
+   * @param obj The object
+   * @return Its type, or -1
+   */
+  public short getType(Serializable obj);
+  
+  /**
+   * Reads an object written by its RawSerializable.serialize()
+   *
+   * @param buf The raw form
+   * @param type The type returned by getType() when it was written
+   * @return The object
+   */
+  public Serializable deserialize(InputBuffer buf, short type) throws IOException;
+}
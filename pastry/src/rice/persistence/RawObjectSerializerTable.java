@@ -0,0 +1,155 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The RawObjectSerializers of a storage, each set under a name which is 
+ * written with every raw section, so that a section is always read back by
+ * the serializer which wrote it.  Several applications can therefore share
+ * one storage.  A name can only be given a different serializer once the 
+ * old one has been removed.
+ *
+ * The table is copied on every change, so that finding a serializer does
+ * not lock.
+ *
+ * @version $Id$
+ */
+class RawObjectSerializerTable {
+  
+  // the serializers, in the order they were set
+  private volatile Entry[] entries = new Entry[0];
+  
+  /**
+   * Sets the serializer for the given name, or removes it if the serializer
+   * is null.  
+   *
+   * @param name The name
+   * @param serializer The serializer, or null
+   * @throws IllegalStateException If a different serializer is set for the name
+   */
+  synchronized void put(String name, RawObjectSerializer serializer) {
+    Entry[] old = entries;
+    int i = indexOf(old, name);
+    
+    if (serializer == null) {
+      if (i < 0)
+        return;
+      
+      Entry[] result = new Entry[old.length - 1];
+      System.arraycopy(old, 0, result, 0, i);
+      System.arraycopy(old, i + 1, result, i, result.length - i);
+      entries = result;
+    } else if (i >= 0) {
+      if (old[i].serializer != serializer)
+        throw new IllegalStateException("A different RawObjectSerializer is already set for \"" + name + "\": " + old[i].serializer);
+    } else {
+      Entry[] result = new Entry[old.length + 1];
+      System.arraycopy(old, 0, result, 0, old.length);
+      result[old.length] = new Entry(name, serializer);
+      entries = result;
+    }
+  }
+  
+  /**
+   * Returns the first serializer, in the order they were set, which gives 
+   * the object a type
+   *
+   * @param obj The object
+   * @return The serializer and its name, or null if none gives it a type
+   */
+  Entry find(Serializable obj) {
+    Entry[] e = entries;
+    
+    for (int i = 0; i < e.length; i++)
+      if (e[i].serializer.getType(obj) >= 0)
+        return e[i];
+    
+    return null;
+  }
+  
+  /**
+   * Returns the serializer set for the name
+   *
+   * @param name The name written with the section
+   * @return The serializer
+   * @throws MissingSerializerException If none is set for the name
+   */
+  RawObjectSerializer get(String name) throws MissingSerializerException {
+    Entry[] e = entries;
+    int i = indexOf(e, name);
+    
+    if (i < 0)
+      throw new MissingSerializerException(name);
+    
+    return e[i].serializer;
+  }
+  
+  private static int indexOf(Entry[] e, String name) {
+    for (int i = 0; i < e.length; i++)
+      if (e[i].name.equals(name))
+        return i;
+    
+    return -1;
+  }
+  
+  /**
+   * A serializer and the name it is set under
+   */
+  static class Entry {
+    final String name;
+    final RawObjectSerializer serializer;
+    
+    Entry(String name, RawObjectSerializer serializer) {
+      this.name = name;
+      this.serializer = serializer;
+    }
+  }
+  
+  /**
+   * Thrown when a section was written in the raw form by a serializer which
+   * is not set.  The section is intact, so the object can be read once the
+   * serializer is set again.
+   */
+  static class MissingSerializerException extends IOException {
+    public MissingSerializerException(String name) {
+      super("No RawObjectSerializer is set for \"" + name + "\", which wrote this object");
+    }
+  }
+}
@@ -0,0 +1,835 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import rice.*;
+import rice.Continuation.*;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.*;
+import rice.p2p.util.*;
+
+/**
+ * This class is a cache which uses the W-TinyLFU replacement policy, with a 
+ * capacity in bytes.  It uses the provided storage service in order to
+ * store the cached data, just like the LRUCache.
+ *
+ * New objects enter a small LRU window.  Objects pushed out of the window 
+ * have to win against the least recently used object of the main cache to 
+ * be admitted, by having been requested more often, as estimated by a 
+ * frequency sketch of all requested Ids.  A large object has to be requested
+ * more often than every object it would push out.  A sweep over cold objects 
+ * therefore only flushes the window, and not the frequently requested ones. 
+ * The main cache is a segmented LRU, whose protected segment holds the 
+ * objects which have been requested again since they were admitted.
+ *
+ * @version $Id$
+ */
+@SuppressWarnings("unchecked")
+public class TinyLFUCache implements Cache {
+  
+  /**
+   * The fraction of the cache used by the window
+   */
+  public static final double WINDOW_FRACTION = 0.01;
+  
+  /**
+   * The fraction of the main cache which is protected
+   */
+  public static final double PROTECTED_FRACTION = 0.8;
+  
+  // the regions of the cache
+  private static final int WINDOW = 0;
+  private static final int PROBATION = 1;
+  private static final int PROTECTED = 2;
+
+  // the maximum size of the cache
+  private int maximumSize;
+  
+  // the back-end storage used by this cache
+  private Storage storage;
+  
+  // the cached objects, by id
+  private HashMap nodes;
+  
+  // the regions, in LRU -> MRU order
+  private Region window, probation, protectd;
+  
+  // the estimated number of requests for each id
+  private FrequencySketch sketch;
+  
+  // the statistics 
+  private long hits, misses, evictions, rejections;
+  
+  protected Environment environment;
+  
+  protected Logger logger;
+  
+  /**
+   * Builds a W-TinyLFU cache given a storage object to store the cached
+   * data in and a maximum cache size.
+   *
+   * @param storage The storage service to use as a back-end storage
+   * @param maximumSize The maximum size, in bytes, of storage to use
+   */
+  public TinyLFUCache(Storage storage, int maximumSize, Environment env) {
+    this.environment = env;
+    this.logger = environment.getLogManager().getLogger(TinyLFUCache.class, null);
+    this.storage = storage;
+    this.maximumSize = maximumSize;
+    this.nodes = new HashMap();
+    this.window = new Region();
+    this.probation = new Region();
+    this.protectd = new Region();
+    this.sketch = new FrequencySketch(1024);
+    
+    /* we don't know the sizes of what is already there, so split the total evenly */
+    int count = storage.getSize();
+    int size = (count == 0 ? 0 : (int) (storage.getTotalSize() / count));
+    Iterator i = storage.scan().getIterator();
+    
+    while (i.hasNext()) 
+      add(new Node((Id) i.next(), size), PROBATION);
+  }
+  
+  /**
+   * Returns the backing storage object
+   *
+   * @return The storage backing this cache
+   */
+  public Storage getStorage() {
+    return storage;
+  }
+  
+  /**
+   * Returns the number of getObject() calls which found the object
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+  
+  /**
+   * Returns the number of getObject() calls which didn't find the object
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+  
+  /**
+   * Returns the number of cached objects which were removed to make space
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+  
+  /**
+   * Returns the number of objects which were not cached because they had 
+   * been requested less often than the objects they would have replaced
+   */
+  public synchronized long getRejections() {
+    return rejections;
+  }
+  
+  /**
+   * Renames the given object to the new id.  This method is potentially faster
+   * than store/cache and unstore/uncache.
+   *
+   * @param oldId The id of the object in question.
+   * @param newId The new id of the object in question.
+   * @param c The command to run once the operation is complete
+   */
+  public void rename(final Id oldId, final Id newId, Continuation c) {
+    storage.rename(oldId, newId, new StandardContinuation(c) {
+      public void receiveResult(Object o) {
+        synchronized (TinyLFUCache.this) {
+          Node node = (Node) nodes.get(oldId);
+          
+          if (Boolean.TRUE.equals(o) && (node != null)) {
+            int region = node.region;
+            remove(node);
+            remove((Node) nodes.get(newId));
+            add(new Node(newId, node.size), region);
+          }
+        }
+        
+        parent.receiveResult(o);
+      }
+    });
+  }
+  
+  /**
+   * Caches an object in this storage. This method is non-blocking.
+   * If the object has already been stored at the location id, this
+   * method only counts as a request for it.  This method finishes by calling
+   * receiveResult() on the provided continuation with whether or not
+   * the object was cached.  Note that the object may not actually be
+   * cached due to the cache replacement policy.
+   *
+   * @param id The object's id.
+   * @param metadata The object's metadata
+   * @param obj The object to cache.
+   * @param c The command to run once the operation is complete
+   */
+  public void cache(final Id id, final Serializable metadata, final Serializable obj, final Continuation c) {
+    List victims;
+    
+    synchronized (this) {
+      sketch.increment(id);
+      
+      if (exists(id)) {
+        touch(id);
+        c.receiveResult(Boolean.TRUE);
+        return;
+      }
+    }
+    
+    int size = getSize(obj);
+    
+    synchronized (this) {
+      if (size > maximumSize) {
+        rejections++;
+        c.receiveResult(Boolean.FALSE);
+        return;
+      }
+      
+      remove((Node) nodes.get(id));
+      add(new Node(id, size), WINDOW);
+      victims = evict();
+    }
+    
+    /* the new object itself lost, so it is not stored */
+    if (victims.remove(id)) {
+      unstore(victims.iterator(), new StandardContinuation(c) {
+        public void receiveResult(Object o) {
+          parent.receiveResult(Boolean.FALSE);
+        }
+      });
+      
+      return;
+    }
+    
+    unstore(victims.iterator(), new StandardContinuation(c) {
+      public void receiveResult(Object o) {
+        storage.store(id, metadata, obj, new StandardContinuation(parent) {
+          public void receiveResult(Object o) {
+            if (! Boolean.TRUE.equals(o)) {
+              synchronized (TinyLFUCache.this) {
+                remove((Node) nodes.get(id));
+              }
+            }
+            
+            parent.receiveResult(o);
+          }
+        });
+      }
+    });
+  }
+  
+  /**
+   * Removes the object from the list of cached objects. This method is
+   * non-blocking. If the object was not in the cached list in the first place,
+   * nothing happens and <code>False</code> is returned.
+   *
+   * @param id The object's id
+   * @param c The command to run once the operation is complete
+   */
+  public void uncache(Id id, Continuation c) {
+    synchronized (this) {
+      remove((Node) nodes.get(id));
+    }
+    
+    storage.unstore(id, c);
+  }
+  
+  /**
+   * Returns whether or not an object is cached in the location <code>id</code>.
+   *
+   * @param id The id of the object in question.
+   * @return Whether or not an object is present at id.
+   */
+  public boolean exists(Id id) {
+    return storage.exists(id);
+  }
+  
+  /**
+   * Returns the object identified by the given id.
+   *
+   * @param id The id of the object in question.
+   * @param c The command to run once the operation is complete
+   */
+  public void getObject(Id id, Continuation c) {
+    synchronized (this) {
+      sketch.increment(id);
+      
+      if (! exists(id)) {
+        misses++;
+        c.receiveResult(null);
+        return;
+      }
+      
+      hits++;
+      touch(id);
+    }
+    
+    storage.getObject(id, c);
+  }
+  
+  /**
+   * Returns the metadata associated with the provided object, or null if
+   * no metadata exists.  The metadata must be stored in memory, so this 
+   * operation is guaranteed to be fast and non-blocking.
+   *
+   * @param id The id for which the metadata is needed
+   * @return The metadata, or null of non exists
+   */
+  public Serializable getMetadata(Id id) {
+    return storage.getMetadata(id);
+  }
+  
+  /**
+   * Updates the metadata stored under the given key to be the provided
+   * value.  As this may require a disk access, the requestor must
+   * also provide a continuation to return the result to.  
+   *
+   * @param id The id for the metadata 
+   * @param metadata The metadata to store
+   * @param c The command to run once the operation is complete
+   */
+  public void setMetadata(Id id, Serializable metadata, Continuation command) {
+    storage.setMetadata(id, metadata, command);
+  }
+  
+  /**
+   * Return the objects identified by the given range of ids. 
+   *
+   * @param range The range to query  
+   * @return The idset containg the keys 
+   */
+  public IdSet scan(IdRange range) {
+    return storage.scan(range);
+  }
+  
+  /**
+   * Return all objects currently stored by this catalog
+   *
+   * @return The idset containg the keys 
+   */
+  public IdSet scan() {
+    return storage.scan();
+  }
+  
+  /**
+   * Returns a map which contains keys mapping ids to the associated 
+   * metadata.  
+   *
+   * @param range The range to query  
+   * @return The map containg the keys 
+   */
+  public SortedMap scanMetadata(IdRange range) {
+    return storage.scanMetadata(range);
+  }
+  
+  /**
+   * Returns a map which contains keys mapping ids to the associated 
+   * metadata.  
+   *
+   * @return The treemap mapping ids to metadata 
+   */
+  public SortedMap scanMetadata() {
+    return storage.scanMetadata();
+  }
+  
+  /**
+   * Returns the submapping of ids which have metadata less than the provided
+   * value.
+   *
+   * @param value The maximal metadata value 
+   * @return The submapping
+   */
+  public SortedMap scanMetadataValuesHead(Object value) {
+    return storage.scanMetadataValuesHead(value);
+  }
+  
+  /**
+   * Returns the submapping of ids which have metadata null
+   *
+   * @return The submapping
+   */
+  public SortedMap scanMetadataValuesNull() {
+    return storage.scanMetadataValuesNull();
+  }
+  
+  /**
+   * Returns the maximum size of the cache, in bytes. 
+   */
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+  
+  /**
+   * Returns the number of Ids currently stored in the catalog
+   *
+   * @return The number of ids in the catalog
+   */
+  public int getSize() {
+    return storage.getSize();
+  }
+  
+  /**
+   * Returns the total size of the stored data in bytes. 
+   *
+   * @return The total size, in bytes, of data stored.
+   */
+  public long getTotalSize() {
+    return storage.getTotalSize();
+  }
+  
+  /**
+   * Sets the maximum size of the cache, in bytes. Setting this
+   * value to a smaller value than the current value may result in
+   * object being evicted from the cache.
+   *
+   * @param size The new maximum size, in bytes, of the cache.
+   * @param c The command to run once the operation is complete
+   */
+  public void setMaximumSize(int size, Continuation c) {
+    List victims;
+    
+    synchronized (this) {
+      maximumSize = size;
+      victims = evict();
+    }
+    
+    unstore(victims.iterator(), new StandardContinuation(c) {
+      public void receiveResult(Object o) {
+        parent.receiveResult(Boolean.TRUE);
+      }
+    });
+  }
+  
+  /**
+   * Method which is used to erase all data stored in the Cache.  
+   * Use this method with care!
+   *
+   * @param c The command to run once done
+   */
+  public void flush(Continuation c) {
+    storage.flush(new StandardContinuation(c) {
+      public void receiveResult(Object o) {
+        synchronized (TinyLFUCache.this) {
+          nodes.clear();
+          window = new Region();
+          probation = new Region();
+          protectd = new Region();
+        }
+        
+        parent.receiveResult(Boolean.TRUE);
+      }
+    });
+  }
+  
+  /**
+   * Unstores the given ids one after the other
+   */
+  private void unstore(final Iterator ids, Continuation c) {
+    if (! ids.hasNext()) {
+      c.receiveResult(Boolean.TRUE);
+      return;
+    }
+    
+    storage.unstore((Id) ids.next(), new StandardContinuation(c) {
+      public void receiveResult(Object o) {
+        unstore(ids, parent);
+      }
+    });
+  }
+  
+  /*****************************************************************/
+  /* The policy, only used while holding the lock                  */
+  /*****************************************************************/
+  
+  private Region region(int region) {
+    switch (region) {
+      case WINDOW:
+        return window;
+      case PROBATION:
+        return probation;
+      default:
+        return protectd;
+    }
+  }
+  
+  private long windowSize() {
+    return Math.max(1, (long) (maximumSize * WINDOW_FRACTION));
+  }
+  
+  private long protectedSize() {
+    return (long) ((maximumSize - windowSize()) * PROTECTED_FRACTION);
+  }
+  
+  private void add(Node node, int region) {
+    node.region = region;
+    region(region).addLast(node);
+    nodes.put(node.id, node);
+    sketch.ensureCapacity(nodes.size());
+  }
+  
+  private void remove(Node node) {
+    if (node == null)
+      return;
+    
+    region(node.region).remove(node);
+    nodes.remove(node.id);
+  }
+  
+  /**
+   * Records a request for a cached object
+   */
+  private void touch(Id id) {
+    Node node = (Node) nodes.get(id);
+    
+    /* an object stored before this cache was created */
+    if (node == null) {
+      add(new Node(id, 0), PROBATION);
+      return;
+    }
+    
+    Region region = region(node.region);
+    region.remove(node);
+    
+    if (node.region == PROBATION) {
+      node.region = PROTECTED;
+      protectd.addLast(node);
+      
+      /* demote the least recently used protected objects */
+      while ((protectd.bytes > protectedSize()) && (protectd.first() != node)) {
+        Node demoted = protectd.first();
+        protectd.remove(demoted);
+        demoted.region = PROBATION;
+        probation.addLast(demoted);
+      }
+    } else {
+      region.addLast(node);
+    }
+  }
+  
+  /**
+   * Moves objects out of the window into probation, and then removes 
+   * objects until the cache fits.  Each object which comes out of the 
+   * window is only kept if it was requested more often than each object 
+   * it pushes out.  All of those objects are picked before any of them is 
+   * removed, so a candidate which loses doesn't take any of them with it.
+   *
+   * @return The ids of the removed objects
+   */
+  private List evict() {
+    LinkedList candidates = new LinkedList();
+    
+    while ((window.bytes > windowSize()) && (window.first() != null)) {
+      Node node = window.first();
+      window.remove(node);
+      node.region = PROBATION;
+      node.candidate = true;
+      probation.addLast(node);
+      candidates.addLast(node);
+    }
+    
+    List victims = new ArrayList();
+    
+    while ((excess() > 0) && (! candidates.isEmpty())) {
+      Node candidate = (Node) candidates.removeFirst();
+      List lost = victimsFor(excess());
+      
+      if ((lost == null) || (! admit(candidate, lost))) {
+        remove(candidate);
+        victims.add(candidate.id);
+        rejections++;
+      } else {
+        candidate.candidate = false;
+        
+        Iterator i = lost.iterator();
+        while (i.hasNext()) {
+          Node victim = (Node) i.next();
+          remove(victim);
+          victims.add(victim.id);
+          evictions++;
+        }
+      }
+    }
+    
+    Iterator i = candidates.iterator();
+    while (i.hasNext()) 
+      ((Node) i.next()).candidate = false;
+    
+    /* the cache shrank, there is nothing to compare with */
+    if (excess() > 0) {
+      Iterator j = victimsFor(excess()).iterator();
+      
+      while (j.hasNext()) {
+        Node victim = (Node) j.next();
+        remove(victim);
+        victims.add(victim.id);
+        evictions++;
+      }
+    }
+    
+    return victims;
+  }
+  
+  /**
+   * Returns the number of bytes by which the cache is too large
+   */
+  private long excess() {
+    return window.bytes + probation.bytes + protectd.bytes - maximumSize;
+  }
+  
+  /**
+   * Picks the objects which would be removed to free the given number of bytes, 
+   * without removing them: the least recently used objects of probation, then 
+   * of the protected segment, and then of the window.  Candidates are never 
+   * picked.
+   *
+   * @param bytes The number of bytes to free
+   * @return The nodes to remove, or null if there are not enough
+   */
+  private List victimsFor(long bytes) {
+    List result = new ArrayList();
+    long freed = 0;
+    Region[] order = new Region[] {probation, protectd, window};
+    
+    for (int r = 0; (r < order.length) && (freed < bytes); r++) {
+      for (Node node = order[r].first(); (node != null) && (freed < bytes); node = node.next) {
+        if (! node.candidate) {
+          result.add(node);
+          freed += node.size;
+        }
+      }
+    }
+    
+    return (freed < bytes ? null : result);
+  }
+  
+  /**
+   * Returns whether the candidate was requested more often than every one 
+   * of the given victims
+   */
+  private boolean admit(Node candidate, List victims) {
+    int frequency = sketch.frequency(candidate.id);
+    Iterator i = victims.iterator();
+    
+    while (i.hasNext()) 
+      if (frequency <= sketch.frequency(((Node) i.next()).id))
+        return false;
+    
+    return true;
+  }
+  
+  /**
+   * Returns the size of the given object, in bytes, measured the same way 
+   * as the LRUCache does.
+   *
+   * @param obj The object to determine the size of
+   * @return The size, in bytes
+   */
+  private int getSize(Object obj) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new XMLObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(baos)));
+
+      oos.writeObject(obj);
+      oos.close();
+
+      return baos.toByteArray().length;
+    } catch (IOException e) {
+      if (logger.level <= Logger.WARNING) logger.logException("", e);
+      // returns maximum value here, so it won't be cached
+      return Integer.MAX_VALUE;
+    }
+  }
+  
+  /**
+   * A cached object
+   */
+  private static class Node {
+    Id id;
+    int size;
+    int region;
+    boolean candidate;
+    Node prev, next;
+    
+    Node(Id id, int size) {
+      this.id = id;
+      this.size = size;
+    }
+  }
+  
+  /**
+   * A list of nodes in LRU -> MRU order, and their total size
+   */
+  private static class Region {
+    Node head, tail;
+    long bytes;
+    
+    Node first() {
+      return head;
+    }
+    
+    void addLast(Node node) {
+      node.prev = tail;
+      node.next = null;
+      
+      if (tail == null)
+        head = node;
+      else
+        tail.next = node;
+      
+      tail = node;
+      bytes += node.size;
+    }
+    
+    void remove(Node node) {
+      if (node.prev == null)
+        head = node.next;
+      else
+        node.prev.next = node.next;
+      
+      if (node.next == null)
+        tail = node.prev;
+      else
+        node.next.prev = node.prev;
+      
+      node.prev = null;
+      node.next = null;
+      bytes -= node.size;
+    }
+  }
+  
+  /**
+   * A count-min sketch of 4-bit counters, which estimates how often each id
+   * has been requested recently.  All counters are halved once there have 
+   * been ten times as many requests as there are counters per hash, so that 
+   * old popularity fades.
+   */
+  private static class FrequencySketch {
+    
+    private static final long[] SEEDS = new long[] {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    
+    private static final long RESET_MASK = 0x7777777777777777L;
+    
+    // sixteen counters per long
+    private long[] table;
+    
+    private int additions;
+    
+    private int sampleSize;
+    
+    FrequencySketch(int capacity) {
+      resize(capacity);
+    }
+    
+    private void resize(int capacity) {
+      int length = 16;
+      while (length < capacity) 
+        length <<= 1;
+      
+      table = new long[length];
+      sampleSize = 10 * length;
+      additions = 0;
+    }
+    
+    /**
+     * Makes sure there are enough counters for the given number of ids, 
+     * which forgets the counts so far
+     */
+    void ensureCapacity(int capacity) {
+      if (capacity > table.length) 
+        resize(capacity);
+    }
+    
+    private static int spread(int x) {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+    }
+    
+    private long hash(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      return h + (h >>> 32);
+    }
+    
+    int frequency(Id id) {
+      int hash = spread(id.hashCode());
+      int result = 15;
+      
+      for (int i = 0; i < 4; i++) {
+        long h = hash(hash, i);
+        int index = ((int) h) & (table.length - 1);
+        int shift = ((int) (h >>> 40) & 15) << 2;
+        result = Math.min(result, (int) ((table[index] >>> shift) & 15));
+      }
+      
+      return result;
+    }
+    
+    void increment(Id id) {
+      int hash = spread(id.hashCode());
+      boolean added = false;
+      
+      for (int i = 0; i < 4; i++) {
+        long h = hash(hash, i);
+        int index = ((int) h) & (table.length - 1);
+        int shift = ((int) (h >>> 40) & 15) << 2;
+        
+        if (((table[index] >>> shift) & 15) < 15) {
+          table[index] += (1L << shift);
+          added = true;
+        }
+      }
+      
+      if (added && (++additions >= sampleSize)) {
+        for (int i = 0; i < table.length; i++) 
+          table[i] = (table[i] >>> 1) & RESET_MASK;
+        
+        additions /= 2;
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence.testing;
+
+import java.util.*;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdFactory;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.persistence.*;
+
+/**
+ * Replays the same trace of Past lookups against the LRUCache and the 
+ * TinyLFUCache, and prints their hit ratio and the time per lookup.  A 
+ * lookup which misses caches the object, as Past does when it fetches it.
+ *
+ * The trace requests numObjects objects of 256 to 8192 characters with a 
+ * Zipf distribution, and ten times is interrupted by a sweep over a quarter 
+ * as many objects, each of which is only requested once.  The caches hold a 
+ * tenth of the objects' bytes.  The objects are Strings, as both the caches 
+ * and the MemoryStorage measure objects by their gzipped XML, which is very
+ * slow for byte arrays.
+ * 
+ * Usage: CacheBenchmark [numObjects] [numRequests] [zipfExponent]
+ * 
+ * @version $Id$
+ */
+@SuppressWarnings("unchecked")
+public class CacheBenchmark {
+  
+  /**
+   * The continuation for the MemoryStorage, which always calls back right away
+   */
+  static class Result implements Continuation {
+    Object result;
+    
+    public void receiveResult(Object o) {
+      result = o;
+    }
+    
+    public void receiveException(Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  static String randomString(Random random, int length) {
+    char[] result = new char[length];
+    for (int i = 0; i < length; i++) 
+      result[i] = (char) ('a' + random.nextInt(26));
+    
+    return new String(result);
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int num = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    double exponent = args.length > 2 ? Double.parseDouble(args[2]) : 0.9;
+    int sweepEvery = requests / 10;
+    int sweepLength = num / 4;
+    
+    Environment env = new Environment();
+    IdFactory factory = new PastryIdFactory(env);
+    Random random = new Random(1);
+    
+    /* the objects, and the cumulative distribution of their popularity */
+    Id[] ids = new Id[num];
+    String[] objs = new String[num];
+    double[] cdf = new double[num];
+    long bytes = 0;
+    double sum = 0;
+    for (int i = 0; i < num; i++) {
+      ids[i] = factory.buildRandomId(env.getRandomSource());
+      objs[i] = randomString(random, 256 + random.nextInt(8192 - 256));
+      bytes += objs[i].length();
+      sum += 1 / Math.pow(i + 1, exponent);
+      cdf[i] = sum;
+    }
+    
+    /* the trace, where negative entries are sweeps over new objects */
+    int[] trace = new int[requests];
+    int sweep = 0;
+    for (int i = 0; i < requests; i++) {
+      if ((i % sweepEvery) < sweepLength) {
+        trace[i] = -(++sweep);
+      } else {
+        int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+        trace[i] = (index < 0 ? -index - 1 : index);
+      }
+    }
+    
+    Id[] sweepIds = new Id[sweep + 1];
+    for (int i = 1; i <= sweep; i++)
+      sweepIds[i] = factory.buildRandomId(env.getRandomSource());
+    String sweepObj = randomString(random, 4096);
+    
+    int size = (int) (bytes / 10);
+    
+    for (int run = 0; run < 2; run++) {
+      Cache[] caches = new Cache[] {
+          new LRUCache(new MemoryStorage(factory), size, env), 
+          new TinyLFUCache(new MemoryStorage(factory), size, env)};
+      
+      for (int c = 0; c < caches.length; c++) {
+        Cache cache = caches[c];
+        int hits = 0;
+        int popular = 0;
+        int popularHits = 0;
+        long start = System.nanoTime();
+        
+        for (int i = 0; i < requests; i++) {
+          Id id = (trace[i] < 0 ? sweepIds[-trace[i]] : ids[trace[i]]);
+          Result result = new Result();
+          cache.getObject(id, result);
+          
+          if (trace[i] >= 0)
+            popular++;
+          
+          if (result.result != null) {
+            hits++;
+            if (trace[i] >= 0) popularHits++;
+          } else {
+            cache.cache(id, null, (trace[i] < 0 ? sweepObj : objs[trace[i]]), new Result());
+          }
+        }
+        
+        long time = System.nanoTime() - start;
+        
+        if (run == 1) {
+          String stats = "";
+          if (cache instanceof TinyLFUCache) {
+            TinyLFUCache t = (TinyLFUCache) cache;
+            stats = " evictions: " + t.getEvictions() + " rejections: " + t.getRejections();
+            if (t.getHits() != hits) throw new RuntimeException("hits " + t.getHits() + " != " + hits);
+          }
+          
+          System.out.println(cache.getClass().getName() + " objects:" + num + " requests:" + requests + " zipf:" + exponent +
+              " hit ratio: " + (hits * 1000L / requests) / 10.0 + "% (" + (popularHits * 1000L / popular) / 10.0 + "% outside sweeps)" +
+              " time/lookup: " + (time / requests / 1000.0) + "us" + 
+              " objects: " + cache.getSize() + " bytes: " + cache.getTotalSize() + "/" + size + stats);
+        }
+      }
+    }
+    
+    env.destroy();
+  }
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.Continuation.ExternalContinuation;
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdFactory;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.persistence.*;
+
+/**
+ * Compares the LogStructuredStorage with the PersistentStorage: the time to
+ * store and read back numObjects objects of objectSize bytes, to overwrite 
+ * half of them (which makes the LogStructuredStorage compact its segments), 
+ * to restart the storage, and the disk space used at the end.  
+ * 
+ * Usage: LogStructuredStorageBenchmark [numObjects] [objectSize] [directory]
+ * 
+ * @version $Id$
+ */
+public class LogStructuredStorageBenchmark {
+  
+  static Object call(ExternalContinuation c) throws Exception {
+    c.sleep();
+    if (c.exceptionThrown()) throw c.getException();
+    return c.getResult();
+  }
+  
+  static void store(Storage storage, Id id, Serializable metadata, Serializable obj) throws Exception {
+    ExternalContinuation c = new ExternalContinuation();
+    storage.store(id, metadata, obj, c);
+    if (! Boolean.TRUE.equals(call(c))) throw new RuntimeException("store failed " + id);
+  }
+  
+  static void check(Storage storage, Id id, byte[] data) throws Exception {
+    ExternalContinuation c = new ExternalContinuation();
+    storage.getObject(id, c);
+    if (! Arrays.equals(data, (byte[]) call(c))) throw new RuntimeException("Wrong object for " + id);
+  }
+  
+  static long length(File file) {
+    File[] files = file.listFiles();
+    if (files == null) 
+      return file.length();
+    
+    long result = 0;
+    for (int i = 0; i < files.length; i++) 
+      result += length(files[i]);
+    
+    return result;
+  }
+  
+  static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        delete(files[i]);
+      }
+    }
+    file.delete();
+  }
+  
+  static Storage build(boolean log, IdFactory factory, String dir, Environment env) throws IOException {
+    if (log)
+      return new LogStructuredStorage(factory, "log", dir, -1, env);
+    else
+      return new PersistentStorage(factory, "persistent", dir, Long.MAX_VALUE, env);
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int num = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+    String dir = args.length > 2 ? args[2] : "LogStructuredStorageBenchmark";
+    
+    Environment env = new Environment();
+    IdFactory factory = new PastryIdFactory(env);
+    RandomSource random = env.getRandomSource();
+    
+    Id[] ids = new Id[num];
+    byte[][] objs = new byte[num][];
+    for (int ctr = 0; ctr < num; ctr++) {
+      ids[ctr] = factory.buildRandomId(random);
+      objs[ctr] = new byte[size];
+      random.nextBytes(objs[ctr]);
+    }
+    
+    int[] order = new int[num];
+    for (int ctr = 0; ctr < num; ctr++) order[ctr] = ctr;
+    for (int ctr = num - 1; ctr > 0; ctr--) {
+      int other = random.nextInt(ctr + 1);
+      int tmp = order[ctr];
+      order[ctr] = order[other];
+      order[other] = tmp;
+    }
+    
+    boolean[] kinds = new boolean[] {false, true};
+    for (int k = 0; k < kinds.length; k++) {
+      delete(new File(dir));
+      Storage storage = build(kinds[k], factory, dir, env);
+      
+      long start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        store(storage, ids[ctr], new Long(ctr), objs[ctr]);
+      }
+      long storeTime = System.nanoTime() - start;
+      
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        check(storage, ids[order[ctr]], objs[order[ctr]]);
+      }
+      long getTime = System.nanoTime() - start;
+      
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr += 2) {
+        store(storage, ids[ctr], new Long(-ctr), objs[ctr]);
+      }
+      long overwriteTime = System.nanoTime() - start;
+      
+      /* wait for any compaction queued by the overwrites, which goes on in chunks */
+      for (int quiet = (kinds[k] ? 0 : 3); quiet < 3; ) {
+        long before = length(new File(dir));
+        ExternalContinuation c = new ExternalContinuation();
+        storage.unstore(factory.buildRandomId(random), c);
+        call(c);
+        quiet = (length(new File(dir)) == before) ? quiet + 1 : 0;
+      }
+      
+      start = System.nanoTime();
+      storage = build(kinds[k], factory, dir, env);
+      long restartTime = System.nanoTime() - start;
+      
+      if (storage.getSize() != num) throw new RuntimeException("Found " + storage.getSize() + " objects after restart, not " + num);
+      for (int ctr = 0; ctr < num; ctr++) {
+        Long metadata = new Long((ctr % 2 == 0) ? -ctr : ctr);
+        if (! metadata.equals(storage.getMetadata(ids[ctr]))) throw new RuntimeException("Wrong metadata for " + ids[ctr] + " after restart");
+      }
+      for (int ctr = 0; ctr < num; ctr += 97) {
+        check(storage, ids[ctr], objs[ctr]);
+      }
+      
+      System.out.println(storage.getClass().getName() + " objects:" + num + " size:" + size + 
+          " store: " + (storeTime/num/1000) + "us getObject: " + (getTime/num/1000) + "us" +
+          " overwrite: " + (overwriteTime/(num/2)/1000) + "us restart: " + (restartTime/1000000) + "ms" +
+          " disk bytes/object: " + (length(new File(dir))/num));
+    }
+    
+    env.destroy();
+    delete(new File(dir));
+  }
+}
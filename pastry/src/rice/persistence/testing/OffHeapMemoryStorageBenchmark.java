@@ -0,0 +1,200 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence.testing;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import rice.Continuation.ExternalContinuation;
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdFactory;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.persistence.*;
+
+/**
+ * Compares the OffHeapMemoryStorage with the MemoryStorage: the time to fill
+ * the storage with numObjects objects, each a list of small Strings, and then 
+ * the throughput, the garbage collections and the longest stall of a thread 
+ * which sleeps for 1ms at a time during numOperations random operations, 
+ * half of which get an object and half of which replace one.  The heap used
+ * by the full storage is measured after a full collection.
+ *
+ * Usage: OffHeapMemoryStorageBenchmark [numObjects] [numOperations]
+ * 
+ * Run with a heap large enough for the MemoryStorage, for example -Xmx1g.
+ * 
+ * @version $Id$
+ */
+public class OffHeapMemoryStorageBenchmark {
+  
+  // the number of Strings in each object
+  public static final int STRINGS = 16;
+  
+  // the longest stall seen by the sleeping thread, in nanoseconds
+  static volatile long maxStall = 0;
+  
+  static Object call(ExternalContinuation c) throws Exception {
+    c.sleep();
+    if (c.exceptionThrown()) throw c.getException();
+    return c.getResult();
+  }
+  
+  static ArrayList build(RandomSource random) {
+    ArrayList result = new ArrayList(STRINGS);
+    for (int i = 0; i < STRINGS; i++) 
+      result.add(Long.toString(random.nextLong(), 36) + Long.toString(random.nextLong(), 36));
+    
+    return result;
+  }
+  
+  static void store(Storage storage, Id id, ArrayList obj) throws Exception {
+    ExternalContinuation c = new ExternalContinuation();
+    storage.store(id, new Long(obj.hashCode()), obj, c);
+    if (! Boolean.TRUE.equals(call(c))) throw new RuntimeException("store failed " + id);
+  }
+  
+  static void check(Storage storage, Id id) throws Exception {
+    ExternalContinuation c = new ExternalContinuation();
+    storage.getObject(id, c);
+    ArrayList obj = (ArrayList) call(c);
+    if ((obj == null) || (! storage.getMetadata(id).equals(new Long(obj.hashCode())))) 
+      throw new RuntimeException("Wrong object for " + id);
+  }
+  
+  static long gcCount() {
+    long result = 0;
+    Iterator i = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+    while (i.hasNext()) 
+      result += ((GarbageCollectorMXBean) i.next()).getCollectionCount();
+    
+    return result;
+  }
+  
+  static long gcTime() {
+    long result = 0;
+    Iterator i = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+    while (i.hasNext()) 
+      result += ((GarbageCollectorMXBean) i.next()).getCollectionTime();
+    
+    return result;
+  }
+  
+  static long heapUsed() {
+    for (int i = 0; i < 3; i++) 
+      System.gc();
+    
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int num = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int ops = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    
+    Environment env = new Environment();
+    IdFactory factory = new PastryIdFactory(env);
+    RandomSource random = env.getRandomSource();
+    
+    Id[] ids = new Id[num];
+    for (int ctr = 0; ctr < num; ctr++) 
+      ids[ctr] = factory.buildRandomId(random);
+    
+    Thread stalls = new Thread("OffHeapMemoryStorageBenchmark stalls") {
+      public void run() {
+        while (true) {
+          long start = System.nanoTime();
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+          }
+          long stall = System.nanoTime() - start - 1000000;
+          if (stall > maxStall) 
+            maxStall = stall;
+        }
+      }
+    };
+    stalls.setDaemon(true);
+    stalls.start();
+    
+    Storage[] storages = new Storage[] {new MemoryStorage(factory), new OffHeapMemoryStorage(factory, env)};
+    long baseHeap = heapUsed();
+    
+    for (int k = 0; k < storages.length; k++) {
+      Storage storage = storages[k];
+      
+      long start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) 
+        store(storage, ids[ctr], build(random));
+      long fillTime = System.nanoTime() - start;
+      
+      long heap = heapUsed() - baseHeap;
+      long count = gcCount();
+      long time = gcTime();
+      maxStall = 0;
+      
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < ops; ctr++) {
+        Id id = ids[random.nextInt(num)];
+        
+        if (random.nextBoolean())
+          check(storage, id);
+        else
+          store(storage, id, build(random));
+      }
+      long opsTime = System.nanoTime() - start;
+      long stall = maxStall;
+      
+      if (storage.getSize() != num) throw new RuntimeException("Found " + storage.getSize() + " objects, not " + num);
+      
+      System.out.println(storage.getClass().getName() + " objects:" + num + " operations:" + ops + 
+          " fill: " + (fillTime/num/1000) + "us/object heap: " + (heap/num) + " bytes/object" +
+          (storage instanceof OffHeapMemoryStorage ? " direct: " + (((OffHeapMemoryStorage) storage).getAllocatedSize()/num) + " bytes/object" : "") +
+          " operations: " + (ops * 1000000000L / opsTime) + "/s gc: " + (gcCount() - count) + " collections " + (gcTime() - time) + "ms" +
+          " longest stall: " + (stall/1000000) + "ms");
+      
+      ExternalContinuation c = new ExternalContinuation();
+      storage.flush(c);
+      call(c);
+      storages[k] = null;
+      baseHeap = heapUsed();
+    }
+    
+    env.destroy();
+  }
+}
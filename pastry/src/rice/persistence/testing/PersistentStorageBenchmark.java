@@ -0,0 +1,281 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence.testing;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import rice.Continuation.ExternalContinuation;
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdFactory;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawSerializable;
+import rice.p2p.util.XMLObjectOutputStream;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.persistence.PersistentStorage;
+import rice.persistence.RawObjectSerializer;
+
+/**
+ * Measures store() and getObject() latency of the PersistentStorage, for 
+ * small and large objects.  
+ * 
+ * Also writes the same objects in the revision 2.1 (Gzipped XML) format 
+ * directly into a fresh storage directory, and checks that they read back 
+ * correctly, are upgraded to the current format on the first read, and keep 
+ * their metadata.  The time of this first read is the cost of a read in the 
+ * old format.
+ * 
+ * The same objects are also stored as RawSerializable, with a 
+ * RawObjectSerializer set, to measure the raw encoding.
+ * 
+ * Usage: PersistentStorageBenchmark [numObjects] [directory]
+ * 
+ * @version $Id$
+ */
+public class PersistentStorageBenchmark {
+  
+  public static class Payload implements Serializable {
+    String name;
+    byte[] data;
+    int[] numbers;
+    
+    public Payload(String name, byte[] data) {
+      this.name = name;
+      this.data = data;
+      this.numbers = new int[] {data.length, name.length()};
+    }
+    
+    public boolean equals(Object o) {
+      if (! (o instanceof Payload)) return false;
+      Payload that = (Payload) o;
+      return name.equals(that.name) && Arrays.equals(data, that.data) && Arrays.equals(numbers, that.numbers);
+    }
+    
+    public int hashCode() {
+      return name.hashCode();
+    }
+  }
+  
+  public static class RawPayload extends Payload implements RawSerializable {
+    public static final short TYPE = 1;
+    
+    public RawPayload(String name, byte[] data) {
+      super(name, data);
+    }
+    
+    public RawPayload(InputBuffer buf) throws IOException {
+      super(buf.readUTF(), new byte[buf.readInt()]);
+      int read = 0;
+      while (read < data.length) {
+        read += buf.read(data, read, data.length - read);
+      }
+      numbers = new int[buf.readInt()];
+      for (int i = 0; i < numbers.length; i++) numbers[i] = buf.readInt();
+    }
+    
+    public void serialize(OutputBuffer buf) throws IOException {
+      buf.writeUTF(name);
+      buf.writeInt(data.length);
+      buf.write(data, 0, data.length);
+      buf.writeInt(numbers.length);
+      for (int i = 0; i < numbers.length; i++) buf.writeInt(numbers[i]);
+    }
+  }
+  
+  static class RawPayloadSerializer implements RawObjectSerializer {
+    public short getType(Serializable obj) {
+      return (obj instanceof RawPayload ? RawPayload.TYPE : -1);
+    }
+    
+    public Serializable deserialize(InputBuffer buf, short type) throws IOException {
+      if (type != RawPayload.TYPE) throw new IOException("Unknown type " + type);
+      return new RawPayload(buf);
+    }
+  }
+  
+  static Object call(ExternalContinuation c) throws Exception {
+    c.sleep();
+    if (c.exceptionThrown()) throw c.getException();
+    return c.getResult();
+  }
+  
+  static void store(PersistentStorage storage, Id id, Serializable metadata, Serializable obj) throws Exception {
+    ExternalContinuation c = new ExternalContinuation();
+    storage.store(id, metadata, obj, c);
+    if (! Boolean.TRUE.equals(call(c))) throw new RuntimeException("store failed " + id);
+  }
+  
+  static Serializable get(PersistentStorage storage, Id id) throws Exception {
+    ExternalContinuation c = new ExternalContinuation();
+    storage.getObject(id, c);
+    return (Serializable) call(c);
+  }
+  
+  /**
+   * Writes the file the way revision 2.1 did.
+   */
+  static void writeLegacy(File file, Id key, Serializable obj, Serializable metadata, long version) throws IOException {
+    ObjectOutputStream objout = new XMLObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+    objout.writeObject(key);
+    objout.writeObject(obj);
+    objout.writeObject(new Long(version));
+    objout.close();
+    
+    long len1 = file.length();
+    objout = new XMLObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file, true))));
+    objout.writeObject(metadata);
+    objout.close();
+    long len2 = file.length();
+    
+    DataOutputStream dos = new DataOutputStream(new FileOutputStream(file, true));
+    dos.writeLong(PersistentStorage.PERSISTENCE_MAGIC_NUMBER);
+    dos.writeLong(PersistentStorage.PERSISTENCE_VERSION_2);
+    dos.writeLong(PersistentStorage.PERSISTENCE_REVISION_2_1);
+    dos.writeLong(len2-len1);
+    dos.close();
+  }
+  
+  static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        delete(files[i]);
+      }
+    }
+    file.delete();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int num = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    String dir = args.length > 1 ? args[1] : "PersistentStorageBenchmark";
+    
+    Environment env = new Environment();
+    IdFactory factory = new PastryIdFactory(env);
+    RandomSource random = env.getRandomSource();
+    delete(new File(dir));
+    
+    int[] sizes = new int[] {100, 20000};
+    for (int s = 0; s < sizes.length; s++) {
+      Id[] ids = new Id[num];
+      Payload[] objs = new Payload[num];
+      for (int ctr = 0; ctr < num; ctr++) {
+        ids[ctr] = factory.buildRandomId(random);
+        byte[] data = new byte[sizes[s]];
+        // half random, half compressible
+        for (int i = 0; i < data.length/2; i++) data[i] = (byte) random.nextInt(256);
+        objs[ctr] = new Payload("object " + ctr, data);
+      }
+      
+      // the current format
+      PersistentStorage storage = new PersistentStorage(factory, "current" + s, dir, Long.MAX_VALUE, env);
+      long start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        store(storage, ids[ctr], "metadata " + ctr, objs[ctr]);
+      }
+      long storeTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        if (! objs[ctr].equals(get(storage, ids[ctr]))) throw new RuntimeException("Wrong object for " + ids[ctr]);
+      }
+      long getTime = System.nanoTime() - start;
+      long bytes = storage.getTotalSize();
+      
+      // the current format, with the objects in their raw form
+      PersistentStorage raw = new PersistentStorage(factory, "raw" + s, dir, Long.MAX_VALUE, env);
+      raw.setRawObjectSerializer("benchmark", new RawPayloadSerializer());
+      RawPayload[] rawObjs = new RawPayload[num];
+      for (int ctr = 0; ctr < num; ctr++) {
+        rawObjs[ctr] = new RawPayload(objs[ctr].name, objs[ctr].data);
+      }
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        store(raw, ids[ctr], "metadata " + ctr, rawObjs[ctr]);
+      }
+      long rawStoreTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        if (! rawObjs[ctr].equals(get(raw, ids[ctr]))) throw new RuntimeException("Wrong raw object for " + ids[ctr]);
+      }
+      long rawGetTime = System.nanoTime() - start;
+      long rawBytes = raw.getTotalSize();
+      
+      // the old format, written directly, read (and upgraded) by the storage 
+      File legacyDir = new File(new File(dir, PersistentStorage.BACKUP_DIRECTORY), "legacy" + s);
+      legacyDir.mkdirs();
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        writeLegacy(new File(legacyDir, ids[ctr].toStringFull()), ids[ctr], objs[ctr], "metadata " + ctr, ctr);
+      }
+      long legacyStoreTime = System.nanoTime() - start;
+      long legacyBytes = 0;
+      File[] files = legacyDir.listFiles();
+      for (int i = 0; i < files.length; i++) legacyBytes += files[i].length();
+      
+      PersistentStorage legacy = new PersistentStorage(factory, "legacy" + s, dir, Long.MAX_VALUE, env);
+      for (int ctr = 0; ctr < num; ctr++) {
+        if (! ("metadata " + ctr).equals(legacy.getMetadata(ids[ctr]))) throw new RuntimeException("Wrong metadata for " + ids[ctr]);
+      }
+      start = System.nanoTime();
+      for (int ctr = 0; ctr < num; ctr++) {
+        if (! objs[ctr].equals(get(legacy, ids[ctr]))) throw new RuntimeException("Wrong legacy object for " + ids[ctr]);
+      }
+      long legacyGetTime = System.nanoTime() - start;
+      for (int ctr = 0; ctr < num; ctr++) {
+        if (! objs[ctr].equals(get(legacy, ids[ctr]))) throw new RuntimeException("Wrong upgraded object for " + ids[ctr]);
+      }
+      
+      // restart, to make sure the upgraded files are found with their metadata
+      legacy = new PersistentStorage(factory, "legacy" + s, dir, Long.MAX_VALUE, env);
+      for (int ctr = 0; ctr < num; ctr++) {
+        if (! ("metadata " + ctr).equals(legacy.getMetadata(ids[ctr]))) throw new RuntimeException("Wrong upgraded metadata for " + ids[ctr]);
+        if (! objs[ctr].equals(get(legacy, ids[ctr]))) throw new RuntimeException("Wrong upgraded object for " + ids[ctr]);
+      }
+      
+      System.out.println("size:" + sizes[s] + 
+          " store: 2.1 " + (legacyStoreTime/num/1000) + "us 2.2 " + (storeTime/num/1000) + "us 2.2 raw " + (rawStoreTime/num/1000) + "us" +
+          " getObject: 2.1 " + (legacyGetTime/num/1000) + "us 2.2 " + (getTime/num/1000) + "us 2.2 raw " + (rawGetTime/num/1000) + "us" +
+          " bytes/object: 2.1 " + (legacyBytes/num) + " 2.2 " + (bytes/num) + " 2.2 raw " + (rawBytes/num));
+    }
+    
+    env.destroy();
+    delete(new File(dir));
+  }
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.Continuation.ExternalContinuation;
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdFactory;
+import rice.p2p.commonapi.IdSet;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.persistence.PersistentStorage;
+
+/**
+ * Checks that PersistentStorage comes back with the same index after a 
+ * restart from the snapshot and journal, from the snapshot alone, after the 
+ * snapshot was lost, and after a crash in the middle of a request, and prints
+ * how long each startup took.
+ * 
+ * Usage: PersistentStorageRestartTest [numObjects] [directory]
+ * 
+ * @version $Id$
+ */
+public class PersistentStorageRestartTest {
+  
+  /**
+   * The ids of renamed objects, to the id they were stored under
+   */
+  static HashMap renamed = new HashMap();
+  
+  static Object call(ExternalContinuation c) throws Exception {
+    c.sleep();
+    if (c.exceptionThrown()) throw c.getException();
+    return c.getResult();
+  }
+  
+  /**
+   * @return the sequence number of the snapshot, which restarts at 1 when the 
+   * directories had to be walked
+   */
+  static long readSequence(File snapshot) throws IOException {
+    ObjectInputStream objin = new ObjectInputStream(new FileInputStream(snapshot));
+    try {
+      objin.readLong();
+      objin.readInt();
+      return objin.readLong();
+    } finally {
+      objin.close();
+    }
+  }
+  
+  static void check(String name, PersistentStorage storage, Map expected, long size) throws Exception {
+    if (storage.getTotalSize() != size) throw new RuntimeException(name + ": total size " + storage.getTotalSize() + " != " + size);
+    IdSet set = storage.scan();
+    if (set.numElements() != expected.size()) throw new RuntimeException(name + ": " + set.numElements() + " objects != " + expected.size());
+    
+    Iterator i = expected.keySet().iterator();
+    int count = 0;
+    while (i.hasNext()) {
+      Id id = (Id) i.next();
+      if (! expected.get(id).equals(storage.getMetadata(id))) throw new RuntimeException(name + ": wrong metadata " + storage.getMetadata(id) + " for " + id);
+      
+      if (count++ % 50 == 0) {
+        ExternalContinuation c = new ExternalContinuation();
+        storage.getObject(id, c);
+        Id stored = (renamed.containsKey(id) ? (Id) renamed.get(id) : id);
+        if (! ("object " + stored.toStringFull()).equals(call(c))) throw new RuntimeException(name + ": wrong object for " + id);
+      }
+    }
+  }
+  
+  static long start(String name, IdFactory factory, String dir, Environment env, Map expected, long size, boolean walk) throws Exception {
+    long start = System.nanoTime();
+    PersistentStorage storage = new PersistentStorage(factory, "restart", dir, Long.MAX_VALUE, env);
+    long time = (System.nanoTime() - start) / 1000000;
+    check(name, storage, expected, size);
+    
+    long sequence = readSequence(new File(new File(dir, PersistentStorage.BACKUP_DIRECTORY), "restart" + PersistentStorage.SNAPSHOT_SUFFIX));
+    if (walk != (sequence == 1)) throw new RuntimeException(name + ": expected " + (walk ? "a walk" : "the snapshot") + " but the snapshot is number " + sequence);
+    
+    System.out.println(name + ": started in " + time + "ms" + (walk ? " walking the directories" : " from the snapshot"));
+    return sequence;
+  }
+  
+  static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        delete(files[i]);
+      }
+    }
+    file.delete();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int num = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    String dir = args.length > 1 ? args[1] : "PersistentStorageRestartTest";
+    
+    Environment env = new Environment();
+    /* make sure a checkpoint happens while storing */
+    env.getParameters().setInt("p2p_persistence_checkpoint_journal_size", num / 2);
+    env.getParameters().setBoolean("p2p_persistence_journal_sync", true);
+    IdFactory factory = new PastryIdFactory(env);
+    RandomSource random = env.getRandomSource();
+    delete(new File(dir));
+    
+    PersistentStorage storage = new PersistentStorage(factory, "restart", dir, Long.MAX_VALUE, env);
+    HashMap expected = new HashMap();
+    Id[] ids = new Id[num];
+    
+    for (int i = 0; i < num; i++) {
+      ids[i] = factory.buildRandomId(random);
+      ExternalContinuation c = new ExternalContinuation();
+      storage.store(ids[i], "metadata " + i, "object " + ids[i].toStringFull(), c);
+      call(c);
+      expected.put(ids[i], "metadata " + i);
+    }
+    
+    /* change some metadata, remove some objects, and rename one */
+    for (int i = 0; i < num; i += 7) {
+      ExternalContinuation c = new ExternalContinuation();
+      storage.setMetadata(ids[i], "new metadata " + i, c);
+      call(c);
+      expected.put(ids[i], "new metadata " + i);
+    }
+    for (int i = 3; i < num; i += 11) {
+      ExternalContinuation c = new ExternalContinuation();
+      storage.unstore(ids[i], c);
+      call(c);
+      expected.remove(ids[i]);
+    }
+    
+    Id newId = factory.buildRandomId(random);
+    ExternalContinuation rc = new ExternalContinuation();
+    storage.rename(ids[1], newId, rc);
+    if (! Boolean.TRUE.equals(call(rc))) throw new RuntimeException("rename failed");
+    if (storage.exists(ids[1]) || ! storage.exists(newId)) throw new RuntimeException("rename did not move " + ids[1] + " to " + newId);
+    expected.put(newId, expected.remove(ids[1]));
+    renamed.put(newId, ids[1]);
+    
+    long size = storage.getTotalSize();
+    check("running", storage, expected, size);
+    
+    /* the snapshot written during the stores, and the journal since */
+    long sequence = start("snapshot and journal", factory, dir, env, expected, size, false);
+    if (sequence < 3) throw new RuntimeException("expected a checkpoint while storing, snapshot is number " + sequence);
+    
+    /* just the snapshot */
+    start("snapshot", factory, dir, env, expected, size, false);
+    
+    /* the snapshot is lost */
+    File backup = new File(dir, PersistentStorage.BACKUP_DIRECTORY);
+    new File(backup, "restart" + PersistentStorage.SNAPSHOT_SUFFIX).delete();
+    start("no snapshot", factory, dir, env, expected, size, true);
+    
+    /* we crashed in the middle of a request, after its JOURNAL_BEGIN */
+    start("snapshot", factory, dir, env, expected, size, false);
+    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    crc.update(PersistentStorage.JOURNAL_BEGIN);
+    DataOutputStream dos = new DataOutputStream(new FileOutputStream(new File(backup, "restart" + PersistentStorage.JOURNAL_SUFFIX), true));
+    dos.writeInt(0);
+    dos.writeByte(PersistentStorage.JOURNAL_BEGIN);
+    dos.writeInt((int) crc.getValue());
+    dos.close();
+    start("crash", factory, dir, env, expected, size, true);
+    
+    System.out.println("All tests completed successfully");
+    env.destroy();
+    delete(new File(dir));
+  }
+}
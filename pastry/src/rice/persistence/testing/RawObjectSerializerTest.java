@@ -0,0 +1,175 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence.testing;
+
+import java.io.*;
+
+import rice.*;
+import rice.Continuation.*;
+import rice.environment.Environment;
+import rice.persistence.*;
+import rice.persistence.testing.PersistentStorageBenchmark.RawPayload;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.pastry.commonapi.*;
+
+/**
+ * This class tests that objects stored in their raw form are read back by 
+ * the RawObjectSerializer which wrote them, when several are set on one 
+ * storage.  The OffHeapMemoryStorage answers synchronously, so each step 
+ * checks the result right after calling it.
+ * 
+ * @version $Id$
+ */
+public class RawObjectSerializerTest extends Test {
+
+  private IdFactory FACTORY;
+  
+  /**
+   * Builds a RawObjectSerializerTest
+   */
+  public RawObjectSerializerTest(Environment env) {
+    super(env);
+    FACTORY = new PastryIdFactory(env);
+  }
+  
+  private Id id(int i) {
+    int[] x = new int[5];
+    x[3] = i;
+    return FACTORY.buildId(x);
+  }
+  
+  /**
+   * A serializer which claims every RawPayload, and counts the objects it
+   * reads
+   */
+  static class CountingSerializer implements RawObjectSerializer {
+    int read;
+    
+    public short getType(Serializable obj) {
+      return (obj instanceof RawPayload ? RawPayload.TYPE : -1);
+    }
+    
+    public Serializable deserialize(InputBuffer buf, short type) throws IOException {
+      if (type != RawPayload.TYPE) throw new IOException("Unknown type " + type);
+      read++;
+      return new RawPayload(buf);
+    }
+  }
+  
+  private Object[] call(OffHeapMemoryStorage storage, Id id) {
+    final Object[] result = new Object[2];
+    storage.getObject(id, new Continuation() {
+      public void receiveResult(Object o) {
+        result[0] = o;
+      }
+
+      public void receiveException(Exception e) {
+        result[1] = e;
+      }
+    });
+    
+    return result;
+  }
+  
+  private void testSerializers() {
+    sectionStart("Testing Serializers");
+    OffHeapMemoryStorage storage = new OffHeapMemoryStorage(FACTORY, environment);
+    CountingSerializer a = new CountingSerializer();
+    CountingSerializer b = new CountingSerializer();
+    RawPayload small = new RawPayload("small", new byte[] {1, 2, 3});
+    RawPayload large = new RawPayload("large", new byte[100000]);
+    
+    stepStart("Storing objects with the first serializer set");
+    storage.setRawObjectSerializer("a", a);
+    storage.store(id(1), null, small, new ListenerContinuation("Storing object", environment));
+    storage.store(id(2), null, large, new ListenerContinuation("Storing object", environment));
+    if (storage.getTotalSize() < large.data.length) stepDone(SUCCESS); else stepDone(FAILURE, "Large object was not deflated, size " + storage.getTotalSize());
+    
+    stepStart("Reading them back with a second serializer set");
+    storage.setRawObjectSerializer("b", b);
+    Object[] r1 = call(storage, id(1));
+    Object[] r2 = call(storage, id(2));
+    if (small.equals(r1[0]) && large.equals(r2[0]) && (a.read == 2) && (b.read == 0))
+      stepDone(SUCCESS);
+    else
+      stepDone(FAILURE, "Read " + r1[0] + " " + r1[1] + " " + r2[0] + " " + r2[1] + ", first serializer read " + a.read + ", second " + b.read);
+    
+    stepStart("Setting the same serializer again");
+    try {
+      storage.setRawObjectSerializer("a", a);
+      stepDone(SUCCESS);
+    } catch (IllegalStateException e) {
+      stepDone(FAILURE, e.toString());
+    }
+    
+    stepStart("Replacing the serializer");
+    try {
+      storage.setRawObjectSerializer("a", new CountingSerializer());
+      stepDone(FAILURE, "Serializer was replaced");
+    } catch (IllegalStateException e) {
+      stepDone(SUCCESS);
+    }
+    
+    stepStart("Reading without the serializer");
+    storage.setRawObjectSerializer("a", null);
+    r1 = call(storage, id(1));
+    if ((r1[0] == null) && (r1[1] instanceof IOException) && storage.exists(id(1)))
+      stepDone(SUCCESS);
+    else
+      stepDone(FAILURE, "Read " + r1[0] + " " + r1[1] + ", exists " + storage.exists(id(1)));
+    
+    stepStart("Reading once it is set again");
+    storage.setRawObjectSerializer("a", a);
+    r1 = call(storage, id(1));
+    if (small.equals(r1[0])) stepDone(SUCCESS); else stepDone(FAILURE, "Read " + r1[0] + " " + r1[1]);
+    
+    sectionEnd();
+  }
+  
+  public void start() {
+    testSerializers();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Environment env = new Environment();
+    RawObjectSerializerTest test = new RawObjectSerializerTest(env);
+
+    test.start();
+    env.destroy();
+  }
+}
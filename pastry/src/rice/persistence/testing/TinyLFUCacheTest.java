@@ -0,0 +1,300 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.persistence.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.*;
+import rice.Continuation.*;
+import rice.environment.Environment;
+import rice.persistence.*;
+import rice.p2p.commonapi.*;
+import rice.pastry.commonapi.*;
+
+/**
+ * This class tests the admission, eviction and size accounting of the 
+ * TinyLFUCache in the rice.persistence package.  The MemoryStorage answers 
+ * synchronously, so each step checks the cache right after calling it.
+ * 
+ * @version $Id$
+ */
+@SuppressWarnings("unchecked")
+public class TinyLFUCacheTest extends Test {
+
+  /**
+   * The number of objects which fit in the cache
+   */
+  protected static final int NUM_OBJECTS = 100;
+  
+  /**
+   * The length of the incompressible byte[] of an object
+   */
+  protected static final int OBJECT_LENGTH = 1000;
+
+  private IdFactory FACTORY;
+  
+  private Random random;
+  
+  // the size of an object, as measured by the cache
+  private int objectSize;
+  
+  private int cacheSize;
+
+  /**
+   * Builds a TinyLFUCacheTest
+   */
+  public TinyLFUCacheTest(Environment env) {
+    super(env);
+    FACTORY = new PastryIdFactory(env);
+    random = new Random(42);
+    
+    MemoryStorage storage = new MemoryStorage(FACTORY);
+    storage.store(id(0), null, object(OBJECT_LENGTH), new ListenerContinuation("Measuring object size", env));
+    objectSize = (int) storage.getTotalSize();
+    cacheSize = NUM_OBJECTS * objectSize + objectSize / 2;
+  }
+  
+  private Id id(int i) {
+    int[] x = new int[5];
+    x[3] = i;
+    return FACTORY.buildId(x);
+  }
+  
+  private byte[] object(int length) {
+    byte[] result = new byte[length];
+    random.nextBytes(result);
+    return result;
+  }
+  
+  private TinyLFUCache buildCache() {
+    return new TinyLFUCache(new MemoryStorage(FACTORY), cacheSize, environment);
+  }
+  
+  private boolean cache(Cache cache, int i, int length) {
+    final Object[] result = new Object[1];
+    cache.cache(id(i), null, object(length), new Continuation() {
+      public void receiveResult(Object o) {
+        result[0] = o;
+      }
+
+      public void receiveException(Exception e) {
+        stepException(e);
+      }
+    });
+    
+    return Boolean.TRUE.equals(result[0]);
+  }
+  
+  private void request(Cache cache, int i, int times) {
+    for (int j = 0; j < times; j++) 
+      cache.getObject(id(i), new ListenerContinuation("Requesting object", environment));
+  }
+  
+  /**
+   * Fills the cache with objects 0 to NUM_OBJECTS-1
+   */
+  private boolean fill(Cache cache) {
+    for (int i = 0; i < NUM_OBJECTS; i++) 
+      if (! cache(cache, i, OBJECT_LENGTH))
+        return false;
+    
+    return cache.getSize() == NUM_OBJECTS;
+  }
+  
+  /**
+   * A sweep over objects which are requested once doesn't push out the 
+   * frequently requested objects
+   */
+  private void testAdmission() {
+    sectionStart("Testing Admission");
+    TinyLFUCache cache = buildCache();
+    
+    stepStart("Filling cache with " + NUM_OBJECTS + " objects");
+    if (fill(cache)) stepDone(SUCCESS); else stepDone(FAILURE, "Cache holds " + cache.getSize() + " objects");
+    
+    stepStart("Requesting the first half three times");
+    for (int i = 0; i < NUM_OBJECTS / 2; i++) 
+      request(cache, i, 3);
+    if (cache.getHits() == 3 * (NUM_OBJECTS / 2)) stepDone(SUCCESS); else stepDone(FAILURE, "Had " + cache.getHits() + " hits");
+    
+    stepStart("Caching " + (2 * NUM_OBJECTS) + " objects once each");
+    for (int i = NUM_OBJECTS; i < 3 * NUM_OBJECTS; i++) 
+      cache(cache, i, OBJECT_LENGTH);
+    stepDone(SUCCESS);
+    
+    stepStart("Checking that the requested objects are still cached");
+    for (int i = 0; i < NUM_OBJECTS / 2; i++) {
+      if (! cache.exists(id(i))) {
+        stepDone(FAILURE, "Object " + i + " was pushed out by the sweep");
+        return;
+      }
+    }
+    stepDone(SUCCESS);
+    
+    stepStart("Checking that the sweep was rejected");
+    if (cache.getRejections() > NUM_OBJECTS) stepDone(SUCCESS); else stepDone(FAILURE, "Only " + cache.getRejections() + " rejections");
+    
+    sectionEnd();
+  }
+  
+  /**
+   * An object which is requested again is protected, and outlives less 
+   * recently used objects of probation
+   */
+  private void testProtected() {
+    sectionStart("Testing Protected Promotion");
+    TinyLFUCache cache = buildCache();
+    
+    stepStart("Filling cache with " + NUM_OBJECTS + " objects");
+    if (fill(cache)) stepDone(SUCCESS); else stepDone(FAILURE, "Cache holds " + cache.getSize() + " objects");
+    
+    stepStart("Requesting the first object again");
+    request(cache, 0, 1);
+    stepDone(SUCCESS);
+    
+    stepStart("Caching 10 frequently requested objects");
+    for (int i = NUM_OBJECTS; i < NUM_OBJECTS + 10; i++) {
+      request(cache, i, 3);
+      cache(cache, i, OBJECT_LENGTH);
+    }
+    if (cache.getEvictions() > 0) stepDone(SUCCESS); else stepDone(FAILURE, "Nothing was evicted");
+    
+    stepStart("Checking that the first object is still cached");
+    if (cache.exists(id(0))) stepDone(SUCCESS); else stepDone(FAILURE, "Protected object was evicted");
+    
+    stepStart("Checking that the second object was evicted");
+    if (! cache.exists(id(1))) stepDone(SUCCESS); else stepDone(FAILURE, "Least recently used object of probation is still cached");
+    
+    sectionEnd();
+  }
+  
+  /**
+   * A large object which loses against one of the objects it would push out 
+   * is rejected without removing any of them
+   */
+  private void testEviction() {
+    sectionStart("Testing Eviction");
+    TinyLFUCache cache = buildCache();
+    
+    stepStart("Filling cache, the second object often requested");
+    request(cache, 1, 5);
+    if (fill(cache)) stepDone(SUCCESS); else stepDone(FAILURE, "Cache holds " + cache.getSize() + " objects");
+    
+    stepStart("Caching a 4x object requested three times");
+    request(cache, NUM_OBJECTS, 2);
+    long evictions = cache.getEvictions();
+    if (! cache(cache, NUM_OBJECTS, 4 * OBJECT_LENGTH)) stepDone(SUCCESS); else stepDone(FAILURE, "Large object was cached");
+    
+    stepStart("Checking that nothing was evicted for it");
+    for (int i = 0; i < 4; i++) {
+      if (! cache.exists(id(i))) {
+        stepDone(FAILURE, "Object " + i + " was evicted");
+        return;
+      }
+    }
+    if (cache.getEvictions() == evictions) stepDone(SUCCESS); else stepDone(FAILURE, (cache.getEvictions() - evictions) + " evictions");
+    
+    stepStart("Caching a 4x object requested ten times");
+    request(cache, NUM_OBJECTS + 1, 9);
+    if (cache(cache, NUM_OBJECTS + 1, 4 * OBJECT_LENGTH)) stepDone(SUCCESS); else stepDone(FAILURE, "Large object was rejected");
+    
+    stepStart("Checking that the least recently used objects were evicted");
+    if ((! cache.exists(id(0))) && (cache.getTotalSize() <= cache.getMaximumSize())) 
+      stepDone(SUCCESS); 
+    else 
+      stepDone(FAILURE, "First object exists: " + cache.exists(id(0)) + " size: " + cache.getTotalSize());
+    
+    sectionEnd();
+  }
+  
+  /**
+   * Random operations never leave more in the storage than the cache allows
+   */
+  private void testSize() {
+    sectionStart("Testing Size Accounting");
+    TinyLFUCache cache = buildCache();
+    
+    stepStart("Running 20000 random operations");
+    for (int op = 0; op < 20000; op++) {
+      int i = random.nextInt(4 * NUM_OBJECTS);
+      int r = random.nextInt(20);
+      
+      if (r < 8) {
+        cache(cache, i, random.nextInt(4 * OBJECT_LENGTH));
+      } else if (r < 18) {
+        request(cache, i, 1);
+      } else if (r < 19) {
+        cache.uncache(id(i), new ListenerContinuation("Uncaching object", environment));
+      } else {
+        int size = (random.nextBoolean() ? cacheSize : cacheSize / 2 + random.nextInt(cacheSize / 2));
+        cache.setMaximumSize(size, new ListenerContinuation("Setting size", environment));
+      }
+      
+      if (cache.getTotalSize() > cache.getMaximumSize()) {
+        stepDone(FAILURE, "Operation " + op + " left " + cache.getTotalSize() + " bytes, maximum " + cache.getMaximumSize());
+        return;
+      }
+    }
+    stepDone(SUCCESS);
+    
+    stepStart("Shrinking the cache to " + (cacheSize / 10) + " bytes");
+    cache.setMaximumSize(cacheSize / 10, new ListenerContinuation("Setting size", environment));
+    if (cache.getTotalSize() <= cacheSize / 10) stepDone(SUCCESS); else stepDone(FAILURE, "Cache holds " + cache.getTotalSize() + " bytes");
+    
+    stepStart("Rejecting an object larger than the cache");
+    if (! cache(cache, 0, cacheSize)) stepDone(SUCCESS); else stepDone(FAILURE, "Object was cached");
+    
+    sectionEnd();
+  }
+  
+  public void start() {
+    testAdmission();
+    testProtected();
+    testEviction();
+    testSize();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Environment env = new Environment();
+    TinyLFUCacheTest test = new TinyLFUCacheTest(env);
+
+    test.start();
+    env.destroy();
+  }
+}
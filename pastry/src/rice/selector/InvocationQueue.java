@@ -0,0 +1,162 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free multi-producer, single-consumer FIFO used for the selector's 
+ * invocations.
+ * 
+ * Producers push onto a lock-free stack.  The consumer (the selector thread) 
+ * takes the whole stack with one atomic swap in startBatch(), reverses it into 
+ * its private list, and then poll()s the batch.  Items that are not polled 
+ * (because an invocation threw) stay at the front for the next batch.
+ * 
+ * @version $Id$
+ */
+public class InvocationQueue<T> {
+  
+  static class Node<T> {
+    T item;
+    Node<T> next;
+    
+    Node(T item) {
+      this.item = item;
+    }
+  }
+
+  /**
+   * The items pushed by the producers, newest first.
+   */
+  protected AtomicReference<Node<T>> pushed = new AtomicReference<Node<T>>();
+  
+  /**
+   * The consumer's items, oldest first.  Only touched by the consumer.
+   */
+  protected Node<T> head, tail;
+  
+  /**
+   * The number of items in the consumer's list.
+   */
+  protected int batchSize;
+  
+  /**
+   * Called by any thread.
+   * 
+   * @param item the item to add
+   * @return true if this is the first item since the consumer last called startBatch()
+   */
+  public boolean offer(T item) {
+    Node<T> node = new Node<T>(item);
+    Node<T> top;
+    do {
+      top = pushed.get();
+      node.next = top;
+    } while (!pushed.compareAndSet(top, node));
+    return top == null;
+  }
+  
+  /**
+   * Called by the consumer.  Moves everything offered so far into the batch.
+   * 
+   * @return the number of items in the batch
+   */
+  public int startBatch() {
+    Node<T> top = pushed.getAndSet(null);
+    if (top != null) {
+      // reverse into FIFO order
+      Node<T> first = null;
+      Node<T> last = top;
+      while (top != null) {
+        Node<T> next = top.next;
+        top.next = first;
+        first = top;
+        top = next;
+        batchSize++;
+      }
+      if (tail == null) {
+        head = first;
+      } else {
+        tail.next = first;
+      }
+      tail = last;
+    }
+    return batchSize;
+  }
+  
+  /**
+   * Called by the consumer.  Only returns items that were moved in by startBatch().
+   * 
+   * @return the next item of the batch, or null if the batch is empty
+   */
+  public T poll() {
+    Node<T> n = head;
+    if (n == null) return null;
+    head = n.next;
+    if (head == null) tail = null;
+    batchSize--;
+    return n.item;
+  }
+  
+  /**
+   * Counting the items offered since the last batch would cost the producers 
+   * another contended atomic, so this only counts the current batch.
+   * 
+   * @return the number of items in the current batch which have not been polled
+   */
+  public int size() {
+    return batchSize;
+  }
+  
+  /**
+   * Called by the consumer.
+   * 
+   * @return true if there is nothing offered or left in the batch
+   */
+  public boolean isEmpty() {
+    return head == null && pushed.get() == null;
+  }
+  
+  /**
+   * Called by the consumer.  Drops all items.
+   */
+  public void clear() {
+    startBatch();
+    while (poll() != null);
+  }
+}
@@ -130,10 +130,6 @@ public class ProfileSelector extends SelectorManager {
 //    if (!(d instanceof ConnectionManager.SenderInvokee)) {
 //      //Thread.dumpStack();
 //    }
-    int numInvokes = invocations.size();
-    if (numInvokes > maxInvokes) {
-      maxInvokes = numInvokes;
-    }
   }
 
   // *********************** debugging statistics ****************
@@ -278,15 +274,15 @@ public class ProfileSelector extends SelectorManager {
    * called by the selector thread.
    */
   protected void doInvocations() {    
-    Iterator<Runnable> i;
-    synchronized(this) {
-      i = new ArrayList<Runnable>(invocations).iterator();
-      invocations.clear();
+    int num = invocations.startBatch();
+    // only the selector thread sees a consistent size of the queue
+    if (num > maxInvokes) {
+      maxInvokes = num;
     }
     Runnable run;
-    while (i.hasNext()) {
+    for (int ctr = 0; ctr < num; ctr++) {
       numInvocationsExecuted++;
-      run = (Runnable)i.next();
+      run = invocations.poll();
       //System.out.println("ProfileSelector.doInvocations()"+run.getClass().getName()+"@"+System.identityHashCode(run));
       try {
         lastTaskType = "Invocation";
@@ -309,13 +305,12 @@ public class ProfileSelector extends SelectorManager {
       }
     }
 
-    Iterator<SelectionKey> i2;
-    synchronized(this) {
-      i2 = new ArrayList<SelectionKey>(modifyKeys).iterator();
-    }
+    wakeupPending.set(false);
+    Iterator<SelectionKey> i2 = modifyKeys.iterator();
     SelectionKey key;
     while (i2.hasNext()) {
       key = (SelectionKey)i2.next();
+      i2.remove();
       if (key.isValid() && (key.attachment() != null)) {
         SelectionKeyHandler skh = (SelectionKeyHandler) key.attachment();
         lastTaskType = "ModifyKey";
@@ -350,6 +345,7 @@ public class ProfileSelector extends SelectorManager {
       run = getInvocation();
     }
 
+    wakeupPending.set(false);
     SelectionKey key = getModifyKey();
     while (key != null) {
       if (key.isValid() && (key.attachment() != null)) {
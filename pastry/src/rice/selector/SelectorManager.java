@@ -39,6 +39,8 @@ package rice.selector;
 import java.io.IOException;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import rice.Destructable;
 import rice.environment.Environment;
@@ -65,15 +67,24 @@ public class SelectorManager extends Thread implements Timer, Destructable {
   protected Selector selector;
 
   // a list of the invocations that need to be done in this thread
-  protected LinkedList<Runnable> invocations;
+  protected InvocationQueue<Runnable> invocations;
 
   // the list of handlers which want to change their key
-  protected HashSet<SelectionKey> modifyKeys;
+  protected Set<SelectionKey> modifyKeys;
+  
+  // true if the selector has been woken up for the modifyKeys that are pending
+  protected AtomicBoolean wakeupPending = new AtomicBoolean(false);
+  
+  // the number of invocations run by the last doInvocations()
+  protected int invocationsRun = 0;
+  
+  // the number of invocations that were waiting when the last batch started
+  protected int invocationsQueued = 0;
 
   // the list of keys waiting to be cancelled
   protected HashSet<SelectionKey> cancelledKeys;
 
-  // the set used to store the timer events
+  // the set used to store the timer events, a TimingWheel if selector_timer_queue = wheel
 //  protected TreeSet timerQueue = new TreeSet();
   protected Queue<TimerTask> timerQueue = new PriorityQueue<TimerTask>();
 
@@ -110,8 +121,8 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     if (this.random == null) this.random = new SimpleRandomSource(log);
     this.instance = instance;
     this.logger = log.getLogger(getClass(), instance);
-    this.invocations = new LinkedList<Runnable>();
-    this.modifyKeys = new HashSet<SelectionKey>();
+    this.invocations = new InvocationQueue<Runnable>();
+    this.modifyKeys = Collections.newSetFromMap(new ConcurrentHashMap<SelectionKey, Boolean>());
     this.cancelledKeys = new HashSet<SelectionKey>();
     this.timeSource = timeSource;
 
@@ -144,6 +155,14 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     if (env == null) throw new IllegalArgumentException("env is null!");
     if (environment != null) return;
     environment = env;
+    if (env.getParameters().contains("selector_timer_queue") && 
+        env.getParameters().getString("selector_timer_queue").equalsIgnoreCase("wheel")) {
+      synchronized(this) {
+        Queue<TimerTask> wheel = new TimingWheel(timeSource.currentTimeMillis());
+        wheel.addAll(timerQueue);
+        timerQueue = wheel;
+      }
+    }
     environment.addDestructable(this);
     start();
   }
@@ -203,12 +222,31 @@ public class SelectorManager extends Thread implements Timer, Destructable {
    * 
    * @param d The runnable task to invoke
    */
-  public synchronized void invoke(Runnable d) {
+  public void invoke(Runnable d) {
     if (d == null)
       throw new NullPointerException();
-    if (invocations == null) return;
-    invocations.add(d);
-    wakeup();
+    InvocationQueue<Runnable> q = invocations;
+    if (q == null) return;
+    // only the first invocation of a batch needs to wake up the selector
+    if (q.offer(d)) wakeupForInvocations();
+  }
+  
+  /**
+   * Wakes up the selector for a batch of invocations/modifyKeys.  Unlike 
+   * wakeup(), doesn't require the lock.
+   * 
+   * Not needed on the selector thread: select() doesn't block while there are 
+   * invocations or modifyKeys, and each wakeup costs a syscall.
+   */
+  protected void wakeupForInvocations() {
+    if (isSelectorThread()) return;
+    selector.wakeup();
+    if (!select) {
+      // the simulator waits on this
+      synchronized(this) {
+        notifyAll();
+      }
+    }
   }
 
   /**
@@ -227,12 +265,13 @@ public class SelectorManager extends Thread implements Timer, Destructable {
    * 
    * @param key The key which is to be changed
    */
-  public synchronized void modifyKey(SelectionKey key) {
+  public void modifyKey(SelectionKey key) {
     if (key == null)
       throw new NullPointerException();
 
     modifyKeys.add(key);
-    wakeup();
+    // the flag is cleared by doInvocations() before it drains modifyKeys
+    if (wakeupPending.compareAndSet(false, true)) wakeupForInvocations();
   }
 
   /**
@@ -265,10 +304,13 @@ public class SelectorManager extends Thread implements Timer, Destructable {
         if (select) {
           doSelections();
           int selectTime = SelectorManager.TIMEOUT;
-          if (timerQueue.size() > 0) {
-            TimerTask first = (TimerTask) timerQueue.peek();
-            selectTime = (int) (first.scheduledExecutionTime() - timeSource
-                .currentTimeMillis());
+          // peek() may drop cancelled tasks from the TimingWheel, hold the lock
+          synchronized (this) {
+            if (timerQueue.size() > 0) {
+              TimerTask first = (TimerTask) timerQueue.peek();
+              selectTime = (int) (first.scheduledExecutionTime() - timeSource
+                  .currentTimeMillis());
+            }
           }
 
           select(selectTime);
@@ -347,6 +389,9 @@ public class SelectorManager extends Thread implements Timer, Destructable {
         if (lo.delayInterest() <= diff) {
           lo.loopTime((int) diff);
         }
+        if (lo instanceof InvocationObserver) {
+          ((InvocationObserver)lo).invocations(invocationsRun, invocationsQueued);
+        }
       }
     }
     lastTime = now;
@@ -431,67 +476,52 @@ public class SelectorManager extends Thread implements Timer, Destructable {
    */
   protected void doInvocations() {
     if (logger.level <= Logger.FINEST) logger.log("SM.doInvocations()");
-    Iterator<Runnable> i;
-    synchronized (this) {
-      i = new ArrayList<Runnable>(invocations).iterator();
-      invocations.clear();
-    }
-
-    while (i.hasNext()) {
-      Runnable run = (Runnable) i.next();
-      try {
-        run.run();
-      } catch (RuntimeException e) {
-        // place the rest of the items back into invocations
-        synchronized(this) {
-          int ctr = 0;
-          while(i.hasNext()) {
-            invocations.add(ctr,i.next());
-            ctr++;
-          }
-        }        
-//        if (logger.level <= Logger.SEVERE) logger.logException( 
-//            "Invoking runnable caused exception " + e + " - continuing",e);
-        throw e;
-      }
-    }
-
-    Iterator<SelectionKey> i2;
-    synchronized (this) {
-      i2 = new ArrayList<SelectionKey>(modifyKeys).iterator();
-      modifyKeys.clear();
+    // only run what is here now, invocations added by these run on the next loop
+    int num = invocations.startBatch();
+    invocationsQueued = num;
+    invocationsRun = 0;
+    for (int ctr = 0; ctr < num; ctr++) {
+      // if this throws, the rest of the batch stays at the front of the queue
+      Runnable run = invocations.poll();
+      invocationsRun++;
+      run.run();
     }
 
+    // any modifyKey() after this point will wake us up again, clear the flag 
+    // even if there is nothing to do so that a wakeup is never lost
+    wakeupPending.set(false);
+    if (modifyKeys.isEmpty()) return;
+    Iterator<SelectionKey> i2 = modifyKeys.iterator();
     while (i2.hasNext()) {
       SelectionKey key = (SelectionKey) i2.next();
+      i2.remove();
       if (key.isValid() && (key.attachment() != null))
         ((SelectionKeyHandler) key.attachment()).modifyKey(key);
     }
   }
 
   /**
-   * Method which synchroniously returns the first element off of the
-   * invocations list.
+   * Method which returns the first element off of the invocations list.  
+   * Must be called on the selector thread.
    * 
    * @return An item from the invocations list
    */
-  protected synchronized Runnable getInvocation() {
-    if (invocations.size() > 0)
-      return (Runnable) invocations.removeFirst();
-    else
-      return null;
+  protected Runnable getInvocation() {
+    invocations.startBatch();
+    return invocations.poll();
   }
 
   /**
-   * Method which synchroniously returns on element off of the modifyKeys list
+   * Method which returns one element off of the modifyKeys list
    * 
    * @return An item from the invocations list
    */
-  protected synchronized SelectionKey getModifyKey() {
-    if (modifyKeys.size() > 0) {
-      Object result = modifyKeys.iterator().next();
-      modifyKeys.remove(result);
-      return (SelectionKey) result;
+  protected SelectionKey getModifyKey() {
+    Iterator<SelectionKey> i = modifyKeys.iterator();
+    if (i.hasNext()) {
+      SelectionKey result = i.next();
+      i.remove();
+      return result;
     } else {
       return null;
     }
@@ -511,7 +541,7 @@ public class SelectorManager extends Thread implements Timer, Destructable {
       time = TIMEOUT;
 
     try {
-      if ((time <= 0) || (invocations.size() > 0) || (modifyKeys.size() > 0))
+      if ((time <= 0) || !invocations.isEmpty() || !modifyKeys.isEmpty())
         return selector.selectNow();
 
       wakeupTime = timeSource.currentTimeMillis() + time;
@@ -676,7 +706,7 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     this.notifyAll();
   }
 
-  public long getNextTaskExecutionTime() {
+  public synchronized long getNextTaskExecutionTime() {
 //    if (!invocations.isEmpty()) return timeSource.currentTimeMillis();
     if (timerQueue.size() > 0) {
       TimerTask next = (TimerTask) timerQueue.peek();
@@ -783,6 +813,22 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     return environment;
   }
 
+  /**
+   * The pool this loop is shared through, null if it is not shared.
+   */
+  protected SelectorManagerPool pool;
+  
+  public void setPool(SelectorManagerPool pool) {
+    this.pool = pool;
+  }
+  
+  /**
+   * @return the pool this loop belongs to, or null if it is not pooled
+   */
+  public SelectorManagerPool getPool() {
+    return pool;
+  }
+
   public void setLogLevel(int level) {
     logger.level = level;
   }
@@ -0,0 +1,193 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector;
+
+import rice.environment.Environment;
+import rice.environment.logging.LogManager;
+import rice.environment.logging.Logger;
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.environment.time.TimeSource;
+
+/**
+ * A fixed set of SelectorManagers (reactor loops) which are shared among many 
+ * nodes in the same JVM.  Each node is bound to exactly one loop, so all of its
+ * channels, invocations and TimerTasks run on that loop's thread, and 
+ * isSelectorThread() keeps its meaning for the node.  This spreads the work of 
+ * many nodes across the cores without giving every node its own thread.
+ * 
+ * Loops are chosen either by hashing a key (typically the node's Id), or by 
+ * picking the loop with the least load (assigned nodes, then registered keys).
+ * 
+ * @version $Id$
+ */
+public class SelectorManagerPool {
+  
+  /**
+   * Assign by the hashCode of the key.
+   */
+  public static final int ASSIGN_HASH = 0;
+  
+  /**
+   * Assign to the loop with the fewest nodes, then the fewest registered channels.
+   */
+  public static final int ASSIGN_LEAST_LOAD = 1;
+
+  protected SelectorManager[] loops;
+  
+  /**
+   * The number of nodes currently bound to each loop.
+   */
+  protected int[] assigned;
+  
+  protected int assignment;
+  
+  protected Logger logger;
+  
+  /**
+   * @param instance the name prefix for the loops
+   * @param size the number of loops
+   * @param assignment ASSIGN_HASH or ASSIGN_LEAST_LOAD
+   */
+  public SelectorManagerPool(String instance, int size, int assignment, TimeSource timeSource, LogManager log, RandomSource random) {
+    if (size <= 0) throw new IllegalArgumentException("size must be positive, was "+size);
+    if (assignment != ASSIGN_HASH && assignment != ASSIGN_LEAST_LOAD) throw new IllegalArgumentException("Unknown assignment "+assignment);
+    this.assignment = assignment;
+    this.logger = log.getLogger(SelectorManagerPool.class, instance);
+    if (random == null) random = new SimpleRandomSource(log);
+    loops = new SelectorManager[size];
+    assigned = new int[size];
+    for (int i = 0; i < size; i++) {
+      loops[i] = new SelectorManager(instance+" Selector "+i, timeSource, log, new SimpleRandomSource(random.nextLong(), log));
+      loops[i].setPool(this);
+    }
+  }
+  
+  /**
+   * Parses the assignment policy: "hash" or "least_load"
+   * 
+   * @param s the name of the policy
+   * @return ASSIGN_HASH or ASSIGN_LEAST_LOAD
+   */
+  public static int parseAssignment(String s) {
+    if (s.equalsIgnoreCase("hash")) return ASSIGN_HASH;
+    if (s.equalsIgnoreCase("least_load")) return ASSIGN_LEAST_LOAD;
+    throw new IllegalArgumentException("Unknown selector assignment:"+s);
+  }
+  
+  /**
+   * Starts the loops, their lifetime is bound to env.  Only the first call has an effect. 
+   * 
+   * @param env the (root) environment which owns the loops
+   */
+  public void setEnvironment(Environment env) {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i].setEnvironment(env);
+    }
+  }
+  
+  /**
+   * Binds a new node to one of the loops.  Call release() when the node is destroyed.
+   * 
+   * @param key used for ASSIGN_HASH, typically the node's Id
+   * @return the loop for the node
+   */
+  public synchronized SelectorManager getSelectorManager(Object key) {
+    int index;
+    if (assignment == ASSIGN_HASH) {
+      index = (key.hashCode() & Integer.MAX_VALUE) % loops.length;
+    } else {
+      index = 0;
+      for (int i = 1; i < loops.length; i++) {
+        if (assigned[i] < assigned[index] || 
+            (assigned[i] == assigned[index] && numKeys(i) < numKeys(index))) {
+          index = i;
+        }
+      }
+    }
+    assigned[index]++;
+    if (logger.level <= Logger.FINE) logger.log("assigned "+key+" to "+loops[index].getName()+" nodes:"+assigned[index]);
+    return loops[index];
+  }
+  
+  /**
+   * @param i the index of the loop
+   * @return the number of channels registered with the loop
+   */
+  protected int numKeys(int i) {
+    return loops[i].getSelector().keys().size();
+  }
+  
+  /**
+   * Called when a node that was bound to sm is destroyed.  The loop keeps running 
+   * for the other nodes.
+   * 
+   * @param sm the loop returned by getSelectorManager()
+   */
+  public synchronized void release(SelectorManager sm) {
+    for (int i = 0; i < loops.length; i++) {
+      if (loops[i] == sm) {
+        if (assigned[i] > 0) assigned[i]--;
+        return;
+      }
+    }
+  }
+  
+  /**
+   * @return the number of loops
+   */
+  public int getSize() {
+    return loops.length;
+  }
+  
+  /**
+   * @param i the index
+   * @return the loop at index i
+   */
+  public SelectorManager getLoop(int i) {
+    return loops[i];
+  }
+  
+  /**
+   * Stops all of the loops.
+   */
+  public void destroy() {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i].destroy();
+    }
+  }
+}
@@ -60,6 +60,12 @@ public abstract class TimerTask implements Comparable<TimerTask>, CancellableTas
     
   protected boolean fixedRate = false;
   
+  /**
+   * The links and slot used by the TimingWheel.
+   */
+  TimerTask wheelNext, wheelPrev;
+  int wheelSlot = TimingWheel.NOT_QUEUED;
+  
   public TimerTask() {
     
   }
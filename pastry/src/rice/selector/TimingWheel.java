@@ -0,0 +1,337 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector;
+
+import java.util.*;
+
+/**
+ * A hierarchical timing wheel which can replace the PriorityQueue that holds
+ * the SelectorManager's TimerTasks.  
+ * 
+ * Insert and cancel are O(1): each task is linked into a doubly linked slot 
+ * list (the links live in the TimerTask), so remove() just unlinks it.  Tasks 
+ * are cascaded into finer levels as the wheel advances, which is amortized O(1)
+ * per task.  Cancelled tasks that are still linked are dropped lazily when 
+ * they reach the front of the wheel.
+ * 
+ * Level 0 has 256 slots of 1 millisecond, the 3 levels above it have 64 slots 
+ * each (256ms, 16s, 17min per slot).  Tasks beyond the top level (more than ~18 
+ * hours away) go to an overflow PriorityQueue.
+ * 
+ * Like the PriorityQueue, tasks scheduled for the same millisecond run in 
+ * order of their sequence number, i.e. in the order they were scheduled.
+ * 
+ * Must be accessed while holding the SelectorManager's lock, like the queue it 
+ * replaces.
+ * 
+ * @version $Id$
+ */
+public class TimingWheel extends AbstractQueue<TimerTask> {
+  
+  public static final int LEVEL_0_BITS = 8;
+  public static final int LEVEL_BITS = 6;
+  public static final int NUM_LEVELS = 4;
+  
+  /**
+   * Slot index of a task that is not in the wheel.
+   */
+  static final int NOT_QUEUED = -1;
+  
+  /**
+   * Slot index of a task in the overflow queue.
+   */
+  static final int OVERFLOW = -2;
+  
+  /**
+   * The offset of each level in the slots array.
+   */
+  protected static final int[] LEVEL_OFFSET = new int[NUM_LEVELS+1];
+  
+  /**
+   * The number of bits in the time below each level's slot index.
+   */
+  protected static final int[] LEVEL_SHIFT = new int[NUM_LEVELS+1];
+  
+  static {
+    LEVEL_OFFSET[0] = 0;
+    LEVEL_SHIFT[0] = 0;
+    LEVEL_OFFSET[1] = 1 << LEVEL_0_BITS;
+    LEVEL_SHIFT[1] = LEVEL_0_BITS;
+    for (int i = 2; i <= NUM_LEVELS; i++) {
+      LEVEL_OFFSET[i] = LEVEL_OFFSET[i-1] + (1 << LEVEL_BITS);
+      LEVEL_SHIFT[i] = LEVEL_SHIFT[i-1] + LEVEL_BITS;
+    }
+  }
+  
+  /**
+   * The heads of the slot lists, all levels in one array.
+   */
+  protected TimerTask[] slots = new TimerTask[LEVEL_OFFSET[NUM_LEVELS]];
+  
+  /**
+   * The number of tasks in each level.
+   */
+  protected int[] levelCount = new int[NUM_LEVELS];
+  
+  /**
+   * Tasks that are too far in the future for the wheel.
+   */
+  protected PriorityQueue<TimerTask> overflow = new PriorityQueue<TimerTask>(11, new Comparator<TimerTask>() {
+    public int compare(TimerTask a, TimerTask b) {
+      long ta = a.scheduledExecutionTime();
+      long tb = b.scheduledExecutionTime();
+      if (ta < tb) return -1;
+      if (ta > tb) return 1;
+      return a.seq - b.seq;
+    }
+  });
+  
+  /**
+   * The time the wheel is currently at.  Only moves forward, to the time of
+   * a task that was polled.
+   */
+  protected long current;
+  
+  protected int size = 0;
+  
+  /**
+   * The earliest task, null if it needs to be recomputed.
+   */
+  protected TimerTask head;
+  
+  /**
+   * @param now the starting time of the wheel
+   */
+  public TimingWheel(long now) {
+    current = now;
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  public boolean offer(TimerTask task) {
+    if (task.wheelSlot != NOT_QUEUED) {
+      // already queued, reschedule it
+      remove(task);
+    }
+    link(task);
+    size++;
+    if (head != null && before(task, head)) head = task;
+    return true;
+  }
+  
+  public TimerTask peek() {
+    while (head == null && size > 0) {
+      TimerTask t = findHead();
+      if (t.isCancelled()) {
+        remove(t);
+      } else {
+        head = t;
+      }
+    }
+    return head;
+  }
+  
+  public TimerTask poll() {
+    TimerTask ret = peek();
+    if (ret == null) return null;
+    remove(ret);
+    if (ret.scheduledExecutionTime() > current) advance(ret.scheduledExecutionTime());
+    return ret;
+  }
+  
+  public boolean remove(Object o) {
+    TimerTask task = (TimerTask)o;
+    int slot = task.wheelSlot;
+    if (slot == NOT_QUEUED) return false;
+    if (slot == OVERFLOW) {
+      overflow.remove(task);
+      task.wheelSlot = NOT_QUEUED;
+    } else {
+      unlink(task);
+    }
+    size--;
+    if (task == head) head = null;
+    return true;
+  }
+
+  public void clear() {
+    for (int i = 0; i < slots.length; i++) {
+      TimerTask t = slots[i];
+      while (t != null) {
+        TimerTask next = t.wheelNext;
+        t.wheelNext = null;
+        t.wheelPrev = null;
+        t.wheelSlot = NOT_QUEUED;
+        t = next;
+      }
+      slots[i] = null;
+    }
+    for (TimerTask t : overflow) {
+      t.wheelSlot = NOT_QUEUED;
+    }
+    overflow.clear();
+    Arrays.fill(levelCount, 0);
+    size = 0;
+    head = null;
+  }
+  
+  /**
+   * Does not support remove(), and the order is not the execution order.
+   */
+  public Iterator<TimerTask> iterator() {
+    ArrayList<TimerTask> ret = new ArrayList<TimerTask>(size);
+    for (int i = 0; i < slots.length; i++) {
+      for (TimerTask t = slots[i]; t != null; t = t.wheelNext) {
+        ret.add(t);
+      }
+    }
+    ret.addAll(overflow);
+    return Collections.unmodifiableList(ret).iterator();
+  }
+  
+  /**
+   * Orders by time, then by sequence number (wrapping, as in 
+   * TimerTask.compareTo()).
+   */
+  protected static boolean before(TimerTask a, TimerTask b) {
+    long ta = a.scheduledExecutionTime();
+    long tb = b.scheduledExecutionTime();
+    if (ta != tb) return ta < tb;
+    return a.seq - b.seq < 0;
+  }
+  
+  /**
+   * Puts the task in the correct slot for the current time.
+   */
+  protected void link(TimerTask task) {
+    long time = task.scheduledExecutionTime();
+    if (time < current) time = current;
+    for (int level = 0; level < NUM_LEVELS; level++) {
+      // does it fall in the current rotation of this level
+      if ((time >>> LEVEL_SHIFT[level+1]) == (current >>> LEVEL_SHIFT[level+1])) {
+        int mask = (level == 0 ? (1 << LEVEL_0_BITS) : (1 << LEVEL_BITS))-1;
+        int slot = LEVEL_OFFSET[level] + (int)((time >>> LEVEL_SHIFT[level]) & mask);
+        TimerTask first = slots[slot];
+        task.wheelPrev = null;
+        task.wheelNext = first;
+        if (first != null) first.wheelPrev = task;
+        slots[slot] = task;
+        task.wheelSlot = slot;
+        levelCount[level]++;
+        return;
+      }
+    }
+    task.wheelSlot = OVERFLOW;
+    overflow.add(task);
+  }
+  
+  protected void unlink(TimerTask task) {
+    int slot = task.wheelSlot;
+    if (task.wheelPrev == null) {
+      slots[slot] = task.wheelNext;
+    } else {
+      task.wheelPrev.wheelNext = task.wheelNext;
+    }
+    if (task.wheelNext != null) task.wheelNext.wheelPrev = task.wheelPrev;
+    task.wheelNext = null;
+    task.wheelPrev = null;
+    task.wheelSlot = NOT_QUEUED;
+    levelCount[levelOf(slot)]--;
+  }
+  
+  protected static int levelOf(int slot) {
+    int level = 0;
+    while (slot >= LEVEL_OFFSET[level+1]) level++;
+    return level;
+  }
+  
+  /**
+   * Finds the earliest task without moving the wheel.  Only the first 
+   * non-empty slot needs to be searched: every task in a later slot or a 
+   * higher level is later.
+   */
+  protected TimerTask findHead() {
+    for (int level = 0; level < NUM_LEVELS; level++) {
+      if (levelCount[level] == 0) continue;
+      int numSlots = (level == 0 ? (1 << LEVEL_0_BITS) : (1 << LEVEL_BITS));
+      int start = (int)((current >>> LEVEL_SHIFT[level]) & (numSlots-1));
+      for (int i = start; i < numSlots; i++) {
+        TimerTask t = slots[LEVEL_OFFSET[level]+i];
+        if (t != null) {
+          TimerTask min = t;
+          for (t = t.wheelNext; t != null; t = t.wheelNext) {
+            if (before(t, min)) min = t;
+          }
+          return min;
+        }
+      }
+    }
+    return overflow.peek();
+  }
+  
+  /**
+   * Moves the wheel to time.  There may not be any tasks before time.  Cascades
+   * the slots that contain time down into the lower levels.
+   */
+  protected void advance(long time) {
+    long old = current;
+    current = time;
+    if ((old >>> LEVEL_SHIFT[NUM_LEVELS]) != (time >>> LEVEL_SHIFT[NUM_LEVELS])) {
+      // pull in the overflow that now fits in the wheel
+      while (!overflow.isEmpty() && 
+          (overflow.peek().scheduledExecutionTime() >>> LEVEL_SHIFT[NUM_LEVELS]) == (time >>> LEVEL_SHIFT[NUM_LEVELS])) {
+        TimerTask t = overflow.poll();
+        link(t);
+      }
+    }
+    for (int level = NUM_LEVELS-1; level > 0; level--) {
+      if ((old >>> LEVEL_SHIFT[level]) == (time >>> LEVEL_SHIFT[level])) continue;
+      if (levelCount[level] == 0) continue;
+      int slot = LEVEL_OFFSET[level] + (int)((time >>> LEVEL_SHIFT[level]) & ((1 << LEVEL_BITS)-1));
+      TimerTask t = slots[slot];
+      slots[slot] = null;
+      while (t != null) {
+        TimerTask next = t.wheelNext;
+        levelCount[level]--;
+        link(t);
+        t = next;
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector.testing;
+
+import rice.environment.Environment;
+import rice.selector.InvocationQueue;
+import rice.selector.SelectorManager;
+
+/**
+ * Checks the ordering of the InvocationQueue, and that SelectorManager.invoke() 
+ * wakes up the selector without waiting for the select() timeout.
+ * 
+ * @version $Id$
+ */
+public class InvocationQueueUnit {
+
+  public static final int PRODUCERS = 4;
+  public static final int ITEMS = 200000;
+  
+  public static void main(String[] args) throws Exception {
+    testBatch();
+    testProducers();
+    testWakeup();
+    System.out.println("SUCCESS");
+  }
+  
+  /**
+   * offer() reports the first item of a batch, items come out in FIFO order, and 
+   * items that weren't polled stay ahead of the next batch.
+   */
+  static void testBatch() {
+    InvocationQueue<Integer> q = new InvocationQueue<Integer>();
+    if (!q.isEmpty()) fail("new queue is not empty");
+    if (!q.offer(0)) fail("first offer() didn't start a batch");
+    if (q.offer(1) || q.offer(2)) fail("later offer() started a batch");
+    if (q.size() != 0) fail("size() counted items before startBatch()");
+    if (q.startBatch() != 3) fail("startBatch() didn't take all 3 items");
+    if (!q.offer(3)) fail("first offer() after startBatch() didn't start a batch");
+    if (q.poll() != 0) fail("poll() out of order");
+    
+    // 1 and 2 weren't polled, they stay ahead of 3
+    if (q.startBatch() != 3) fail("startBatch() lost the unpolled items");
+    for (int i = 1; i <= 3; i++) {
+      Integer item = q.poll();
+      if (item == null || item != i) fail("expected "+i+" got "+item);
+    }
+    if (q.poll() != null) fail("poll() returned an item that wasn't in the batch");
+    if (!q.isEmpty()) fail("drained queue is not empty");
+    
+    q.offer(4);
+    q.clear();
+    if (!q.isEmpty() || q.startBatch() != 0) fail("clear() left items");
+  }
+  
+  /**
+   * Each producer's items come out in the order it offered them, and none are 
+   * lost or duplicated.
+   */
+  static void testProducers() throws InterruptedException {
+    final InvocationQueue<long[]> q = new InvocationQueue<long[]>();
+    Thread[] producers = new Thread[PRODUCERS];
+    for (int p = 0; p < PRODUCERS; p++) {
+      final int producer = p;
+      producers[p] = new Thread("producer "+p) {
+        public void run() {
+          for (int i = 0; i < ITEMS; i++) {
+            q.offer(new long[] {producer, i});
+          }
+        }
+      };
+    }
+    for (Thread t : producers) t.start();
+    
+    int[] next = new int[PRODUCERS];
+    int received = 0;
+    long end = System.currentTimeMillis()+60000;
+    while (received < PRODUCERS*ITEMS) {
+      if (System.currentTimeMillis() > end) fail("only received "+received+" items");
+      int num = q.startBatch();
+      for (int ctr = 0; ctr < num; ctr++) {
+        long[] item = q.poll();
+        int producer = (int)item[0];
+        if (item[1] != next[producer]) fail("producer "+producer+" expected "+next[producer]+" got "+item[1]);
+        next[producer]++;
+        received++;
+      }
+      if (num == 0) Thread.yield();
+    }
+    for (Thread t : producers) t.join();
+    if (!q.isEmpty()) fail("extra items");
+  }
+  
+  /**
+   * An invoke() from another thread wakes up a selector that is blocked in 
+   * select(), and an invoke() on the selector thread (which doesn't call 
+   * wakeup()) still runs on the next loop.
+   */
+  static void testWakeup() throws InterruptedException {
+    Environment env = new Environment();
+    final SelectorManager sm = env.getSelectorManager();
+    try {
+      for (int i = 0; i < 10; i++) {
+        // let the selector block in select()
+        Thread.sleep(50);
+        final long[] ran = new long[2];
+        final long start = System.currentTimeMillis();
+        sm.invoke(new Runnable() {
+          public void run() {
+            ran[0] = System.currentTimeMillis();
+            if (!sm.isSelectorThread()) fail("invocation ran on "+Thread.currentThread());
+            sm.invoke(new Runnable() {
+              public void run() {
+                synchronized(ran) {
+                  ran[1] = System.currentTimeMillis();
+                  ran.notifyAll();
+                }
+              }
+            });
+          }
+        });
+        synchronized(ran) {
+          long end = start+SelectorManager.TIMEOUT*4;
+          while (ran[1] == 0 && System.currentTimeMillis() < end) ran.wait(10);
+        }
+        if (ran[1] == 0) fail("invocations didn't run");
+        // well under the select() timeout
+        if (ran[0]-start >= SelectorManager.TIMEOUT/2) fail("invoke() didn't wake up the selector, took "+(ran[0]-start)+"ms");
+        if (ran[1]-ran[0] >= SelectorManager.TIMEOUT/2) fail("invoke() on the selector thread waited "+(ran[1]-ran[0])+"ms");
+      }
+    } finally {
+      env.destroy();
+    }
+  }
+  
+  static void fail(String s) {
+    System.out.println("FAILURE "+s);
+    System.exit(1);
+  }
+}
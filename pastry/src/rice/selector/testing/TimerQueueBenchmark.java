@@ -0,0 +1,122 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector.testing;
+
+import java.util.*;
+
+import rice.selector.TimerTask;
+import rice.selector.TimingWheel;
+
+/**
+ * Compares the PriorityQueue and the TimingWheel as the selector's timer queue.
+ * For each number of pending tasks it measures schedule, cancel, and 
+ * schedule+expire in steady state.
+ * 
+ * Usage: TimerQueueBenchmark [pending...]  (default 10000 100000 1000000)
+ * 
+ * @version $Id$
+ */
+public class TimerQueueBenchmark {
+  
+  public static final int OPS = 1000000;
+  
+  static class BenchTask extends TimerTask {
+    public BenchTask(long time) {
+      super(time);
+    }
+    
+    public void run() {
+    }
+  }
+  
+  public static void main(String[] args) {
+    int[] sizes = {10000, 100000, 1000000};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+    }
+    
+    // warm up
+    run(new PriorityQueue<TimerTask>(), 10000, false);
+    run(new TimingWheel(0), 10000, false);
+    
+    for (int i = 0; i < sizes.length; i++) {
+      run(new PriorityQueue<TimerTask>(), sizes[i], true);
+      run(new TimingWheel(0), sizes[i], true);
+    }
+  }
+  
+  static void run(Queue<TimerTask> queue, int pending, boolean print) {
+    Random rand = new Random(pending);
+    TimerTask[] tasks = new TimerTask[pending];
+    long now = 0;
+    // timeouts between 1ms and 60s, like liveness pings and maintenance
+    for (int i = 0; i < pending; i++) {
+      tasks[i] = new BenchTask(now+1+rand.nextInt(60000));
+      queue.add(tasks[i]);
+    }
+    
+    // cancel a random task and schedule a new one
+    long start = System.nanoTime();
+    for (int i = 0; i < OPS; i++) {
+      int index = rand.nextInt(pending);
+      queue.remove(tasks[index]);
+      tasks[index] = new BenchTask(now+1+rand.nextInt(60000));
+      queue.add(tasks[index]);
+    }
+    long cancel = System.nanoTime()-start;
+    
+    // move the clock and expire the due tasks, replacing each with a new one
+    start = System.nanoTime();
+    int expired = 0;
+    while (expired < OPS) {
+      now++;
+      while (queue.peek().scheduledExecutionTime() <= now) {
+        queue.poll();
+        queue.add(new BenchTask(now+1+rand.nextInt(60000)));
+        expired++;
+      }
+    }
+    long expire = System.nanoTime()-start;
+    
+    if (print) {
+      System.out.println(queue.getClass().getSimpleName()+" pending:"+pending+
+          " cancel+schedule:"+(cancel/OPS)+"ns/op"+
+          " expire+schedule:"+(expire/expired)+"ns/op");
+    }
+  }
+}
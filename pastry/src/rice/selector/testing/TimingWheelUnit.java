@@ -0,0 +1,119 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector.testing;
+
+import java.util.*;
+
+import rice.selector.TimerTask;
+import rice.selector.TimingWheel;
+
+/**
+ * Runs random schedule/cancel/poll operations against a TimingWheel and a 
+ * PriorityQueue and checks that they release the tasks in the same order.
+ * 
+ * @version $Id$
+ */
+public class TimingWheelUnit {
+
+  static int seqCtr = 0;
+  
+  static class TestTask extends TimerTask {
+    public TestTask(long time) {
+      super(time);
+      seq = seqCtr++;
+    }
+    
+    public void run() {
+    }
+  }
+  
+  public static void main(String[] args) {
+    long seed = args.length > 0 ? Long.parseLong(args[0]) : System.currentTimeMillis();
+    Random rand = new Random(seed);
+    long now = 1000;
+    TimingWheel wheel = new TimingWheel(now);
+    PriorityQueue<TimerTask> heap = new PriorityQueue<TimerTask>();
+    ArrayList<TimerTask> live = new ArrayList<TimerTask>();
+    
+    // tasks for the same millisecond come out in the order they were scheduled
+    TimerTask[] same = new TimerTask[5];
+    for (int i = 0; i < same.length; i++) {
+      same[i] = new TestTask(now+5);
+      wheel.add(same[i]);
+    }
+    for (int i = 0; i < same.length; i++) {
+      if (wheel.poll() != same[i]) fail(seed, "same time task "+i+" out of order");
+    }
+    wheel = new TimingWheel(now);
+    long[] ranges = {10, 300, 20000, 2000000, 200000000L};
+    
+    for (int op = 0; op < 1000000; op++) {
+      int r = rand.nextInt(10);
+      if (r < 5) {
+        TimerTask t = new TestTask(now + (long)(rand.nextDouble()*ranges[rand.nextInt(ranges.length)]));
+        wheel.add(t);
+        heap.add(t);
+        live.add(t);
+      } else if (r < 7 && !live.isEmpty()) {
+        TimerTask t = live.remove(rand.nextInt(live.size()));
+        if (wheel.remove(t) != heap.remove(t)) fail(seed, "remove() disagrees on "+t);
+      } else {
+        // advance the clock and drain everything that is due
+        now += rand.nextInt(rand.nextBoolean() ? 50 : 100000);
+        while (!heap.isEmpty() && heap.peek().scheduledExecutionTime() <= now) {
+          TimerTask h = heap.peek();
+          TimerTask w = wheel.poll();
+          if (w != h) {
+            fail(seed, "expected "+h+" at "+h.scheduledExecutionTime()+" got "+w+(w == null ? "" : " at "+w.scheduledExecutionTime()));
+          }
+          heap.poll();
+          live.remove(w);
+        }
+        if (wheel.size() != heap.size()) fail(seed, "size "+wheel.size()+" != "+heap.size());
+        if (wheel.peek() != heap.peek()) {
+          fail(seed, "peek "+wheel.peek()+" != "+heap.peek());
+        }
+      }
+    }
+    System.out.println("SUCCESS seed:"+seed+" remaining:"+wheel.size());
+  }
+  
+  static void fail(long seed, String s) {
+    System.out.println("FAILURE seed:"+seed+" "+s);
+    System.exit(1);
+  }
+}